@@ -27,10 +27,32 @@ public interface AppRTCClient {
     public final String roomUrl;
     public final String roomId;
     public final boolean loopback;
+    // Window for coalescing local ICE candidates into one message, 0 to send them one by one.
+    public final int iceCandidateBatchWindowMs;
+    // How long TURN servers fetched for a room may be reused when joining again, 0 to disable.
+    public final long turnCacheTtlMs;
+    // Whether to reconnect the signaling channel when it drops during the call.
+    public final boolean reconnect;
     public RoomConnectionParameters(String roomUrl, String roomId, boolean loopback) {
+      this(roomUrl, roomId, loopback, 0 /* iceCandidateBatchWindowMs */);
+    }
+    public RoomConnectionParameters(
+        String roomUrl, String roomId, boolean loopback, int iceCandidateBatchWindowMs) {
+      this(roomUrl, roomId, loopback, iceCandidateBatchWindowMs, 0 /* turnCacheTtlMs */);
+    }
+    public RoomConnectionParameters(String roomUrl, String roomId, boolean loopback,
+        int iceCandidateBatchWindowMs, long turnCacheTtlMs) {
+      this(roomUrl, roomId, loopback, iceCandidateBatchWindowMs, turnCacheTtlMs,
+          false /* reconnect */);
+    }
+    public RoomConnectionParameters(String roomUrl, String roomId, boolean loopback,
+        int iceCandidateBatchWindowMs, long turnCacheTtlMs, boolean reconnect) {
       this.roomUrl = roomUrl;
       this.roomId = roomId;
       this.loopback = loopback;
+      this.iceCandidateBatchWindowMs = iceCandidateBatchWindowMs;
+      this.turnCacheTtlMs = turnCacheTtlMs;
+      this.reconnect = reconnect;
     }
   }
 
@@ -0,0 +1,312 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.webrtc.IceCandidate;
+
+/**
+ * Compact binary encoding of the signaling messages, used by DirectRTCClient on framed
+ * connections once both peers announced it in their hello.
+ *
+ * <p>A message is a type tag followed by a body compressed with raw deflate, primed with a preset
+ * dictionary of common SDP tokens. The body of an offer or answer is the SDP in UTF-8. The body of
+ * a candidate or removal message is a batch: a varint count, then per candidate the varint
+ * sdpMLineIndex, the sdpMid, the varint length of the candidate line and the line in UTF-8. The
+ * sdpMid is a varint index into MIDS, or MIDS.length plus the length of a literal that follows.
+ * An empty literal stands for a candidate without sdpMid.
+ *
+ * <p>Not thread safe, use one codec per signaling thread.
+ */
+final class BinarySignalingCodec {
+  /**
+   * Format version announced in the hello. A peer announcing a version decodes all earlier ones.
+   */
+  static final int VERSION = 1;
+
+  private static final byte TAG_OFFER = 1;
+  private static final byte TAG_ANSWER = 2;
+  private static final byte TAG_CANDIDATES = 3;
+  private static final byte TAG_REMOVE_CANDIDATES = 4;
+
+  // sdpMid values of the demo's bundled media sections, and of unified plan ones.
+  private static final String[] MIDS = {"audio", "video", "data", "0", "1", "2"};
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  // Tokens of typical offers and candidates, the most frequent last. Also primes the deflated
+  // SDP patches of SdpDeltaCodec.
+  static final byte[] DICTIONARY = ("a=rtpmap:102 ILBC/8000\r\na=rtpmap:106 CN/32000\r\n"
+      + "a=rtpmap:105 CN/16000\r\na=rtpmap:13 CN/8000\r\na=rtpmap:103 ISAC/16000\r\n"
+      + "a=rtpmap:104 ISAC/32000\r\na=rtpmap:9 G722/8000\r\na=rtpmap:0 PCMU/8000\r\n"
+      + "a=rtpmap:8 PCMA/8000\r\na=rtpmap:110 telephone-event/48000\r\n"
+      + "a=rtpmap:126 telephone-event/8000\r\na=rtpmap:111 opus/48000/2\r\n"
+      + "a=fmtp:111 minptime=10;useinbandfec=1\r\n"
+      + "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n"
+      + "a=extmap:2 urn:ietf:params:rtp-hdrext:toffset\r\n"
+      + "a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n"
+      + "a=extmap:4 urn:3gpp:video-orientation\r\n"
+      + "a=extmap:5 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01\r\n"
+      + "a=extmap:6 http://www.webrtc.org/experiments/rtp-hdrext/playout-delay\r\n"
+      + "a=rtpmap:124 ulpfec/90000\r\na=rtpmap:108 red/90000\r\n"
+      + "a=rtpmap:123 flexfec-03/90000\r\na=fmtp:123 repair-window=10000000\r\n"
+      + "a=fmtp:100 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n"
+      + "a=rtpmap:96 VP8/90000\r\na=rtpmap:98 VP9/90000\r\na=rtpmap:100 H264/90000\r\n"
+      + "a=rtpmap:97 rtx/90000\r\na=fmtp:97 apt=96\r\n"
+      + "a=rtcp-fb:96 goog-remb\r\na=rtcp-fb:96 transport-cc\r\na=rtcp-fb:96 ccm fir\r\n"
+      + "a=rtcp-fb:96 nack\r\na=rtcp-fb:96 nack pli\r\n"
+      + "m=application 9 DTLS/SCTP 5000\r\na=sctpmap:5000 webrtc-datachannel 1024\r\n"
+      + "v=0\r\no=- 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\na=group:BUNDLE audio video data\r\n"
+      + "a=msid-semantic: WMS ARDAMS\r\nm=audio 9 UDP/TLS/RTP/SAVPF 111 103 104 9 102 0 8 106 105"
+      + " 13 110 112 113 126\r\nm=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 102\r\n"
+      + "c=IN IP4 0.0.0.0\r\na=rtcp:9 IN IP4 0.0.0.0\r\na=ice-ufrag:\r\na=ice-pwd:\r\n"
+      + "a=ice-options:trickle renomination\r\na=fingerprint:sha-256 \r\na=setup:actpass\r\n"
+      + "a=setup:active\r\na=mid:audio\r\na=mid:video\r\na=mid:data\r\n"
+      + "a=sendrecv\r\na=rtcp-mux\r\na=rtcp-rsize\r\n"
+      + "a=ssrc-group:SIM \r\na=ssrc-group:FID \r\n"
+      + "a=ssrc: cname:\r\na=ssrc: msid:ARDAMS ARDAMSv0\r\na=ssrc: mslabel:ARDAMS\r\n"
+      + "a=ssrc: label:ARDAMSv0\r\na=ssrc: msid:ARDAMS ARDAMSa0\r\na=ssrc: label:ARDAMSa0\r\n"
+      + "candidate: 1 udp 1 tcp typ srflx raddr rport typ relay raddr rport tcptype passive"
+      + " typ host generation 0 ufrag network-id network-cost 10\r\n"
+      + "a=candidate: 1 udp 2122260223 192.168. typ host generation 0 network-id 1 network-cost 10"
+      + "\r\n").getBytes(UTF_8);
+
+  private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+  private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true /* nowrap */);
+  private final Inflater inflater = new Inflater(true /* nowrap */);
+  // Uncompressed body of the message being encoded or decoded.
+  private byte[] body = new byte[INITIAL_BUFFER_SIZE];
+  private int bodyLength;
+  private int bodyPosition;
+  // Compressed output of the message being encoded.
+  private byte[] output = new byte[INITIAL_BUFFER_SIZE];
+  private final SignalingCodec.Message message = new SignalingCodec.Message();
+
+  private int encodedCount;
+  private long encodedBytes;
+  private long encodedTextBytes;
+
+  /** Encodes an offer or answer. */
+  byte[] encodeSdp(String type, String sdp) {
+    bodyLength = 0;
+    int textLength = writeUtf8(sdp);
+    return finish(type.equals(SignalingCodec.TYPE_OFFER) ? TAG_OFFER : TAG_ANSWER, textLength);
+  }
+
+  /** Encodes a batch of candidates. */
+  byte[] encodeCandidates(List<IceCandidate> candidates) {
+    bodyLength = 0;
+    int textLength = 0;
+    writeVarint(candidates.size());
+    for (IceCandidate candidate : candidates) {
+      textLength += writeCandidate(candidate);
+    }
+    return finish(TAG_CANDIDATES, textLength);
+  }
+
+  /** Encodes a removal of |candidates|. */
+  byte[] encodeRemoveCandidates(IceCandidate[] candidates) {
+    bodyLength = 0;
+    int textLength = 0;
+    writeVarint(candidates.length);
+    for (IceCandidate candidate : candidates) {
+      textLength += writeCandidate(candidate);
+    }
+    return finish(TAG_REMOVE_CANDIDATES, textLength);
+  }
+
+  /**
+   * Decodes |data| into the same message SignalingCodec decodes JSON into, valid until the next
+   * decode.
+   */
+  SignalingCodec.Message decode(byte[] data) throws DataFormatException {
+    message.clear();
+    if (data.length == 0) {
+      throw new DataFormatException("Empty message");
+    }
+    byte tag = data[0];
+    if (tag < TAG_OFFER || tag > TAG_REMOVE_CANDIDATES) {
+      throw new DataFormatException("Unknown tag: " + tag);
+    }
+    inflate(data);
+    switch (tag) {
+      case TAG_OFFER:
+      case TAG_ANSWER:
+        message.type = (tag == TAG_OFFER) ? SignalingCodec.TYPE_OFFER : SignalingCodec.TYPE_ANSWER;
+        message.sdp = new String(body, 0, bodyLength, UTF_8);
+        break;
+      case TAG_CANDIDATES:
+      case TAG_REMOVE_CANDIDATES:
+        message.type = (tag == TAG_CANDIDATES) ? SignalingCodec.TYPE_CANDIDATES
+                                               : SignalingCodec.TYPE_REMOVE_CANDIDATES;
+        int count = readVarint();
+        for (int i = 0; i < count; ++i) {
+          int label = readVarint();
+          int midCode = readVarint();
+          String mid = null;
+          if (midCode < MIDS.length) {
+            mid = MIDS[midCode];
+          } else if (midCode > MIDS.length) {
+            mid = readUtf8(midCode - MIDS.length);
+          }
+          String sdp = readUtf8(readVarint());
+          message.candidates.add(new IceCandidate(mid, label, sdp));
+        }
+        if (bodyPosition != bodyLength) {
+          throw new DataFormatException("Trailing data");
+        }
+        break;
+    }
+    return message;
+  }
+
+  /** Returns the number of messages encoded. */
+  int getEncodedCount() {
+    return encodedCount;
+  }
+
+  /** Returns the size of the encoded messages relative to their SDP and candidate text. */
+  double getCompressionRatio() {
+    return encodedTextBytes == 0 ? 1 : (double) encodedBytes / encodedTextBytes;
+  }
+
+  @Override
+  public String toString() {
+    return encodedCount + " messages, " + encodedBytes + " bytes for " + encodedTextBytes
+        + " bytes of text (" + String.format(Locale.US, "%.0f", getCompressionRatio() * 100)
+        + "%)";
+  }
+
+  // Appends |candidate| to the body and returns the length of its text.
+  private int writeCandidate(IceCandidate candidate) {
+    writeVarint(candidate.sdpMLineIndex);
+    int mid = 0;
+    while (mid < MIDS.length && !MIDS[mid].equals(candidate.sdpMid)) {
+      ++mid;
+    }
+    if (mid < MIDS.length) {
+      writeVarint(mid);
+    } else if (candidate.sdpMid == null) {
+      writeVarint(MIDS.length);
+    } else {
+      byte[] literal = candidate.sdpMid.getBytes(UTF_8);
+      writeVarint(MIDS.length + literal.length);
+      writeBytes(literal);
+    }
+    byte[] sdp = candidate.sdp.getBytes(UTF_8);
+    writeVarint(sdp.length);
+    writeBytes(sdp);
+    return sdp.length;
+  }
+
+  private int writeUtf8(String value) {
+    byte[] bytes = value.getBytes(UTF_8);
+    writeBytes(bytes);
+    return bytes.length;
+  }
+
+  private void writeBytes(byte[] bytes) {
+    ensureBodyCapacity(bodyLength + bytes.length);
+    System.arraycopy(bytes, 0, body, bodyLength, bytes.length);
+    bodyLength += bytes.length;
+  }
+
+  private void writeVarint(int value) {
+    ensureBodyCapacity(bodyLength + 5);
+    while ((value & ~0x7f) != 0) {
+      body[bodyLength++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    body[bodyLength++] = (byte) value;
+  }
+
+  private int readVarint() throws DataFormatException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      if (bodyPosition >= bodyLength) {
+        throw new DataFormatException("Truncated varint");
+      }
+      byte b = body[bodyPosition++];
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        if (value < 0) {
+          throw new DataFormatException("Varint out of range");
+        }
+        return value;
+      }
+    }
+    throw new DataFormatException("Varint too long");
+  }
+
+  private String readUtf8(int length) throws DataFormatException {
+    if (length > bodyLength - bodyPosition) {
+      throw new DataFormatException("Truncated string");
+    }
+    String value = new String(body, bodyPosition, length, UTF_8);
+    bodyPosition += length;
+    return value;
+  }
+
+  private void ensureBodyCapacity(int capacity) {
+    if (body.length < capacity) {
+      body = Arrays.copyOf(body, Math.max(capacity, body.length * 2));
+    }
+  }
+
+  // Deflates the body behind |tag| and returns the message.
+  private byte[] finish(byte tag, int textLength) {
+    deflater.reset();
+    deflater.setDictionary(DICTIONARY);
+    deflater.setInput(body, 0, bodyLength);
+    deflater.finish();
+    output[0] = tag;
+    int length = 1;
+    while (!deflater.finished()) {
+      if (length == output.length) {
+        output = Arrays.copyOf(output, output.length * 2);
+      }
+      length += deflater.deflate(output, length, output.length - length);
+    }
+    ++encodedCount;
+    encodedBytes += length;
+    encodedTextBytes += textLength;
+    return Arrays.copyOf(output, length);
+  }
+
+  // Inflates the body behind the tag of |data|.
+  private void inflate(byte[] data) throws DataFormatException {
+    inflater.reset();
+    inflater.setDictionary(DICTIONARY);
+    inflater.setInput(data, 1, data.length - 1);
+    bodyLength = 0;
+    bodyPosition = 0;
+    while (!inflater.finished()) {
+      if (bodyLength == body.length) {
+        if (body.length >= TCPMessageCodec.MAX_MESSAGE_SIZE) {
+          throw new DataFormatException("Message too large");
+        }
+        body = Arrays.copyOf(body, body.length * 2);
+      }
+      int inflated = inflater.inflate(body, bodyLength, body.length - bodyLength);
+      if (inflated == 0 && inflater.needsInput()) {
+        throw new DataFormatException("Truncated message");
+      }
+      bodyLength += inflated;
+    }
+  }
+}
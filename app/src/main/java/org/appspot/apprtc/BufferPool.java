@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/** Bounded pool of equally sized byte buffers. Thread safe. */
+class BufferPool {
+  private final int bufferSize;
+  private final int maxBuffers;
+  private final boolean direct;
+  private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+
+  BufferPool(int bufferSize, int maxBuffers, boolean direct) {
+    this.bufferSize = bufferSize;
+    this.maxBuffers = maxBuffers;
+    this.direct = direct;
+  }
+
+  /** Returns a buffer of the pool's size, cleared. */
+  synchronized ByteBuffer acquire() {
+    ByteBuffer buffer = buffers.pollFirst();
+    if (buffer == null) {
+      buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Offers |buffer| for reuse. It is kept if it has the pool's size and kind (direct or heap) and
+   * the pool holds fewer than |maxBuffers|, otherwise it is dropped. Any such buffer is kept,
+   * whether or not it came from acquire(), so a buffer must be released only once and not used
+   * afterwards.
+   */
+  synchronized void release(ByteBuffer buffer) {
+    if (buffer.isDirect() == direct && buffer.capacity() == bufferSize
+        && buffers.size() < maxBuffers) {
+      buffers.addFirst(buffer);
+    }
+  }
+}
@@ -21,7 +21,10 @@ import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
@@ -29,9 +32,11 @@ import android.view.Window;
 import android.view.WindowManager;
 import android.view.WindowManager.LayoutParams;
 import android.widget.Toast;
+import java.io.File;
 import java.io.IOException;
 import java.lang.RuntimeException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import org.appspot.apprtc.AppRTCAudioManager.AudioDevice;
@@ -42,12 +47,14 @@ import org.appspot.apprtc.PeerConnectionClient.DataChannelParameters;
 import org.appspot.apprtc.PeerConnectionClient.PeerConnectionParameters;
 import org.webrtc.Camera1Enumerator;
 import org.webrtc.Camera2Enumerator;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
 import org.webrtc.CameraEnumerator;
 import org.webrtc.EglBase;
 import org.webrtc.FileVideoCapturer;
 import org.webrtc.IceCandidate;
 import org.webrtc.Logging;
 import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RendererCommon.RendererEvents;
 import org.webrtc.RendererCommon.ScalingType;
 import org.webrtc.ScreenCapturerAndroid;
 import org.webrtc.SessionDescription;
@@ -74,6 +81,9 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   public static final String EXTRA_VIDEO_FPS = "org.appspot.apprtc.VIDEO_FPS";
   public static final String EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED =
       "org.appsopt.apprtc.VIDEO_CAPTUREQUALITYSLIDER";
+  public static final String EXTRA_AUTO_QUALITY = "org.appspot.apprtc.AUTO_QUALITY";
+  public static final String EXTRA_PERFORMANCE_GOVERNOR =
+      "org.appspot.apprtc.PERFORMANCE_GOVERNOR";
   public static final String EXTRA_VIDEO_BITRATE = "org.appspot.apprtc.VIDEO_BITRATE";
   public static final String EXTRA_VIDEOCODEC = "org.appspot.apprtc.VIDEOCODEC";
   public static final String EXTRA_HWCODEC_ENABLED = "org.appspot.apprtc.HWCODEC";
@@ -91,8 +101,18 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   public static final String EXTRA_ENABLE_LEVEL_CONTROL = "org.appspot.apprtc.ENABLE_LEVEL_CONTROL";
   public static final String EXTRA_DISPLAY_HUD = "org.appspot.apprtc.DISPLAY_HUD";
   public static final String EXTRA_TRACING = "org.appspot.apprtc.TRACING";
+  public static final String EXTRA_TCP_FRAMING = "org.appspot.apprtc.TCP_FRAMING";
+  public static final String EXTRA_TCP_BINARY_SIGNALING =
+      "org.appspot.apprtc.TCP_BINARY_SIGNALING";
+  public static final String EXTRA_SDP_DEFLATE = "org.appspot.apprtc.SDP_DEFLATE";
+  public static final String EXTRA_CALL_RECOVERY = "org.appspot.apprtc.CALL_RECOVERY";
+  public static final String EXTRA_ICE_BATCH_WINDOW_MS = "org.appspot.apprtc.ICE_BATCH_WINDOW_MS";
+  public static final String EXTRA_TURN_CACHE_TTL_SEC = "org.appspot.apprtc.TURN_CACHE_TTL_SEC";
+  public static final String EXTRA_RECORD_STATS = "org.appspot.apprtc.RECORD_STATS";
   public static final String EXTRA_CMDLINE = "org.appspot.apprtc.CMDLINE";
   public static final String EXTRA_RUNTIME = "org.appspot.apprtc.RUNTIME";
+  public static final String EXTRA_BULK_TRANSFER_TEST_KB =
+      "org.appspot.apprtc.BULK_TRANSFER_TEST_KB";
   public static final String EXTRA_VIDEO_FILE_AS_CAMERA = "org.appspot.apprtc.VIDEO_FILE_AS_CAMERA";
   public static final String EXTRA_SAVE_REMOTE_VIDEO_TO_FILE =
       "org.appspot.apprtc.SAVE_REMOTE_VIDEO_TO_FILE";
@@ -117,8 +137,10 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   private static final String[] MANDATORY_PERMISSIONS = {"android.permission.MODIFY_AUDIO_SETTINGS",
       "android.permission.RECORD_AUDIO", "android.permission.INTERNET"};
 
-  // Peer connection statistics callback period in ms.
+  // Peer connection statistics callback period in ms, while the HUD or the stats recorder
+  // consume them, and otherwise.
   private static final int STAT_CALLBACK_PERIOD = 1000;
+  private static final int STAT_CALLBACK_PERIOD_IDLE = 5000;
   // Local preview screen position before call is connected.
   private static final int LOCAL_X_CONNECTING = 0;
   private static final int LOCAL_Y_CONNECTING = 0;
@@ -155,8 +177,16 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   private PeerConnectionParameters peerConnectionParameters;
   private boolean iceConnected;
   private boolean isError;
+  // Recovers the call when ICE disconnects, null if disabled or not connected to the room yet.
+  private CallRecovery callRecovery;
   private boolean callControlFragmentVisible = true;
+  private boolean displayHud;
   private long callStartedTimeMs = 0;
+  // Delays of the call setup phases from callStartedTimeMs, -1 until reached. Only used on the
+  // UI thread.
+  private long connectedToRoomDelayMs = -1;
+  private long localDescriptionDelayMs = -1;
+  private long remoteDescriptionDelayMs = -1;
   private boolean micEnabled = true;
   private boolean screencaptureEnabled = false;
   private static Intent mediaProjectionPermissionResultData;
@@ -166,6 +196,21 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   private CallFragment callFragment;
   private HudFragment hudFragment;
   private CpuMonitor cpuMonitor;
+  // Only used on the thread that delivers stats.
+  private final StatsSnapshot statsSnapshot = new StatsSnapshot();
+  private final HudStatsFormatter hudStatsFormatter = new HudStatsFormatter();
+  private volatile StatsRecorder statsRecorder;
+  private final int[] threadGroupPercents = new int[ThreadCpuProfiler.GROUP_COUNT];
+  // Created when the call connects if automatic video quality is enabled, and dropped when
+  // the user picks a capture format.
+  private volatile QualityController qualityController;
+  private final QualityController.Sample qualitySample = new QualityController.Sample();
+  // Created with the quality controller if the performance governor is enabled.
+  private volatile PerformanceGovernor performanceGovernor;
+  private final PerformanceGovernor.Sample governorSample = new PerformanceGovernor.Sample();
+  // False while the performance governor holds the call in the audio only tier. Only changed on
+  // the UI thread.
+  private volatile boolean governorVideoEnabled = true;
 
   @Override
   public void onCreate(Bundle savedInstanceState) {
@@ -226,7 +271,15 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
             "Failed to open video file for output: " + saveRemoteVideoToFile, e);
       }
     }
-    remoteRenderScreen.init(rootEglBase.getEglBaseContext(), null);
+    remoteRenderScreen.init(rootEglBase.getEglBaseContext(), new RendererEvents() {
+      @Override
+      public void onFirstFrameRendered() {
+        SetupTracer.getDefault().once(SetupTracer.FIRST_REMOTE_FRAME);
+      }
+
+      @Override
+      public void onFrameResolutionChanged(int videoWidth, int videoHeight, int rotation) {}
+    });
 
     localRender.setZOrderMediaOverlay(true);
     localRender.setEnableHardwareScaler(true /* enabled */);
@@ -264,7 +317,6 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     }
 
     boolean loopback = intent.getBooleanExtra(EXTRA_LOOPBACK, false);
-    boolean tracing = intent.getBooleanExtra(EXTRA_TRACING, false);
 
     int videoWidth = intent.getIntExtra(EXTRA_VIDEO_WIDTH, 0);
     int videoHeight = intent.getIntExtra(EXTRA_VIDEO_HEIGHT, 0);
@@ -279,27 +331,8 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       videoWidth = displayMetrics.widthPixels;
       videoHeight = displayMetrics.heightPixels;
     }
-    DataChannelParameters dataChannelParameters = null;
-    if (intent.getBooleanExtra(EXTRA_DATA_CHANNEL_ENABLED, true)) {
-      dataChannelParameters = new DataChannelParameters(intent.getBooleanExtra(EXTRA_ORDERED, true),
-          intent.getIntExtra(EXTRA_MAX_RETRANSMITS_MS, -1),
-          intent.getIntExtra(EXTRA_MAX_RETRANSMITS, -1), intent.getStringExtra(EXTRA_PROTOCOL),
-          intent.getBooleanExtra(EXTRA_NEGOTIATED, false), intent.getIntExtra(EXTRA_ID, -1));
-    }
     peerConnectionParameters =
-        new PeerConnectionParameters(intent.getBooleanExtra(EXTRA_VIDEO_CALL, true), loopback,
-            tracing, videoWidth, videoHeight, intent.getIntExtra(EXTRA_VIDEO_FPS, 0),
-            intent.getIntExtra(EXTRA_VIDEO_BITRATE, 0), intent.getStringExtra(EXTRA_VIDEOCODEC),
-            intent.getBooleanExtra(EXTRA_HWCODEC_ENABLED, true),
-            intent.getBooleanExtra(EXTRA_FLEXFEC_ENABLED, false),
-            intent.getIntExtra(EXTRA_AUDIO_BITRATE, 0), intent.getStringExtra(EXTRA_AUDIOCODEC),
-            intent.getBooleanExtra(EXTRA_NOAUDIOPROCESSING_ENABLED, false),
-            intent.getBooleanExtra(EXTRA_AECDUMP_ENABLED, false),
-            intent.getBooleanExtra(EXTRA_OPENSLES_ENABLED, false),
-            intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_AEC, false),
-            intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_AGC, false),
-            intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_NS, false),
-            intent.getBooleanExtra(EXTRA_ENABLE_LEVEL_CONTROL, false), dataChannelParameters);
+        createPeerConnectionParameters(intent, videoWidth, videoHeight);
     commandLineRun = intent.getBooleanExtra(EXTRA_CMDLINE, false);
     runTimeMs = intent.getIntExtra(EXTRA_RUNTIME, 0);
 
@@ -308,17 +341,32 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     // Create connection client. Use DirectRTCClient if room name is an IP otherwise use the
     // standard WebSocketRTCClient.
     if (loopback || !DirectRTCClient.IP_PATTERN.matcher(roomId).matches()) {
-      appRtcClient = new WebSocketRTCClient(this);
+      appRtcClient =
+          new WebSocketRTCClient(this, intent.getBooleanExtra(EXTRA_SDP_DEFLATE, true));
     } else {
       Log.i(TAG, "Using DirectRTCClient because room name looks like an IP.");
-      appRtcClient = new DirectRTCClient(this);
+      appRtcClient = new DirectRTCClient(this, intent.getBooleanExtra(EXTRA_TCP_FRAMING, false),
+          intent.getBooleanExtra(EXTRA_TCP_BINARY_SIGNALING, false));
     }
     // Create connection parameters.
-    roomConnectionParameters = new RoomConnectionParameters(roomUri.toString(), roomId, loopback);
+    roomConnectionParameters = new RoomConnectionParameters(roomUri.toString(), roomId, loopback,
+        intent.getIntExtra(EXTRA_ICE_BATCH_WINDOW_MS, 0),
+        intent.getIntExtra(EXTRA_TURN_CACHE_TTL_SEC, 0) * 1000L,
+        intent.getBooleanExtra(EXTRA_CALL_RECOVERY, true));
 
     // Create CPU monitor
     cpuMonitor = new CpuMonitor(this);
     hudFragment.setCpuMonitor(cpuMonitor);
+    displayHud = intent.getBooleanExtra(EXTRA_DISPLAY_HUD, false);
+
+    if (intent.getBooleanExtra(EXTRA_RECORD_STATS, false)) {
+      try {
+        statsRecorder = StatsRecorder.createForCall(
+            new File(getFilesDir(), "stats"), StatsRecorder.DEFAULT_MAX_BYTES);
+      } catch (IOException e) {
+        Log.e(TAG, "Can not record call stats", e);
+      }
+    }
 
     // Send intent arguments to fragments.
     callFragment.setArguments(intent.getExtras());
@@ -359,6 +407,35 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     }
   }
 
+  /**
+   * Returns the peer connection parameters of the call started by |intent|, capturing
+   * |videoWidth|x|videoHeight|. ConnectActivity uses it to warm up the factory.
+   */
+  static PeerConnectionParameters createPeerConnectionParameters(
+      Intent intent, int videoWidth, int videoHeight) {
+    DataChannelParameters dataChannelParameters = null;
+    if (intent.getBooleanExtra(EXTRA_DATA_CHANNEL_ENABLED, true)) {
+      dataChannelParameters = new DataChannelParameters(intent.getBooleanExtra(EXTRA_ORDERED, true),
+          intent.getIntExtra(EXTRA_MAX_RETRANSMITS_MS, -1),
+          intent.getIntExtra(EXTRA_MAX_RETRANSMITS, -1), intent.getStringExtra(EXTRA_PROTOCOL),
+          intent.getBooleanExtra(EXTRA_NEGOTIATED, false), intent.getIntExtra(EXTRA_ID, -1));
+    }
+    return new PeerConnectionParameters(intent.getBooleanExtra(EXTRA_VIDEO_CALL, true),
+        intent.getBooleanExtra(EXTRA_LOOPBACK, false), intent.getBooleanExtra(EXTRA_TRACING, false),
+        videoWidth, videoHeight, intent.getIntExtra(EXTRA_VIDEO_FPS, 0),
+        intent.getIntExtra(EXTRA_VIDEO_BITRATE, 0), intent.getStringExtra(EXTRA_VIDEOCODEC),
+        intent.getBooleanExtra(EXTRA_HWCODEC_ENABLED, true),
+        intent.getBooleanExtra(EXTRA_FLEXFEC_ENABLED, false),
+        intent.getIntExtra(EXTRA_AUDIO_BITRATE, 0), intent.getStringExtra(EXTRA_AUDIOCODEC),
+        intent.getBooleanExtra(EXTRA_NOAUDIOPROCESSING_ENABLED, false),
+        intent.getBooleanExtra(EXTRA_AECDUMP_ENABLED, false),
+        intent.getBooleanExtra(EXTRA_OPENSLES_ENABLED, false),
+        intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_AEC, false),
+        intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_AGC, false),
+        intent.getBooleanExtra(EXTRA_DISABLE_BUILT_IN_NS, false),
+        intent.getBooleanExtra(EXTRA_ENABLE_LEVEL_CONTROL, false), dataChannelParameters);
+  }
+
   @Override
   public void onActivityResult(int requestCode, int resultCode, Intent data) {
     if (requestCode != CAPTURE_PERMISSION_REQUEST_CODE)
@@ -419,6 +496,7 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       peerConnectionClient.stopVideoSource();
     }
     cpuMonitor.pause();
+    updateStatsPeriod();
   }
 
   @Override
@@ -426,10 +504,11 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     super.onResume();
     activityRunning = true;
     // Video is not paused for screencapture. See onPause.
-    if (peerConnectionClient != null && !screencaptureEnabled) {
+    if (peerConnectionClient != null && !screencaptureEnabled && governorVideoEnabled) {
       peerConnectionClient.startVideoSource();
     }
     cpuMonitor.resume();
+    updateStatsPeriod();
   }
 
   @Override
@@ -464,6 +543,17 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
   @Override
   public void onCaptureFormatChange(int width, int height, int framerate) {
+    if (qualityController != null || performanceGovernor != null) {
+      Log.d(TAG, "Capture format set by the user, automatic video quality disabled.");
+      qualityController = null;
+      performanceGovernor = null;
+      // Undo what they applied: the audio only tier and their bitrate cap.
+      setGovernorVideoEnabled(true);
+      if (peerConnectionClient != null) {
+        int maxBitrateKbps = peerConnectionParameters.videoMaxBitrate;
+        peerConnectionClient.setVideoMaxBitrate((maxBitrateKbps > 0) ? maxBitrateKbps : null);
+      }
+    }
     if (peerConnectionClient != null) {
       peerConnectionClient.changeCaptureFormat(width, height, framerate);
     }
@@ -495,6 +585,93 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     }
     ft.setTransition(FragmentTransaction.TRANSIT_FRAGMENT_FADE);
     ft.commit();
+    updateStatsPeriod();
+  }
+
+  private void createQualityController() {
+    if (qualityController != null || screencaptureEnabled
+        || !getIntent().getBooleanExtra(EXTRA_AUTO_QUALITY, false)) {
+      return;
+    }
+    CaptureFormat format = peerConnectionClient.getCaptureFormat();
+    if (format != null) {
+      qualityController = new QualityController(format.width, format.height,
+          format.framerate.max / 1000, peerConnectionParameters.videoMaxBitrate);
+    }
+  }
+
+  private void createPerformanceGovernor() {
+    if (performanceGovernor != null || screencaptureEnabled
+        || !getIntent().getBooleanExtra(EXTRA_PERFORMANCE_GOVERNOR, true)) {
+      return;
+    }
+    CaptureFormat format = peerConnectionClient.getCaptureFormat();
+    if (format != null) {
+      performanceGovernor = new PerformanceGovernor(format.width, format.height,
+          format.framerate.max / 1000, peerConnectionParameters.videoMaxBitrate);
+    }
+  }
+
+  // Applies the lower quality of the automatic video quality level and the performance tier,
+  // neither above the format the capture was started with. Called on the thread that delivers
+  // stats.
+  private void applyVideoQuality(
+      PeerConnectionClient client, QualityController controller, PerformanceGovernor governor) {
+    CaptureFormat startFormat = client.getCaptureFormat();
+    if (startFormat == null || (governor != null && !governor.isVideoEnabled())) {
+      return;
+    }
+    int width = startFormat.width;
+    int height = startFormat.height;
+    int framerate = startFormat.framerate.max / 1000;
+    int maxBitrateKbps = 0;
+    if (controller != null) {
+      if ((long) controller.getWidth() * controller.getHeight() < (long) width * height) {
+        width = controller.getWidth();
+        height = controller.getHeight();
+      }
+      framerate = Math.min(framerate, controller.getFramerate());
+      maxBitrateKbps = controller.getMaxBitrateKbps();
+    }
+    if (governor != null) {
+      CaptureFormat format = governor.getCaptureFormat();
+      if ((long) format.width * format.height < (long) width * height) {
+        width = format.width;
+        height = format.height;
+      }
+      framerate = Math.min(framerate, format.framerate.max / 1000);
+      int governorBitrateKbps = governor.getMaxBitrateKbps();
+      if (maxBitrateKbps == 0
+          || (governorBitrateKbps > 0 && governorBitrateKbps < maxBitrateKbps)) {
+        maxBitrateKbps = governorBitrateKbps;
+      }
+    }
+    client.changeCaptureFormat(width, height, framerate);
+    client.setVideoMaxBitrate((maxBitrateKbps > 0) ? maxBitrateKbps : null);
+  }
+
+  // Stops sending and rendering video in the audio only tier, and resumes it after.
+  private void setGovernorVideoEnabled(boolean enable) {
+    if (governorVideoEnabled == enable || peerConnectionClient == null) {
+      return;
+    }
+    governorVideoEnabled = enable;
+    peerConnectionClient.setVideoEnabled(enable);
+    if (!enable) {
+      peerConnectionClient.stopVideoSource();
+    } else if (activityRunning) {
+      peerConnectionClient.startVideoSource();
+    }
+  }
+
+  // Polls stats slowly while neither the HUD nor the stats recorder use them.
+  private void updateStatsPeriod() {
+    if (peerConnectionClient == null || !iceConnected) {
+      return;
+    }
+    boolean hudVisible = displayHud && activityRunning && callControlFragmentVisible;
+    peerConnectionClient.enableStatsEvents(true,
+        (hudVisible || statsRecorder != null) ? STAT_CALLBACK_PERIOD : STAT_CALLBACK_PERIOD_IDLE);
   }
 
   private void updateVideoView() {
@@ -528,6 +705,17 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     logAndToast(getString(R.string.connecting_to, roomConnectionParameters.roomUrl));
     appRtcClient.connectToRoom(roomConnectionParameters);
 
+    // Open the camera and create the local stream while the room parameters are fetched.
+    // createVideoCapturer() reports its errors, which end the call.
+    VideoCapturer videoCapturer = null;
+    if (peerConnectionParameters.videoCallEnabled) {
+      videoCapturer = createVideoCapturer();
+    }
+    if (videoCapturer != null || !peerConnectionParameters.videoCallEnabled) {
+      peerConnectionClient.startLocalMedia(
+          rootEglBase.getEglBaseContext(), localRender, videoCapturer);
+    }
+
     // Create and audio manager that will take care of audio routing,
     // audio modes, audio device enumeration etc.
     audioManager = AppRTCAudioManager.create(this);
@@ -546,17 +734,64 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   }
 
   // Should be called from UI thread
-  private void callConnected() {
-    final long delta = System.currentTimeMillis() - callStartedTimeMs;
-    Log.i(TAG, "Call connected: delay=" + delta + "ms");
+  private void createCallRecovery() {
+    callRecovery = new CallRecovery(
+        new Handler(), signalingParameters.initiator, new CallRecovery.RecoveryEvents() {
+          @Override
+          public void onRestartIce(int attempt) {
+            if (peerConnectionClient != null) {
+              logAndToast("Restarting ICE, attempt " + attempt);
+              peerConnectionClient.restartIce();
+            }
+          }
+
+          @Override
+          public void onRecoveryFailed(long elapsedMs) {
+            logAndToast("Call not recovered after " + elapsedMs + "ms");
+            disconnect();
+          }
+        });
+  }
+
+  // Should be called from UI thread
+  private void callConnected(long delta) {
     if (peerConnectionClient == null || isError) {
       Log.w(TAG, "Call is connected in closed or error state");
       return;
     }
+    logSetupPhases(delta);
     // Update video view.
     updateVideoView();
     // Enable statistics callback.
-    peerConnectionClient.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
+    updateStatsPeriod();
+    createQualityController();
+    createPerformanceGovernor();
+    // Measure data channel throughput, the result is logged by DataChannelBulkTransfer.
+    int bulkTransferTestKb = getIntent().getIntExtra(EXTRA_BULK_TRANSFER_TEST_KB, 0);
+    if (bulkTransferTestKb > 0) {
+      peerConnectionClient.sendBulkData(
+          0 /* transferId */, DataChannelBulkTransfer.syntheticSource(bulkTransferTestKb * 1024L));
+    }
+  }
+
+  // Logs how long each phase of the call setup took, to compare warm and cold starts.
+  private void logSetupPhases(long delta) {
+    StringBuilder builder = new StringBuilder();
+    builder.append("Call connected: delay=").append(delta).append("ms");
+    builder.append(", factory=").append(peerConnectionClient.getFactoryCreationMs()).append("ms");
+    if (peerConnectionClient.isFactoryWarm()) {
+      builder.append(" (warm)");
+    }
+    builder.append(", local media=")
+        .append(peerConnectionClient.getLocalMediaStartMs())
+        .append("ms");
+    builder.append(", room connected at ").append(connectedToRoomDelayMs).append("ms");
+    builder.append(", local SDP at ").append(localDescriptionDelayMs).append("ms");
+    builder.append(", remote SDP at ").append(remoteDescriptionDelayMs).append("ms");
+    builder.append(", ICE connected after ")
+        .append(delta - Math.max(localDescriptionDelayMs, remoteDescriptionDelayMs))
+        .append("ms");
+    Log.i(TAG, builder.toString());
   }
 
   // This method is called when the audio manager reports audio device change,
@@ -571,6 +806,11 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
   // Disconnect from remote resources, dispose of local resources, and exit.
   private void disconnect() {
     activityRunning = false;
+    if (callRecovery != null) {
+      callRecovery.stop();
+      Log.d(TAG, "Call recovery: " + callRecovery);
+      callRecovery = null;
+    }
     if (appRtcClient != null) {
       appRtcClient.disconnectFromRoom();
       appRtcClient = null;
@@ -578,6 +818,11 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     if (peerConnectionClient != null) {
       peerConnectionClient.close();
       peerConnectionClient = null;
+      writeSetupTrace();
+    }
+    if (statsRecorder != null) {
+      statsRecorder.close();
+      statsRecorder = null;
     }
     if (localRender != null) {
       localRender.release();
@@ -603,6 +848,22 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     finish();
   }
 
+  // Writes the Java side of the call setup next to the native trace if tracing is enabled, and
+  // starts over for the next call.
+  private void writeSetupTrace() {
+    SetupTracer tracer = SetupTracer.getDefault();
+    if (peerConnectionParameters != null && peerConnectionParameters.tracing) {
+      File file = new File(Environment.getExternalStorageDirectory(), "webrtc-setup-trace.json");
+      try {
+        int eventCount = tracer.writeChromeTrace(file, Process.myPid());
+        Log.d(TAG, "Wrote " + eventCount + " setup trace events to " + file);
+      } catch (IOException e) {
+        Log.e(TAG, "Can not write setup trace", e);
+      }
+    }
+    tracer.reset();
+  }
+
   private void disconnectWithErrorMessage(final String errorMessage) {
     if (commandLineRun || !activityRunning) {
       Log.e(TAG, "Critical error: " + errorMessage);
@@ -695,13 +956,13 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     final long delta = System.currentTimeMillis() - callStartedTimeMs;
 
     signalingParameters = params;
+    connectedToRoomDelayMs = delta;
     logAndToast("Creating peer connection, delay=" + delta + "ms");
-    VideoCapturer videoCapturer = null;
-    if (peerConnectionParameters.videoCallEnabled) {
-      videoCapturer = createVideoCapturer();
+    peerConnectionClient.createPeerConnection(remoteRenderers, signalingParameters);
+    if (roomConnectionParameters.reconnect) {
+      createCallRecovery();
+      peerConnectionClient.setIceRecoveryEnabled(true);
     }
-    peerConnectionClient.createPeerConnection(rootEglBase.getEglBaseContext(), localRender,
-        remoteRenderers, videoCapturer, signalingParameters);
 
     if (signalingParameters.initiator) {
       logAndToast("Creating OFFER...");
@@ -710,6 +971,7 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
       peerConnectionClient.createOffer();
     } else {
       if (params.offerSdp != null) {
+        remoteDescriptionDelayMs = delta;
         peerConnectionClient.setRemoteDescription(params.offerSdp);
         logAndToast("Creating ANSWER...");
         // Create answer. Answer SDP will be sent to offering client in
@@ -746,7 +1008,13 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
           return;
         }
         logAndToast("Received remote " + sdp.type + ", delay=" + delta + "ms");
+        if (remoteDescriptionDelayMs < 0) {
+          remoteDescriptionDelayMs = delta;
+        }
         peerConnectionClient.setRemoteDescription(sdp);
+        if (callRecovery != null && sdp.type == SessionDescription.Type.ANSWER) {
+          callRecovery.onRemoteAnswer();
+        }
         if (!signalingParameters.initiator) {
           logAndToast("Creating ANSWER...");
           // Create answer. Answer SDP will be sent to offering client in
@@ -811,6 +1079,9 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     runOnUiThread(new Runnable() {
       @Override
       public void run() {
+        if (localDescriptionDelayMs < 0) {
+          localDescriptionDelayMs = delta;
+        }
         if (appRtcClient != null) {
           logAndToast("Sending " + sdp.type + ", delay=" + delta + "ms");
           if (signalingParameters.initiator) {
@@ -857,9 +1128,14 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     runOnUiThread(new Runnable() {
       @Override
       public void run() {
-        logAndToast("ICE connected, delay=" + delta + "ms");
         iceConnected = true;
-        callConnected();
+        long recoveryMs = callRecovery != null ? callRecovery.onIceConnected() : -1;
+        if (recoveryMs >= 0) {
+          logAndToast("ICE connected again, recovered in " + recoveryMs + "ms");
+          return;
+        }
+        logAndToast("ICE connected, delay=" + delta + "ms");
+        callConnected(delta);
       }
     });
   }
@@ -869,8 +1145,13 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     runOnUiThread(new Runnable() {
       @Override
       public void run() {
-        logAndToast("ICE disconnected");
         iceConnected = false;
+        if (callRecovery != null && peerConnectionClient != null) {
+          logAndToast("ICE disconnected, recovering the call");
+          callRecovery.onIceDisconnected();
+          return;
+        }
+        logAndToast("ICE disconnected");
         disconnect();
       }
     });
@@ -881,11 +1162,62 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
   @Override
   public void onPeerConnectionStatsReady(final StatsReport[] reports) {
+    // Parse and format here so that the UI thread only touches the views that changed.
+    AppRTCClient signalingClient = appRtcClient;
+    if (signalingClient instanceof WebSocketRTCClient) {
+      StatsReport[] allReports = Arrays.copyOf(reports, reports.length + 1);
+      allReports[reports.length] = ((WebSocketRTCClient) signalingClient).getSdpStatsReport();
+      statsSnapshot.update(allReports);
+    } else {
+      statsSnapshot.update(reports);
+    }
+    final HudStatsFormatter.HudStats stats = hudStatsFormatter.format(statsSnapshot);
+    StatsRecorder recorder = statsRecorder;
+    if (recorder != null) {
+      cpuMonitor.getThreadGroupUsageCurrent(threadGroupPercents);
+      recorder.record(System.currentTimeMillis(), statsSnapshot, cpuMonitor.getCpuUsageCurrent(),
+          cpuMonitor.getProcessCpuUsageCurrent(), threadGroupPercents);
+    }
+    QualityController controller = qualityController;
+    PeerConnectionClient client = peerConnectionClient;
+    PerformanceGovernor governor = performanceGovernor;
+    boolean qualityChanged = false;
+    if (controller != null && client != null) {
+      qualitySample.set(SystemClock.elapsedRealtime(), statsSnapshot,
+          cpuMonitor.getCpuUsageAverage(), cpuMonitor.getFrequencyScaleAverage());
+      qualityChanged = controller.update(qualitySample);
+    }
+    if (governor != null && client != null) {
+      governorSample.set(SystemClock.elapsedRealtime(), cpuMonitor.getCpuUsageAverage(),
+          cpuMonitor.getFrequencyScaleAverage(), cpuMonitor.getBatteryLevel(),
+          cpuMonitor.isCharging());
+      if (governor.update(governorSample)) {
+        qualityChanged = true;
+        final PerformanceGovernor updatedGovernor = governor;
+        final boolean videoEnabled = governor.isVideoEnabled();
+        final String message = "Performance tier: "
+            + PerformanceGovernor.TIER_NAMES[governor.getTier()] + " (" + governor.getReason()
+            + ")";
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            logAndToast(message);
+            // Unless the user picked a capture format meanwhile.
+            if (performanceGovernor == updatedGovernor) {
+              setGovernorVideoEnabled(videoEnabled);
+            }
+          }
+        });
+      }
+    }
+    if (qualityChanged) {
+      applyVideoQuality(client, controller, governor);
+    }
     runOnUiThread(new Runnable() {
       @Override
       public void run() {
         if (!isError && iceConnected) {
-          hudFragment.updateEncoderStatistics(reports);
+          hudFragment.updateEncoderStatistics(stats);
         }
       }
     });
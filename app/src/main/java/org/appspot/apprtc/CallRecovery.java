@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps a call alive when its ICE connection drops, typically when the device switches between
+ * Wi-Fi and cellular networks.
+ *
+ * <p>Once ICE disconnects or fails, the side that made the first offer restarts ICE, again with
+ * exponential backoff while it stays disconnected. A restart is only followed by the next one once
+ * its answer arrived or RESTART_ANSWER_TIMEOUT_MS passed, even across recoveries, so that offers
+ * never overlap. The other side waits for the new offer. The
+ * call is given up only if ICE does not connect again within MAX_RECOVERY_MS. The duration of
+ * every recovered interruption is measured and traced as SetupTracer.CALL_RECOVERY.
+ *
+ * <p>Must be used on the thread of the handler passed to the constructor.
+ */
+class CallRecovery {
+  private static final String TAG = "CallRecovery";
+  // ICE often reconnects on its own after a short loss, so the first restart waits a little.
+  private static final long RESTART_INITIAL_DELAY_MS = 1000;
+  private static final long RESTART_MAX_DELAY_MS = 8000;
+  private static final int MAX_RESTARTS = 5;
+  private static final long RESTART_ANSWER_TIMEOUT_MS = 5000;
+  static final long MAX_RECOVERY_MS = 30000;
+
+  /** Callbacks, invoked on the thread of the handler. */
+  interface RecoveryEvents {
+    /** Asks the offering side to send an offer that restarts ICE. */
+    void onRestartIce(int attempt);
+
+    /** ICE did not connect again within MAX_RECOVERY_MS, the call should end. */
+    void onRecoveryFailed(long elapsedMs);
+  }
+
+  private final Handler handler;
+  private final boolean offerer;
+  private final RecoveryEvents events;
+  private final ExponentialBackoff restartBackoff =
+      new ExponentialBackoff(RESTART_INITIAL_DELAY_MS, RESTART_MAX_DELAY_MS, MAX_RESTARTS);
+  private boolean recovering;
+  private long disconnectedTimeMs;
+  // An ICE restart offer was sent and its answer has not arrived yet.
+  private boolean restartPending;
+
+  private int recoveredCount;
+  private long lastRecoveryMs;
+  private long maxRecoveryMs;
+  private long totalRecoveryMs;
+
+  private final Runnable restartTask = new Runnable() {
+    @Override
+    public void run() {
+      if (!recovering || restartPending) {
+        return;
+      }
+      restartPending = true;
+      handler.postDelayed(answerTimeoutTask, RESTART_ANSWER_TIMEOUT_MS);
+      events.onRestartIce(restartBackoff.getAttempts());
+    }
+  };
+
+  private final Runnable answerTimeoutTask = new Runnable() {
+    @Override
+    public void run() {
+      Log.w(TAG, "No answer to the ICE restart offer.");
+      onRestartDone();
+    }
+  };
+
+  private final Runnable timeoutTask = new Runnable() {
+    @Override
+    public void run() {
+      if (!recovering) {
+        return;
+      }
+      long elapsedMs = SystemClock.elapsedRealtime() - disconnectedTimeMs;
+      stop();
+      Log.e(TAG, "Call not recovered after " + elapsedMs + " ms.");
+      events.onRecoveryFailed(elapsedMs);
+    }
+  };
+
+  /** Creates the recovery of a call, whose first offer was made by this side if |offerer|. */
+  CallRecovery(Handler handler, boolean offerer, RecoveryEvents events) {
+    this.handler = handler;
+    this.offerer = offerer;
+    this.events = events;
+  }
+
+  /** Starts recovering, unless already recovering. */
+  void onIceDisconnected() {
+    if (recovering) {
+      return;
+    }
+    recovering = true;
+    disconnectedTimeMs = SystemClock.elapsedRealtime();
+    SetupTracer.getDefault().begin(SetupTracer.CALL_RECOVERY);
+    Log.d(TAG, "ICE disconnected, recovering the call.");
+    restartBackoff.reset();
+    if (offerer && !restartPending) {
+      scheduleRestart();
+    }
+    handler.postDelayed(timeoutTask, MAX_RECOVERY_MS);
+  }
+
+  /** Lets the next ICE restart go once the answer to the pending one is received. */
+  void onRemoteAnswer() {
+    if (restartPending) {
+      handler.removeCallbacks(answerTimeoutTask);
+      onRestartDone();
+    }
+  }
+
+  /**
+   * Ends the recovery in progress and returns how long the call was interrupted, or -1 if it
+   * was not recovering.
+   */
+  long onIceConnected() {
+    if (!recovering) {
+      return -1;
+    }
+    long recoveryMs = SystemClock.elapsedRealtime() - disconnectedTimeMs;
+    int restarts = restartBackoff.getAttempts();
+    stop();
+    ++recoveredCount;
+    lastRecoveryMs = recoveryMs;
+    maxRecoveryMs = Math.max(maxRecoveryMs, recoveryMs);
+    totalRecoveryMs += recoveryMs;
+    Log.d(TAG, "Call recovered after " + recoveryMs + " ms, ICE restarts: " + restarts + ".");
+    return recoveryMs;
+  }
+
+  boolean isRecovering() {
+    return recovering;
+  }
+
+  /**
+   * Cancels the recovery in progress, if any. A restart still waiting for its answer keeps the
+   * next one from starting until it is answered or times out.
+   */
+  void stop() {
+    if (!recovering) {
+      return;
+    }
+    recovering = false;
+    handler.removeCallbacks(restartTask);
+    handler.removeCallbacks(timeoutTask);
+    SetupTracer.getDefault().end(SetupTracer.CALL_RECOVERY);
+  }
+
+  int getRecoveredCount() {
+    return recoveredCount;
+  }
+
+  long getLastRecoveryMs() {
+    return lastRecoveryMs;
+  }
+
+  @Override
+  public String toString() {
+    if (recoveredCount == 0) {
+      return "no interruption recovered";
+    }
+    return recoveredCount + " interruptions recovered, average " + totalRecoveryMs / recoveredCount
+        + " ms, max " + maxRecoveryMs + " ms";
+  }
+
+  private void onRestartDone() {
+    restartPending = false;
+    if (recovering && offerer) {
+      scheduleRestart();
+    }
+  }
+
+  private void scheduleRestart() {
+    long delayMs = restartBackoff.nextDelayMs();
+    if (delayMs >= 0) {
+      handler.postDelayed(restartTask, delayMs);
+    }
+  }
+}
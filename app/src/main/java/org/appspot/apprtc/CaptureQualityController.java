@@ -12,9 +12,6 @@ package org.appspot.apprtc;
 
 import android.widget.SeekBar;
 import android.widget.TextView;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
 
@@ -22,12 +19,7 @@ import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
  * Control capture format based on a seekbar listener.
  */
 public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener {
-  private final List<CaptureFormat> formats =
-      Arrays.asList(new CaptureFormat(1280, 720, 0, 30000), new CaptureFormat(960, 540, 0, 30000),
-          new CaptureFormat(640, 480, 0, 30000), new CaptureFormat(480, 360, 0, 30000),
-          new CaptureFormat(320, 240, 0, 30000), new CaptureFormat(256, 144, 0, 30000));
-  // Prioritize framerate below this threshold and resolution above the threshold.
-  private static final int FRAMERATE_THRESHOLD = 15;
+  private final List<CaptureFormat> formats = QualityController.CAPTURE_FORMATS;
   private TextView captureFormatText;
   private CallFragment.OnCallEvents callEvents;
   private int width = 0;
@@ -41,23 +33,6 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
     this.callEvents = callEvents;
   }
 
-  private final Comparator<CaptureFormat> compareFormats = new Comparator<CaptureFormat>() {
-    @Override
-    public int compare(CaptureFormat first, CaptureFormat second) {
-      int firstFps = calculateFramerate(targetBandwidth, first);
-      int secondFps = calculateFramerate(targetBandwidth, second);
-
-      if (firstFps >= FRAMERATE_THRESHOLD && secondFps >= FRAMERATE_THRESHOLD
-          || firstFps == secondFps) {
-        // Compare resolution.
-        return first.width * first.height - second.width * second.height;
-      } else {
-        // Compare fps.
-        return firstFps - secondFps;
-      }
-    }
-  };
-
   @Override
   public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
     if (progress == 0) {
@@ -84,10 +59,10 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
     targetBandwidth = bandwidthFraction * maxCaptureBandwidth;
 
     // Choose the best format given a target bandwidth.
-    final CaptureFormat bestFormat = Collections.max(formats, compareFormats);
+    final CaptureFormat bestFormat = QualityController.selectFormat(formats, targetBandwidth);
     width = bestFormat.width;
     height = bestFormat.height;
-    framerate = calculateFramerate(targetBandwidth, bestFormat);
+    framerate = QualityController.calculateFramerate(targetBandwidth, bestFormat);
     captureFormatText.setText(
         String.format(captureFormatText.getContext().getString(R.string.format_description), width,
             height, framerate));
@@ -100,11 +75,4 @@ public class CaptureQualityController implements SeekBar.OnSeekBarChangeListener
   public void onStopTrackingTouch(SeekBar seekBar) {
     callEvents.onCaptureFormatChange(width, height, framerate);
   }
-
-  // Return the highest frame rate possible based on bandwidth and format.
-  private int calculateFramerate(double bandwidth, CaptureFormat format) {
-    return (int) Math.round(
-        Math.min(format.framerate.max, (int) Math.round(bandwidth / (format.width * format.height)))
-        / 1000.0);
-  }
 }
@@ -438,6 +438,11 @@ public class ConnectActivity extends Activity {
     boolean captureQualitySlider = sharedPrefGetBoolean(R.string.pref_capturequalityslider_key,
         CallActivity.EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED,
         R.string.pref_capturequalityslider_default, useValuesFromIntent);
+    boolean autoQuality = sharedPrefGetBoolean(R.string.pref_auto_quality_key,
+        CallActivity.EXTRA_AUTO_QUALITY, R.string.pref_auto_quality_default, useValuesFromIntent);
+    boolean performanceGovernor = sharedPrefGetBoolean(R.string.pref_performance_governor_key,
+        CallActivity.EXTRA_PERFORMANCE_GOVERNOR, R.string.pref_performance_governor_default,
+        useValuesFromIntent);
 
     // Get video and audio start bitrate.
     int videoStartBitrate = 0;
@@ -475,6 +480,31 @@ public class ConnectActivity extends Activity {
     boolean tracing = sharedPrefGetBoolean(R.string.pref_tracing_key, CallActivity.EXTRA_TRACING,
         R.string.pref_tracing_default, useValuesFromIntent);
 
+    boolean tcpFraming = sharedPrefGetBoolean(R.string.pref_tcp_framing_key,
+        CallActivity.EXTRA_TCP_FRAMING, R.string.pref_tcp_framing_default, useValuesFromIntent);
+
+    boolean tcpBinarySignaling = sharedPrefGetBoolean(R.string.pref_tcp_binary_signaling_key,
+        CallActivity.EXTRA_TCP_BINARY_SIGNALING, R.string.pref_tcp_binary_signaling_default,
+        useValuesFromIntent);
+
+    boolean sdpDeflate = sharedPrefGetBoolean(R.string.pref_sdp_deflate_key,
+        CallActivity.EXTRA_SDP_DEFLATE, R.string.pref_sdp_deflate_default, useValuesFromIntent);
+
+    boolean callRecovery = sharedPrefGetBoolean(R.string.pref_call_recovery_key,
+        CallActivity.EXTRA_CALL_RECOVERY, R.string.pref_call_recovery_default,
+        useValuesFromIntent);
+
+    int iceBatchWindowMs = sharedPrefGetInteger(R.string.pref_ice_batch_window_key,
+        CallActivity.EXTRA_ICE_BATCH_WINDOW_MS, R.string.pref_ice_batch_window_default,
+        useValuesFromIntent);
+
+    int turnCacheTtlSec = sharedPrefGetInteger(R.string.pref_turn_cache_ttl_key,
+        CallActivity.EXTRA_TURN_CACHE_TTL_SEC, R.string.pref_turn_cache_ttl_default,
+        useValuesFromIntent);
+
+    boolean recordStats = sharedPrefGetBoolean(R.string.pref_record_stats_key,
+        CallActivity.EXTRA_RECORD_STATS, R.string.pref_record_stats_default, useValuesFromIntent);
+
     // Get datachannel options
     boolean dataChannelEnabled = sharedPrefGetBoolean(R.string.pref_enable_datachannel_key,
         CallActivity.EXTRA_DATA_CHANNEL_ENABLED, R.string.pref_enable_datachannel_default,
@@ -509,6 +539,8 @@ public class ConnectActivity extends Activity {
       intent.putExtra(CallActivity.EXTRA_VIDEO_HEIGHT, videoHeight);
       intent.putExtra(CallActivity.EXTRA_VIDEO_FPS, cameraFps);
       intent.putExtra(CallActivity.EXTRA_VIDEO_CAPTUREQUALITYSLIDER_ENABLED, captureQualitySlider);
+      intent.putExtra(CallActivity.EXTRA_AUTO_QUALITY, autoQuality);
+      intent.putExtra(CallActivity.EXTRA_PERFORMANCE_GOVERNOR, performanceGovernor);
       intent.putExtra(CallActivity.EXTRA_VIDEO_BITRATE, videoStartBitrate);
       intent.putExtra(CallActivity.EXTRA_VIDEOCODEC, videoCodec);
       intent.putExtra(CallActivity.EXTRA_HWCODEC_ENABLED, hwCodec);
@@ -525,6 +557,13 @@ public class ConnectActivity extends Activity {
       intent.putExtra(CallActivity.EXTRA_AUDIOCODEC, audioCodec);
       intent.putExtra(CallActivity.EXTRA_DISPLAY_HUD, displayHud);
       intent.putExtra(CallActivity.EXTRA_TRACING, tracing);
+      intent.putExtra(CallActivity.EXTRA_TCP_FRAMING, tcpFraming);
+      intent.putExtra(CallActivity.EXTRA_TCP_BINARY_SIGNALING, tcpBinarySignaling);
+      intent.putExtra(CallActivity.EXTRA_SDP_DEFLATE, sdpDeflate);
+      intent.putExtra(CallActivity.EXTRA_CALL_RECOVERY, callRecovery);
+      intent.putExtra(CallActivity.EXTRA_ICE_BATCH_WINDOW_MS, iceBatchWindowMs);
+      intent.putExtra(CallActivity.EXTRA_TURN_CACHE_TTL_SEC, turnCacheTtlSec);
+      intent.putExtra(CallActivity.EXTRA_RECORD_STATS, recordStats);
       intent.putExtra(CallActivity.EXTRA_CMDLINE, commandLineRun);
       intent.putExtra(CallActivity.EXTRA_RUNTIME, runTimeMs);
 
@@ -565,6 +604,12 @@ public class ConnectActivity extends Activity {
         }
       }
 
+      // Create the peer connection factory while CallActivity starts. Loopback calls set
+      // factory options, so they create their own.
+      if (!loopback) {
+        PeerConnectionClient.getInstance().warmUp(getApplicationContext(),
+            CallActivity.createPeerConnectionParameters(intent, videoWidth, videoHeight));
+      }
       startActivityForResult(intent, CONNECTION_REQUEST);
     }
   }
@@ -17,12 +17,8 @@ import android.os.BatteryManager;
 import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.File;
 import java.util.Arrays;
-import java.util.Scanner;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -62,6 +58,10 @@ import java.util.concurrent.TimeUnit;
  * second, one would need to increase SAMPLE_SAVE_NUMBER and probably use
  * Queue<Integer> to avoid copying overhead.
  *
+ * <p>The counters are read by a CpuSampler, which keeps the files open and
+ * parses them without allocating. Besides the system usage it reports the
+ * usage of this process and the busiest thread of the last sample.
+ *
  * <p>Known problems:
  *   1. Nexus 7 devices running Kitkat have a kernel which often output an
  *      incorrect 'idle' field in /proc/stat.  The value is close to twice the
@@ -75,6 +75,7 @@ class CpuMonitor {
 
   private static final int CPU_STAT_SAMPLE_PERIOD_MS = 2000;
   private static final int CPU_STAT_LOG_PERIOD_MS = 6000;
+  private static final int BATTERY_SAMPLE_PERIOD_MS = 30000;
 
   private final Context appContext;
   // User CPU usage at current frequency.
@@ -85,32 +86,32 @@ class CpuMonitor {
   private final MovingAverage totalCpuUsage;
   // CPU frequency in percentage from maximum.
   private final MovingAverage frequencyScale;
+  // CPU usage of this process at current frequency.
+  private final MovingAverage processCpuUsage;
+  // CPU usage of this process by pipeline stage.
+  private final ThreadCpuProfiler threadCpuProfiler;
 
   private ScheduledExecutorService executor;
   private long lastStatLogTimeMs;
-  private long[] cpuFreqMax;
+  private CpuSampler sampler;
   private int cpusPresent;
   private int actualCpusPresent;
   private boolean initialized;
   private boolean cpuOveruse;
-  private String[] maxPath;
-  private String[] curPath;
   private double[] curFreqScales;
-  private ProcStat lastProcStat;
-
-  private static class ProcStat {
-    final long userTime;
-    final long systemTime;
-    final long idleTime;
-
-    ProcStat(long userTime, long systemTime, long idleTime) {
-      this.userTime = userTime;
-      this.systemTime = systemTime;
-      this.idleTime = idleTime;
-    }
-  }
-
-  private static class MovingAverage {
+  private long lastUserTime;
+  private long lastSystemTime;
+  private long lastIdleTime;
+  private long lastProcessTime = -1;
+  // Busiest thread of the last sample and its CPU usage.
+  private String topThreadName;
+  private double topThreadCpuUsage;
+  // Battery state, read every BATTERY_SAMPLE_PERIOD_MS.
+  private long lastBatterySampleTimeMs;
+  private int batteryLevel = -1;
+  private boolean charging;
+
+  static class MovingAverage {
     private final int size;
     private double sum;
     private double currentValue;
@@ -158,6 +159,8 @@ class CpuMonitor {
     systemCpuUsage = new MovingAverage(MOVING_AVERAGE_SAMPLES);
     totalCpuUsage = new MovingAverage(MOVING_AVERAGE_SAMPLES);
     frequencyScale = new MovingAverage(MOVING_AVERAGE_SAMPLES);
+    processCpuUsage = new MovingAverage(MOVING_AVERAGE_SAMPLES);
+    threadCpuProfiler = new ThreadCpuProfiler(MOVING_AVERAGE_SAMPLES);
     lastStatLogTimeMs = SystemClock.elapsedRealtime();
 
     scheduleCpuUtilizationTask();
@@ -169,6 +172,7 @@ class CpuMonitor {
       executor.shutdownNow();
       executor = null;
     }
+    closeSampler();
   }
 
   public void resume() {
@@ -197,6 +201,39 @@ class CpuMonitor {
     return doubleToPercent(frequencyScale.getAverage());
   }
 
+  public synchronized int getProcessCpuUsageCurrent() {
+    return doubleToPercent(processCpuUsage.getCurrent());
+  }
+
+  public synchronized int getProcessCpuUsageAverage() {
+    return doubleToPercent(processCpuUsage.getAverage());
+  }
+
+  /**
+   * Stores the CPU usage of each ThreadCpuProfiler group in the last sample into |percents|,
+   * indexed by group.
+   */
+  public synchronized void getThreadGroupUsageCurrent(int[] percents) {
+    for (int i = 0; i < ThreadCpuProfiler.GROUP_COUNT; i++) {
+      percents[i] = doubleToPercent(threadCpuProfiler.getCurrent(i));
+    }
+  }
+
+  /** Returns the average CPU usage of the busiest thread groups, e.g. "encoder 21 audio 4". */
+  public synchronized String getThreadGroupSummary() {
+    StringBuilder summary = new StringBuilder();
+    for (int i = 0; i < ThreadCpuProfiler.GROUP_COUNT; i++) {
+      int percent = doubleToPercent(threadCpuProfiler.getAverage(i));
+      if (percent > 0) {
+        if (summary.length() > 0) {
+          summary.append(" ");
+        }
+        summary.append(ThreadCpuProfiler.GROUP_NAMES[i]).append(" ").append(percent);
+      }
+    }
+    return summary.toString();
+  }
+
   private void scheduleCpuUtilizationTask() {
     if (executor != null) {
       executor.shutdownNow();
@@ -214,6 +251,11 @@ class CpuMonitor {
 
   private void cpuUtilizationTask() {
     boolean cpuMonitorAvailable = sampleCpuUtilization();
+    if (batteryLevel < 0
+        || SystemClock.elapsedRealtime() - lastBatterySampleTimeMs >= BATTERY_SAMPLE_PERIOD_MS) {
+      lastBatterySampleTimeMs = SystemClock.elapsedRealtime();
+      sampleBattery();
+    }
     if (cpuMonitorAvailable
         && SystemClock.elapsedRealtime() - lastStatLogTimeMs >= CPU_STAT_LOG_PERIOD_MS) {
       lastStatLogTimeMs = SystemClock.elapsedRealtime();
@@ -223,64 +265,61 @@ class CpuMonitor {
   }
 
   private void init() {
-    try {
-      FileReader fin = new FileReader("/sys/devices/system/cpu/present");
-      try {
-        BufferedReader reader = new BufferedReader(fin);
-        Scanner scanner = new Scanner(reader).useDelimiter("[-\n]");
-        scanner.nextInt(); // Skip leading number 0.
-        cpusPresent = 1 + scanner.nextInt();
-        scanner.close();
-      } catch (Exception e) {
-        Log.e(TAG, "Cannot do CPU stats due to /sys/devices/system/cpu/present parsing problem");
-      } finally {
-        fin.close();
-      }
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Cannot do CPU stats since /sys/devices/system/cpu/present is missing");
-    } catch (IOException e) {
-      Log.e(TAG, "Error closing file");
-    }
-
-    cpuFreqMax = new long[cpusPresent];
-    maxPath = new String[cpusPresent];
-    curPath = new String[cpusPresent];
+    sampler = new CpuSampler(new File("/"));
+    cpusPresent = sampler.getCpuCount();
     curFreqScales = new double[cpusPresent];
-    for (int i = 0; i < cpusPresent; i++) {
-      cpuFreqMax[i] = 0; // Frequency "not yet determined".
-      curFreqScales[i] = 0;
-      maxPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_max_freq";
-      curPath[i] = "/sys/devices/system/cpu/cpu" + i + "/cpufreq/scaling_cur_freq";
-    }
-
-    lastProcStat = new ProcStat(0, 0, 0);
     resetStat();
 
     initialized = true;
   }
 
+  // Releases the files kept open by the sampler, they are opened again by the next sample.
+  private synchronized void closeSampler() {
+    if (sampler != null) {
+      sampler.close();
+    }
+  }
+
   private synchronized void resetStat() {
     userCpuUsage.reset();
     systemCpuUsage.reset();
     totalCpuUsage.reset();
     frequencyScale.reset();
+    processCpuUsage.reset();
+    threadCpuProfiler.reset();
     lastStatLogTimeMs = SystemClock.elapsedRealtime();
   }
 
-  private int getBatteryLevel() {
+  private void sampleBattery() {
     // Use sticky broadcast with null receiver to read battery level once only.
     Intent intent = appContext.registerReceiver(
         null /* receiver */, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    if (intent == null) {
+      return;
+    }
 
-    int batteryLevel = 0;
+    int level = 0;
     int batteryScale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
     if (batteryScale > 0) {
-      batteryLevel =
-          (int) (100f * intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0) / batteryScale);
+      level = (int) (100f * intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0) / batteryScale);
     }
+    boolean plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    synchronized (this) {
+      batteryLevel = level;
+      charging = plugged;
+    }
+  }
+
+  /** Returns the battery level in percent, or -1 if it has not been read yet. */
+  public synchronized int getBatteryLevel() {
     return batteryLevel;
   }
 
+  /** Returns whether the device is plugged into a power source. */
+  public synchronized boolean isCharging() {
+    return charging;
+  }
+
   /**
    * Re-measure CPU use.  Call this method at an interval of around 1/s.
    * This method returns true on success.  The fields
@@ -301,29 +340,23 @@ class CpuMonitor {
       return false;
     }
 
+    if (!sampler.sample()) {
+      return false;
+    }
+
     actualCpusPresent = 0;
     for (int i = 0; i < cpusPresent; i++) {
       /*
-       * For each CPU, attempt to first read its max frequency, then its
-       * current frequency.  Once as the max frequency for a CPU is found,
-       * save it in cpuFreqMax[].
+       * The sampler reads the max frequency of each CPU until it is found.
+       * CPUs that never reported one inherit the max frequency of a close
+       * lower-numbered CPU.
        */
-
       curFreqScales[i] = 0;
-      if (cpuFreqMax[i] == 0) {
-        // We have never found this CPU's max frequency.  Attempt to read it.
-        long cpufreqMax = readFreqFromFile(maxPath[i]);
-        if (cpufreqMax > 0) {
-          Log.d(TAG, "Core " + i + ". Max frequency: " + cpufreqMax);
-          lastSeenMaxFreq = cpufreqMax;
-          cpuFreqMax[i] = cpufreqMax;
-          maxPath[i] = null; // Kill path to free its memory.
-        }
-      } else {
-        lastSeenMaxFreq = cpuFreqMax[i]; // A valid, previously read value.
+      if (sampler.getMaxFrequency(i) > 0) {
+        lastSeenMaxFreq = sampler.getMaxFrequency(i);
       }
 
-      long cpuFreqCur = readFreqFromFile(curPath[i]);
+      long cpuFreqCur = sampler.getCurrentFrequency(i);
       if (cpuFreqCur == 0 && lastSeenMaxFreq == 0) {
         // No current frequency information for this CPU core - ignore it.
         continue;
@@ -334,10 +367,9 @@ class CpuMonitor {
       cpuFreqCurSum += cpuFreqCur;
 
       /* Here, lastSeenMaxFreq might come from
-       * 1. cpuFreq[i], or
+       * 1. this CPU, or
        * 2. a previous iteration, or
-       * 3. a newly read value, or
-       * 4. hypothetically from the pre-loop dummy.
+       * 3. hypothetically from the pre-loop dummy.
        */
       cpuFreqMaxSum += lastSeenMaxFreq;
       if (lastSeenMaxFreq > 0) {
@@ -362,14 +394,9 @@ class CpuMonitor {
       currentFrequencyScale = (frequencyScale.getCurrent() + currentFrequencyScale) * 0.5;
     }
 
-    ProcStat procStat = readProcStat();
-    if (procStat == null) {
-      return false;
-    }
-
-    long diffUserTime = procStat.userTime - lastProcStat.userTime;
-    long diffSystemTime = procStat.systemTime - lastProcStat.systemTime;
-    long diffIdleTime = procStat.idleTime - lastProcStat.idleTime;
+    long diffUserTime = sampler.getUserTime() - lastUserTime;
+    long diffSystemTime = sampler.getSystemTime() - lastSystemTime;
+    long diffIdleTime = sampler.getIdleTime() - lastIdleTime;
     long allTime = diffUserTime + diffSystemTime + diffIdleTime;
 
     if (currentFrequencyScale == 0 || allTime == 0) {
@@ -389,8 +416,27 @@ class CpuMonitor {
         (currentUserCpuUsage + currentSystemCpuUsage) * currentFrequencyScale;
     totalCpuUsage.addValue(currentTotalCpuUsage);
 
+    // The process and thread times are summed over all CPUs, like the system times.
+    long processTime = sampler.getProcessTime();
+    if (processTime >= 0 && lastProcessTime >= 0) {
+      processCpuUsage.addValue((processTime - lastProcessTime) / (double) allTime);
+    }
+    lastProcessTime = processTime;
+    long topThreadTime = 0;
+    topThreadName = null;
+    for (int i = 0; i < sampler.getThreadCount(); i++) {
+      if (sampler.getThreadTimeDelta(i) > topThreadTime) {
+        topThreadTime = sampler.getThreadTimeDelta(i);
+        topThreadName = sampler.getThreadName(i);
+      }
+    }
+    topThreadCpuUsage = topThreadTime / (double) allTime;
+    threadCpuProfiler.update(sampler, allTime);
+
     // Save new measurements for next round's deltas.
-    lastProcStat = procStat;
+    lastUserTime = sampler.getUserTime();
+    lastSystemTime = sampler.getSystemTime();
+    lastIdleTime = sampler.getIdleTime();
 
     return true;
   }
@@ -417,94 +463,29 @@ class CpuMonitor {
         .append(doubleToPercent(totalCpuUsage.getCurrent()))
         .append("/")
         .append(doubleToPercent(totalCpuUsage.getAverage()))
-        .append(". Cores: ")
+        .append(". Process: ")
+        .append(doubleToPercent(processCpuUsage.getCurrent()))
+        .append("/")
+        .append(doubleToPercent(processCpuUsage.getAverage()));
+    if (topThreadName != null) {
+      stat.append(". Top thread: ")
+          .append(topThreadName)
+          .append(" ")
+          .append(doubleToPercent(topThreadCpuUsage));
+    }
+    stat.append(". Cores: ")
         .append(actualCpusPresent);
     stat.append("( ");
     for (int i = 0; i < cpusPresent; i++) {
       stat.append(doubleToPercent(curFreqScales[i])).append(" ");
     }
-    stat.append("). Battery: ").append(getBatteryLevel());
+    stat.append("). Battery: ").append(batteryLevel);
+    if (charging) {
+      stat.append(" charging");
+    }
     if (cpuOveruse) {
       stat.append(". Overuse.");
     }
     return stat.toString();
   }
-
-  /**
-   * Read a single integer value from the named file.  Return the read value
-   * or if an error occurs return 0.
-   */
-  private long readFreqFromFile(String fileName) {
-    long number = 0;
-    try {
-      BufferedReader reader = new BufferedReader(new FileReader(fileName));
-      try {
-        String line = reader.readLine();
-        number = parseLong(line);
-      } finally {
-        reader.close();
-      }
-    } catch (FileNotFoundException e) {
-      // CPU core is off, so file with its scaling frequency .../cpufreq/scaling_cur_freq
-      // is not present. This is not an error.
-    } catch (IOException e) {
-      // CPU core is off, so file with its scaling frequency .../cpufreq/scaling_cur_freq
-      // is empty. This is not an error.
-    }
-    return number;
-  }
-
-  private static long parseLong(String value) {
-    long number = 0;
-    try {
-      number = Long.parseLong(value);
-    } catch (NumberFormatException e) {
-      Log.e(TAG, "parseLong error.", e);
-    }
-    return number;
-  }
-
-  /*
-   * Read the current utilization of all CPUs using the cumulative first line
-   * of /proc/stat.
-   */
-  private ProcStat readProcStat() {
-    long userTime = 0;
-    long systemTime = 0;
-    long idleTime = 0;
-    try {
-      BufferedReader reader = new BufferedReader(new FileReader("/proc/stat"));
-      try {
-        // line should contain something like this:
-        // cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0
-        //       user    nice  system     idle   iowait  irq   softirq
-        String line = reader.readLine();
-        String lines[] = line.split("\\s+");
-        int length = lines.length;
-        if (length >= 5) {
-          userTime = parseLong(lines[1]); // user
-          userTime += parseLong(lines[2]); // nice
-          systemTime = parseLong(lines[3]); // system
-          idleTime = parseLong(lines[4]); // idle
-        }
-        if (length >= 8) {
-          userTime += parseLong(lines[5]); // iowait
-          systemTime += parseLong(lines[6]); // irq
-          systemTime += parseLong(lines[7]); // softirq
-        }
-      } catch (Exception e) {
-        Log.e(TAG, "Problems parsing /proc/stat", e);
-        return null;
-      } finally {
-        reader.close();
-      }
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Cannot open /proc/stat for reading", e);
-      return null;
-    } catch (IOException e) {
-      Log.e(TAG, "Problems reading /proc/stat", e);
-      return null;
-    }
-    return new ProcStat(userTime, systemTime, idleTime);
-  }
 }
@@ -0,0 +1,494 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads the CPU time counters of the system, of this process and of each of its threads, and
+ * the CPU frequencies, from procfs and sysfs.
+ *
+ * <p>Every file is opened once and read again from offset 0 into a shared byte buffer, and the
+ * numbers are parsed from the bytes, so a sample allocates nothing. Only the thread list is
+ * refreshed by listing /proc/self/task, every THREAD_RESCAN_SAMPLES samples. Files are looked
+ * up under a root directory, so that fixture trees can stand in for / off device.
+ *
+ * <p>Times are cumulative, in clock ticks. Not thread safe.
+ */
+final class CpuSampler {
+  private static final String TAG = "CpuSampler";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  static final int MAX_THREADS = 256;
+  // Samples between two listings of the threads, and between two attempts to open a missing
+  // cpufreq file, e.g. of an offline core.
+  private static final int THREAD_RESCAN_SAMPLES = 10;
+  private static final int REOPEN_SAMPLES = 10;
+  // Fields of /proc/<pid>/stat, 1-based as in proc(5).
+  private static final int STAT_FIELD_STATE = 3;
+  private static final int STAT_FIELD_UTIME = 14;
+  private static final int STAT_FIELD_STIME = 15;
+
+  // A file read again from the start on every sample.
+  private static final class ProcFile {
+    final File file;
+    private RandomAccessFile randomAccessFile;
+    private int samplesUntilReopen;
+
+    ProcFile(File file) {
+      this.file = file;
+    }
+
+    // Reads the file into |buffer|. Returns the length read, or -1 if it can not be read.
+    int read(byte[] buffer) {
+      if (randomAccessFile == null) {
+        if (samplesUntilReopen > 0) {
+          --samplesUntilReopen;
+          return -1;
+        }
+        try {
+          randomAccessFile = new RandomAccessFile(file, "r");
+        } catch (FileNotFoundException e) {
+          samplesUntilReopen = REOPEN_SAMPLES;
+          return -1;
+        }
+      }
+      try {
+        randomAccessFile.seek(0);
+        int length = 0;
+        int read;
+        while (length < buffer.length
+            && (read = randomAccessFile.read(buffer, length, buffer.length - length)) > 0) {
+          length += read;
+        }
+        return length;
+      } catch (IOException e) {
+        close();
+        return -1;
+      }
+    }
+
+    void close() {
+      if (randomAccessFile != null) {
+        try {
+          randomAccessFile.close();
+        } catch (IOException e) {
+          Log.e(TAG, "Error closing " + file);
+        }
+        randomAccessFile = null;
+      }
+    }
+  }
+
+  private final File root;
+  private final byte[] buffer = new byte[4096];
+  private int parsePosition;
+  // Length of the last stat file read by readTaskTime().
+  private int lastStatLength;
+  private final long[] scratchFields = new long[7];
+  private int sampleCount;
+
+  private final ProcFile procStat;
+  private final ProcFile processStat;
+  private final File taskDirectory;
+  private final int cpuCount;
+  private final ProcFile[] maxFrequencyFiles;
+  private final ProcFile[] currentFrequencyFiles;
+  private final long[] maxFrequencies;
+  private final long[] currentFrequencies;
+
+  private long userTime;
+  private long systemTime;
+  private long idleTime;
+  private long processTime;
+
+  // Threads in slots 0..threadCount-1. A thread that exits keeps its slot, with a null file,
+  // until the next rescan.
+  private int threadCount;
+  private final int[] threadIds = new int[MAX_THREADS];
+  private final ProcFile[] threadFiles = new ProcFile[MAX_THREADS];
+  private final String[] threadNames = new String[MAX_THREADS];
+  private final long[] threadTimes = new long[MAX_THREADS];
+  private final long[] threadTimeDeltas = new long[MAX_THREADS];
+  private final int[] scratchThreadIds = new int[MAX_THREADS];
+
+  CpuSampler(File root) {
+    this.root = root;
+    procStat = new ProcFile(new File(root, "proc/stat"));
+    processStat = new ProcFile(new File(root, "proc/self/stat"));
+    taskDirectory = new File(root, "proc/self/task");
+    cpuCount = readCpuCount();
+    maxFrequencyFiles = new ProcFile[cpuCount];
+    currentFrequencyFiles = new ProcFile[cpuCount];
+    maxFrequencies = new long[cpuCount];
+    currentFrequencies = new long[cpuCount];
+    for (int i = 0; i < cpuCount; i++) {
+      File cpufreq = new File(root, "sys/devices/system/cpu/cpu" + i + "/cpufreq");
+      maxFrequencyFiles[i] = new ProcFile(new File(cpufreq, "cpuinfo_max_freq"));
+      currentFrequencyFiles[i] = new ProcFile(new File(cpufreq, "scaling_cur_freq"));
+    }
+  }
+
+  // Returns 1 + the last number of the "0-N" range in sys/devices/system/cpu/present, or 0.
+  private int readCpuCount() {
+    ProcFile present = new ProcFile(new File(root, "sys/devices/system/cpu/present"));
+    int length = present.read(buffer);
+    present.close();
+    if (length <= 0) {
+      Log.e(TAG, "Cannot do CPU stats since /sys/devices/system/cpu/present is missing");
+      return 0;
+    }
+    int end = length;
+    while (end > 0 && (buffer[end - 1] < '0' || buffer[end - 1] > '9')) {
+      --end;
+    }
+    int start = end;
+    while (start > 0 && buffer[start - 1] >= '0' && buffer[start - 1] <= '9') {
+      --start;
+    }
+    if (start == end) {
+      Log.e(TAG, "Cannot do CPU stats due to /sys/devices/system/cpu/present parsing problem");
+      return 0;
+    }
+    parsePosition = start;
+    return 1 + (int) parseNumber(end);
+  }
+
+  /** Reads all counters. Returns false if the system CPU times can not be read. */
+  boolean sample() {
+    if (!sampleSystem()) {
+      return false;
+    }
+    for (int i = 0; i < cpuCount; i++) {
+      if (maxFrequencies[i] == 0) {
+        maxFrequencies[i] = readNumber(maxFrequencyFiles[i]);
+        if (maxFrequencies[i] > 0) {
+          // The maximum does not change, no need to keep the file open.
+          maxFrequencyFiles[i].close();
+        }
+      }
+      currentFrequencies[i] = readNumber(currentFrequencyFiles[i]);
+    }
+    processTime = readTaskTime(processStat);
+    if (sampleCount++ % THREAD_RESCAN_SAMPLES == 0) {
+      rescanThreads();
+    }
+    sampleThreads();
+    return true;
+  }
+
+  private boolean sampleSystem() {
+    if (!parseProcStatBuffer(procStat.read(buffer))) {
+      Log.e(TAG, "Problems reading /proc/stat");
+      return false;
+    }
+    return true;
+  }
+
+  // Parses the cumulative first line of a /proc/stat copy of |length| bytes in |buffer|, which
+  // reads like
+  // cpu  5093818 271838 3512830 165934119 101374 447076 272086 0 0 0
+  //       user    nice  system     idle   iowait  irq   softirq
+  // Returns false, leaving the times untouched, if it is not such a line with at least four
+  // numbers.
+  private boolean parseProcStatBuffer(int length) {
+    if (length < 4 || buffer[0] != 'c' || buffer[1] != 'p' || buffer[2] != 'u'
+        || buffer[3] != ' ') {
+      return false;
+    }
+    int end = 3;
+    while (end < length && buffer[end] != '\n') {
+      ++end;
+    }
+    long[] fields = scratchFields;
+    int count = 0;
+    parsePosition = 3;
+    while (count < fields.length && skipSpaces(end)) {
+      if (buffer[parsePosition] < '0' || buffer[parsePosition] > '9') {
+        return false;
+      }
+      fields[count++] = parseNumber(end);
+    }
+    if (count < 4) {
+      return false;
+    }
+    userTime = fields[0] + fields[1]; // user + nice
+    systemTime = fields[2]; // system
+    idleTime = fields[3]; // idle
+    if (count >= 7) {
+      userTime += fields[4]; // iowait
+      systemTime += fields[5] + fields[6]; // irq + softirq
+    }
+    return true;
+  }
+
+  /**
+   * Parses the system CPU times from a copy of /proc/stat in |data| instead of the file.
+   * Package-private so that the parsing can be driven by tests and the benchmarks module.
+   */
+  boolean parseProcStat(byte[] data, int length) {
+    length = Math.min(length, buffer.length);
+    System.arraycopy(data, 0, buffer, 0, length);
+    return parseProcStatBuffer(length);
+  }
+
+  private void rescanThreads() {
+    String[] names = taskDirectory.list();
+    if (names == null) {
+      return;
+    }
+    int count = 0;
+    for (String name : names) {
+      if (count == MAX_THREADS) {
+        break;
+      }
+      try {
+        scratchThreadIds[count++] = Integer.parseInt(name);
+      } catch (NumberFormatException e) {
+        --count;
+      }
+    }
+    Arrays.sort(scratchThreadIds, 0, count);
+
+    // Merge the sorted listing into the sorted slots, keeping the files of known threads.
+    int oldCount = threadCount;
+    int[] oldIds = Arrays.copyOf(threadIds, oldCount);
+    ProcFile[] oldFiles = Arrays.copyOf(threadFiles, oldCount);
+    String[] oldNames = Arrays.copyOf(threadNames, oldCount);
+    long[] oldTimes = Arrays.copyOf(threadTimes, oldCount);
+    int old = 0;
+    for (int i = 0; i < count; ++i) {
+      int tid = scratchThreadIds[i];
+      while (old < oldCount && oldIds[old] < tid) {
+        if (oldFiles[old] != null) {
+          oldFiles[old].close();
+        }
+        ++old;
+      }
+      threadIds[i] = tid;
+      threadTimeDeltas[i] = 0;
+      if (old < oldCount && oldIds[old] == tid && oldFiles[old] != null) {
+        threadFiles[i] = oldFiles[old];
+        threadNames[i] = oldNames[old];
+        threadTimes[i] = oldTimes[old];
+        ++old;
+      } else {
+        threadFiles[i] = new ProcFile(new File(taskDirectory, tid + "/stat"));
+        threadNames[i] = null;
+        threadTimes[i] = -1;
+      }
+    }
+    for (; old < oldCount; ++old) {
+      if (oldFiles[old] != null) {
+        oldFiles[old].close();
+      }
+    }
+    for (int i = count; i < oldCount; ++i) {
+      threadFiles[i] = null;
+      threadNames[i] = null;
+    }
+    threadCount = count;
+  }
+
+  private void sampleThreads() {
+    for (int i = 0; i < threadCount; ++i) {
+      ProcFile file = threadFiles[i];
+      if (file == null) {
+        threadTimeDeltas[i] = 0;
+        continue;
+      }
+      long time = readTaskTime(file);
+      if (time < 0) {
+        // The thread has exited.
+        file.close();
+        threadFiles[i] = null;
+        threadTimeDeltas[i] = 0;
+        continue;
+      }
+      threadTimeDeltas[i] = (threadTimes[i] >= 0) ? time - threadTimes[i] : 0;
+      threadTimes[i] = time;
+      updateThreadName(i);
+    }
+  }
+
+  // Reads utime + stime from a /proc/<pid>/stat or /proc/<pid>/task/<tid>/stat file, leaving
+  // its content in |buffer|. Returns -1 if it can not be read.
+  private long readTaskTime(ProcFile file) {
+    int length = file.read(buffer);
+    if (length <= 0) {
+      return -1;
+    }
+    // The name may hold spaces and parentheses, the fields after it start after the last ')'.
+    int nameEnd = length - 1;
+    while (nameEnd > 0 && buffer[nameEnd] != ')') {
+      --nameEnd;
+    }
+    if (nameEnd == 0) {
+      return -1;
+    }
+    parsePosition = nameEnd + 1;
+    long time = 0;
+    for (int field = STAT_FIELD_STATE; field <= STAT_FIELD_STIME; ++field) {
+      if (!skipSpaces(length)) {
+        return -1;
+      }
+      if (field >= STAT_FIELD_UTIME) {
+        time += parseNumber(length);
+      } else {
+        skipField(length);
+      }
+    }
+    lastStatLength = length;
+    return time;
+  }
+
+  // Sets the name of thread |slot| from the stat file left in |buffer|, allocating a String
+  // only when the name is new.
+  private void updateThreadName(int slot) {
+    int nameStart = 0;
+    while (nameStart < lastStatLength && buffer[nameStart] != '(') {
+      ++nameStart;
+    }
+    ++nameStart;
+    int nameEnd = lastStatLength - 1;
+    while (nameEnd > nameStart && buffer[nameEnd] != ')') {
+      --nameEnd;
+    }
+    String name = threadNames[slot];
+    if (name != null && name.length() == nameEnd - nameStart) {
+      boolean same = true;
+      for (int i = 0; i < name.length(); ++i) {
+        if (name.charAt(i) != (char) (buffer[nameStart + i] & 0xFF)) {
+          same = false;
+          break;
+        }
+      }
+      if (same) {
+        return;
+      }
+    }
+    threadNames[slot] = new String(buffer, nameStart, nameEnd - nameStart, UTF_8);
+  }
+
+  // Reads a file holding a single number, such as a cpufreq attribute. Returns 0 on failure.
+  private long readNumber(ProcFile file) {
+    int length = file.read(buffer);
+    if (length <= 0) {
+      return 0;
+    }
+    parsePosition = 0;
+    if (!skipSpaces(length)) {
+      return 0;
+    }
+    return parseNumber(length);
+  }
+
+  // Advances past spaces. Returns false at the end of the line or of the data.
+  private boolean skipSpaces(int end) {
+    while (parsePosition < end && buffer[parsePosition] == ' ') {
+      ++parsePosition;
+    }
+    return parsePosition < end && buffer[parsePosition] != '\n';
+  }
+
+  private void skipField(int end) {
+    while (parsePosition < end && buffer[parsePosition] != ' ' && buffer[parsePosition] != '\n') {
+      ++parsePosition;
+    }
+  }
+
+  // Parses the unsigned decimal number at the parse position, and advances past it.
+  private long parseNumber(int end) {
+    long number = 0;
+    while (parsePosition < end) {
+      int digit = buffer[parsePosition] - '0';
+      if (digit < 0 || digit > 9) {
+        break;
+      }
+      number = number * 10 + digit;
+      ++parsePosition;
+    }
+    skipField(end);
+    return number;
+  }
+
+  void close() {
+    procStat.close();
+    processStat.close();
+    for (int i = 0; i < cpuCount; i++) {
+      maxFrequencyFiles[i].close();
+      currentFrequencyFiles[i].close();
+    }
+    for (int i = 0; i < threadCount; ++i) {
+      if (threadFiles[i] != null) {
+        threadFiles[i].close();
+      }
+    }
+    threadCount = 0;
+  }
+
+  /** Returns the number of CPUs present, online or not. */
+  int getCpuCount() {
+    return cpuCount;
+  }
+
+  /** Returns the maximum frequency of |cpu| in kHz, or 0 if it was never read. */
+  long getMaxFrequency(int cpu) {
+    return maxFrequencies[cpu];
+  }
+
+  /** Returns the current frequency of |cpu| in kHz, or 0 if it is offline. */
+  long getCurrentFrequency(int cpu) {
+    return currentFrequencies[cpu];
+  }
+
+  /** Returns the user time of all CPUs, including nice and iowait. */
+  long getUserTime() {
+    return userTime;
+  }
+
+  /** Returns the system time of all CPUs, including irq and softirq. */
+  long getSystemTime() {
+    return systemTime;
+  }
+
+  long getIdleTime() {
+    return idleTime;
+  }
+
+  /** Returns the user and system time of this process, or -1 if it can not be read. */
+  long getProcessTime() {
+    return processTime;
+  }
+
+  int getThreadCount() {
+    return threadCount;
+  }
+
+  int getThreadId(int index) {
+    return threadIds[index];
+  }
+
+  /** Returns the name of a thread, or null if it was never read. */
+  String getThreadName(int index) {
+    return threadNames[index];
+  }
+
+  /** Returns the user and system time of a thread since the previous sample. */
+  long getThreadTimeDelta(int index) {
+    return threadTimeDeltas[index];
+  }
+}
@@ -0,0 +1,663 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.webrtc.DataChannel;
+
+/**
+ * Moves blobs over a DataChannel in checksummed chunks.
+ *
+ * <p>Every message is binary and starts with a 14-byte header: magic byte, type, transfer id
+ * (int) and offset (long), big-endian. DATA messages add the CRC32 of their payload. A transfer
+ * goes:
+ * <pre>
+ *   sender                      receiver
+ *   START(length)        --->
+ *                        <---   RESUME(offset)    bytes the receiver's sink already holds
+ *   DATA(offset, crc)... --->
+ *   END(length)          --->
+ *                        <---   DONE(length)      or RESUME(first missing offset)
+ * </pre>
+ * The receiver checks the CRC of each chunk and drops bad ones, and it tolerates chunks that
+ * arrive out of order or not at all. The transfer therefore also completes when the data
+ * channel is unordered or partially reliable (see DataChannelParameters), at the cost of
+ * resending everything after the first missing chunk. START and END are repeated until they
+ * are answered. A receiver refuses a transfer with ABORT.
+ *
+ * <p>Chunks are sent through the DataChannelTransport, whose low and high watermarks on
+ * bufferedAmount() form the send window: sending stops when the transport refuses a chunk and
+ * resumes on onWritable(). Received chunks are copied into pooled buffers and written to the
+ * sink on the executor, so the signaling thread never waits for storage.
+ *
+ * <p>All state lives on the executor thread, which is also where BulkTransferEvents callbacks
+ * are invoked.
+ */
+public class DataChannelBulkTransfer
+    implements DataChannelTransport.MessageHandler, DataChannelTransport.TransportEvents {
+  private static final String TAG = "DCBulkTransfer";
+  // 16 KB is the largest message every SCTP implementation is known to handle.
+  public static final int CHUNK_SIZE = 16 * 1024;
+
+  private static final byte MAGIC = (byte) 0xB7;
+  private static final byte TYPE_START = 1;
+  private static final byte TYPE_RESUME = 2;
+  private static final byte TYPE_DATA = 3;
+  private static final byte TYPE_END = 4;
+  private static final byte TYPE_DONE = 5;
+  private static final byte TYPE_ABORT = 6;
+  private static final int HEADER_SIZE = 14;
+  private static final int DATA_HEADER_SIZE = HEADER_SIZE + 4;
+  private static final int MAX_MESSAGE_SIZE = DATA_HEADER_SIZE + CHUNK_SIZE;
+  private static final int MAX_POOLED_BUFFERS = 64;
+
+  private static final long CONTROL_RETRY_MS = 1000;
+  private static final int MAX_CONTROL_RETRIES = 10;
+  // Completed incoming transfers remembered so that a repeated END can be answered again.
+  private static final int MAX_COMPLETED_TRANSFERS = 16;
+
+  /**
+   * Where an outgoing transfer reads its data.
+   */
+  public interface Source {
+    long length();
+
+    /** Reads up to dst.remaining() bytes at |offset| into |dst|. */
+    void read(long offset, ByteBuffer dst) throws IOException;
+  }
+
+  /**
+   * Where an incoming transfer writes its data.
+   */
+  public interface Sink {
+    /** Returns how many leading bytes the sink already holds from an earlier attempt. */
+    long getResumeOffset();
+
+    /** Writes the remaining bytes of |data| at |offset|. Chunks may come in any order. */
+    void write(long offset, ByteBuffer data) throws IOException;
+
+    /**
+     * Called when the transfer completed or was abandoned. The first |completeLength| bytes
+     * are written, whatever lies beyond may have gaps.
+     */
+    void close(long completeLength) throws IOException;
+  }
+
+  /**
+   * Callback interface for transfer events.
+   */
+  public interface BulkTransferEvents {
+    /** Returns the sink for an incoming transfer, or null to refuse it. */
+    Sink onIncomingTransfer(int transferId, long length);
+
+    void onSendComplete(int transferId, long length, long elapsedMs);
+
+    void onReceiveComplete(int transferId, long length, long elapsedMs);
+
+    void onTransferError(int transferId, String description);
+  }
+
+  private enum SendState { QUEUED, STARTING, SENDING, ENDING }
+
+  private static class OutgoingTransfer {
+    final int id;
+    final Source source;
+    final long length;
+    SendState state = SendState.QUEUED;
+    long nextOffset;
+    long startTimeNs;
+    long bytesSent;
+    // Identifies the control message a retry timer was armed for.
+    int controlSequence;
+    int controlRetries;
+
+    OutgoingTransfer(int id, Source source) {
+      this.id = id;
+      this.source = source;
+      this.length = source.length();
+    }
+  }
+
+  private static class IncomingTransfer {
+    final int id;
+    final Sink sink;
+    final long length;
+    final long baseOffset;
+    final long startTimeNs;
+    // Chunks received since baseOffset.
+    final BitSet chunks = new BitSet();
+    long contiguousOffset;
+    long bytesReceived;
+    int crcErrors;
+
+    IncomingTransfer(int id, Sink sink, long length, long baseOffset) {
+      this.id = id;
+      this.sink = sink;
+      this.length = length;
+      this.baseOffset = baseOffset;
+      this.contiguousOffset = baseOffset;
+      this.startTimeNs = System.nanoTime();
+    }
+  }
+
+  private final DataChannelTransport transport;
+  private final ScheduledExecutorService executor;
+  private final BufferPool bufferPool = new BufferPool(MAX_MESSAGE_SIZE, MAX_POOLED_BUFFERS,
+      false /* direct */);
+  private BulkTransferEvents events;
+
+  // Executor thread state.
+  private final ArrayDeque<OutgoingTransfer> outgoing = new ArrayDeque<OutgoingTransfer>();
+  private final Map<Integer, IncomingTransfer> incoming = new HashMap<Integer, IncomingTransfer>();
+  private final Map<Integer, Long> completed = new LinkedHashMap<Integer, Long>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+      return size() > MAX_COMPLETED_TRANSFERS;
+    }
+  };
+  private final CRC32 crc = new CRC32();
+  private final ByteBuffer chunkBuffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+  // Whether |chunkBuffer| holds a chunk that the transport refused.
+  private boolean chunkPending;
+  private final ByteBuffer controlBuffer = ByteBuffer.allocate(HEADER_SIZE);
+  private boolean closed;
+
+  /**
+   * Creates an engine that sends through |transport|. It must also be registered as a handler
+   * for the messages of the channels opened by the remote peer, and as |transport|'s events.
+   */
+  public DataChannelBulkTransfer(DataChannelTransport transport,
+      ScheduledExecutorService executor, BulkTransferEvents events) {
+    this.transport = transport;
+    this.executor = executor;
+    this.events = events;
+  }
+
+  /** Replaces the event handler. Must be called on the executor thread. */
+  public void setEvents(BulkTransferEvents events) {
+    this.events = events;
+  }
+
+  /**
+   * Queues |source| for sending. Transfers are sent one after the other. Reusing the id of a
+   * transfer that did not complete lets the receiver resume it. Must be called on the executor
+   * thread.
+   */
+  public void send(int transferId, Source source) {
+    if (closed) {
+      events.onTransferError(transferId, "Bulk transfer is closed.");
+      return;
+    }
+    outgoing.addLast(new OutgoingTransfer(transferId, source));
+    if (outgoing.size() == 1) {
+      start(outgoing.peekFirst());
+    }
+  }
+
+  /** Abandons all transfers. Must be called on the executor thread. */
+  public void close() {
+    closed = true;
+    for (OutgoingTransfer transfer : outgoing) {
+      Log.d(TAG, "Abandoned transfer " + transfer.id + " at " + transfer.nextOffset);
+    }
+    outgoing.clear();
+    for (IncomingTransfer transfer : incoming.values()) {
+      Log.d(TAG, "Abandoned incoming transfer " + transfer.id + " at "
+              + transfer.contiguousOffset);
+      closeSink(transfer);
+    }
+    incoming.clear();
+  }
+
+  // DataChannelTransport.MessageHandler, invoked on the signaling thread.
+  @Override
+  public void onMessage(ByteBuffer data, boolean binary) {
+    if (!binary || data.remaining() < HEADER_SIZE || data.get(data.position()) != MAGIC) {
+      return;
+    }
+    if (data.remaining() > MAX_MESSAGE_SIZE) {
+      Log.e(TAG, "Dropped oversized message: " + data.remaining());
+      return;
+    }
+    final ByteBuffer message = bufferPool.acquire();
+    message.put(data);
+    message.flip();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (!closed) {
+            handleMessage(message);
+          }
+        } finally {
+          bufferPool.release(message);
+        }
+      }
+    });
+  }
+
+  // DataChannelTransport.TransportEvents, invoked on the signaling thread.
+  @Override
+  public void onStateChange(DataChannel.State state) {
+    if (state == DataChannel.State.OPEN) {
+      schedulePump();
+    }
+  }
+
+  @Override
+  public void onWritable() {
+    schedulePump();
+  }
+
+  private void schedulePump() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (!closed) {
+          pump();
+        }
+      }
+    });
+  }
+
+  private void handleMessage(ByteBuffer message) {
+    message.get(); // Magic.
+    byte type = message.get();
+    int transferId = message.getInt();
+    long offset = message.getLong();
+    switch (type) {
+      case TYPE_START:
+        onStart(transferId, offset);
+        break;
+      case TYPE_DATA:
+        onData(transferId, offset, message);
+        break;
+      case TYPE_END:
+        onEnd(transferId, offset);
+        break;
+      case TYPE_RESUME:
+        onResume(transferId, offset);
+        break;
+      case TYPE_DONE:
+        onDone(transferId);
+        break;
+      case TYPE_ABORT:
+        onAbort(transferId);
+        break;
+      default:
+        Log.e(TAG, "Unknown message type: " + type);
+    }
+  }
+
+  // Sender side.
+
+  private void start(OutgoingTransfer transfer) {
+    Log.d(TAG, "Starting transfer " + transfer.id + ", " + transfer.length + " bytes");
+    transfer.state = SendState.STARTING;
+    transfer.startTimeNs = System.nanoTime();
+    sendControl(TYPE_START, transfer.id, transfer.length);
+    armControlRetry(transfer);
+  }
+
+  private OutgoingTransfer activeTransfer(int transferId) {
+    OutgoingTransfer transfer = outgoing.peekFirst();
+    if (transfer == null || transfer.id != transferId || transfer.state == SendState.QUEUED) {
+      return null;
+    }
+    return transfer;
+  }
+
+  private void onResume(int transferId, long offset) {
+    OutgoingTransfer transfer = activeTransfer(transferId);
+    // While sending, a RESUME can only answer a repeated START.
+    if (transfer == null || transfer.state == SendState.SENDING) {
+      return;
+    }
+    if (offset < 0 || offset > transfer.length) {
+      failActive("Invalid resume offset: " + offset);
+      return;
+    }
+    if (transfer.state == SendState.ENDING) {
+      Log.d(TAG, "Resending transfer " + transferId + " from " + offset);
+    } else if (offset > 0) {
+      Log.d(TAG, "Resuming transfer " + transferId + " at " + offset);
+    }
+    transfer.state = SendState.SENDING;
+    transfer.nextOffset = offset;
+    ++transfer.controlSequence;
+    chunkPending = false;
+    pump();
+  }
+
+  private void onDone(int transferId) {
+    OutgoingTransfer transfer = activeTransfer(transferId);
+    if (transfer == null) {
+      return;
+    }
+    long elapsedMs = Math.max(1, (System.nanoTime() - transfer.startTimeNs) / 1000000);
+    Log.d(TAG, "Sent transfer " + transferId + ": " + transfer.length + " bytes in " + elapsedMs
+            + " ms (" + (transfer.length * 8 / elapsedMs) + " kbps), "
+            + transfer.bytesSent + " bytes on the wire");
+    outgoing.pollFirst();
+    chunkPending = false;
+    events.onSendComplete(transferId, transfer.length, elapsedMs);
+    startNext();
+  }
+
+  private void onAbort(int transferId) {
+    if (activeTransfer(transferId) != null) {
+      failActive("Transfer refused by the receiver.");
+    }
+  }
+
+  private void failActive(String description) {
+    OutgoingTransfer transfer = outgoing.pollFirst();
+    chunkPending = false;
+    Log.e(TAG, "Transfer " + transfer.id + " failed: " + description);
+    events.onTransferError(transfer.id, description);
+    startNext();
+  }
+
+  private void startNext() {
+    OutgoingTransfer next = outgoing.peekFirst();
+    if (next != null) {
+      start(next);
+    }
+  }
+
+  // Sends chunks until the transport refuses one or the transfer is fully sent.
+  private void pump() {
+    OutgoingTransfer transfer = outgoing.peekFirst();
+    if (transfer == null || transfer.state != SendState.SENDING) {
+      return;
+    }
+    while (transfer.nextOffset < transfer.length) {
+      if (!chunkPending) {
+        try {
+          fillChunk(transfer);
+        } catch (IOException e) {
+          failActive("Source read error: " + e.getMessage());
+          return;
+        }
+        chunkPending = true;
+      }
+      int chunkSize = chunkBuffer.remaining() - DATA_HEADER_SIZE;
+      if (!transport.send(chunkBuffer, true /* binary */)) {
+        // Resumed by onWritable() or onStateChange().
+        return;
+      }
+      chunkPending = false;
+      transfer.nextOffset += chunkSize;
+      transfer.bytesSent += chunkSize;
+    }
+    if (!sendControl(TYPE_END, transfer.id, transfer.length)) {
+      return;
+    }
+    transfer.state = SendState.ENDING;
+    armControlRetry(transfer);
+  }
+
+  private void fillChunk(OutgoingTransfer transfer) throws IOException {
+    int size = (int) Math.min(CHUNK_SIZE, transfer.length - transfer.nextOffset);
+    chunkBuffer.clear();
+    chunkBuffer.position(DATA_HEADER_SIZE);
+    chunkBuffer.limit(DATA_HEADER_SIZE + size);
+    while (chunkBuffer.hasRemaining()) {
+      int position = chunkBuffer.position();
+      transfer.source.read(
+          transfer.nextOffset + position - DATA_HEADER_SIZE, chunkBuffer);
+      if (chunkBuffer.position() == position) {
+        throw new IOException("Source ended at " + (transfer.nextOffset + position));
+      }
+    }
+    crc.reset();
+    crc.update(chunkBuffer.array(), chunkBuffer.arrayOffset() + DATA_HEADER_SIZE, size);
+    chunkBuffer.position(0);
+    chunkBuffer.put(MAGIC).put(TYPE_DATA).putInt(transfer.id).putLong(transfer.nextOffset);
+    chunkBuffer.putInt((int) crc.getValue());
+    chunkBuffer.position(0);
+  }
+
+  // Repeats the current START or END until it is answered.
+  private void armControlRetry(final OutgoingTransfer transfer) {
+    final int sequence = ++transfer.controlSequence;
+    transfer.controlRetries = 0;
+    executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (closed || outgoing.peekFirst() != transfer || transfer.controlSequence != sequence) {
+          return;
+        }
+        if (++transfer.controlRetries > MAX_CONTROL_RETRIES) {
+          failActive("No response from the receiver.");
+          return;
+        }
+        byte type = (transfer.state == SendState.STARTING) ? TYPE_START : TYPE_END;
+        sendControl(type, transfer.id, transfer.length);
+        executor.schedule(this, CONTROL_RETRY_MS, TimeUnit.MILLISECONDS);
+      }
+    }, CONTROL_RETRY_MS, TimeUnit.MILLISECONDS);
+  }
+
+  // Receiver side.
+
+  private void onStart(int transferId, long length) {
+    IncomingTransfer transfer = incoming.get(transferId);
+    if (transfer != null) {
+      // Our RESUME was lost.
+      sendControl(TYPE_RESUME, transferId, transfer.contiguousOffset);
+      return;
+    }
+    Sink sink = (length >= 0) ? events.onIncomingTransfer(transferId, length) : null;
+    if (sink == null) {
+      sendControl(TYPE_ABORT, transferId, 0);
+      return;
+    }
+    long baseOffset = Math.max(0, Math.min(length, sink.getResumeOffset()));
+    completed.remove(transferId);
+    transfer = new IncomingTransfer(transferId, sink, length, baseOffset);
+    incoming.put(transferId, transfer);
+    Log.d(TAG, "Receiving transfer " + transferId + ", " + length + " bytes from " + baseOffset);
+    sendControl(TYPE_RESUME, transferId, baseOffset);
+  }
+
+  private void onData(int transferId, long offset, ByteBuffer message) {
+    IncomingTransfer transfer = incoming.get(transferId);
+    if (transfer == null || message.remaining() < 4) {
+      return;
+    }
+    int expectedCrc = message.getInt();
+    int size = message.remaining();
+    long relativeOffset = offset - transfer.baseOffset;
+    if (relativeOffset < 0 || relativeOffset % CHUNK_SIZE != 0
+        || size != Math.min(CHUNK_SIZE, transfer.length - offset)) {
+      Log.e(TAG, "Dropped misplaced chunk at " + offset + " of transfer " + transferId);
+      return;
+    }
+    int index = (int) (relativeOffset / CHUNK_SIZE);
+    if (transfer.chunks.get(index)) {
+      return;
+    }
+    crc.reset();
+    crc.update(message.array(), message.arrayOffset() + message.position(), size);
+    if ((int) crc.getValue() != expectedCrc) {
+      // Requested again once END arrives.
+      ++transfer.crcErrors;
+      return;
+    }
+    try {
+      transfer.sink.write(offset, message);
+    } catch (IOException e) {
+      failIncoming(transfer, "Sink write error: " + e.getMessage());
+      return;
+    }
+    transfer.chunks.set(index);
+    transfer.bytesReceived += size;
+    while (transfer.contiguousOffset < transfer.length
+        && transfer.chunks.get((int) ((transfer.contiguousOffset - transfer.baseOffset)
+               / CHUNK_SIZE))) {
+      transfer.contiguousOffset =
+          Math.min(transfer.length, transfer.contiguousOffset + CHUNK_SIZE);
+    }
+    if (transfer.contiguousOffset == transfer.length) {
+      completeIncoming(transfer);
+    }
+  }
+
+  private void onEnd(int transferId, long length) {
+    IncomingTransfer transfer = incoming.get(transferId);
+    if (transfer == null) {
+      Long completedLength = completed.get(transferId);
+      if (completedLength != null) {
+        // Our DONE was lost.
+        sendControl(TYPE_DONE, transferId, completedLength);
+      }
+      return;
+    }
+    if (transfer.contiguousOffset == transfer.length) {
+      completeIncoming(transfer);
+    } else {
+      sendControl(TYPE_RESUME, transferId, transfer.contiguousOffset);
+    }
+  }
+
+  private void completeIncoming(IncomingTransfer transfer) {
+    incoming.remove(transfer.id);
+    completed.put(transfer.id, transfer.length);
+    sendControl(TYPE_DONE, transfer.id, transfer.length);
+    closeSink(transfer);
+    long elapsedMs = Math.max(1, (System.nanoTime() - transfer.startTimeNs) / 1000000);
+    Log.d(TAG, "Received transfer " + transfer.id + ": " + transfer.bytesReceived + " bytes in "
+            + elapsedMs + " ms (" + (transfer.bytesReceived * 8 / elapsedMs) + " kbps), "
+            + transfer.crcErrors + " CRC errors");
+    events.onReceiveComplete(transfer.id, transfer.length, elapsedMs);
+  }
+
+  private void failIncoming(IncomingTransfer transfer, String description) {
+    incoming.remove(transfer.id);
+    sendControl(TYPE_ABORT, transfer.id, 0);
+    closeSink(transfer);
+    Log.e(TAG, "Incoming transfer " + transfer.id + " failed: " + description);
+    events.onTransferError(transfer.id, description);
+  }
+
+  private void closeSink(IncomingTransfer transfer) {
+    try {
+      transfer.sink.close(transfer.contiguousOffset);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close sink of transfer " + transfer.id, e);
+    }
+  }
+
+  // Control messages that the transport refuses are recovered by the sender's retries.
+  private boolean sendControl(byte type, int transferId, long offset) {
+    controlBuffer.clear();
+    controlBuffer.put(MAGIC).put(type).putInt(transferId).putLong(offset);
+    controlBuffer.flip();
+    return transport.send(controlBuffer, true /* binary */);
+  }
+
+  /** Returns a source that reads |channel| from its start. */
+  public static Source fileSource(final FileChannel channel) throws IOException {
+    final long length = channel.size();
+    return new Source() {
+      @Override
+      public long length() {
+        return length;
+      }
+
+      @Override
+      public void read(long offset, ByteBuffer dst) throws IOException {
+        channel.read(dst, offset);
+      }
+    };
+  }
+
+  /**
+   * Returns a sink that writes to |channel| at the transfer's offsets and resumes after the
+   * bytes it already holds. The channel is truncated to the complete bytes and closed with the
+   * sink.
+   */
+  public static Sink fileSink(final FileChannel channel) {
+    return new Sink() {
+      @Override
+      public long getResumeOffset() {
+        try {
+          return channel.size();
+        } catch (IOException e) {
+          return 0;
+        }
+      }
+
+      @Override
+      public void write(long offset, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+          offset += channel.write(data, offset);
+        }
+      }
+
+      @Override
+      public void close(long completeLength) throws IOException {
+        try {
+          channel.truncate(completeLength);
+        } finally {
+          channel.close();
+        }
+      }
+    };
+  }
+
+  /** Returns a source of |length| generated bytes, for throughput tests. */
+  public static Source syntheticSource(final long length) {
+    return new Source() {
+      @Override
+      public long length() {
+        return length;
+      }
+
+      @Override
+      public void read(long offset, ByteBuffer dst) {
+        while (dst.hasRemaining()) {
+          dst.put((byte) offset++);
+        }
+      }
+    };
+  }
+
+  /** Returns a sink that drops the data, for throughput tests. */
+  public static Sink discardingSink() {
+    return new Sink() {
+      @Override
+      public long getResumeOffset() {
+        return 0;
+      }
+
+      @Override
+      public void write(long offset, ByteBuffer data) {
+        data.position(data.limit());
+      }
+
+      @Override
+      public void close(long completeLength) {}
+    };
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.webrtc.DataChannel;
+
+/**
+ * Receives and sends the messages of one DataChannel.
+ *
+ * <p>Received messages are handed to a MessageHandler as a view of the native buffer, without
+ * copying. Text messages can be decoded with a TextMessageHandler, which reuses its CharBuffer
+ * across messages.
+ *
+ * <p>send() applies backpressure: it refuses a message once bufferedAmount() would exceed the
+ * high watermark, and TransportEvents.onWritable() fires when the buffered amount has drained
+ * to the low watermark again. This keeps producers from overflowing the SCTP send buffer,
+ * which closes the channel.
+ *
+ * <p>Handlers and events are invoked on the WebRTC signaling thread. send() and sendText() may
+ * be called from any thread. No lock is held across calls into the native channel, whose
+ * observer callbacks run on the signaling thread.
+ */
+public class DataChannelTransport implements DataChannel.Observer {
+  private static final String TAG = "DataChannelTransport";
+  public static final long DEFAULT_LOW_WATERMARK = 256 * 1024;
+  public static final long DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Callback interface for received messages.
+   */
+  public interface MessageHandler {
+    /**
+     * Called for each received message. The payload is between the position and the limit of
+     * |data|. |data| wraps native memory and is only valid for the duration of the call.
+     */
+    void onMessage(ByteBuffer data, boolean binary);
+  }
+
+  /**
+   * Callback interface for channel events.
+   */
+  public interface TransportEvents {
+    void onStateChange(DataChannel.State state);
+
+    /** Called when the buffered amount drained to the low watermark after send() refused. */
+    void onWritable();
+  }
+
+  /**
+   * MessageHandler that decodes text messages as UTF-8. The decoded text is only valid for the
+   * duration of onTextMessage(), the buffer behind it is reused for the next message.
+   */
+  public abstract static class TextMessageHandler implements MessageHandler {
+    private final CharsetDecoder decoder = UTF_8.newDecoder()
+                                               .onMalformedInput(CodingErrorAction.REPLACE)
+                                               .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer text = CharBuffer.allocate(256);
+
+    public abstract void onTextMessage(CharBuffer text);
+
+    /** Called for binary messages. Drops them by default. */
+    public void onBinaryMessage(ByteBuffer data) {}
+
+    @Override
+    public void onMessage(ByteBuffer data, boolean binary) {
+      if (binary) {
+        onBinaryMessage(data);
+        return;
+      }
+      // UTF-8 never decodes to more chars than it has bytes.
+      if (text.capacity() < data.remaining()) {
+        text = CharBuffer.allocate(Math.max(data.remaining(), 2 * text.capacity()));
+      }
+      text.clear();
+      decoder.reset();
+      decoder.decode(data, text, true);
+      decoder.flush(text);
+      text.flip();
+      onTextMessage(text);
+    }
+  }
+
+  /**
+   * MessageHandler that forwards each message to a changing set of handlers. Every handler
+   * sees the whole payload, whatever the previous one consumed.
+   */
+  public static class HandlerList implements MessageHandler {
+    private volatile MessageHandler[] handlers = new MessageHandler[0];
+
+    public synchronized void add(MessageHandler handler) {
+      MessageHandler[] newHandlers = new MessageHandler[handlers.length + 1];
+      System.arraycopy(handlers, 0, newHandlers, 0, handlers.length);
+      newHandlers[handlers.length] = handler;
+      handlers = newHandlers;
+    }
+
+    public synchronized void remove(MessageHandler handler) {
+      for (int i = 0; i < handlers.length; ++i) {
+        if (handlers[i] == handler) {
+          MessageHandler[] newHandlers = new MessageHandler[handlers.length - 1];
+          System.arraycopy(handlers, 0, newHandlers, 0, i);
+          System.arraycopy(handlers, i + 1, newHandlers, i, handlers.length - i - 1);
+          handlers = newHandlers;
+          return;
+        }
+      }
+    }
+
+    @Override
+    public void onMessage(ByteBuffer data, boolean binary) {
+      MessageHandler[] current = handlers;
+      int position = data.position();
+      int limit = data.limit();
+      for (MessageHandler handler : current) {
+        data.limit(limit).position(position);
+        handler.onMessage(data, binary);
+      }
+    }
+  }
+
+  private final DataChannel dataChannel;
+  private final MessageHandler handler;
+  private final long lowWatermark;
+  private final long highWatermark;
+  private volatile TransportEvents events;
+
+  // Send side. The sendText() call that takes |encoderBusy| owns the shared encoder and buffer
+  // until its message is sent; concurrent calls encode into a buffer of their own.
+  private final AtomicBoolean encoderBusy = new AtomicBoolean();
+  private final CharsetEncoder encoder = newEncoder();
+  private ByteBuffer encodeBuffer = ByteBuffer.allocate(256);
+  private final AtomicBoolean writeBlocked = new AtomicBoolean();
+  private final AtomicInteger messagesSent = new AtomicInteger();
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicInteger sendsRefused = new AtomicInteger();
+
+  // Receive side, only touched on the signaling thread.
+  private int messagesReceived;
+  private long bytesReceived;
+
+  public DataChannelTransport(DataChannel dataChannel, MessageHandler handler) {
+    this(dataChannel, handler, DEFAULT_LOW_WATERMARK, DEFAULT_HIGH_WATERMARK);
+  }
+
+  /**
+   * Starts observing |dataChannel|.
+   *
+   * @param lowWatermark Buffered amount at which a refused sender is told to resume.
+   * @param highWatermark Buffered amount above which send() refuses messages.
+   */
+  public DataChannelTransport(
+      DataChannel dataChannel, MessageHandler handler, long lowWatermark, long highWatermark) {
+    if (lowWatermark > highWatermark) {
+      throw new IllegalArgumentException("Low watermark above high watermark.");
+    }
+    this.dataChannel = dataChannel;
+    this.handler = handler;
+    this.lowWatermark = lowWatermark;
+    this.highWatermark = highWatermark;
+    dataChannel.registerObserver(this);
+  }
+
+  public void setEvents(TransportEvents events) {
+    this.events = events;
+  }
+
+  public DataChannel getDataChannel() {
+    return dataChannel;
+  }
+
+  /**
+   * Sends the bytes between the position and the limit of |data| and advances its position.
+   * Returns false, leaving |data| untouched, if the channel is not open or if the message
+   * would push the buffered amount over the high watermark. In the latter case onWritable()
+   * follows once the channel has drained. A message is always accepted by an empty channel,
+   * however large.
+   */
+  public boolean send(ByteBuffer data, boolean binary) {
+    if (dataChannel.state() != DataChannel.State.OPEN) {
+      return false;
+    }
+    int size = data.remaining();
+    long bufferedAmount = dataChannel.bufferedAmount();
+    while (bufferedAmount > 0 && bufferedAmount + size > highWatermark) {
+      writeBlocked.set(true);
+      // The channel may have drained before the flag was set, unseen by
+      // onBufferedAmountChange(). If so, take the flag back and try again.
+      bufferedAmount = dataChannel.bufferedAmount();
+      if (bufferedAmount > lowWatermark || !writeBlocked.compareAndSet(true, false)) {
+        sendsRefused.incrementAndGet();
+        return false;
+      }
+    }
+    int position = data.position();
+    if (!dataChannel.send(new DataChannel.Buffer(data, binary))) {
+      data.position(position);
+      return false;
+    }
+    messagesSent.incrementAndGet();
+    bytesSent.addAndGet(size);
+    return true;
+  }
+
+  /** Sends |text| as a UTF-8 text message. See send() for the return value. */
+  public boolean sendText(CharSequence text) {
+    if (!encoderBusy.compareAndSet(false, true)) {
+      return send(encode(text, newEncoder(), null), false /* binary */);
+    }
+    try {
+      encodeBuffer = encode(text, encoder, encodeBuffer);
+      return send(encodeBuffer, false /* binary */);
+    } finally {
+      encoderBusy.set(false);
+    }
+  }
+
+  private static CharsetEncoder newEncoder() {
+    return UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  // Encodes |text| into |buffer|, or into a larger one if it does not fit, and returns it flipped.
+  private static ByteBuffer encode(CharSequence text, CharsetEncoder encoder, ByteBuffer buffer) {
+    int maxSize = (int) Math.ceil(text.length() * encoder.maxBytesPerChar());
+    if (buffer == null || buffer.capacity() < maxSize) {
+      buffer = ByteBuffer.allocate(Math.max(maxSize, buffer == null ? 0 : 2 * buffer.capacity()));
+    }
+    buffer.clear();
+    encoder.reset();
+    encoder.encode(CharBuffer.wrap(text), buffer, true);
+    encoder.flush(buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  /** Stops observing the channel and releases it. */
+  public void dispose() {
+    Log.d(TAG, "Closing data channel " + dataChannel.label() + ": " + this);
+    dataChannel.unregisterObserver();
+    dataChannel.dispose();
+  }
+
+  @Override
+  public void onBufferedAmountChange(long previousAmount) {
+    if (!writeBlocked.get() || dataChannel.bufferedAmount() > lowWatermark
+        || !writeBlocked.compareAndSet(true, false)) {
+      return;
+    }
+    TransportEvents currentEvents = events;
+    if (currentEvents != null) {
+      currentEvents.onWritable();
+    }
+  }
+
+  @Override
+  public void onStateChange() {
+    DataChannel.State state = dataChannel.state();
+    Log.d(TAG, "Data channel state changed: " + dataChannel.label() + ": " + state);
+    TransportEvents currentEvents = events;
+    if (currentEvents != null) {
+      currentEvents.onStateChange(state);
+    }
+  }
+
+  @Override
+  public void onMessage(DataChannel.Buffer buffer) {
+    ++messagesReceived;
+    bytesReceived += buffer.data.remaining();
+    handler.onMessage(buffer.data, buffer.binary);
+  }
+
+  @Override
+  public String toString() {
+    return "received " + messagesReceived + " messages (" + bytesReceived + " bytes), sent "
+        + messagesSent.get() + " messages (" + bytesSent.get() + " bytes), " + sendsRefused.get()
+        + " sends refused";
+  }
+}
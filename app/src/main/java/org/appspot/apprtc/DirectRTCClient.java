@@ -12,23 +12,30 @@ package org.appspot.apprtc;
 
 import android.util.Log;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.webrtc.IceCandidate;
 import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
 
 /**
  * Implementation of AppRTCClient that uses direct TCP connection as the signaling channel.
  * This eliminates the need for an external server. This class does not support loopback
  * connections.
+ *
+ * <p>Messages are JSON text. With binary signaling enabled and a framed connection, both sides
+ * send a hello announcing the BinarySignalingCodec version they decode as soon as the connection
+ * is established, and each side switches to binary messages once it received the hello of the
+ * other. Peers that send no hello keep getting JSON.
  */
 public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChannelEvents {
   private static final String TAG = "DirectRTCClient";
@@ -52,9 +59,20 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
       + "(:(\\d+))?");
 
   private final ExecutorService executor;
+  private final TCPEventLoop eventLoop;
+  // False if |executor| is a shared event loop that must outlive this client.
+  private final boolean ownsExecutor;
   private final SignalingEvents events;
+  private final boolean useFraming;
+  // Null unless binary signaling is enabled.
+  private final BinarySignalingCodec binaryCodec;
+  // True once the peer announced that it decodes binary messages.
+  private boolean sendBinary;
   private TCPChannelClient tcpClient;
+  private IceCandidateBatcher candidateBatcher;
   private RoomConnectionParameters connectionParameters;
+  // Encodes outgoing and decodes incoming signaling messages on |executor|.
+  private final SignalingCodec codec = new SignalingCodec();
 
   private enum ConnectionState { NEW, CONNECTED, CLOSED, ERROR }
 
@@ -62,9 +80,47 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
   private ConnectionState roomState;
 
   public DirectRTCClient(SignalingEvents events) {
+    this(events, false /* useFraming */);
+  }
+
+  /**
+   * @param useFraming Whether to negotiate length-prefixed framing on the TCP connection. Falls
+   *     back to the line protocol if the connecting peer does not ask for it.
+   */
+  public DirectRTCClient(SignalingEvents events, boolean useFraming) {
+    this(events, useFraming, false /* useBinarySignaling */);
+  }
+
+  /**
+   * @param useFraming Whether to negotiate length-prefixed framing on the TCP connection.
+   * @param useBinarySignaling Whether to offer binary messages to the peer, see
+   *     BinarySignalingCodec. Binary messages need framing, so this implies |useFraming|.
+   */
+  public DirectRTCClient(
+      SignalingEvents events, boolean useFraming, boolean useBinarySignaling) {
+    this.events = events;
+    this.useFraming = useFraming || useBinarySignaling;
+    binaryCodec = useBinarySignaling ? new BinarySignalingCodec() : null;
+
+    executor = Executors.newSingleThreadScheduledExecutor();
+    eventLoop = TCPEventLoop.getDefault();
+    ownsExecutor = true;
+    roomState = ConnectionState.NEW;
+  }
+
+  /**
+   * Creates a client that runs entirely on |eventLoop|, which can be shared by many clients. All
+   * events, including SignalingEvents, are then dispatched on the loop thread without any thread
+   * hop, so they must not block.
+   */
+  public DirectRTCClient(SignalingEvents events, boolean useFraming, TCPEventLoop eventLoop) {
     this.events = events;
+    this.useFraming = useFraming;
+    binaryCodec = null;
 
-    executor = Executors.newSingleThreadExecutor();
+    executor = eventLoop;
+    this.eventLoop = eventLoop;
+    ownsExecutor = false;
     roomState = ConnectionState.NEW;
   }
 
@@ -105,6 +161,31 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
    */
   private void connectToRoomInternal() {
     this.roomState = ConnectionState.NEW;
+    candidateBatcher = new IceCandidateBatcher(connectionParameters.iceCandidateBatchWindowMs,
+        IceCandidateBatcher.DEFAULT_MAX_BATCH_SIZE, new IceCandidateBatcher.BatcherEvents() {
+          @Override
+          public void onSendCandidates(List<IceCandidate> candidates) {
+            if (roomState != ConnectionState.CONNECTED) {
+              reportError("Sending ICE candidate in non connected state.");
+              return;
+            }
+            if (sendBinary) {
+              sendMessage(binaryCodec.encodeCandidates(candidates));
+            } else {
+              sendMessage(codec.encodeCandidates(candidates));
+            }
+          }
+
+          @Override
+          public void onScheduleFlush(Runnable flushTask, long delayMs) {
+            if (executor instanceof ScheduledExecutorService) {
+              ((ScheduledExecutorService) executor)
+                  .schedule(flushTask, delayMs, TimeUnit.MILLISECONDS);
+            } else {
+              eventLoop.schedule(flushTask, delayMs);
+            }
+          }
+        });
 
     String endpoint = connectionParameters.roomId;
 
@@ -129,7 +210,7 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
       port = DEFAULT_PORT;
     }
 
-    tcpClient = new TCPChannelClient(executor, this, ip, port);
+    tcpClient = new TCPChannelClient(executor, this, ip, port, useFraming, eventLoop);
   }
 
   /**
@@ -140,11 +221,21 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
   private void disconnectFromRoomInternal() {
     roomState = ConnectionState.CLOSED;
 
+    if (candidateBatcher != null) {
+      candidateBatcher.clear();
+      Log.d(TAG, "ICE candidates sent: " + candidateBatcher);
+    }
+    if (binaryCodec != null) {
+      Log.d(TAG, "Binary signaling sent: " + binaryCodec);
+    }
+
     if (tcpClient != null) {
       tcpClient.disconnect();
       tcpClient = null;
     }
-    executor.shutdown();
+    if (ownsExecutor) {
+      executor.shutdown();
+    }
   }
 
   @Override
@@ -156,10 +247,12 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
           reportError("Sending offer SDP in non connected state.");
           return;
         }
-        JSONObject json = new JSONObject();
-        jsonPut(json, "sdp", sdp.description);
-        jsonPut(json, "type", "offer");
-        sendMessage(json.toString());
+        candidateBatcher.flush();
+        if (sendBinary) {
+          sendMessage(binaryCodec.encodeSdp(SignalingCodec.TYPE_OFFER, sdp.description));
+        } else {
+          sendMessage(codec.encodeSdp(SignalingCodec.TYPE_OFFER, sdp.description));
+        }
       }
     });
   }
@@ -169,10 +262,12 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "sdp", sdp.description);
-        jsonPut(json, "type", "answer");
-        sendMessage(json.toString());
+        candidateBatcher.flush();
+        if (sendBinary) {
+          sendMessage(binaryCodec.encodeSdp(SignalingCodec.TYPE_ANSWER, sdp.description));
+        } else {
+          sendMessage(codec.encodeSdp(SignalingCodec.TYPE_ANSWER, sdp.description));
+        }
       }
     });
   }
@@ -182,17 +277,11 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "type", "candidate");
-        jsonPut(json, "label", candidate.sdpMLineIndex);
-        jsonPut(json, "id", candidate.sdpMid);
-        jsonPut(json, "candidate", candidate.sdp);
-
         if (roomState != ConnectionState.CONNECTED) {
           reportError("Sending ICE candidate in non connected state.");
           return;
         }
-        sendMessage(json.toString());
+        candidateBatcher.add(candidate);
       }
     });
   }
@@ -203,19 +292,16 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "type", "remove-candidates");
-        JSONArray jsonArray = new JSONArray();
-        for (final IceCandidate candidate : candidates) {
-          jsonArray.put(toJsonCandidate(candidate));
-        }
-        jsonPut(json, "candidates", jsonArray);
-
         if (roomState != ConnectionState.CONNECTED) {
           reportError("Sending ICE candidate removals in non connected state.");
           return;
         }
-        sendMessage(json.toString());
+        candidateBatcher.flush();
+        if (sendBinary) {
+          sendMessage(binaryCodec.encodeRemoveCandidates(candidates));
+        } else {
+          sendMessage(codec.encodeRemoveCandidates(candidates));
+        }
       }
     });
   }
@@ -228,6 +314,10 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
    */
   @Override
   public void onTCPConnected(boolean isServer) {
+    sendBinary = false;
+    if (binaryCodec != null && tcpClient != null && tcpClient.isFramed()) {
+      tcpClient.send(codec.encodeHello(BinarySignalingCodec.VERSION));
+    }
     if (isServer) {
       roomState = ConnectionState.CONNECTED;
 
@@ -248,45 +338,65 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
   @Override
   public void onTCPMessage(String msg) {
     try {
-      JSONObject json = new JSONObject(msg);
-      String type = json.optString("type");
-      if (type.equals("candidate")) {
-        events.onRemoteIceCandidate(toJavaCandidate(json));
-      } else if (type.equals("remove-candidates")) {
-        JSONArray candidateArray = json.getJSONArray("candidates");
-        IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
-        for (int i = 0; i < candidateArray.length(); ++i) {
-          candidates[i] = toJavaCandidate(candidateArray.getJSONObject(i));
-        }
-        events.onRemoteIceCandidatesRemoved(candidates);
-      } else if (type.equals("answer")) {
-        SessionDescription sdp = new SessionDescription(
-            SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
-        events.onRemoteDescription(sdp);
-      } else if (type.equals("offer")) {
-        SessionDescription sdp = new SessionDescription(
-            SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
-
-        SignalingParameters parameters = new SignalingParameters(
-            // Ice servers are not needed for direct connections.
-            new LinkedList<PeerConnection.IceServer>(),
-            false, // This code will only be run on the client side. So, we are not the initiator.
-            null, // clientId
-            null, // wssUrl
-            null, // wssPostUrl
-            sdp, // offerSdp
-            null // iceCandidates
-            );
-        roomState = ConnectionState.CONNECTED;
-        events.onConnectedToRoom(parameters);
-      } else {
-        reportError("Unexpected TCP message: " + msg);
-      }
+      onMessage(codec.decode(msg), msg);
     } catch (JSONException e) {
       reportError("TCP message JSON parsing error: " + e.toString());
     }
   }
 
+  @Override
+  public void onTCPBinaryMessage(byte[] msg) {
+    if (binaryCodec == null) {
+      reportError("Unexpected binary TCP message.");
+      return;
+    }
+    try {
+      onMessage(binaryCodec.decode(msg), msg.length + " bytes");
+    } catch (DataFormatException e) {
+      reportError("TCP message binary decoding error: " + e.toString());
+    }
+  }
+
+  // Fires the |events| callback matching a decoded message. |description| stands for the
+  // message in errors.
+  private void onMessage(SignalingCodec.Message message, String description) {
+    String type = message.type;
+    if (type.equals(SignalingCodec.TYPE_CANDIDATE)
+        || type.equals(SignalingCodec.TYPE_CANDIDATES)) {
+      for (IceCandidate candidate : message.candidates) {
+        events.onRemoteIceCandidate(candidate);
+      }
+    } else if (type.equals(SignalingCodec.TYPE_REMOVE_CANDIDATES)) {
+      events.onRemoteIceCandidatesRemoved(message.getCandidates());
+    } else if (type.equals(SignalingCodec.TYPE_ANSWER)) {
+      SessionDescription sdp = new SessionDescription(
+          SessionDescription.Type.fromCanonicalForm(type), message.sdp);
+      events.onRemoteDescription(sdp);
+    } else if (type.equals(SignalingCodec.TYPE_OFFER)) {
+      SessionDescription sdp = new SessionDescription(
+          SessionDescription.Type.fromCanonicalForm(type), message.sdp);
+
+      SignalingParameters parameters = new SignalingParameters(
+          // Ice servers are not needed for direct connections.
+          new LinkedList<PeerConnection.IceServer>(),
+          false, // This code will only be run on the client side. So, we are not the initiator.
+          null, // clientId
+          null, // wssUrl
+          null, // wssPostUrl
+          sdp, // offerSdp
+          null // iceCandidates
+          );
+      roomState = ConnectionState.CONNECTED;
+      events.onConnectedToRoom(parameters);
+    } else if (type.equals(SignalingCodec.TYPE_HELLO)) {
+      sendBinary = binaryCodec != null && message.binaryVersion >= BinarySignalingCodec.VERSION
+          && tcpClient != null && tcpClient.isFramed();
+      Log.d(TAG, "Peer hello, binary signaling: " + sendBinary);
+    } else {
+      reportError("Unexpected TCP message: " + description);
+    }
+  }
+
   @Override
   public void onTCPError(String description) {
     reportError("TCP connection error: " + description);
@@ -321,27 +431,12 @@ public class DirectRTCClient implements AppRTCClient, TCPChannelClient.TCPChanne
     });
   }
 
-  // Put a |key|->|value| mapping in |json|.
-  private static void jsonPut(JSONObject json, String key, Object value) {
-    try {
-      json.put(key, value);
-    } catch (JSONException e) {
-      throw new RuntimeException(e);
-    }
-  }
-
-  // Converts a Java candidate to a JSONObject.
-  private static JSONObject toJsonCandidate(final IceCandidate candidate) {
-    JSONObject json = new JSONObject();
-    jsonPut(json, "label", candidate.sdpMLineIndex);
-    jsonPut(json, "id", candidate.sdpMid);
-    jsonPut(json, "candidate", candidate.sdp);
-    return json;
-  }
-
-  // Converts a JSON candidate to a Java object.
-  private static IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
-    return new IceCandidate(
-        json.getString("id"), json.getInt("label"), json.getString("candidate"));
+  private void sendMessage(final byte[] message) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        tcpClient.send(message);
+      }
+    });
   }
 }
@@ -0,0 +1,59 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.Random;
+
+/**
+ * Delays between the attempts of a retried operation, doubling from an initial delay up to a
+ * maximum. Each delay is drawn between half and all of its nominal value, so that clients that
+ * lost the same network or server do not all retry at the same time.
+ *
+ * <p>Not thread safe.
+ */
+final class ExponentialBackoff {
+  private final long initialDelayMs;
+  private final long maxDelayMs;
+  private final int maxAttempts;
+  private final Random random = new Random();
+  private int attempts;
+
+  /** Creates a backoff that allows |maxAttempts| attempts. */
+  ExponentialBackoff(long initialDelayMs, long maxDelayMs, int maxAttempts) {
+    this.initialDelayMs = initialDelayMs;
+    this.maxDelayMs = maxDelayMs;
+    this.maxAttempts = maxAttempts;
+  }
+
+  /** Returns the delay before the next attempt and counts it, or -1 if no attempt is left. */
+  long nextDelayMs() {
+    if (attempts >= maxAttempts) {
+      return -1;
+    }
+    long delayMs = maxDelayMs;
+    if (attempts < 30 && (initialDelayMs << attempts) < maxDelayMs) {
+      delayMs = initialDelayMs << attempts;
+    }
+    ++attempts;
+    long half = delayMs / 2;
+    return half + (long) (random.nextDouble() * (delayMs - half));
+  }
+
+  /** Returns the number of attempts since the last reset(). */
+  int getAttempts() {
+    return attempts;
+  }
+
+  /** Starts over from the initial delay, after a success. */
+  void reset() {
+    attempts = 0;
+  }
+}
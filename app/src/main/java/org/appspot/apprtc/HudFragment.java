@@ -19,11 +19,6 @@ import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.TextView;
 
-import org.webrtc.StatsReport;
-
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Fragment for HUD statistics display.
  */
@@ -34,10 +29,13 @@ public class HudFragment extends Fragment {
   private TextView hudViewConnection;
   private TextView hudViewVideoSend;
   private TextView hudViewVideoRecv;
+  private TextView hudViewSignaling;
   private ImageButton toggleDebugButton;
   private boolean videoCallEnabled;
   private boolean displayHud;
   private volatile boolean isRunning;
+  // Set when stats updates were skipped, so that the next one refreshes every view.
+  private boolean viewsStale = true;
   private CpuMonitor cpuMonitor;
 
   @Override
@@ -51,6 +49,7 @@ public class HudFragment extends Fragment {
     hudViewConnection = (TextView) controlView.findViewById(R.id.hud_stat_connection);
     hudViewVideoSend = (TextView) controlView.findViewById(R.id.hud_stat_video_send);
     hudViewVideoRecv = (TextView) controlView.findViewById(R.id.hud_stat_video_recv);
+    hudViewSignaling = (TextView) controlView.findViewById(R.id.hud_stat_signaling);
     toggleDebugButton = (ImageButton) controlView.findViewById(R.id.button_toggle_debug);
 
     toggleDebugButton.setOnClickListener(new View.OnClickListener() {
@@ -98,97 +97,37 @@ public class HudFragment extends Fragment {
     hudViewConnection.setVisibility(visibility);
     hudViewVideoSend.setVisibility(visibility);
     hudViewVideoRecv.setVisibility(visibility);
+    hudViewSignaling.setVisibility(visibility);
     hudViewBwe.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
     hudViewConnection.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
     hudViewVideoSend.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
     hudViewVideoRecv.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
+    hudViewSignaling.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
   }
 
-  private Map<String, String> getReportMap(StatsReport report) {
-    Map<String, String> reportMap = new HashMap<String, String>();
-    for (StatsReport.Value value : report.values) {
-      reportMap.put(value.name, value.value);
-    }
-    return reportMap;
-  }
-
-  public void updateEncoderStatistics(final StatsReport[] reports) {
+  public void updateEncoderStatistics(final HudStatsFormatter.HudStats stats) {
     if (!isRunning || !displayHud) {
+      viewsStale = true;
       return;
     }
     StringBuilder encoderStat = new StringBuilder(128);
-    StringBuilder bweStat = new StringBuilder();
-    StringBuilder connectionStat = new StringBuilder();
-    StringBuilder videoSendStat = new StringBuilder();
-    StringBuilder videoRecvStat = new StringBuilder();
-    String fps = null;
-    String targetBitrate = null;
-    String actualBitrate = null;
-
-    for (StatsReport report : reports) {
-      if (report.type.equals("ssrc") && report.id.contains("ssrc") && report.id.contains("send")) {
-        // Send video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String trackId = reportMap.get("googTrackId");
-        if (trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID)) {
-          fps = reportMap.get("googFrameRateSent");
-          videoSendStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoSendStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.type.equals("ssrc") && report.id.contains("ssrc")
-          && report.id.contains("recv")) {
-        // Receive video statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        // Check if this stat is for video track.
-        String frameWidth = reportMap.get("googFrameWidthReceived");
-        if (frameWidth != null) {
-          videoRecvStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            videoRecvStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      } else if (report.id.equals("bweforvideo")) {
-        // BWE statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        targetBitrate = reportMap.get("googTargetEncBitrate");
-        actualBitrate = reportMap.get("googActualEncBitrate");
-
-        bweStat.append(report.id).append("\n");
-        for (StatsReport.Value value : report.values) {
-          String name = value.name.replace("goog", "").replace("Available", "");
-          bweStat.append(name).append("=").append(value.value).append("\n");
-        }
-      } else if (report.type.equals("googCandidatePair")) {
-        // Connection statistics.
-        Map<String, String> reportMap = getReportMap(report);
-        String activeConnection = reportMap.get("googActiveConnection");
-        if (activeConnection != null && activeConnection.equals("true")) {
-          connectionStat.append(report.id).append("\n");
-          for (StatsReport.Value value : report.values) {
-            String name = value.name.replace("goog", "");
-            connectionStat.append(name).append("=").append(value.value).append("\n");
-          }
-        }
-      }
-    }
-    hudViewBwe.setText(bweStat.toString());
-    hudViewConnection.setText(connectionStat.toString());
-    hudViewVideoSend.setText(videoSendStat.toString());
-    hudViewVideoRecv.setText(videoRecvStat.toString());
+
+    updateSection(hudViewBwe, stats, StatsSnapshot.SECTION_BWE);
+    updateSection(hudViewConnection, stats, StatsSnapshot.SECTION_CANDIDATE_PAIR);
+    updateSection(hudViewVideoSend, stats, StatsSnapshot.SECTION_VIDEO_SEND);
+    updateSection(hudViewVideoRecv, stats, StatsSnapshot.SECTION_VIDEO_RECV);
+    updateSection(hudViewSignaling, stats, StatsSnapshot.SECTION_SIGNALING);
+    viewsStale = false;
 
     if (videoCallEnabled) {
-      if (fps != null) {
-        encoderStat.append("Fps:  ").append(fps).append("\n");
+      if (stats.fps != null) {
+        encoderStat.append("Fps:  ").append(stats.fps).append("\n");
       }
-      if (targetBitrate != null) {
-        encoderStat.append("Target BR: ").append(targetBitrate).append("\n");
+      if (stats.targetBitrate != null) {
+        encoderStat.append("Target BR: ").append(stats.targetBitrate).append("\n");
       }
-      if (actualBitrate != null) {
-        encoderStat.append("Actual BR: ").append(actualBitrate).append("\n");
+      if (stats.actualBitrate != null) {
+        encoderStat.append("Actual BR: ").append(stats.actualBitrate).append("\n");
       }
     }
 
@@ -199,7 +138,17 @@ public class HudFragment extends Fragment {
           .append(cpuMonitor.getCpuUsageAverage())
           .append(". Freq: ")
           .append(cpuMonitor.getFrequencyScaleAverage());
+      String threads = cpuMonitor.getThreadGroupSummary();
+      if (!threads.isEmpty()) {
+        encoderStat.append("\nThreads%: ").append(threads);
+      }
     }
     encoderStatView.setText(encoderStat.toString());
   }
+
+  private void updateSection(TextView view, HudStatsFormatter.HudStats stats, int section) {
+    if (viewsStale || stats.isChanged(section)) {
+      view.setText(stats.sectionTexts[section]);
+    }
+  }
 }
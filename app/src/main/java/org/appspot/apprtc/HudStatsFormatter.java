@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Turns a StatsSnapshot into the text shown by HudFragment.
+ *
+ * <p>Only the sections changed by the last StatsSnapshot.update() are formatted again, the
+ * text of the others is reused. Kept separate from the fragment and free of view references so
+ * that it runs on the stats thread and can be driven off-device by the benchmarks module. Not
+ * thread safe.
+ */
+class HudStatsFormatter {
+  /**
+   * HUD text for one stats period.
+   */
+  static class HudStats {
+    // Indexed by StatsSnapshot section.
+    final String[] sectionTexts = new String[StatsSnapshot.SECTION_COUNT];
+    // Bitmask of the sections whose text changed since the previous period.
+    int changedSections;
+    String fps;
+    String targetBitrate;
+    String actualBitrate;
+
+    boolean isChanged(int section) {
+      return (changedSections & (1 << section)) != 0;
+    }
+  }
+
+  private final StringBuilder builder = new StringBuilder(1024);
+  private final String[] sectionTexts = new String[StatsSnapshot.SECTION_COUNT];
+
+  HudStatsFormatter() {
+    for (int i = 0; i < sectionTexts.length; ++i) {
+      sectionTexts[i] = "";
+    }
+  }
+
+  HudStats format(StatsSnapshot snapshot) {
+    HudStats stats = new HudStats();
+    for (int section = 0; section < StatsSnapshot.SECTION_COUNT; ++section) {
+      if (snapshot.isChanged(section)) {
+        sectionTexts[section] = formatSection(snapshot, section);
+        stats.changedSections |= 1 << section;
+      }
+    }
+    System.arraycopy(sectionTexts, 0, stats.sectionTexts, 0, sectionTexts.length);
+    stats.fps =
+        snapshot.getSectionValue(StatsSnapshot.SECTION_VIDEO_SEND, StatsKeys.FRAME_RATE_SENT);
+    stats.targetBitrate =
+        snapshot.getSectionValue(StatsSnapshot.SECTION_BWE, StatsKeys.TARGET_ENC_BITRATE);
+    stats.actualBitrate =
+        snapshot.getSectionValue(StatsSnapshot.SECTION_BWE, StatsKeys.ACTUAL_ENC_BITRATE);
+    return stats;
+  }
+
+  private String formatSection(StatsSnapshot snapshot, int section) {
+    builder.setLength(0);
+    boolean bwe = section == StatsSnapshot.SECTION_BWE;
+    for (int slot = 0; slot < snapshot.getReportCount(); ++slot) {
+      if (snapshot.getSection(slot) != section) {
+        continue;
+      }
+      builder.append(snapshot.getReportId(slot)).append("\n");
+      for (int i = 0; i < snapshot.getKeyCount(slot); ++i) {
+        int key = snapshot.getKey(slot, i);
+        builder.append(bwe ? StatsKeys.bweLabel(key) : StatsKeys.label(key))
+            .append("=")
+            .append(snapshot.getValue(slot, key))
+            .append("\n");
+      }
+    }
+    return builder.toString();
+  }
+}
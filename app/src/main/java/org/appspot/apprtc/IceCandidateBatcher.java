@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import org.webrtc.IceCandidate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coalesces local ICE candidates gathered within a short window into a single signaling message.
+ *
+ * <p>The first candidate of a batch starts the flush window; the batch is sent when the window
+ * expires or when it reaches the size cap, whichever comes first. Callers must flush() before
+ * sending any other message so that candidates stay ordered with the SDP. Encoding the batch is
+ * left to the client, see SignalingCodec.encodeCandidates().
+ *
+ * <p>Not thread safe, all methods must be called on the signaling thread, which is also where
+ * BatcherEvents callbacks are invoked.
+ */
+public class IceCandidateBatcher {
+  public static final String CANDIDATE_TYPE = SignalingCodec.TYPE_CANDIDATE;
+  public static final String CANDIDATE_BATCH_TYPE = SignalingCodec.TYPE_CANDIDATES;
+  public static final int DEFAULT_MAX_BATCH_SIZE = 16;
+
+  /**
+   * Callback interface for sending batches.
+   */
+  public interface BatcherEvents {
+    /** Sends one batch of |candidates|, which must not be kept after the call. */
+    void onSendCandidates(List<IceCandidate> candidates);
+
+    /** Runs |flushTask| on the signaling thread after |delayMs|. */
+    void onScheduleFlush(Runnable flushTask, long delayMs);
+  }
+
+  private final long flushWindowMs;
+  private final int maxBatchSize;
+  private final BatcherEvents events;
+  private final List<IceCandidate> pending = new ArrayList<IceCandidate>();
+  // Identifies the current batch so that a stale flush timer does not cut the next one short.
+  private int batchNumber;
+
+  private int flushCount;
+  private int candidateCount;
+  private int largestBatch;
+
+  /**
+   * @param flushWindowMs How long to wait for more candidates. Zero or less sends every
+   *     candidate on its own.
+   * @param maxBatchSize Number of candidates that triggers an immediate flush.
+   */
+  public IceCandidateBatcher(long flushWindowMs, int maxBatchSize, BatcherEvents events) {
+    this.flushWindowMs = flushWindowMs;
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+    this.events = events;
+  }
+
+  /** Queues |candidate| for sending. */
+  public void add(IceCandidate candidate) {
+    pending.add(candidate);
+    if (flushWindowMs <= 0 || pending.size() >= maxBatchSize) {
+      flush();
+      return;
+    }
+    if (pending.size() == 1) {
+      final int batch = ++batchNumber;
+      events.onScheduleFlush(new Runnable() {
+        @Override
+        public void run() {
+          if (batch == batchNumber) {
+            flush();
+          }
+        }
+      }, flushWindowMs);
+    }
+  }
+
+  /** Sends the pending candidates, if any. */
+  public void flush() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    ++batchNumber;
+    int size = pending.size();
+    ++flushCount;
+    candidateCount += size;
+    largestBatch = Math.max(largestBatch, size);
+    events.onSendCandidates(pending);
+    pending.clear();
+  }
+
+  /** Drops the pending candidates. */
+  public void clear() {
+    ++batchNumber;
+    pending.clear();
+  }
+
+  /** Returns the number of messages sent. */
+  public int getFlushCount() {
+    return flushCount;
+  }
+
+  /** Returns the number of candidates sent. */
+  public int getCandidateCount() {
+    return candidateCount;
+  }
+
+  /** Returns the average number of candidates per message sent. */
+  public double getCandidatesPerFlush() {
+    return flushCount == 0 ? 0 : (double) candidateCount / flushCount;
+  }
+
+  /** Returns the size of the largest batch sent. */
+  public int getLargestBatch() {
+    return largestBatch;
+  }
+
+  @Override
+  public String toString() {
+    return candidateCount + " candidates in " + flushCount + " messages ("
+        + String.format("%.1f", getCandidatesPerFlush()) + " per message, largest "
+        + largestBatch + ")";
+  }
+}
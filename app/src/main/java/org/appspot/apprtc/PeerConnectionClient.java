@@ -11,125 +11,61 @@
 package org.appspot.apprtc;
 
 import android.content.Context;
-import android.os.Environment;
-import android.os.ParcelFileDescriptor;
 import android.util.Log;
-import java.io.File;
-import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.Collections;
-import java.util.EnumSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import org.appspot.apprtc.AppRTCClient.SignalingParameters;
-import org.webrtc.AudioSource;
-import org.webrtc.AudioTrack;
-import org.webrtc.CameraVideoCapturer;
-import org.webrtc.DataChannel;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
 import org.webrtc.EglBase;
 import org.webrtc.IceCandidate;
-import org.webrtc.Logging;
-import org.webrtc.MediaConstraints;
-import org.webrtc.MediaStream;
-import org.webrtc.PeerConnection;
-import org.webrtc.PeerConnection.IceConnectionState;
 import org.webrtc.PeerConnectionFactory;
-import org.webrtc.RtpParameters;
-import org.webrtc.RtpSender;
-import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
-import org.webrtc.StatsObserver;
 import org.webrtc.StatsReport;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoRenderer;
-import org.webrtc.VideoSource;
-import org.webrtc.VideoTrack;
-import org.webrtc.voiceengine.WebRtcAudioManager;
-import org.webrtc.voiceengine.WebRtcAudioUtils;
 
 /**
  * Peer connection client implementation.
  *
  * <p>All public methods are routed to local looper thread.
  * All PeerConnectionEvents callbacks are invoked from the same looper thread.
- * This class is a singleton.
+ * This class is a singleton that runs the one peer connection of a call on a
+ * PeerConnectionManager, use the manager directly for several connections.
  */
 public class PeerConnectionClient {
   public static final String VIDEO_TRACK_ID = "ARDAMSv0";
   public static final String AUDIO_TRACK_ID = "ARDAMSa0";
   public static final String VIDEO_TRACK_TYPE = "video";
   private static final String TAG = "PCRTCClient";
-  private static final String VIDEO_CODEC_VP8 = "VP8";
-  private static final String VIDEO_CODEC_VP9 = "VP9";
-  private static final String VIDEO_CODEC_H264 = "H264";
-  private static final String AUDIO_CODEC_OPUS = "opus";
-  private static final String AUDIO_CODEC_ISAC = "ISAC";
-  private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
-  private static final String VIDEO_FLEXFEC_FIELDTRIAL = "WebRTC-FlexFEC-03/Enabled/";
-  private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
-  private static final String AUDIO_ECHO_CANCELLATION_CONSTRAINT = "googEchoCancellation";
-  private static final String AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT = "googAutoGainControl";
-  private static final String AUDIO_HIGH_PASS_FILTER_CONSTRAINT = "googHighpassFilter";
-  private static final String AUDIO_NOISE_SUPPRESSION_CONSTRAINT = "googNoiseSuppression";
-  private static final String AUDIO_LEVEL_CONTROL_CONSTRAINT = "levelControl";
-  private static final String DTLS_SRTP_KEY_AGREEMENT_CONSTRAINT = "DtlsSrtpKeyAgreement";
-  private static final int HD_VIDEO_WIDTH = 1280;
-  private static final int HD_VIDEO_HEIGHT = 720;
-  private static final int BPS_IN_KBPS = 1000;
+  // Kept under the 15 characters of Linux thread names, see ThreadCpuProfiler.
+  static final String EXECUTOR_THREAD_NAME = "PCClientExec";
+  private static final String PEER_ID = "remote";
+  // A warmed up factory that no call adopts within this time is disposed of.
+  private static final long WARM_UP_TIMEOUT_MS = 30000;
 
   private static final PeerConnectionClient instance = new PeerConnectionClient();
-  private final PCObserver pcObserver = new PCObserver();
-  private final SDPObserver sdpObserver = new SDPObserver();
   private final ScheduledExecutorService executor;
+  // Stats listeners and data channel handlers outlive the peer of a call.
+  private final StatsScheduler statsScheduler;
+  // Receives the messages of every data channel of the call.
+  private final DataChannelTransport.HandlerList dataChannelHandlers =
+      new DataChannelTransport.HandlerList();
 
-  private Context context;
-  private PeerConnectionFactory factory;
-  private PeerConnection peerConnection;
   PeerConnectionFactory.Options options = null;
-  private AudioSource audioSource;
-  private VideoSource videoSource;
-  private boolean videoCallEnabled;
-  private boolean preferIsac;
-  private String preferredVideoCodec;
-  private boolean videoCapturerStopped;
-  private boolean isError;
-  private Timer statsTimer;
-  private VideoRenderer.Callbacks localRender;
-  private List<VideoRenderer.Callbacks> remoteRenders;
-  private SignalingParameters signalingParameters;
-  private MediaConstraints pcConstraints;
-  private int videoWidth;
-  private int videoHeight;
-  private int videoFps;
-  private MediaConstraints audioConstraints;
-  private ParcelFileDescriptor aecDumpFileDescriptor;
-  private MediaConstraints sdpMediaConstraints;
   private PeerConnectionParameters peerConnectionParameters;
-  // Queued remote ICE candidates are consumed only after both local and
-  // remote descriptions are set. Similarly local ICE candidates are sent to
-  // remote peer after both local and remote description are set.
-  private LinkedList<IceCandidate> queuedRemoteCandidates;
   private PeerConnectionEvents events;
-  private boolean isInitiator;
-  private SessionDescription localSdp; // either offer or answer SDP
-  private MediaStream mediaStream;
-  private VideoCapturer videoCapturer;
-  // enableVideo is set to true if video should be rendered and sent.
-  private boolean renderVideo;
-  private VideoTrack localVideoTrack;
-  private VideoTrack remoteVideoTrack;
-  private RtpSender localVideoSender;
-  // enableAudio is set to true if audio should be sent.
-  private boolean enableAudio;
-  private AudioTrack localAudioTrack;
-  private DataChannel dataChannel;
-  private boolean dataChannelEnabled;
+  // Created for each call, and used on the calling threads.
+  private volatile PeerConnectionManager manager;
+  private volatile PeerConnectionManager.Peer peer;
+  private DataChannelBulkTransfer.BulkTransferEvents bulkTransferEvents;
+  private boolean iceRecoveryEnabled;
+  // Factory created by warmUp() and not yet adopted by a call. Guarded by |this|.
+  private PeerConnectionManager warmManager;
+  private ScheduledFuture<?> warmUpTimeout;
+  private boolean factoryWarm;
 
   /**
    * Peer connection parameters.
@@ -176,7 +112,7 @@ public class PeerConnectionClient {
     public final boolean disableBuiltInAGC;
     public final boolean disableBuiltInNS;
     public final boolean enableLevelControl;
-    private final DataChannelParameters dataChannelParameters;
+    final DataChannelParameters dataChannelParameters;
 
     public PeerConnectionParameters(boolean videoCallEnabled, boolean loopback, boolean tracing,
         int videoWidth, int videoHeight, int videoFps, int videoMaxBitrate, String videoCodec,
@@ -217,6 +153,25 @@ public class PeerConnectionClient {
       this.enableLevelControl = enableLevelControl;
       this.dataChannelParameters = dataChannelParameters;
     }
+
+    /**
+     * Returns true if a call with |other| can use a factory created with these parameters,
+     * i.e. they agree on everything that is fixed when the factory is created.
+     */
+    boolean sharesFactoryWith(PeerConnectionParameters other) {
+      return videoCallEnabled == other.videoCallEnabled && tracing == other.tracing
+          && equalStrings(videoCodec, other.videoCodec)
+          && videoCodecHwAcceleration == other.videoCodecHwAcceleration
+          && videoFlexfecEnabled == other.videoFlexfecEnabled
+          && equalStrings(audioCodec, other.audioCodec) && useOpenSLES == other.useOpenSLES
+          && disableBuiltInAEC == other.disableBuiltInAEC
+          && disableBuiltInAGC == other.disableBuiltInAGC
+          && disableBuiltInNS == other.disableBuiltInNS;
+    }
+
+    private static boolean equalStrings(String a, String b) {
+      return (a == null) ? b == null : a.equals(b);
+    }
   }
 
   /**
@@ -270,990 +225,348 @@ public class PeerConnectionClient {
     // Executor thread is started once in private ctor and is used for all
     // peer connection API calls to ensure new peer connection factory is
     // created on the same thread as previously destroyed factory.
-    executor = Executors.newSingleThreadScheduledExecutor();
+    executor = PeerConnectionManager.createExecutor();
+    statsScheduler = new StatsScheduler(executor);
   }
 
   public static PeerConnectionClient getInstance() {
     return instance;
   }
 
-  public void setPeerConnectionFactoryOptions(PeerConnectionFactory.Options options) {
-    this.options = options;
+  /**
+   * Registers |handler| for the messages received on all data channels of the call. Handlers
+   * are invoked on the WebRTC signaling thread and may be added or removed from any thread.
+   */
+  public void addDataChannelHandler(DataChannelTransport.MessageHandler handler) {
+    dataChannelHandlers.add(handler);
   }
 
-  public void createPeerConnectionFactory(final Context context,
-      final PeerConnectionParameters peerConnectionParameters, final PeerConnectionEvents events) {
-    this.peerConnectionParameters = peerConnectionParameters;
-    this.events = events;
-    videoCallEnabled = peerConnectionParameters.videoCallEnabled;
-    dataChannelEnabled = peerConnectionParameters.dataChannelParameters != null;
-    // Reset variables to initial states.
-    this.context = null;
-    factory = null;
-    peerConnection = null;
-    preferIsac = false;
-    videoCapturerStopped = false;
-    isError = false;
-    queuedRemoteCandidates = null;
-    localSdp = null; // either offer or answer SDP
-    mediaStream = null;
-    videoCapturer = null;
-    renderVideo = true;
-    localVideoTrack = null;
-    remoteVideoTrack = null;
-    localVideoSender = null;
-    enableAudio = true;
-    localAudioTrack = null;
-    statsTimer = new Timer();
+  public void removeDataChannelHandler(DataChannelTransport.MessageHandler handler) {
+    dataChannelHandlers.remove(handler);
+  }
 
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        createPeerConnectionFactoryInternal(context);
-      }
-    });
+  /**
+   * Returns the transport of the data channel opened by this client, or null if data channels
+   * are disabled or the peer connection is not created. Its send methods may be called from
+   * any thread.
+   */
+  public DataChannelTransport getDataChannelTransport() {
+    PeerConnectionManager.Peer peer = this.peer;
+    return (peer != null) ? peer.getDataChannelTransport() : null;
   }
 
-  public void createPeerConnection(final EglBase.Context renderEGLContext,
-      final VideoRenderer.Callbacks localRender, final VideoRenderer.Callbacks remoteRender,
-      final VideoCapturer videoCapturer, final SignalingParameters signalingParameters) {
-    createPeerConnection(renderEGLContext, localRender, Collections.singletonList(remoteRender),
-        videoCapturer, signalingParameters);
+  public void setPeerConnectionFactoryOptions(PeerConnectionFactory.Options options) {
+    this.options = options;
   }
-  public void createPeerConnection(final EglBase.Context renderEGLContext,
-      final VideoRenderer.Callbacks localRender, final List<VideoRenderer.Callbacks> remoteRenders,
-      final VideoCapturer videoCapturer, final SignalingParameters signalingParameters) {
-    if (peerConnectionParameters == null) {
-      Log.e(TAG, "Creating peer connection without initializing factory.");
-      return;
+
+  /**
+   * Creates the peer connection factory ahead of a call, e.g. while ConnectActivity starts
+   * CallActivity. createPeerConnectionFactory() adopts it if it suits the call, otherwise and
+   * if no call comes within WARM_UP_TIMEOUT_MS it is disposed of. Calls that set factory
+   * options create their own factory.
+   */
+  public synchronized void warmUp(
+      final Context context, final PeerConnectionParameters peerConnectionParameters) {
+    if (warmManager != null) {
+      if (warmManager.isWarmFor(peerConnectionParameters)) {
+        return;
+      }
+      closeWarmManager();
     }
-    this.localRender = localRender;
-    this.remoteRenders = remoteRenders;
-    this.videoCapturer = videoCapturer;
-    this.signalingParameters = signalingParameters;
-    executor.execute(new Runnable() {
+    final PeerConnectionManager warmManager = new PeerConnectionManager(executor);
+    warmManager.warmUp(context, peerConnectionParameters);
+    this.warmManager = warmManager;
+    warmUpTimeout = executor.schedule(new Runnable() {
       @Override
       public void run() {
-        try {
-          createMediaConstraintsInternal();
-          createPeerConnectionInternal(renderEGLContext);
-        } catch (Exception e) {
-          reportError("Failed to create peer connection: " + e.getMessage());
-          throw e;
+        synchronized (PeerConnectionClient.this) {
+          if (PeerConnectionClient.this.warmManager == warmManager) {
+            Log.d(TAG, "Warm peer connection factory was not used.");
+            closeWarmManager();
+          }
         }
       }
-    });
+    }, WARM_UP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
   }
 
-  public void close() {
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        closeInternal();
-      }
-    });
+  private void closeWarmManager() {
+    warmUpTimeout.cancel(false);
+    warmManager.close();
+    warmManager = null;
+    warmUpTimeout = null;
   }
 
-  public boolean isVideoCallEnabled() {
-    return videoCallEnabled;
-  }
-
-  private void createPeerConnectionFactoryInternal(Context context) {
-    PeerConnectionFactory.initializeInternalTracer();
-    if (peerConnectionParameters.tracing) {
-      PeerConnectionFactory.startInternalTracingCapture(
-          Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
-          + "webrtc-trace.txt");
-    }
-    Log.d(TAG,
-        "Create peer connection factory. Use video: " + peerConnectionParameters.videoCallEnabled);
-    isError = false;
-
-    // Initialize field trials.
-    if (peerConnectionParameters.videoFlexfecEnabled) {
-      PeerConnectionFactory.initializeFieldTrials(VIDEO_FLEXFEC_FIELDTRIAL);
-      Log.d(TAG, "Enable FlexFEC field trial.");
-    } else {
-      PeerConnectionFactory.initializeFieldTrials("");
-    }
-
-    // Check preferred video codec.
-    preferredVideoCodec = VIDEO_CODEC_VP8;
-    if (videoCallEnabled && peerConnectionParameters.videoCodec != null) {
-      if (peerConnectionParameters.videoCodec.equals(VIDEO_CODEC_VP9)) {
-        preferredVideoCodec = VIDEO_CODEC_VP9;
-      } else if (peerConnectionParameters.videoCodec.equals(VIDEO_CODEC_H264)) {
-        preferredVideoCodec = VIDEO_CODEC_H264;
-      }
-    }
-    Log.d(TAG, "Preferred video codec: " + preferredVideoCodec);
-
-    // Check if ISAC is used by default.
-    preferIsac = peerConnectionParameters.audioCodec != null
-        && peerConnectionParameters.audioCodec.equals(AUDIO_CODEC_ISAC);
-
-    // Enable/disable OpenSL ES playback.
-    if (!peerConnectionParameters.useOpenSLES) {
-      Log.d(TAG, "Disable OpenSL ES audio even if device supports it");
-      WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(true /* enable */);
-    } else {
-      Log.d(TAG, "Allow OpenSL ES audio if device supports it");
-      WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(false);
-    }
-
-    if (peerConnectionParameters.disableBuiltInAEC) {
-      Log.d(TAG, "Disable built-in AEC even if device supports it");
-      WebRtcAudioUtils.setWebRtcBasedAcousticEchoCanceler(true);
-    } else {
-      Log.d(TAG, "Enable built-in AEC if device supports it");
-      WebRtcAudioUtils.setWebRtcBasedAcousticEchoCanceler(false);
-    }
-
-    if (peerConnectionParameters.disableBuiltInAGC) {
-      Log.d(TAG, "Disable built-in AGC even if device supports it");
-      WebRtcAudioUtils.setWebRtcBasedAutomaticGainControl(true);
-    } else {
-      Log.d(TAG, "Enable built-in AGC if device supports it");
-      WebRtcAudioUtils.setWebRtcBasedAutomaticGainControl(false);
-    }
-
-    if (peerConnectionParameters.disableBuiltInNS) {
-      Log.d(TAG, "Disable built-in NS even if device supports it");
-      WebRtcAudioUtils.setWebRtcBasedNoiseSuppressor(true);
-    } else {
-      Log.d(TAG, "Enable built-in NS if device supports it");
-      WebRtcAudioUtils.setWebRtcBasedNoiseSuppressor(false);
-    }
-
-    // Create peer connection factory.
-    if (!PeerConnectionFactory.initializeAndroidGlobals(
-            context, true, true, peerConnectionParameters.videoCodecHwAcceleration)) {
-      events.onPeerConnectionError("Failed to initializeAndroidGlobals");
-    }
-    if (options != null) {
-      Log.d(TAG, "Factory networkIgnoreMask option: " + options.networkIgnoreMask);
-    }
-    this.context = context;
-    factory = new PeerConnectionFactory(options);
-    Log.d(TAG, "Peer connection factory created.");
-  }
-
-  private void createMediaConstraintsInternal() {
-    // Create peer connection constraints.
-    pcConstraints = new MediaConstraints();
-    // Enable DTLS for normal calls and disable for loopback calls.
-    if (peerConnectionParameters.loopback) {
-      pcConstraints.optional.add(
-          new MediaConstraints.KeyValuePair(DTLS_SRTP_KEY_AGREEMENT_CONSTRAINT, "false"));
-    } else {
-      pcConstraints.optional.add(
-          new MediaConstraints.KeyValuePair(DTLS_SRTP_KEY_AGREEMENT_CONSTRAINT, "true"));
-    }
-
-    // Check if there is a camera on device and disable video call if not.
-    if (videoCapturer == null) {
-      Log.w(TAG, "No camera on device. Switch to audio only call.");
-      videoCallEnabled = false;
-    }
-    // Create video constraints if video call is enabled.
-    if (videoCallEnabled) {
-      videoWidth = peerConnectionParameters.videoWidth;
-      videoHeight = peerConnectionParameters.videoHeight;
-      videoFps = peerConnectionParameters.videoFps;
-
-      // If video resolution is not specified, default to HD.
-      if (videoWidth == 0 || videoHeight == 0) {
-        videoWidth = HD_VIDEO_WIDTH;
-        videoHeight = HD_VIDEO_HEIGHT;
-      }
-
-      // If fps is not specified, default to 30.
-      if (videoFps == 0) {
-        videoFps = 30;
-      }
-      Logging.d(TAG, "Capturing format: " + videoWidth + "x" + videoHeight + "@" + videoFps);
-    }
-
-    // Create audio constraints.
-    audioConstraints = new MediaConstraints();
-    // added for audio performance measurements
-    if (peerConnectionParameters.noAudioProcessing) {
-      Log.d(TAG, "Disabling audio processing");
-      audioConstraints.mandatory.add(
-          new MediaConstraints.KeyValuePair(AUDIO_ECHO_CANCELLATION_CONSTRAINT, "false"));
-      audioConstraints.mandatory.add(
-          new MediaConstraints.KeyValuePair(AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT, "false"));
-      audioConstraints.mandatory.add(
-          new MediaConstraints.KeyValuePair(AUDIO_HIGH_PASS_FILTER_CONSTRAINT, "false"));
-      audioConstraints.mandatory.add(
-          new MediaConstraints.KeyValuePair(AUDIO_NOISE_SUPPRESSION_CONSTRAINT, "false"));
-    }
-    if (peerConnectionParameters.enableLevelControl) {
-      Log.d(TAG, "Enabling level control.");
-      audioConstraints.mandatory.add(
-          new MediaConstraints.KeyValuePair(AUDIO_LEVEL_CONTROL_CONSTRAINT, "true"));
+  public synchronized void createPeerConnectionFactory(final Context context,
+      final PeerConnectionParameters peerConnectionParameters, final PeerConnectionEvents events) {
+    this.peerConnectionParameters = peerConnectionParameters;
+    this.events = events;
+    peer = null;
+    iceRecoveryEnabled = false;
+    factoryWarm = warmManager != null && options == null
+        && warmManager.adoptWarmFactory(peerConnectionParameters);
+    if (factoryWarm) {
+      warmUpTimeout.cancel(false);
+      manager = warmManager;
+      warmManager = null;
+      warmUpTimeout = null;
+      return;
     }
-    // Create SDP constraints.
-    sdpMediaConstraints = new MediaConstraints();
-    sdpMediaConstraints.mandatory.add(
-        new MediaConstraints.KeyValuePair("OfferToReceiveAudio", "true"));
-    if (videoCallEnabled || peerConnectionParameters.loopback) {
-      sdpMediaConstraints.mandatory.add(
-          new MediaConstraints.KeyValuePair("OfferToReceiveVideo", "true"));
-    } else {
-      sdpMediaConstraints.mandatory.add(
-          new MediaConstraints.KeyValuePair("OfferToReceiveVideo", "false"));
+    if (warmManager != null) {
+      closeWarmManager();
     }
+    manager = new PeerConnectionManager(executor);
+    manager.setPeerConnectionFactoryOptions(options);
+    manager.createPeerConnectionFactory(context, peerConnectionParameters);
   }
 
-  private void createPeerConnectionInternal(EglBase.Context renderEGLContext) {
-    if (factory == null || isError) {
-      Log.e(TAG, "Peerconnection factory is not created");
+  /**
+   * Starts capturing from |videoCapturer|, which may be null for audio only calls, and creates
+   * the local stream. Call it as soon as the factory is requested so that the camera opens
+   * while the room is joined, then createPeerConnection() once the room parameters arrive.
+   */
+  public void startLocalMedia(final EglBase.Context renderEGLContext,
+      final VideoRenderer.Callbacks localRender, final VideoCapturer videoCapturer) {
+    if (peerConnectionParameters == null) {
+      Log.e(TAG, "Starting local media without initializing factory.");
       return;
     }
-    Log.d(TAG, "Create peer connection.");
-
-    Log.d(TAG, "PCConstraints: " + pcConstraints.toString());
-    queuedRemoteCandidates = new LinkedList<IceCandidate>();
-
-    if (videoCallEnabled) {
-      Log.d(TAG, "EGLContext: " + renderEGLContext);
-      factory.setVideoHwAccelerationOptions(renderEGLContext, renderEGLContext);
-    }
-
-    PeerConnection.RTCConfiguration rtcConfig =
-        new PeerConnection.RTCConfiguration(signalingParameters.iceServers);
-    // TCP candidates are only useful when connecting to a server that supports
-    // ICE-TCP.
-    rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
-    rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
-    rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
-    rtcConfig.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
-    // Use ECDSA encryption.
-    rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
-
-    peerConnection = factory.createPeerConnection(rtcConfig, pcConstraints, pcObserver);
-
-    if (dataChannelEnabled) {
-      DataChannel.Init init = new DataChannel.Init();
-      init.ordered = peerConnectionParameters.dataChannelParameters.ordered;
-      init.negotiated = peerConnectionParameters.dataChannelParameters.negotiated;
-      init.maxRetransmits = peerConnectionParameters.dataChannelParameters.maxRetransmits;
-      init.maxRetransmitTimeMs = peerConnectionParameters.dataChannelParameters.maxRetransmitTimeMs;
-      init.id = peerConnectionParameters.dataChannelParameters.id;
-      init.protocol = peerConnectionParameters.dataChannelParameters.protocol;
-      dataChannel = peerConnection.createDataChannel("ApprtcDemo data", init);
-    }
-    isInitiator = false;
-
-    // Set default WebRTC tracing and INFO libjingle logging.
-    // NOTE: this _must_ happen while |factory| is alive!
-    Logging.enableTracing("logcat:", EnumSet.of(Logging.TraceLevel.TRACE_DEFAULT));
-    Logging.enableLogToDebugOutput(Logging.Severity.LS_INFO);
-
-    mediaStream = factory.createLocalMediaStream("ARDAMS");
-    if (videoCallEnabled) {
-      mediaStream.addTrack(createVideoTrack(videoCapturer));
-    }
-
-    mediaStream.addTrack(createAudioTrack());
-    peerConnection.addStream(mediaStream);
-    if (videoCallEnabled) {
-      findVideoSender();
-    }
-
-    if (peerConnectionParameters.aecDump) {
-      try {
-        aecDumpFileDescriptor =
-            ParcelFileDescriptor.open(new File(Environment.getExternalStorageDirectory().getPath()
-                                          + File.separator + "Download/audio.aecdump"),
-                ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE
-                    | ParcelFileDescriptor.MODE_TRUNCATE);
-        factory.startAecDump(aecDumpFileDescriptor.getFd(), -1);
-      } catch (IOException e) {
-        Log.e(TAG, "Can not open aecdump file", e);
-      }
-    }
-
-    Log.d(TAG, "Peer connection created.");
+    manager.startLocalMedia(renderEGLContext, localRender, videoCapturer);
   }
 
-  private void closeInternal() {
-    if (factory != null && peerConnectionParameters.aecDump) {
-      factory.stopAecDump();
-    }
-    Log.d(TAG, "Closing peer connection.");
-    statsTimer.cancel();
-    if (dataChannel != null) {
-      dataChannel.dispose();
-      dataChannel = null;
-    }
-    if (peerConnection != null) {
-      peerConnection.dispose();
-      peerConnection = null;
-    }
-    Log.d(TAG, "Closing audio source.");
-    if (audioSource != null) {
-      audioSource.dispose();
-      audioSource = null;
-    }
-    Log.d(TAG, "Stopping capture.");
-    if (videoCapturer != null) {
-      try {
-        videoCapturer.stopCapture();
-      } catch (InterruptedException e) {
-        throw new RuntimeException(e);
-      }
-      videoCapturerStopped = true;
-      videoCapturer.dispose();
-      videoCapturer = null;
-    }
-    Log.d(TAG, "Closing video source.");
-    if (videoSource != null) {
-      videoSource.dispose();
-      videoSource = null;
-    }
-    Log.d(TAG, "Closing peer connection factory.");
-    if (factory != null) {
-      factory.dispose();
-      factory = null;
-    }
-    options = null;
-    Log.d(TAG, "Closing peer connection done.");
-    events.onPeerConnectionClosed();
-    PeerConnectionFactory.stopInternalTracingCapture();
-    PeerConnectionFactory.shutdownInternalTracer();
+  public void createPeerConnection(final EglBase.Context renderEGLContext,
+      final VideoRenderer.Callbacks localRender, final VideoRenderer.Callbacks remoteRender,
+      final VideoCapturer videoCapturer, final SignalingParameters signalingParameters) {
+    createPeerConnection(renderEGLContext, localRender, Collections.singletonList(remoteRender),
+        videoCapturer, signalingParameters);
   }
-
-  public boolean isHDVideo() {
-    if (!videoCallEnabled) {
-      return false;
-    }
-
-    return videoWidth * videoHeight >= 1280 * 720;
+  public void createPeerConnection(final EglBase.Context renderEGLContext,
+      final VideoRenderer.Callbacks localRender, final List<VideoRenderer.Callbacks> remoteRenders,
+      final VideoCapturer videoCapturer, final SignalingParameters signalingParameters) {
+    startLocalMedia(renderEGLContext, localRender, videoCapturer);
+    createPeerConnection(remoteRenders, signalingParameters);
   }
 
-  private void getStats() {
-    if (peerConnection == null || isError) {
+  /** Creates the peer connection, after startLocalMedia(). */
+  public void createPeerConnection(final List<VideoRenderer.Callbacks> remoteRenders,
+      final SignalingParameters signalingParameters) {
+    if (peerConnectionParameters == null) {
+      Log.e(TAG, "Creating peer connection without initializing factory.");
       return;
     }
-    boolean success = peerConnection.getStats(new StatsObserver() {
-      @Override
-      public void onComplete(final StatsReport[] reports) {
-        events.onPeerConnectionStatsReady(reports);
-      }
-    }, null);
-    if (!success) {
-      Log.e(TAG, "getStats() returns false!");
+    peer = manager.createPeer(PEER_ID, signalingParameters.iceServers, remoteRenders, events,
+        statsScheduler, dataChannelHandlers);
+    if (bulkTransferEvents != null) {
+      peer.setBulkTransferEvents(bulkTransferEvents);
     }
-  }
-
-  public void enableStatsEvents(boolean enable, int periodMs) {
-    if (enable) {
-      try {
-        statsTimer.schedule(new TimerTask() {
-          @Override
-          public void run() {
-            executor.execute(new Runnable() {
-              @Override
-              public void run() {
-                getStats();
-              }
-            });
-          }
-        }, 0, periodMs);
-      } catch (Exception e) {
-        Log.e(TAG, "Can not schedule statistics timer", e);
-      }
-    } else {
-      statsTimer.cancel();
+    if (iceRecoveryEnabled) {
+      peer.setIceRecoveryEnabled(true);
     }
   }
 
-  public void setAudioEnabled(final boolean enable) {
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        enableAudio = enable;
-        if (localAudioTrack != null) {
-          localAudioTrack.setEnabled(enableAudio);
-        }
-      }
-    });
-  }
-
-  public void setVideoEnabled(final boolean enable) {
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        renderVideo = enable;
-        if (localVideoTrack != null) {
-          localVideoTrack.setEnabled(renderVideo);
-        }
-        if (remoteVideoTrack != null) {
-          remoteVideoTrack.setEnabled(renderVideo);
-        }
-      }
-    });
+  public void close() {
+    PeerConnectionManager manager = this.manager;
+    if (manager != null) {
+      Log.d(TAG, "Closing peer connection.");
+      manager.close();
+    }
+    options = null;
   }
 
-  public void createOffer() {
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        if (peerConnection != null && !isError) {
-          Log.d(TAG, "PC Create OFFER");
-          isInitiator = true;
-          peerConnection.createOffer(sdpObserver, sdpMediaConstraints);
-        }
-      }
-    });
+  public boolean isVideoCallEnabled() {
+    PeerConnectionManager manager = this.manager;
+    return manager != null && manager.isVideoCallEnabled();
   }
 
-  public void createAnswer() {
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        if (peerConnection != null && !isError) {
-          Log.d(TAG, "PC create ANSWER");
-          isInitiator = false;
-          peerConnection.createAnswer(sdpObserver, sdpMediaConstraints);
-        }
-      }
-    });
+  /**
+   * Returns the capture format the call was started with, or null for audio only calls. Valid
+   * once the peer connection is created.
+   */
+  public CaptureFormat getCaptureFormat() {
+    PeerConnectionManager manager = this.manager;
+    return (manager != null) ? manager.getCaptureFormat() : null;
   }
 
-  public void addRemoteIceCandidate(final IceCandidate candidate) {
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        if (peerConnection != null && !isError) {
-          if (queuedRemoteCandidates != null) {
-            queuedRemoteCandidates.add(candidate);
-          } else {
-            peerConnection.addIceCandidate(candidate);
-          }
-        }
-      }
-    });
+  public boolean isHDVideo() {
+    PeerConnectionManager manager = this.manager;
+    return manager != null && manager.isHDVideo();
   }
 
-  public void removeRemoteIceCandidates(final IceCandidate[] candidates) {
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        if (peerConnection == null || isError) {
-          return;
-        }
-        // Drain the queued remote candidates if there is any so that
-        // they are processed in the proper order.
-        drainCandidates();
-        peerConnection.removeIceCandidates(candidates);
-      }
-    });
+  /** Returns true if the call adopted a factory created by warmUp(). */
+  public synchronized boolean isFactoryWarm() {
+    return factoryWarm;
   }
 
-  public void setRemoteDescription(final SessionDescription sdp) {
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        if (peerConnection == null || isError) {
-          return;
-        }
-        String sdpDescription = sdp.description;
-        if (preferIsac) {
-          sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-        }
-        if (videoCallEnabled) {
-          sdpDescription = preferCodec(sdpDescription, preferredVideoCodec, false);
-        }
-        if (peerConnectionParameters.audioStartBitrate > 0) {
-          sdpDescription = setStartBitrate(
-              AUDIO_CODEC_OPUS, false, sdpDescription, peerConnectionParameters.audioStartBitrate);
-        }
-        Log.d(TAG, "Set remote SDP.");
-        SessionDescription sdpRemote = new SessionDescription(sdp.type, sdpDescription);
-        peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
-      }
-    });
+  /**
+   * Returns how long creating the factory of the call took, or -1 if it is not created yet.
+   * A warm factory may have been created before the call started.
+   */
+  public long getFactoryCreationMs() {
+    PeerConnectionManager manager = this.manager;
+    return (manager != null) ? manager.getFactoryCreationMs() : -1;
   }
 
-  public void stopVideoSource() {
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        if (videoCapturer != null && !videoCapturerStopped) {
-          Log.d(TAG, "Stop video source.");
-          try {
-            videoCapturer.stopCapture();
-          } catch (InterruptedException e) {
-          }
-          videoCapturerStopped = true;
-        }
-      }
-    });
+  /** Returns how long starting the local media took, or -1 if it is not started yet. */
+  public long getLocalMediaStartMs() {
+    PeerConnectionManager manager = this.manager;
+    return (manager != null) ? manager.getLocalMediaStartMs() : -1;
   }
 
-  public void startVideoSource() {
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        if (videoCapturer != null && videoCapturerStopped) {
-          Log.d(TAG, "Restart video source.");
-          videoCapturer.startCapture(videoWidth, videoHeight, videoFps);
-          videoCapturerStopped = false;
-        }
-      }
-    });
+  /**
+   * Delivers stats to PeerConnectionEvents.onPeerConnectionStatsReady() about every |periodMs|,
+   * or stops delivering them. Calling it again changes the period.
+   */
+  public void enableStatsEvents(final boolean enable, final int periodMs) {
+    PeerConnectionManager.Peer peer = this.peer;
+    if (peer != null) {
+      peer.enableStatsEvents(enable, periodMs);
+    }
   }
 
-  public void setVideoMaxBitrate(final Integer maxBitrateKbps) {
+  /**
+   * Delivers stats to |listener| about every |periodMs|, in addition to the stats events.
+   * Listeners are invoked on the WebRTC signaling thread and stay registered across calls.
+   */
+  public void addStatsListener(final StatsScheduler.StatsListener listener, final int periodMs) {
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        if (peerConnection == null || localVideoSender == null || isError) {
-          return;
-        }
-        Log.d(TAG, "Requested max video bitrate: " + maxBitrateKbps);
-        if (localVideoSender == null) {
-          Log.w(TAG, "Sender is not ready.");
-          return;
-        }
-
-        RtpParameters parameters = localVideoSender.getParameters();
-        if (parameters.encodings.size() == 0) {
-          Log.w(TAG, "RtpParameters are not ready.");
-          return;
-        }
-
-        for (RtpParameters.Encoding encoding : parameters.encodings) {
-          // Null value means no limit.
-          encoding.maxBitrateBps = maxBitrateKbps == null ? null : maxBitrateKbps * BPS_IN_KBPS;
-        }
-        if (!localVideoSender.setParameters(parameters)) {
-          Log.e(TAG, "RtpSender.setParameters failed.");
-        }
-        Log.d(TAG, "Configured max video bitrate to: " + maxBitrateKbps);
+        statsScheduler.addListener(listener, periodMs);
       }
     });
   }
 
-  private void reportError(final String errorMessage) {
-    Log.e(TAG, "Peerconnection error: " + errorMessage);
+  public void removeStatsListener(final StatsScheduler.StatsListener listener) {
     executor.execute(new Runnable() {
       @Override
       public void run() {
-        if (!isError) {
-          events.onPeerConnectionError(errorMessage);
-          isError = true;
-        }
+        statsScheduler.removeListener(listener);
       }
     });
   }
 
-  private AudioTrack createAudioTrack() {
-    audioSource = factory.createAudioSource(audioConstraints);
-    localAudioTrack = factory.createAudioTrack(AUDIO_TRACK_ID, audioSource);
-    localAudioTrack.setEnabled(enableAudio);
-    return localAudioTrack;
-  }
-
-  private VideoTrack createVideoTrack(VideoCapturer capturer) {
-    videoSource = factory.createVideoSource(capturer);
-    capturer.startCapture(videoWidth, videoHeight, videoFps);
-
-    localVideoTrack = factory.createVideoTrack(VIDEO_TRACK_ID, videoSource);
-    localVideoTrack.setEnabled(renderVideo);
-    localVideoTrack.addRenderer(new VideoRenderer(localRender));
-    return localVideoTrack;
-  }
-
-  private void findVideoSender() {
-    for (RtpSender sender : peerConnection.getSenders()) {
-      if (sender.track() != null) {
-        String trackType = sender.track().kind();
-        if (trackType.equals(VIDEO_TRACK_TYPE)) {
-          Log.d(TAG, "Found video sender.");
-          localVideoSender = sender;
-        }
-      }
+  /**
+   * Sends |source| over the data channel. Incoming transfers are discarded unless
+   * setBulkTransferEvents() provided a sink for them.
+   */
+  public void sendBulkData(final int transferId, final DataChannelBulkTransfer.Source source) {
+    PeerConnectionManager.Peer peer = this.peer;
+    if (peer == null) {
+      Log.e(TAG, "Can not send bulk data without a peer connection.");
+      return;
     }
+    peer.sendBulkData(transferId, source);
   }
 
-  private static String setStartBitrate(
-      String codec, boolean isVideoCodec, String sdpDescription, int bitrateKbps) {
-    String[] lines = sdpDescription.split("\r\n");
-    int rtpmapLineIndex = -1;
-    boolean sdpFormatUpdated = false;
-    String codecRtpMap = null;
-    // Search for codec rtpmap in format
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-    Pattern codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        codecRtpMap = codecMatcher.group(1);
-        rtpmapLineIndex = i;
-        break;
-      }
-    }
-    if (codecRtpMap == null) {
-      Log.w(TAG, "No rtpmap for " + codec + " codec");
-      return sdpDescription;
-    }
-    Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + " at " + lines[rtpmapLineIndex]);
-
-    // Check if a=fmtp string already exist in remote SDP for this codec and
-    // update it with new bitrate parameter.
-    regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
-    codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        Log.d(TAG, "Found " + codec + " " + lines[i]);
-        if (isVideoCodec) {
-          lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Update remote SDP line: " + lines[i]);
-        sdpFormatUpdated = true;
-        break;
-      }
-    }
-
-    StringBuilder newSdpDescription = new StringBuilder();
-    for (int i = 0; i < lines.length; i++) {
-      newSdpDescription.append(lines[i]).append("\r\n");
-      // Append new a=fmtp line if no such line exist for a codec.
-      if (!sdpFormatUpdated && i == rtpmapLineIndex) {
-        String bitrateSet;
-        if (isVideoCodec) {
-          bitrateSet =
-              "a=fmtp:" + codecRtpMap + " " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          bitrateSet = "a=fmtp:" + codecRtpMap + " " + AUDIO_CODEC_PARAM_BITRATE + "="
-              + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Add remote SDP line: " + bitrateSet);
-        newSdpDescription.append(bitrateSet).append("\r\n");
-      }
+  /**
+   * Sets the callbacks of bulk transfers. They are invoked on the peer connection executor
+   * thread, not on the UI thread.
+   */
+  public void setBulkTransferEvents(final DataChannelBulkTransfer.BulkTransferEvents events) {
+    bulkTransferEvents = events;
+    PeerConnectionManager.Peer peer = this.peer;
+    if (peer != null) {
+      peer.setBulkTransferEvents(events);
     }
-    return newSdpDescription.toString();
   }
 
-  private static String preferCodec(String sdpDescription, String codec, boolean isAudio) {
-    String[] lines = sdpDescription.split("\r\n");
-    int mLineIndex = -1;
-    String codecRtpMap = null;
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-    Pattern codecPattern = Pattern.compile(regex);
-    String mediaDescription = "m=video ";
-    if (isAudio) {
-      mediaDescription = "m=audio ";
+  /** Leaves a failed ICE connection to CallRecovery, see Peer.setIceRecoveryEnabled(). */
+  public void setIceRecoveryEnabled(final boolean enable) {
+    iceRecoveryEnabled = enable;
+    PeerConnectionManager.Peer peer = this.peer;
+    if (peer != null) {
+      peer.setIceRecoveryEnabled(enable);
     }
-    for (int i = 0; (i < lines.length) && (mLineIndex == -1 || codecRtpMap == null); i++) {
-      if (lines[i].startsWith(mediaDescription)) {
-        mLineIndex = i;
-        continue;
-      }
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        codecRtpMap = codecMatcher.group(1);
-      }
-    }
-    if (mLineIndex == -1) {
-      Log.w(TAG, "No " + mediaDescription + " line, so can't prefer " + codec);
-      return sdpDescription;
-    }
-    if (codecRtpMap == null) {
-      Log.w(TAG, "No rtpmap for " + codec);
-      return sdpDescription;
-    }
-    Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + ", prefer at " + lines[mLineIndex]);
-    String[] origMLineParts = lines[mLineIndex].split(" ");
-    if (origMLineParts.length > 3) {
-      StringBuilder newMLine = new StringBuilder();
-      int origPartIndex = 0;
-      // Format is: m=<media> <port> <proto> <fmt> ...
-      newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-      newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-      newMLine.append(origMLineParts[origPartIndex++]).append(" ");
-      newMLine.append(codecRtpMap);
-      for (; origPartIndex < origMLineParts.length; origPartIndex++) {
-        if (!origMLineParts[origPartIndex].equals(codecRtpMap)) {
-          newMLine.append(" ").append(origMLineParts[origPartIndex]);
-        }
-      }
-      lines[mLineIndex] = newMLine.toString();
-      Log.d(TAG, "Change media description: " + lines[mLineIndex]);
-    } else {
-      Log.e(TAG, "Wrong SDP media description format: " + lines[mLineIndex]);
-    }
-    StringBuilder newSdpDescription = new StringBuilder();
-    for (String line : lines) {
-      newSdpDescription.append(line).append("\r\n");
-    }
-    return newSdpDescription.toString();
   }
 
-  private void drainCandidates() {
-    if (queuedRemoteCandidates != null) {
-      Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates");
-      for (IceCandidate candidate : queuedRemoteCandidates) {
-        peerConnection.addIceCandidate(candidate);
-      }
-      queuedRemoteCandidates = null;
+  public void setAudioEnabled(final boolean enable) {
+    PeerConnectionManager manager = this.manager;
+    if (manager != null) {
+      manager.setAudioEnabled(enable);
     }
   }
 
-  private void switchCameraInternal() {
-    if (videoCapturer instanceof CameraVideoCapturer) {
-      if (!videoCallEnabled || isError || videoCapturer == null) {
-        Log.e(TAG, "Failed to switch camera. Video: " + videoCallEnabled + ". Error : " + isError);
-        return; // No video is sent or only one camera is available or error happened.
-      }
-      Log.d(TAG, "Switch camera");
-      CameraVideoCapturer cameraVideoCapturer = (CameraVideoCapturer) videoCapturer;
-      cameraVideoCapturer.switchCamera(null);
-    } else {
-      Log.d(TAG, "Will not switch camera, video caputurer is not a camera");
+  public void setVideoEnabled(final boolean enable) {
+    PeerConnectionManager manager = this.manager;
+    if (manager != null) {
+      manager.setVideoEnabled(enable);
     }
   }
 
-  public void switchCamera() {
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        switchCameraInternal();
-      }
-    });
-  }
-
-  public void changeCaptureFormat(final int width, final int height, final int framerate) {
-    executor.execute(new Runnable() {
-      @Override
-      public void run() {
-        changeCaptureFormatInternal(width, height, framerate);
-      }
-    });
-  }
-
-  private void changeCaptureFormatInternal(int width, int height, int framerate) {
-    if (!videoCallEnabled || isError || videoCapturer == null) {
-      Log.e(TAG,
-          "Failed to change capture format. Video: " + videoCallEnabled + ". Error : " + isError);
-      return;
+  public void createOffer() {
+    PeerConnectionManager.Peer peer = this.peer;
+    if (peer != null) {
+      peer.createOffer();
     }
-    Log.d(TAG, "changeCaptureFormat: " + width + "x" + height + "@" + framerate);
-    videoSource.adaptOutputFormat(width, height, framerate);
   }
 
-  // Implementation detail: observe ICE & stream changes and react accordingly.
-  private class PCObserver implements PeerConnection.Observer {
-    @Override
-    public void onIceCandidate(final IceCandidate candidate) {
-      executor.execute(new Runnable() {
-        @Override
-        public void run() {
-          events.onIceCandidate(candidate);
-        }
-      });
-    }
-
-    @Override
-    public void onIceCandidatesRemoved(final IceCandidate[] candidates) {
-      executor.execute(new Runnable() {
-        @Override
-        public void run() {
-          events.onIceCandidatesRemoved(candidates);
-        }
-      });
-    }
-
-    @Override
-    public void onSignalingChange(PeerConnection.SignalingState newState) {
-      Log.d(TAG, "SignalingState: " + newState);
-    }
-
-    @Override
-    public void onIceConnectionChange(final IceConnectionState newState) {
-      executor.execute(new Runnable() {
-        @Override
-        public void run() {
-          Log.d(TAG, "IceConnectionState: " + newState);
-          if (newState == IceConnectionState.CONNECTED) {
-            events.onIceConnected();
-          } else if (newState == IceConnectionState.DISCONNECTED) {
-            events.onIceDisconnected();
-          } else if (newState == IceConnectionState.FAILED) {
-            reportError("ICE connection failed.");
-          }
-        }
-      });
-    }
-
-    @Override
-    public void onIceGatheringChange(PeerConnection.IceGatheringState newState) {
-      Log.d(TAG, "IceGatheringState: " + newState);
+  public void createAnswer() {
+    PeerConnectionManager.Peer peer = this.peer;
+    if (peer != null) {
+      peer.createAnswer();
     }
+  }
 
-    @Override
-    public void onIceConnectionReceivingChange(boolean receiving) {
-      Log.d(TAG, "IceConnectionReceiving changed to " + receiving);
+  /** Sends a new offer that restarts ICE, see PeerConnectionManager.Peer.restartIce(). */
+  public void restartIce() {
+    PeerConnectionManager.Peer peer = this.peer;
+    if (peer != null) {
+      peer.restartIce();
     }
+  }
 
-    @Override
-    public void onAddStream(final MediaStream stream) {
-      executor.execute(new Runnable() {
-        @Override
-        public void run() {
-          if (peerConnection == null || isError) {
-            return;
-          }
-          if (stream.audioTracks.size() > 1 || stream.videoTracks.size() > 1) {
-            reportError("Weird-looking stream: " + stream);
-            return;
-          }
-          if (stream.videoTracks.size() == 1) {
-            remoteVideoTrack = stream.videoTracks.get(0);
-            remoteVideoTrack.setEnabled(renderVideo);
-            for (VideoRenderer.Callbacks remoteRender : remoteRenders) {
-              remoteVideoTrack.addRenderer(new VideoRenderer(remoteRender));
-            }
-          }
-        }
-      });
+  public void addRemoteIceCandidate(final IceCandidate candidate) {
+    PeerConnectionManager.Peer peer = this.peer;
+    if (peer != null) {
+      peer.addRemoteIceCandidate(candidate);
     }
+  }
 
-    @Override
-    public void onRemoveStream(final MediaStream stream) {
-      executor.execute(new Runnable() {
-        @Override
-        public void run() {
-          remoteVideoTrack = null;
-        }
-      });
+  public void removeRemoteIceCandidates(final IceCandidate[] candidates) {
+    PeerConnectionManager.Peer peer = this.peer;
+    if (peer != null) {
+      peer.removeRemoteIceCandidates(candidates);
     }
+  }
 
-    @Override
-    public void onDataChannel(final DataChannel dc) {
-      Log.d(TAG, "New Data channel " + dc.label());
-
-      if (!dataChannelEnabled)
-        return;
-
-      dc.registerObserver(new DataChannel.Observer() {
-        public void onBufferedAmountChange(long previousAmount) {
-          Log.d(TAG, "Data channel buffered amount changed: " + dc.label() + ": " + dc.state());
-        }
-
-        @Override
-        public void onStateChange() {
-          Log.d(TAG, "Data channel state changed: " + dc.label() + ": " + dc.state());
-        }
-
-        @Override
-        public void onMessage(final DataChannel.Buffer buffer) {
-          if (buffer.binary) {
-            Log.d(TAG, "Received binary msg over " + dc);
-            return;
-          }
-          ByteBuffer data = buffer.data;
-          final byte[] bytes = new byte[data.capacity()];
-          data.get(bytes);
-          String strData = new String(bytes);
-          Log.d(TAG, "Got msg: " + strData + " over " + dc);
-        }
-      });
+  public void setRemoteDescription(final SessionDescription sdp) {
+    PeerConnectionManager.Peer peer = this.peer;
+    if (peer != null) {
+      peer.setRemoteDescription(sdp);
     }
+  }
 
-    @Override
-    public void onRenegotiationNeeded() {
-      // No need to do anything; AppRTC follows a pre-agreed-upon
-      // signaling/negotiation protocol.
+  public void stopVideoSource() {
+    PeerConnectionManager manager = this.manager;
+    if (manager != null) {
+      manager.stopVideoSource();
     }
   }
 
-  // Implementation detail: handle offer creation/signaling and answer setting,
-  // as well as adding remote ICE candidates once the answer SDP is set.
-  private class SDPObserver implements SdpObserver {
-    @Override
-    public void onCreateSuccess(final SessionDescription origSdp) {
-      if (localSdp != null) {
-        reportError("Multiple SDP create.");
-        return;
-      }
-      String sdpDescription = origSdp.description;
-      if (preferIsac) {
-        sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-      }
-      if (videoCallEnabled) {
-        sdpDescription = preferCodec(sdpDescription, preferredVideoCodec, false);
-      }
-      final SessionDescription sdp = new SessionDescription(origSdp.type, sdpDescription);
-      localSdp = sdp;
-      executor.execute(new Runnable() {
-        @Override
-        public void run() {
-          if (peerConnection != null && !isError) {
-            Log.d(TAG, "Set local SDP from " + sdp.type);
-            peerConnection.setLocalDescription(sdpObserver, sdp);
-          }
-        }
-      });
+  public void startVideoSource() {
+    PeerConnectionManager manager = this.manager;
+    if (manager != null) {
+      manager.startVideoSource();
     }
+  }
 
-    @Override
-    public void onSetSuccess() {
-      executor.execute(new Runnable() {
-        @Override
-        public void run() {
-          if (peerConnection == null || isError) {
-            return;
-          }
-          if (isInitiator) {
-            // For offering peer connection we first create offer and set
-            // local SDP, then after receiving answer set remote SDP.
-            if (peerConnection.getRemoteDescription() == null) {
-              // We've just set our local SDP so time to send it.
-              Log.d(TAG, "Local SDP set succesfully");
-              events.onLocalDescription(localSdp);
-            } else {
-              // We've just set remote description, so drain remote
-              // and send local ICE candidates.
-              Log.d(TAG, "Remote SDP set succesfully");
-              drainCandidates();
-            }
-          } else {
-            // For answering peer connection we set remote SDP and then
-            // create answer and set local SDP.
-            if (peerConnection.getLocalDescription() != null) {
-              // We've just set our local SDP so time to send it, drain
-              // remote and send local ICE candidates.
-              Log.d(TAG, "Local SDP set succesfully");
-              events.onLocalDescription(localSdp);
-              drainCandidates();
-            } else {
-              // We've just set remote SDP - do nothing for now -
-              // answer will be created soon.
-              Log.d(TAG, "Remote SDP set succesfully");
-            }
-          }
-        }
-      });
+  public void setVideoMaxBitrate(final Integer maxBitrateKbps) {
+    PeerConnectionManager.Peer peer = this.peer;
+    if (peer != null) {
+      peer.setVideoMaxBitrate(maxBitrateKbps);
     }
+  }
 
-    @Override
-    public void onCreateFailure(final String error) {
-      reportError("createSDP error: " + error);
+  public void switchCamera() {
+    PeerConnectionManager manager = this.manager;
+    if (manager != null) {
+      manager.switchCamera();
     }
+  }
 
-    @Override
-    public void onSetFailure(final String error) {
-      reportError("setSDP error: " + error);
+  public void changeCaptureFormat(final int width, final int height, final int framerate) {
+    PeerConnectionManager manager = this.manager;
+    if (manager != null) {
+      manager.changeCaptureFormat(width, height, framerate);
     }
   }
 }
@@ -0,0 +1,1342 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import org.appspot.apprtc.PeerConnectionClient.PeerConnectionEvents;
+import org.appspot.apprtc.PeerConnectionClient.PeerConnectionParameters;
+import org.webrtc.AudioSource;
+import org.webrtc.AudioTrack;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+import org.webrtc.CameraVideoCapturer;
+import org.webrtc.DataChannel;
+import org.webrtc.EglBase;
+import org.webrtc.IceCandidate;
+import org.webrtc.Logging;
+import org.webrtc.MediaConstraints;
+import org.webrtc.MediaStream;
+import org.webrtc.PeerConnection;
+import org.webrtc.PeerConnection.IceConnectionState;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RtpParameters;
+import org.webrtc.RtpSender;
+import org.webrtc.SdpObserver;
+import org.webrtc.SessionDescription;
+import org.webrtc.StatsReport;
+import org.webrtc.VideoCapturer;
+import org.webrtc.VideoRenderer;
+import org.webrtc.VideoSource;
+import org.webrtc.VideoTrack;
+import org.webrtc.voiceengine.WebRtcAudioManager;
+import org.webrtc.voiceengine.WebRtcAudioUtils;
+
+/**
+ * Runs several peer connections that share one PeerConnectionFactory, one video capturer and
+ * the local audio and video sources, e.g. for mesh calls or parallel test sessions.
+ *
+ * <p>Each Peer keeps its own SDP and ICE candidate state, observers, stats scheduler and data
+ * channels. The local stream is added to every peer, so the camera is captured and scaled once
+ * however many peers there are. Each peer connection still runs its own encoder.
+ *
+ * <p>All public methods are routed to one executor thread, which the factory is created and
+ * disposed on and which serves every peer. At most MAX_PEERS peers are open at a time.
+ * PeerConnectionEvents callbacks are invoked on the executor thread.
+ */
+public class PeerConnectionManager {
+  private static final String TAG = "PCManager";
+  public static final int MAX_PEERS = 8;
+  private static final String VIDEO_CODEC_VP8 = "VP8";
+  private static final String VIDEO_CODEC_VP9 = "VP9";
+  private static final String VIDEO_CODEC_H264 = "H264";
+  private static final String AUDIO_CODEC_OPUS = "opus";
+  private static final String AUDIO_CODEC_ISAC = "ISAC";
+  private static final String VIDEO_FLEXFEC_FIELDTRIAL = "WebRTC-FlexFEC-03/Enabled/";
+  private static final String AUDIO_ECHO_CANCELLATION_CONSTRAINT = "googEchoCancellation";
+  private static final String AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT = "googAutoGainControl";
+  private static final String AUDIO_HIGH_PASS_FILTER_CONSTRAINT = "googHighpassFilter";
+  private static final String AUDIO_NOISE_SUPPRESSION_CONSTRAINT = "googNoiseSuppression";
+  private static final String AUDIO_LEVEL_CONTROL_CONSTRAINT = "levelControl";
+  private static final String DTLS_SRTP_KEY_AGREEMENT_CONSTRAINT = "DtlsSrtpKeyAgreement";
+  private static final int HD_VIDEO_WIDTH = 1280;
+  private static final int HD_VIDEO_HEIGHT = 720;
+  private static final int BPS_IN_KBPS = 1000;
+
+  private final ScheduledExecutorService executor;
+  // Accessed on the executor only.
+  private final List<Peer> peers = new ArrayList<Peer>();
+
+  private PeerConnectionFactory.Options options;
+  private PeerConnectionParameters peerConnectionParameters;
+  private PeerConnectionFactory factory;
+  // Why the factory could not be created, reported to the peers.
+  private String factoryError;
+  // True while the factory was only warmed up, until a call adopts it.
+  private boolean warm;
+  // How long creating the factory and starting the local media took, -1 until done.
+  private volatile long factoryCreationMs = -1;
+  private volatile long localMediaStartMs = -1;
+  // Read by getCaptureFormat() and isHDVideo() on other threads.
+  private volatile boolean videoCallEnabled;
+  private boolean preferIsac;
+  private String preferredVideoCodec;
+  private int videoWidth;
+  private int videoHeight;
+  private int videoFps;
+  private MediaConstraints pcConstraints;
+  private MediaConstraints audioConstraints;
+  private MediaConstraints sdpMediaConstraints;
+  private MediaConstraints iceRestartConstraints;
+  // SDP edits applied to locally created and to remote descriptions.
+  private SdpRewriter localSdpRewriter;
+  private SdpRewriter remoteSdpRewriter;
+  private ParcelFileDescriptor aecDumpFileDescriptor;
+  private AudioSource audioSource;
+  private VideoSource videoSource;
+  private VideoCapturer videoCapturer;
+  private boolean videoCapturerStopped;
+  private VideoRenderer.Callbacks localRender;
+  private MediaStream mediaStream;
+  // renderVideo is set to true if video should be rendered and sent.
+  private boolean renderVideo = true;
+  private VideoTrack localVideoTrack;
+  // enableAudio is set to true if audio should be sent.
+  private boolean enableAudio = true;
+  private AudioTrack localAudioTrack;
+
+  /**
+   * Returns a single thread executor for managers. The factory must be created on the thread
+   * that disposed of the previous one, so keep it across calls.
+   */
+  public static ScheduledExecutorService createExecutor() {
+    return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        return new Thread(runnable, PeerConnectionClient.EXECUTOR_THREAD_NAME);
+      }
+    });
+  }
+
+  public PeerConnectionManager(ScheduledExecutorService executor) {
+    this.executor = executor;
+  }
+
+  public void setPeerConnectionFactoryOptions(PeerConnectionFactory.Options options) {
+    this.options = options;
+  }
+
+  public void createPeerConnectionFactory(
+      final Context context, final PeerConnectionParameters peerConnectionParameters) {
+    this.peerConnectionParameters = peerConnectionParameters;
+    videoCallEnabled = peerConnectionParameters.videoCallEnabled;
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        createPeerConnectionFactoryInternal(context);
+      }
+    });
+  }
+
+  /**
+   * Creates the factory ahead of a call, e.g. while the user is still choosing a room or while
+   * the room parameters are being fetched. adoptWarmFactory() hands it to the call.
+   */
+  public void warmUp(Context context, PeerConnectionParameters peerConnectionParameters) {
+    Log.d(TAG, "Warming up peer connection factory.");
+    warm = true;
+    createPeerConnectionFactory(context, peerConnectionParameters);
+  }
+
+  /**
+   * Returns true if the factory was created by warmUp() and a call with
+   * |peerConnectionParameters| can adopt it.
+   */
+  public boolean isWarmFor(PeerConnectionParameters peerConnectionParameters) {
+    return warm && options == null
+        && this.peerConnectionParameters.sharesFactoryWith(peerConnectionParameters);
+  }
+
+  /**
+   * Takes over a factory created by warmUp() for a call with |peerConnectionParameters|, in
+   * place of createPeerConnectionFactory(). Returns false if the factory was created with
+   * settings the call can not use, then the caller closes this manager and creates a new one.
+   */
+  public boolean adoptWarmFactory(PeerConnectionParameters peerConnectionParameters) {
+    if (!isWarmFor(peerConnectionParameters)) {
+      return false;
+    }
+    Log.d(TAG, "Adopting warm peer connection factory.");
+    warm = false;
+    this.peerConnectionParameters = peerConnectionParameters;
+    videoCallEnabled = peerConnectionParameters.videoCallEnabled;
+    return true;
+  }
+
+  /**
+   * Starts capturing from |videoCapturer|, which may be null for audio only calls, and creates
+   * the local stream that every peer sends. Must be called before the first createPeer().
+   */
+  public void startLocalMedia(final EglBase.Context renderEGLContext,
+      final VideoRenderer.Callbacks localRender, final VideoCapturer videoCapturer) {
+    if (peerConnectionParameters == null) {
+      Log.e(TAG, "Starting local media without initializing factory.");
+      return;
+    }
+    this.localRender = localRender;
+    this.videoCapturer = videoCapturer;
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        createMediaConstraintsInternal();
+        createLocalMediaInternal(renderEGLContext);
+      }
+    });
+  }
+
+  /**
+   * Creates a peer connection to the peer named |id|, which sends the local stream and renders
+   * the remote video to |remoteRenders|. Its events are delivered to |events|.
+   */
+  public Peer createPeer(String id, List<PeerConnection.IceServer> iceServers,
+      List<VideoRenderer.Callbacks> remoteRenders, PeerConnectionEvents events) {
+    return createPeer(id, iceServers, remoteRenders, events, new StatsScheduler(executor),
+        new DataChannelTransport.HandlerList());
+  }
+
+  // Lets a caller keep stats listeners and data channel handlers across peers.
+  Peer createPeer(String id, List<PeerConnection.IceServer> iceServers,
+      List<VideoRenderer.Callbacks> remoteRenders, PeerConnectionEvents events,
+      StatsScheduler statsScheduler, DataChannelTransport.HandlerList dataChannelHandlers) {
+    final Peer peer =
+        new Peer(id, iceServers, remoteRenders, events, statsScheduler, dataChannelHandlers);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          peer.createInternal();
+        } catch (Exception e) {
+          peer.reportError("Failed to create peer connection: " + e.getMessage());
+          throw e;
+        }
+      }
+    });
+    return peer;
+  }
+
+  /** Closes every peer, then stops the local media and disposes of the factory. */
+  public void close() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        closeInternal();
+      }
+    });
+  }
+
+  public boolean isVideoCallEnabled() {
+    return videoCallEnabled;
+  }
+
+  /**
+   * Returns the capture format the local media was started with, or null for audio only calls.
+   * Valid once the local media is started.
+   */
+  public CaptureFormat getCaptureFormat() {
+    if (!videoCallEnabled) {
+      return null;
+    }
+    return new CaptureFormat(videoWidth, videoHeight, 0, videoFps * 1000);
+  }
+
+  public boolean isHDVideo() {
+    if (!videoCallEnabled) {
+      return false;
+    }
+
+    return videoWidth * videoHeight >= HD_VIDEO_WIDTH * HD_VIDEO_HEIGHT;
+  }
+
+  /** Returns how long creating the factory took, or -1 if it is not created yet. */
+  public long getFactoryCreationMs() {
+    return factoryCreationMs;
+  }
+
+  /**
+   * Returns how long creating the local stream and starting the capturer took, or -1 if the
+   * local media is not started yet.
+   */
+  public long getLocalMediaStartMs() {
+    return localMediaStartMs;
+  }
+
+  private void createPeerConnectionFactoryInternal(Context context) {
+    final long startTimeMs = System.currentTimeMillis();
+    SetupTracer.getDefault().begin(SetupTracer.FACTORY_CREATE);
+    PeerConnectionFactory.initializeInternalTracer();
+    if (peerConnectionParameters.tracing) {
+      PeerConnectionFactory.startInternalTracingCapture(
+          Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator
+          + "webrtc-trace.txt");
+    }
+    Log.d(TAG,
+        "Create peer connection factory. Use video: " + peerConnectionParameters.videoCallEnabled);
+    factoryError = null;
+
+    // Initialize field trials.
+    if (peerConnectionParameters.videoFlexfecEnabled) {
+      PeerConnectionFactory.initializeFieldTrials(VIDEO_FLEXFEC_FIELDTRIAL);
+      Log.d(TAG, "Enable FlexFEC field trial.");
+    } else {
+      PeerConnectionFactory.initializeFieldTrials("");
+    }
+
+    // Check preferred video codec.
+    preferredVideoCodec = VIDEO_CODEC_VP8;
+    if (videoCallEnabled && peerConnectionParameters.videoCodec != null) {
+      if (peerConnectionParameters.videoCodec.equals(VIDEO_CODEC_VP9)) {
+        preferredVideoCodec = VIDEO_CODEC_VP9;
+      } else if (peerConnectionParameters.videoCodec.equals(VIDEO_CODEC_H264)) {
+        preferredVideoCodec = VIDEO_CODEC_H264;
+      }
+    }
+    Log.d(TAG, "Preferred video codec: " + preferredVideoCodec);
+
+    // Check if ISAC is used by default.
+    preferIsac = peerConnectionParameters.audioCodec != null
+        && peerConnectionParameters.audioCodec.equals(AUDIO_CODEC_ISAC);
+
+    // Enable/disable OpenSL ES playback.
+    if (!peerConnectionParameters.useOpenSLES) {
+      Log.d(TAG, "Disable OpenSL ES audio even if device supports it");
+      WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(true /* enable */);
+    } else {
+      Log.d(TAG, "Allow OpenSL ES audio if device supports it");
+      WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(false);
+    }
+
+    if (peerConnectionParameters.disableBuiltInAEC) {
+      Log.d(TAG, "Disable built-in AEC even if device supports it");
+      WebRtcAudioUtils.setWebRtcBasedAcousticEchoCanceler(true);
+    } else {
+      Log.d(TAG, "Enable built-in AEC if device supports it");
+      WebRtcAudioUtils.setWebRtcBasedAcousticEchoCanceler(false);
+    }
+
+    if (peerConnectionParameters.disableBuiltInAGC) {
+      Log.d(TAG, "Disable built-in AGC even if device supports it");
+      WebRtcAudioUtils.setWebRtcBasedAutomaticGainControl(true);
+    } else {
+      Log.d(TAG, "Enable built-in AGC if device supports it");
+      WebRtcAudioUtils.setWebRtcBasedAutomaticGainControl(false);
+    }
+
+    if (peerConnectionParameters.disableBuiltInNS) {
+      Log.d(TAG, "Disable built-in NS even if device supports it");
+      WebRtcAudioUtils.setWebRtcBasedNoiseSuppressor(true);
+    } else {
+      Log.d(TAG, "Enable built-in NS if device supports it");
+      WebRtcAudioUtils.setWebRtcBasedNoiseSuppressor(false);
+    }
+
+    // Create peer connection factory.
+    if (!PeerConnectionFactory.initializeAndroidGlobals(
+            context, true, true, peerConnectionParameters.videoCodecHwAcceleration)) {
+      factoryError = "Failed to initializeAndroidGlobals";
+      Log.e(TAG, factoryError);
+    }
+    if (options != null) {
+      Log.d(TAG, "Factory networkIgnoreMask option: " + options.networkIgnoreMask);
+    }
+    factory = new PeerConnectionFactory(options);
+
+    // Set default WebRTC tracing and INFO libjingle logging.
+    // NOTE: this _must_ happen while |factory| is alive!
+    Logging.enableTracing("logcat:", EnumSet.of(Logging.TraceLevel.TRACE_DEFAULT));
+    Logging.enableLogToDebugOutput(Logging.Severity.LS_INFO);
+    SetupTracer.getDefault().end(SetupTracer.FACTORY_CREATE);
+    factoryCreationMs = System.currentTimeMillis() - startTimeMs;
+    Log.d(TAG, "Peer connection factory created in " + factoryCreationMs + " ms.");
+  }
+
+  private void createMediaConstraintsInternal() {
+    // Create peer connection constraints.
+    pcConstraints = new MediaConstraints();
+    // Enable DTLS for normal calls and disable for loopback calls.
+    if (peerConnectionParameters.loopback) {
+      pcConstraints.optional.add(
+          new MediaConstraints.KeyValuePair(DTLS_SRTP_KEY_AGREEMENT_CONSTRAINT, "false"));
+    } else {
+      pcConstraints.optional.add(
+          new MediaConstraints.KeyValuePair(DTLS_SRTP_KEY_AGREEMENT_CONSTRAINT, "true"));
+    }
+
+    // Check if there is a camera on device and disable video call if not.
+    if (videoCapturer == null) {
+      Log.w(TAG, "No camera on device. Switch to audio only call.");
+      videoCallEnabled = false;
+    }
+    // Create video constraints if video call is enabled.
+    if (videoCallEnabled) {
+      videoWidth = peerConnectionParameters.videoWidth;
+      videoHeight = peerConnectionParameters.videoHeight;
+      videoFps = peerConnectionParameters.videoFps;
+
+      // If video resolution is not specified, default to HD.
+      if (videoWidth == 0 || videoHeight == 0) {
+        videoWidth = HD_VIDEO_WIDTH;
+        videoHeight = HD_VIDEO_HEIGHT;
+      }
+
+      // If fps is not specified, default to 30.
+      if (videoFps == 0) {
+        videoFps = 30;
+      }
+      Logging.d(TAG, "Capturing format: " + videoWidth + "x" + videoHeight + "@" + videoFps);
+    }
+
+    // Create audio constraints.
+    audioConstraints = new MediaConstraints();
+    // added for audio performance measurements
+    if (peerConnectionParameters.noAudioProcessing) {
+      Log.d(TAG, "Disabling audio processing");
+      audioConstraints.mandatory.add(
+          new MediaConstraints.KeyValuePair(AUDIO_ECHO_CANCELLATION_CONSTRAINT, "false"));
+      audioConstraints.mandatory.add(
+          new MediaConstraints.KeyValuePair(AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT, "false"));
+      audioConstraints.mandatory.add(
+          new MediaConstraints.KeyValuePair(AUDIO_HIGH_PASS_FILTER_CONSTRAINT, "false"));
+      audioConstraints.mandatory.add(
+          new MediaConstraints.KeyValuePair(AUDIO_NOISE_SUPPRESSION_CONSTRAINT, "false"));
+    }
+    if (peerConnectionParameters.enableLevelControl) {
+      Log.d(TAG, "Enabling level control.");
+      audioConstraints.mandatory.add(
+          new MediaConstraints.KeyValuePair(AUDIO_LEVEL_CONTROL_CONSTRAINT, "true"));
+    }
+    // Create SDP constraints.
+    sdpMediaConstraints = new MediaConstraints();
+    sdpMediaConstraints.mandatory.add(
+        new MediaConstraints.KeyValuePair("OfferToReceiveAudio", "true"));
+    if (videoCallEnabled || peerConnectionParameters.loopback) {
+      sdpMediaConstraints.mandatory.add(
+          new MediaConstraints.KeyValuePair("OfferToReceiveVideo", "true"));
+    } else {
+      sdpMediaConstraints.mandatory.add(
+          new MediaConstraints.KeyValuePair("OfferToReceiveVideo", "false"));
+    }
+    iceRestartConstraints = new MediaConstraints();
+    iceRestartConstraints.mandatory.addAll(sdpMediaConstraints.mandatory);
+    iceRestartConstraints.mandatory.add(new MediaConstraints.KeyValuePair("IceRestart", "true"));
+
+    // Create SDP rewriters. Local and remote descriptions get the same codec
+    // preferences; the audio start bitrate is only set on the remote side.
+    localSdpRewriter = new SdpRewriter();
+    remoteSdpRewriter = new SdpRewriter();
+    if (preferIsac) {
+      localSdpRewriter.preferCodec(AUDIO_CODEC_ISAC, true);
+      remoteSdpRewriter.preferCodec(AUDIO_CODEC_ISAC, true);
+    }
+    if (videoCallEnabled) {
+      localSdpRewriter.preferCodec(preferredVideoCodec, false);
+      remoteSdpRewriter.preferCodec(preferredVideoCodec, false);
+    }
+    if (peerConnectionParameters.audioStartBitrate > 0) {
+      remoteSdpRewriter.setStartBitrate(
+          AUDIO_CODEC_OPUS, false, peerConnectionParameters.audioStartBitrate);
+    }
+  }
+
+  private void createLocalMediaInternal(EglBase.Context renderEGLContext) {
+    if (factory == null) {
+      Log.e(TAG, "Peerconnection factory is not created");
+      return;
+    }
+    final long startTimeMs = System.currentTimeMillis();
+    if (videoCallEnabled) {
+      Log.d(TAG, "EGLContext: " + renderEGLContext);
+      factory.setVideoHwAccelerationOptions(renderEGLContext, renderEGLContext);
+    }
+
+    mediaStream = factory.createLocalMediaStream("ARDAMS");
+    if (videoCallEnabled) {
+      mediaStream.addTrack(createVideoTrack(videoCapturer));
+    }
+    mediaStream.addTrack(createAudioTrack());
+
+    if (peerConnectionParameters.aecDump) {
+      try {
+        aecDumpFileDescriptor =
+            ParcelFileDescriptor.open(new File(Environment.getExternalStorageDirectory().getPath()
+                                          + File.separator + "Download/audio.aecdump"),
+                ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE
+                    | ParcelFileDescriptor.MODE_TRUNCATE);
+        factory.startAecDump(aecDumpFileDescriptor.getFd(), -1);
+      } catch (IOException e) {
+        Log.e(TAG, "Can not open aecdump file", e);
+      }
+    }
+    localMediaStartMs = System.currentTimeMillis() - startTimeMs;
+    Log.d(TAG, "Local media started in " + localMediaStartMs + " ms.");
+  }
+
+  private AudioTrack createAudioTrack() {
+    audioSource = factory.createAudioSource(audioConstraints);
+    localAudioTrack = factory.createAudioTrack(PeerConnectionClient.AUDIO_TRACK_ID, audioSource);
+    localAudioTrack.setEnabled(enableAudio);
+    return localAudioTrack;
+  }
+
+  private VideoTrack createVideoTrack(VideoCapturer capturer) {
+    videoSource = factory.createVideoSource(capturer);
+    SetupTracer.getDefault().begin(SetupTracer.CAPTURER_START);
+    capturer.startCapture(videoWidth, videoHeight, videoFps);
+    SetupTracer.getDefault().end(SetupTracer.CAPTURER_START);
+
+    localVideoTrack = factory.createVideoTrack(PeerConnectionClient.VIDEO_TRACK_ID, videoSource);
+    localVideoTrack.setEnabled(renderVideo);
+    localVideoTrack.addRenderer(new VideoRenderer(localRender));
+    return localVideoTrack;
+  }
+
+  private void closeInternal() {
+    for (Peer peer : new ArrayList<Peer>(peers)) {
+      peer.closeInternal();
+    }
+    if (factory != null && peerConnectionParameters.aecDump) {
+      factory.stopAecDump();
+    }
+    Log.d(TAG, "Closing audio source.");
+    if (audioSource != null) {
+      audioSource.dispose();
+      audioSource = null;
+    }
+    Log.d(TAG, "Stopping capture.");
+    if (videoCapturer != null) {
+      try {
+        videoCapturer.stopCapture();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      videoCapturerStopped = true;
+      videoCapturer.dispose();
+      videoCapturer = null;
+    }
+    Log.d(TAG, "Closing video source.");
+    if (videoSource != null) {
+      videoSource.dispose();
+      videoSource = null;
+    }
+    mediaStream = null;
+    localVideoTrack = null;
+    localAudioTrack = null;
+    Log.d(TAG, "Closing peer connection factory.");
+    if (factory != null) {
+      factory.dispose();
+      factory = null;
+    }
+    options = null;
+    Log.d(TAG, "Closing peer connection manager done.");
+    PeerConnectionFactory.stopInternalTracingCapture();
+    PeerConnectionFactory.shutdownInternalTracer();
+  }
+
+  public void setAudioEnabled(final boolean enable) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        enableAudio = enable;
+        if (localAudioTrack != null) {
+          localAudioTrack.setEnabled(enableAudio);
+        }
+      }
+    });
+  }
+
+  /** Enables or disables the local video and the remote video of every peer. */
+  public void setVideoEnabled(final boolean enable) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        renderVideo = enable;
+        if (localVideoTrack != null) {
+          localVideoTrack.setEnabled(renderVideo);
+        }
+        for (Peer peer : peers) {
+          if (peer.remoteVideoTrack != null) {
+            peer.remoteVideoTrack.setEnabled(renderVideo);
+          }
+        }
+      }
+    });
+  }
+
+  public void stopVideoSource() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (videoCapturer != null && !videoCapturerStopped) {
+          Log.d(TAG, "Stop video source.");
+          try {
+            videoCapturer.stopCapture();
+          } catch (InterruptedException e) {
+          }
+          videoCapturerStopped = true;
+        }
+      }
+    });
+  }
+
+  public void startVideoSource() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (videoCapturer != null && videoCapturerStopped) {
+          Log.d(TAG, "Restart video source.");
+          videoCapturer.startCapture(videoWidth, videoHeight, videoFps);
+          videoCapturerStopped = false;
+        }
+      }
+    });
+  }
+
+  private void switchCameraInternal() {
+    if (videoCapturer instanceof CameraVideoCapturer) {
+      if (!videoCallEnabled || factory == null || videoCapturer == null) {
+        Log.e(TAG, "Failed to switch camera. Video: " + videoCallEnabled);
+        return; // No video is sent or only one camera is available or the manager is closed.
+      }
+      Log.d(TAG, "Switch camera");
+      CameraVideoCapturer cameraVideoCapturer = (CameraVideoCapturer) videoCapturer;
+      cameraVideoCapturer.switchCamera(null);
+    } else {
+      Log.d(TAG, "Will not switch camera, video caputurer is not a camera");
+    }
+  }
+
+  public void switchCamera() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        switchCameraInternal();
+      }
+    });
+  }
+
+  /** Changes the format of the local video, which every peer sends. */
+  public void changeCaptureFormat(final int width, final int height, final int framerate) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        changeCaptureFormatInternal(width, height, framerate);
+      }
+    });
+  }
+
+  private void changeCaptureFormatInternal(int width, int height, int framerate) {
+    if (!videoCallEnabled || videoSource == null) {
+      Log.e(TAG, "Failed to change capture format. Video: " + videoCallEnabled);
+      return;
+    }
+    Log.d(TAG, "changeCaptureFormat: " + width + "x" + height + "@" + framerate);
+    videoSource.adaptOutputFormat(width, height, framerate);
+  }
+
+  // Parses |sdp| once and applies the edits of |rewriter| through the indexed
+  // model. Only the edited m= sections are serialized again.
+  private static SessionDescription rewriteSdp(SdpRewriter rewriter, SessionDescription sdp) {
+    if (rewriter.isEmpty()) {
+      return sdp;
+    }
+    SetupTracer.getDefault().begin(SetupTracer.SDP_MUNGE);
+    SessionDescriptionModel model = SessionDescriptionModel.parse(sdp);
+    for (String skippedEdit : rewriter.apply(model)) {
+      Log.w(TAG, "SDP edit not applied: " + skippedEdit);
+    }
+    SessionDescription rewrittenSdp = model.toSessionDescription();
+    SetupTracer.getDefault().end(SetupTracer.SDP_MUNGE);
+    return rewrittenSdp;
+  }
+
+  /**
+   * One peer connection of the manager, with its own signaling state. All public methods are
+   * routed to the executor of the manager.
+   */
+  public class Peer {
+    private final String id;
+    private final List<PeerConnection.IceServer> iceServers;
+    private final List<VideoRenderer.Callbacks> remoteRenders;
+    private final PeerConnectionEvents events;
+    private final PCObserver pcObserver = new PCObserver();
+    private final SDPObserver sdpObserver = new SDPObserver();
+    private final StatsScheduler statsScheduler;
+    private final StatsScheduler.StatsListener statsEventsListener =
+        new StatsScheduler.StatsListener() {
+          @Override
+          public void onStatsReady(StatsReport[] reports) {
+            events.onPeerConnectionStatsReady(reports);
+          }
+        };
+
+    private PeerConnection peerConnection;
+    private boolean isError;
+    private boolean closed;
+    private boolean isInitiator;
+    // Whether a failed ICE connection is left to the call recovery, once it was connected.
+    private boolean iceRecoveryEnabled;
+    private boolean iceConnectedOnce;
+    // Whether the pending set description call sets the local one.
+    private boolean settingLocalSdp;
+    private SessionDescription localSdp; // either offer or answer SDP
+    // Queued remote ICE candidates are consumed only after both local and
+    // remote descriptions are set. Similarly local ICE candidates are sent to
+    // remote peer after both local and remote description are set.
+    private LinkedList<IceCandidate> queuedRemoteCandidates;
+    private VideoTrack remoteVideoTrack;
+    private RtpSender localVideoSender;
+    // Receives the messages of every data channel of the peer.
+    private final DataChannelTransport.HandlerList dataChannelHandlers;
+    // The data channel opened by this side.
+    private volatile DataChannelTransport dataChannelTransport;
+    // Data channels opened by the remote peer.
+    private final List<DataChannelTransport> remoteDataChannelTransports =
+        new ArrayList<DataChannelTransport>();
+    private DataChannelBulkTransfer bulkTransfer;
+    private DataChannelBulkTransfer.BulkTransferEvents bulkTransferEvents =
+        new DataChannelBulkTransfer.BulkTransferEvents() {
+          @Override
+          public DataChannelBulkTransfer.Sink onIncomingTransfer(int transferId, long length) {
+            return DataChannelBulkTransfer.discardingSink();
+          }
+
+          @Override
+          public void onSendComplete(int transferId, long length, long elapsedMs) {}
+
+          @Override
+          public void onReceiveComplete(int transferId, long length, long elapsedMs) {}
+
+          @Override
+          public void onTransferError(int transferId, String description) {}
+        };
+
+    private Peer(String id, List<PeerConnection.IceServer> iceServers,
+        List<VideoRenderer.Callbacks> remoteRenders, PeerConnectionEvents events,
+        StatsScheduler statsScheduler, DataChannelTransport.HandlerList dataChannelHandlers) {
+      this.id = id;
+      this.iceServers = iceServers;
+      this.remoteRenders = remoteRenders;
+      this.events = events;
+      this.statsScheduler = statsScheduler;
+      this.dataChannelHandlers = dataChannelHandlers;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    private void createInternal() {
+      if (closed) {
+        return;
+      }
+      if (factory == null || factoryError != null || mediaStream == null) {
+        reportError((factoryError != null) ? factoryError : "Peerconnection factory is not created");
+        return;
+      }
+      if (peers.size() >= MAX_PEERS) {
+        reportError("Too many peer connections: " + peers.size());
+        return;
+      }
+      Log.d(TAG, "Create peer connection to " + id + ".");
+
+      Log.d(TAG, "PCConstraints: " + pcConstraints.toString());
+      queuedRemoteCandidates = new LinkedList<IceCandidate>();
+
+      PeerConnection.RTCConfiguration rtcConfig = new PeerConnection.RTCConfiguration(iceServers);
+      // TCP candidates are only useful when connecting to a server that supports
+      // ICE-TCP.
+      rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
+      rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
+      rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
+      rtcConfig.continualGatheringPolicy =
+          PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
+      // Use ECDSA encryption.
+      rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
+
+      peerConnection = factory.createPeerConnection(rtcConfig, pcConstraints, pcObserver);
+
+      PeerConnectionClient.DataChannelParameters dataChannelParameters =
+          peerConnectionParameters.dataChannelParameters;
+      if (dataChannelParameters != null) {
+        DataChannel.Init init = new DataChannel.Init();
+        init.ordered = dataChannelParameters.ordered;
+        init.negotiated = dataChannelParameters.negotiated;
+        init.maxRetransmits = dataChannelParameters.maxRetransmits;
+        init.maxRetransmitTimeMs = dataChannelParameters.maxRetransmitTimeMs;
+        init.id = dataChannelParameters.id;
+        init.protocol = dataChannelParameters.protocol;
+        dataChannelTransport = new DataChannelTransport(
+            peerConnection.createDataChannel("ApprtcDemo data", init), dataChannelHandlers);
+        bulkTransfer =
+            new DataChannelBulkTransfer(dataChannelTransport, executor, bulkTransferEvents);
+        dataChannelTransport.setEvents(bulkTransfer);
+        dataChannelHandlers.add(bulkTransfer);
+      }
+      isInitiator = false;
+
+      peerConnection.addStream(mediaStream);
+      if (videoCallEnabled) {
+        findVideoSender();
+      }
+      peers.add(this);
+
+      statsScheduler.start(peerConnection);
+      Log.d(TAG, "Peer connection to " + id + " created, " + peers.size() + " open.");
+    }
+
+    /** Closes this peer connection. The other peers and the local media are not affected. */
+    public void close() {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          closeInternal();
+        }
+      });
+    }
+
+    private void closeInternal() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      peers.remove(this);
+      Log.d(TAG, "Closing peer connection to " + id + ".");
+      statsScheduler.stop();
+      statsScheduler.removeListener(statsEventsListener);
+      if (bulkTransfer != null) {
+        dataChannelHandlers.remove(bulkTransfer);
+        bulkTransfer.close();
+        bulkTransfer = null;
+      }
+      if (dataChannelTransport != null) {
+        dataChannelTransport.dispose();
+        dataChannelTransport = null;
+      }
+      for (DataChannelTransport transport : remoteDataChannelTransports) {
+        transport.dispose();
+      }
+      remoteDataChannelTransports.clear();
+      if (peerConnection != null) {
+        peerConnection.dispose();
+        peerConnection = null;
+      }
+      remoteVideoTrack = null;
+      localVideoSender = null;
+      events.onPeerConnectionClosed();
+    }
+
+    /**
+     * Registers |handler| for the messages received on all data channels of this peer. Handlers
+     * are invoked on the WebRTC signaling thread and may be added or removed from any thread.
+     */
+    public void addDataChannelHandler(DataChannelTransport.MessageHandler handler) {
+      dataChannelHandlers.add(handler);
+    }
+
+    public void removeDataChannelHandler(DataChannelTransport.MessageHandler handler) {
+      dataChannelHandlers.remove(handler);
+    }
+
+    /**
+     * Returns the transport of the data channel opened by this side, or null if data channels
+     * are disabled or the peer connection is not created. Its send methods may be called from
+     * any thread.
+     */
+    public DataChannelTransport getDataChannelTransport() {
+      return dataChannelTransport;
+    }
+
+    /**
+     * Delivers stats to PeerConnectionEvents.onPeerConnectionStatsReady() about every
+     * |periodMs|, or stops delivering them. Calling it again changes the period.
+     */
+    public void enableStatsEvents(final boolean enable, final int periodMs) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (enable) {
+            statsScheduler.addListener(statsEventsListener, periodMs);
+          } else {
+            statsScheduler.removeListener(statsEventsListener);
+          }
+        }
+      });
+    }
+
+    /**
+     * Delivers stats to |listener| about every |periodMs|, in addition to the stats events.
+     * Listeners are invoked on the WebRTC signaling thread.
+     */
+    public void addStatsListener(final StatsScheduler.StatsListener listener, final int periodMs) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          statsScheduler.addListener(listener, periodMs);
+        }
+      });
+    }
+
+    public void removeStatsListener(final StatsScheduler.StatsListener listener) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          statsScheduler.removeListener(listener);
+        }
+      });
+    }
+
+    /**
+     * Sends |source| over the data channel. Incoming transfers are discarded unless
+     * setBulkTransferEvents() provided a sink for them.
+     */
+    public void sendBulkData(final int transferId, final DataChannelBulkTransfer.Source source) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (bulkTransfer == null) {
+            Log.e(TAG, "Can not send bulk data without a data channel.");
+            return;
+          }
+          bulkTransfer.send(transferId, source);
+        }
+      });
+    }
+
+    /** Sets the callbacks of bulk transfers. They are invoked on the executor thread. */
+    public void setBulkTransferEvents(final DataChannelBulkTransfer.BulkTransferEvents events) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          bulkTransferEvents = events;
+          if (bulkTransfer != null) {
+            bulkTransfer.setEvents(events);
+          }
+        }
+      });
+    }
+
+    /**
+     * Reports a failed ICE connection through onIceDisconnected() instead of as an error if
+     * |enable|, so that the call can restart ICE. ICE fails without disconnecting first when the
+     * network interface of all its connections goes away. A connection that never connected
+     * still fails with an error.
+     */
+    public void setIceRecoveryEnabled(final boolean enable) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          iceRecoveryEnabled = enable;
+        }
+      });
+    }
+
+    public void createOffer() {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (peerConnection != null && !isError) {
+            Log.d(TAG, "PC Create OFFER");
+            isInitiator = true;
+            localSdp = null;
+            SetupTracer.getDefault().begin(SetupTracer.CREATE_OFFER);
+            peerConnection.createOffer(sdpObserver, sdpMediaConstraints);
+          }
+        }
+      });
+    }
+
+    public void createAnswer() {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (peerConnection != null && !isError) {
+            Log.d(TAG, "PC create ANSWER");
+            isInitiator = false;
+            localSdp = null;
+            SetupTracer.getDefault().begin(SetupTracer.CREATE_ANSWER);
+            peerConnection.createAnswer(sdpObserver, sdpMediaConstraints);
+          }
+        }
+      });
+    }
+
+    /**
+     * Creates an offer with new ICE credentials for a connection that was negotiated before, and
+     * sends it through onLocalDescription(). The factory, capturer, tracks and the rest of the
+     * session are kept. Only the side that made the first offer restarts ICE.
+     */
+    public void restartIce() {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (peerConnection == null || isError || !isInitiator
+              || peerConnection.getRemoteDescription() == null) {
+            return;
+          }
+          Log.d(TAG, "PC restart ICE of " + id + ".");
+          localSdp = null;
+          // Hold remote candidates until the answer with the new credentials is set.
+          if (queuedRemoteCandidates == null) {
+            queuedRemoteCandidates = new LinkedList<IceCandidate>();
+          }
+          SetupTracer.getDefault().instant(SetupTracer.ICE_RESTART);
+          SetupTracer.getDefault().begin(SetupTracer.CREATE_OFFER);
+          peerConnection.createOffer(sdpObserver, iceRestartConstraints);
+        }
+      });
+    }
+
+    public void addRemoteIceCandidate(final IceCandidate candidate) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (peerConnection != null && !isError) {
+            if (queuedRemoteCandidates != null) {
+              queuedRemoteCandidates.add(candidate);
+            } else {
+              peerConnection.addIceCandidate(candidate);
+            }
+          }
+        }
+      });
+    }
+
+    public void removeRemoteIceCandidates(final IceCandidate[] candidates) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (peerConnection == null || isError) {
+            return;
+          }
+          // Drain the queued remote candidates if there is any so that
+          // they are processed in the proper order.
+          drainCandidates();
+          peerConnection.removeIceCandidates(candidates);
+        }
+      });
+    }
+
+    public void setRemoteDescription(final SessionDescription sdp) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (peerConnection == null || isError) {
+            return;
+          }
+          SessionDescription sdpRemote = rewriteSdp(remoteSdpRewriter, sdp);
+          Log.d(TAG, "Set remote SDP.");
+          settingLocalSdp = false;
+          SetupTracer.getDefault().begin(SetupTracer.SET_REMOTE_DESCRIPTION);
+          peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
+        }
+      });
+    }
+
+    /** Caps the video bitrate sent to this peer, null for no cap. */
+    public void setVideoMaxBitrate(final Integer maxBitrateKbps) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (peerConnection == null || localVideoSender == null || isError) {
+            return;
+          }
+          Log.d(TAG, "Requested max video bitrate: " + maxBitrateKbps);
+          if (localVideoSender == null) {
+            Log.w(TAG, "Sender is not ready.");
+            return;
+          }
+
+          RtpParameters parameters = localVideoSender.getParameters();
+          if (parameters.encodings.size() == 0) {
+            Log.w(TAG, "RtpParameters are not ready.");
+            return;
+          }
+
+          for (RtpParameters.Encoding encoding : parameters.encodings) {
+            // Null value means no limit.
+            encoding.maxBitrateBps = maxBitrateKbps == null ? null : maxBitrateKbps * BPS_IN_KBPS;
+          }
+          if (!localVideoSender.setParameters(parameters)) {
+            Log.e(TAG, "RtpSender.setParameters failed.");
+          }
+          Log.d(TAG, "Configured max video bitrate to: " + maxBitrateKbps);
+        }
+      });
+    }
+
+    private void reportError(final String errorMessage) {
+      Log.e(TAG, "Peerconnection error: " + errorMessage);
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (!isError) {
+            events.onPeerConnectionError(errorMessage);
+            isError = true;
+            statsScheduler.stop();
+          }
+        }
+      });
+    }
+
+    private void findVideoSender() {
+      for (RtpSender sender : peerConnection.getSenders()) {
+        if (sender.track() != null) {
+          String trackType = sender.track().kind();
+          if (trackType.equals(PeerConnectionClient.VIDEO_TRACK_TYPE)) {
+            Log.d(TAG, "Found video sender.");
+            localVideoSender = sender;
+          }
+        }
+      }
+    }
+
+    private void drainCandidates() {
+      if (queuedRemoteCandidates != null) {
+        Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates");
+        for (IceCandidate candidate : queuedRemoteCandidates) {
+          peerConnection.addIceCandidate(candidate);
+        }
+        queuedRemoteCandidates = null;
+      }
+    }
+
+    // Implementation detail: observe ICE & stream changes and react accordingly.
+    private class PCObserver implements PeerConnection.Observer {
+      @Override
+      public void onIceCandidate(final IceCandidate candidate) {
+        SetupTracer.getDefault().once(SetupTracer.FIRST_CANDIDATE);
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            events.onIceCandidate(candidate);
+          }
+        });
+      }
+
+      @Override
+      public void onIceCandidatesRemoved(final IceCandidate[] candidates) {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            events.onIceCandidatesRemoved(candidates);
+          }
+        });
+      }
+
+      @Override
+      public void onSignalingChange(PeerConnection.SignalingState newState) {
+        Log.d(TAG, "SignalingState: " + newState);
+      }
+
+      @Override
+      public void onIceConnectionChange(final IceConnectionState newState) {
+        if (newState == IceConnectionState.CHECKING) {
+          SetupTracer.getDefault().once(SetupTracer.ICE_CHECKING);
+        } else if (newState == IceConnectionState.CONNECTED) {
+          SetupTracer.getDefault().once(SetupTracer.ICE_CONNECTED);
+        }
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            Log.d(TAG, "IceConnectionState of " + id + ": " + newState);
+            if (newState == IceConnectionState.CONNECTED) {
+              // Poll fast while the bitrate ramps up on the new path.
+              statsScheduler.restartRampUp();
+              iceConnectedOnce = true;
+              events.onIceConnected();
+            } else if (newState == IceConnectionState.DISCONNECTED) {
+              events.onIceDisconnected();
+            } else if (newState == IceConnectionState.FAILED) {
+              if (iceRecoveryEnabled && iceConnectedOnce) {
+                events.onIceDisconnected();
+              } else {
+                reportError("ICE connection failed.");
+              }
+            }
+          }
+        });
+      }
+
+      @Override
+      public void onIceGatheringChange(PeerConnection.IceGatheringState newState) {
+        Log.d(TAG, "IceGatheringState: " + newState);
+      }
+
+      @Override
+      public void onIceConnectionReceivingChange(boolean receiving) {
+        Log.d(TAG, "IceConnectionReceiving changed to " + receiving);
+      }
+
+      @Override
+      public void onAddStream(final MediaStream stream) {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (peerConnection == null || isError) {
+              return;
+            }
+            if (stream.audioTracks.size() > 1 || stream.videoTracks.size() > 1) {
+              reportError("Weird-looking stream: " + stream);
+              return;
+            }
+            if (stream.videoTracks.size() == 1) {
+              remoteVideoTrack = stream.videoTracks.get(0);
+              remoteVideoTrack.setEnabled(renderVideo);
+              for (VideoRenderer.Callbacks remoteRender : remoteRenders) {
+                remoteVideoTrack.addRenderer(new VideoRenderer(remoteRender));
+              }
+            }
+          }
+        });
+      }
+
+      @Override
+      public void onRemoveStream(final MediaStream stream) {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            remoteVideoTrack = null;
+          }
+        });
+      }
+
+      @Override
+      public void onDataChannel(final DataChannel dc) {
+        Log.d(TAG, "New Data channel " + dc.label());
+
+        if (peerConnectionParameters.dataChannelParameters == null)
+          return;
+
+        // Observe right away so that no message is missed, the transport is kept on the
+        // executor thread.
+        final DataChannelTransport transport = new DataChannelTransport(dc, dataChannelHandlers);
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (peerConnection == null) {
+              transport.dispose();
+              return;
+            }
+            remoteDataChannelTransports.add(transport);
+          }
+        });
+      }
+
+      @Override
+      public void onRenegotiationNeeded() {
+        // No need to do anything; AppRTC follows a pre-agreed-upon
+        // signaling/negotiation protocol.
+      }
+    }
+
+    // Implementation detail: handle offer creation/signaling and answer setting,
+    // as well as adding remote ICE candidates once the answer SDP is set.
+    private class SDPObserver implements SdpObserver {
+      @Override
+      public void onCreateSuccess(final SessionDescription origSdp) {
+        SetupTracer.getDefault().end(
+            isInitiator ? SetupTracer.CREATE_OFFER : SetupTracer.CREATE_ANSWER);
+        if (localSdp != null) {
+          reportError("Multiple SDP create.");
+          return;
+        }
+        final SessionDescription sdp = rewriteSdp(localSdpRewriter, origSdp);
+        localSdp = sdp;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (peerConnection != null && !isError) {
+              Log.d(TAG, "Set local SDP from " + sdp.type);
+              settingLocalSdp = true;
+              SetupTracer.getDefault().begin(SetupTracer.SET_LOCAL_DESCRIPTION);
+              peerConnection.setLocalDescription(sdpObserver, sdp);
+            }
+          }
+        });
+      }
+
+      @Override
+      public void onSetSuccess() {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (peerConnection == null || isError) {
+              return;
+            }
+            // Descriptions are set again when ICE restarts, so the one
+            // just set is tracked rather than deduced from which are set.
+            if (isInitiator) {
+              // For offering peer connection we first create offer and set
+              // local SDP, then after receiving answer set remote SDP.
+              if (settingLocalSdp) {
+                // We've just set our local SDP so time to send it.
+                SetupTracer.getDefault().end(SetupTracer.SET_LOCAL_DESCRIPTION);
+                Log.d(TAG, "Local SDP set succesfully");
+                events.onLocalDescription(localSdp);
+              } else {
+                // We've just set remote description, so drain remote
+                // and send local ICE candidates.
+                SetupTracer.getDefault().end(SetupTracer.SET_REMOTE_DESCRIPTION);
+                Log.d(TAG, "Remote SDP set succesfully");
+                drainCandidates();
+              }
+            } else {
+              // For answering peer connection we set remote SDP and then
+              // create answer and set local SDP.
+              if (settingLocalSdp) {
+                // We've just set our local SDP so time to send it, drain
+                // remote and send local ICE candidates.
+                SetupTracer.getDefault().end(SetupTracer.SET_LOCAL_DESCRIPTION);
+                Log.d(TAG, "Local SDP set succesfully");
+                events.onLocalDescription(localSdp);
+                drainCandidates();
+              } else {
+                // We've just set remote SDP - do nothing for now -
+                // answer will be created soon.
+                SetupTracer.getDefault().end(SetupTracer.SET_REMOTE_DESCRIPTION);
+                Log.d(TAG, "Remote SDP set succesfully");
+              }
+            }
+          }
+        });
+      }
+
+      @Override
+      public void onCreateFailure(final String error) {
+        reportError("createSDP error: " + error);
+      }
+
+      @Override
+      public void onSetFailure(final String error) {
+        reportError("setSDP error: " + error);
+      }
+    }
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+/**
+ * Moves a call between performance tiers when the device can no longer sustain its load:
+ * full quality, reduced frame rate, reduced resolution and audio only.
+ *
+ * <p>Two inputs pick the tier, and the lower quality of the two wins:
+ * <ul>
+ * <li>Thermal throttling shows as a busy CPU running well below its maximum frequency, and
+ * a saturated CPU is treated the same way. Once that lasts THERMAL_DOWN_MS the tier steps
+ * down, and steps down again every THERMAL_DOWN_MS that it goes on. The tier steps back up
+ * after a hold without pressure. The hold doubles every time a raise is followed by a drop,
+ * since a hot device cools down slowly.
+ * <li>While not charging, the battery level maps to a tier directly, with a few percent of
+ * hysteresis on the way back up.
+ * </ul>
+ *
+ * <p>This works on a scale of minutes, below QualityController, which follows the network
+ * and the CPU from second to second. The caller applies the lower of the two formats.
+ * update() has no other input, so it can be replayed from traces. Not thread safe.
+ */
+final class PerformanceGovernor {
+  private static final String TAG = "PerformanceGovernor";
+
+  static final int TIER_FULL = 0;
+  static final int TIER_REDUCED_FRAMERATE = 1;
+  static final int TIER_REDUCED_RESOLUTION = 2;
+  static final int TIER_AUDIO_ONLY = 3;
+  static final String[] TIER_NAMES = {
+      "full", "reduced frame rate", "reduced resolution", "audio only"};
+
+  // Frame rate of the reduced tiers, and the largest share of the capture pixels kept by the
+  // reduced resolution tier.
+  private static final int REDUCED_FRAMERATE = 15;
+  private static final double REDUCED_RESOLUTION_RATIO = 0.5;
+
+  // A CPU busy above THROTTLED_CPU_PERCENT at a frequency scale below
+  // THROTTLED_FREQUENCY_PERCENT is throttled, and one above SATURATED_CPU_PERCENT can not keep
+  // up at any frequency.
+  private static final int THROTTLED_CPU_PERCENT = 50;
+  private static final int THROTTLED_FREQUENCY_PERCENT = 60;
+  private static final int SATURATED_CPU_PERCENT = 90;
+  static final long THERMAL_DOWN_MS = 30000;
+  private static final long INITIAL_UP_HOLD_MS = 120000;
+  private static final long MAX_UP_HOLD_MS = 900000;
+  // A drop this soon after a raise means that the device had not cooled down.
+  private static final long FAILED_UP_MS = 300000;
+
+  // Battery levels at or below which each tier is used while not charging.
+  private static final int[] BATTERY_TIER_LEVELS = {-1, 30, 15, 5};
+  private static final int BATTERY_HYSTERESIS = 3;
+
+  /** Inputs of one period. Absent values are negative. */
+  static final class Sample {
+    long timeMs;
+    int cpuPercent;
+    int frequencyScalePercent;
+    int batteryLevel;
+    boolean charging;
+
+    Sample() {
+      clear();
+    }
+
+    void clear() {
+      timeMs = 0;
+      cpuPercent = -1;
+      frequencyScalePercent = -1;
+      batteryLevel = -1;
+      charging = false;
+    }
+
+    /** Fills the sample from CpuMonitor averages and battery state. */
+    void set(long timeMs, int cpuPercent, int frequencyScalePercent, int batteryLevel,
+        boolean charging) {
+      this.timeMs = timeMs;
+      this.cpuPercent = cpuPercent;
+      this.frequencyScalePercent = frequencyScalePercent;
+      this.batteryLevel = batteryLevel;
+      this.charging = charging;
+    }
+  }
+
+  // Formats of the video tiers, highest quality first.
+  private final CaptureFormat[] formats = new CaptureFormat[TIER_AUDIO_ONLY];
+  private final int[] bitratesKbps = new int[TIER_AUDIO_ONLY];
+  private int tier;
+  private int thermalTier;
+  private int batteryTier;
+  private long pressureStartMs = -1;
+  private long reliefStartMs = -1;
+  private long lastDownMs = Long.MIN_VALUE / 2;
+  private long lastUpMs = Long.MIN_VALUE / 2;
+  private long upHoldMs = INITIAL_UP_HOLD_MS;
+  private String reason = "";
+
+  /**
+   * Creates a governor in the full tier, capturing |width|x|height| at |framerate|.
+   * |maxBitrateKbps| is the bitrate of the full tier and caps the others, 0 for no cap.
+   */
+  PerformanceGovernor(int width, int height, int framerate, int maxBitrateKbps) {
+    int reducedFramerate = Math.min(framerate, REDUCED_FRAMERATE);
+    CaptureFormat reduced = null;
+    for (CaptureFormat format : QualityController.CAPTURE_FORMATS) {
+      if (format.width * format.height <= width * height * REDUCED_RESOLUTION_RATIO) {
+        reduced = format;
+        break;
+      }
+    }
+    if (reduced == null) {
+      reduced = new CaptureFormat(width, height, 0, 0);
+    }
+    formats[TIER_FULL] = new CaptureFormat(width, height, 0, framerate * 1000);
+    formats[TIER_REDUCED_FRAMERATE] = new CaptureFormat(width, height, 0, reducedFramerate * 1000);
+    formats[TIER_REDUCED_RESOLUTION] =
+        new CaptureFormat(reduced.width, reduced.height, 0, reducedFramerate * 1000);
+    bitratesKbps[TIER_FULL] = maxBitrateKbps;
+    for (int i = TIER_REDUCED_FRAMERATE; i < TIER_AUDIO_ONLY; ++i) {
+      int bitrateKbps = QualityController.calculateBitrateKbps(
+          formats[i].width, formats[i].height, formats[i].framerate.max / 1000);
+      bitratesKbps[i] = (maxBitrateKbps > 0) ? Math.min(maxBitrateKbps, bitrateKbps) : bitrateKbps;
+    }
+  }
+
+  /** Feeds one period. Returns true if the tier changed. */
+  boolean update(Sample sample) {
+    updateThermalTier(sample);
+    updateBatteryTier(sample);
+    int newTier = Math.max(thermalTier, batteryTier);
+    if (newTier == tier) {
+      return false;
+    }
+    reason = (thermalTier >= batteryTier)
+        ? "cpu " + sample.cpuPercent + "% at " + sample.frequencyScalePercent + "% frequency"
+        : "battery " + sample.batteryLevel + "%";
+    Log.d(TAG, "Tier " + TIER_NAMES[tier] + " -> " + TIER_NAMES[newTier] + ": " + reason);
+    tier = newTier;
+    return true;
+  }
+
+  private void updateThermalTier(Sample sample) {
+    if (sample.cpuPercent < 0) {
+      return;
+    }
+    boolean throttled = sample.cpuPercent >= THROTTLED_CPU_PERCENT
+        && sample.frequencyScalePercent >= 0
+        && sample.frequencyScalePercent < THROTTLED_FREQUENCY_PERCENT;
+    if (throttled || sample.cpuPercent >= SATURATED_CPU_PERCENT) {
+      reliefStartMs = -1;
+      if (pressureStartMs < 0) {
+        pressureStartMs = sample.timeMs;
+      }
+      if (thermalTier < TIER_AUDIO_ONLY && sample.timeMs - pressureStartMs >= THERMAL_DOWN_MS) {
+        if (lastUpMs > lastDownMs && sample.timeMs - lastUpMs < FAILED_UP_MS) {
+          upHoldMs = Math.min(MAX_UP_HOLD_MS, upHoldMs * 2);
+        }
+        lastDownMs = sample.timeMs;
+        // The lower tier needs another THERMAL_DOWN_MS to show whether it is enough.
+        pressureStartMs = sample.timeMs;
+        ++thermalTier;
+      }
+      return;
+    }
+    pressureStartMs = -1;
+    if (thermalTier == TIER_FULL) {
+      return;
+    }
+    if (reliefStartMs < 0) {
+      reliefStartMs = sample.timeMs;
+    }
+    if (sample.timeMs - reliefStartMs >= upHoldMs && sample.timeMs - lastDownMs >= upHoldMs) {
+      lastUpMs = sample.timeMs;
+      reliefStartMs = -1;
+      --thermalTier;
+    }
+  }
+
+  private void updateBatteryTier(Sample sample) {
+    if (sample.charging || sample.batteryLevel < 0) {
+      batteryTier = TIER_FULL;
+      return;
+    }
+    int newTier = batteryTierOf(sample.batteryLevel);
+    if (newTier < batteryTier) {
+      // Raise only once the level is clearly above the threshold.
+      newTier = Math.max(newTier, batteryTierOf(sample.batteryLevel - BATTERY_HYSTERESIS));
+    }
+    batteryTier = newTier;
+  }
+
+  private static int batteryTierOf(int batteryLevel) {
+    for (int tier = TIER_AUDIO_ONLY; tier > TIER_FULL; --tier) {
+      if (batteryLevel <= BATTERY_TIER_LEVELS[tier]) {
+        return tier;
+      }
+    }
+    return TIER_FULL;
+  }
+
+  int getTier() {
+    return tier;
+  }
+
+  boolean isVideoEnabled() {
+    return tier != TIER_AUDIO_ONLY;
+  }
+
+  /** Returns the capture format of the current tier, or null in the audio only tier. */
+  CaptureFormat getCaptureFormat() {
+    return isVideoEnabled() ? formats[tier] : null;
+  }
+
+  /** Returns the bitrate cap of the current tier, 0 for no cap. */
+  int getMaxBitrateKbps() {
+    return isVideoEnabled() ? bitratesKbps[tier] : 0;
+  }
+
+  /** Returns why the tier last changed. */
+  String getReason() {
+    return reason;
+  }
+}
@@ -0,0 +1,371 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+
+/**
+ * Steps the capture format and the maximum video bitrate down when the device or the network
+ * can not keep up, and back up when they have had headroom for a while.
+ *
+ * <p>The quality levels are pixel rate budgets, from the configured capture format down to
+ * 256x144 at a low frame rate, and each budget is turned into a format the way the capture
+ * quality slider does: frame rate is traded first down to FRAMERATE_THRESHOLD, then
+ * resolution. Each level also caps the encoder bitrate to what its pixel rate can use.
+ *
+ * <p>update() takes one stats period at a time and has no other input, so the control law can
+ * be replayed from recorded traces. A level is dropped after overuse in DOWN_SAMPLES periods
+ * in a row, and raised only after a hold time without any overuse that doubles every time a
+ * raise is followed by a drop. Not thread safe.
+ */
+final class QualityController {
+  private static final String TAG = "QualityController";
+
+  // Formats offered by the capture quality slider and by this controller.
+  static final List<CaptureFormat> CAPTURE_FORMATS =
+      Collections.unmodifiableList(Arrays.asList(new CaptureFormat(1280, 720, 0, 30000),
+          new CaptureFormat(960, 540, 0, 30000), new CaptureFormat(640, 480, 0, 30000),
+          new CaptureFormat(480, 360, 0, 30000), new CaptureFormat(320, 240, 0, 30000),
+          new CaptureFormat(256, 144, 0, 30000)));
+  // Prioritize framerate below this threshold and resolution above the threshold.
+  static final int FRAMERATE_THRESHOLD = 15;
+
+  // Ratio between the pixel rates of consecutive levels, and the lowest frame rate.
+  private static final double LEVEL_STEP = 0.6;
+  private static final int MIN_FRAMERATE = 10;
+  // Bitrate cap of a level, in bits per pixel at its frame rate.
+  private static final double BITS_PER_PIXEL = 0.07;
+  private static final int MIN_BITRATE_KBPS = 100;
+
+  // Overuse thresholds.
+  private static final int CPU_OVERUSE_PERCENT = 85;
+  // CPU usage above which a throttled CPU counts as overused.
+  private static final int CPU_THROTTLED_OVERUSE_PERCENT = 70;
+  private static final int FREQUENCY_THROTTLED_PERCENT = 50;
+  private static final double FRAMERATE_DROP_RATIO = 0.6;
+  private static final double LOSS_OVERUSE = 0.1;
+  private static final double RTT_OVERUSE_MS = 1000;
+  // The network limits the level when the encoder target is below this share of its cap.
+  private static final double BITRATE_OVERUSE_RATIO = 0.3;
+
+  // Headroom thresholds for raising the level.
+  private static final int CPU_UNDERUSE_PERCENT = 60;
+  private static final double FRAMERATE_UNDERUSE_RATIO = 0.9;
+  private static final double LOSS_UNDERUSE = 0.02;
+  private static final double BITRATE_UNDERUSE_RATIO = 0.9;
+
+  // Only the CPU is watched while the encoder and the bandwidth estimate ramp up.
+  private static final long STARTUP_MS = 20000;
+  static final int DOWN_SAMPLES = 3;
+  private static final long DOWN_HOLD_MS = 5000;
+  private static final long INITIAL_UP_HOLD_MS = 10000;
+  private static final long MAX_UP_HOLD_MS = 120000;
+  // A drop this soon after a raise means that the raise failed.
+  private static final long FAILED_UP_MS = 30000;
+
+  /** Inputs of one stats period. Absent values are NaN, or negative for the counters. */
+  static final class Sample {
+    long timeMs;
+    double targetBitrateBps;
+    double actualBitrateBps;
+    double availableSendBandwidthBps;
+    double sentFps;
+    double rttMs;
+    // Cumulative video packets sent and reported lost by the remote end.
+    long packetsSent;
+    long packetsLost;
+    int cpuPercent;
+    int frequencyScalePercent;
+
+    Sample() {
+      clear();
+    }
+
+    void clear() {
+      timeMs = 0;
+      targetBitrateBps = Double.NaN;
+      actualBitrateBps = Double.NaN;
+      availableSendBandwidthBps = Double.NaN;
+      sentFps = Double.NaN;
+      rttMs = Double.NaN;
+      packetsSent = -1;
+      packetsLost = -1;
+      cpuPercent = -1;
+      frequencyScalePercent = -1;
+    }
+
+    /** Fills the sample from a stats snapshot and CpuMonitor averages. */
+    void set(long timeMs, StatsSnapshot snapshot, int cpuPercent, int frequencyScalePercent) {
+      this.timeMs = timeMs;
+      targetBitrateBps =
+          snapshot.getSectionNumber(StatsSnapshot.SECTION_BWE, StatsKeys.TARGET_ENC_BITRATE);
+      actualBitrateBps =
+          snapshot.getSectionNumber(StatsSnapshot.SECTION_BWE, StatsKeys.ACTUAL_ENC_BITRATE);
+      availableSendBandwidthBps = snapshot.getSectionNumber(
+          StatsSnapshot.SECTION_BWE, StatsKeys.AVAILABLE_SEND_BANDWIDTH);
+      sentFps =
+          snapshot.getSectionNumber(StatsSnapshot.SECTION_VIDEO_SEND, StatsKeys.FRAME_RATE_SENT);
+      rttMs = snapshot.getSectionNumber(StatsSnapshot.SECTION_VIDEO_SEND, StatsKeys.RTT);
+      packetsSent = toCounter(
+          snapshot.getSectionNumber(StatsSnapshot.SECTION_VIDEO_SEND, StatsKeys.PACKETS_SENT));
+      packetsLost = toCounter(
+          snapshot.getSectionNumber(StatsSnapshot.SECTION_VIDEO_SEND, StatsKeys.PACKETS_LOST));
+      this.cpuPercent = cpuPercent;
+      this.frequencyScalePercent = frequencyScalePercent;
+    }
+
+    private static long toCounter(double value) {
+      return Double.isNaN(value) ? -1 : (long) value;
+    }
+  }
+
+  private static class Level {
+    final int width;
+    final int height;
+    final int framerate;
+    final int bitrateKbps;
+
+    Level(int width, int height, int framerate) {
+      this.width = width;
+      this.height = height;
+      this.framerate = framerate;
+      this.bitrateKbps = calculateBitrateKbps(width, height, framerate);
+    }
+
+    @Override
+    public String toString() {
+      return width + "x" + height + "@" + framerate + ", " + bitrateKbps + " kbps";
+    }
+  }
+
+  // Highest quality first.
+  private final List<Level> levels = new ArrayList<Level>();
+  private final int maxBitrateKbps;
+  private int level;
+  private int overuseCount;
+  private long startTimeMs = -1;
+  private long lastDownMs = Long.MIN_VALUE / 2;
+  private long lastUpMs = Long.MIN_VALUE / 2;
+  private long underuseStartMs = -1;
+  private long upHoldMs = INITIAL_UP_HOLD_MS;
+  private long lastPacketsSent = -1;
+  private long lastPacketsLost = -1;
+  private String reason = "";
+
+  /**
+   * Creates a controller at the highest level, capturing |width|x|height| at |framerate|.
+   * |maxBitrateKbps| caps every level, 0 for no cap.
+   */
+  QualityController(int width, int height, int framerate, int maxBitrateKbps) {
+    this.maxBitrateKbps = maxBitrateKbps;
+    List<CaptureFormat> formats = new ArrayList<CaptureFormat>();
+    formats.add(new CaptureFormat(width, height, 0, framerate * 1000));
+    for (CaptureFormat format : CAPTURE_FORMATS) {
+      if (format.width * format.height < width * height) {
+        formats.add(new CaptureFormat(format.width, format.height, 0, framerate * 1000));
+      }
+    }
+    CaptureFormat smallest = formats.get(formats.size() - 1);
+    double minBandwidth = (double) smallest.width * smallest.height * MIN_FRAMERATE * 1000;
+    for (double bandwidth = (double) width * height * framerate * 1000; bandwidth >= minBandwidth;
+         bandwidth *= LEVEL_STEP) {
+      CaptureFormat format = selectFormat(formats, bandwidth);
+      Level candidate =
+          new Level(format.width, format.height, calculateFramerate(bandwidth, format));
+      Level last = levels.isEmpty() ? null : levels.get(levels.size() - 1);
+      if (last == null || last.width != candidate.width || last.height != candidate.height
+          || last.framerate != candidate.framerate) {
+        levels.add(candidate);
+      }
+    }
+    Log.d(TAG, "Quality levels: " + levels);
+  }
+
+  /** Returns the format with the best quality that |bandwidth| (in millipixels/s) allows. */
+  static CaptureFormat selectFormat(List<CaptureFormat> formats, final double bandwidth) {
+    return Collections.max(formats, new Comparator<CaptureFormat>() {
+      @Override
+      public int compare(CaptureFormat first, CaptureFormat second) {
+        int firstFps = calculateFramerate(bandwidth, first);
+        int secondFps = calculateFramerate(bandwidth, second);
+
+        if (firstFps >= FRAMERATE_THRESHOLD && secondFps >= FRAMERATE_THRESHOLD
+            || firstFps == secondFps) {
+          // Compare resolution.
+          return first.width * first.height - second.width * second.height;
+        } else {
+          // Compare fps.
+          return firstFps - secondFps;
+        }
+      }
+    });
+  }
+
+  // Return the highest frame rate possible based on bandwidth and format.
+  static int calculateFramerate(double bandwidth, CaptureFormat format) {
+    return (int) Math.round(
+        Math.min(format.framerate.max, (int) Math.round(bandwidth / (format.width * format.height)))
+        / 1000.0);
+  }
+
+  /** Returns the encoder bitrate that |width|x|height| at |framerate| can use. */
+  static int calculateBitrateKbps(int width, int height, int framerate) {
+    return Math.max(
+        MIN_BITRATE_KBPS, (int) ((double) width * height * framerate * BITS_PER_PIXEL / 1000));
+  }
+
+  /** Feeds one stats period. Returns true if the level changed. */
+  boolean update(Sample sample) {
+    if (startTimeMs < 0) {
+      startTimeMs = sample.timeMs;
+    }
+    Level current = levels.get(level);
+    double loss = updateLoss(sample);
+    String overuse =
+        findOveruse(sample, current, loss, sample.timeMs - startTimeMs >= STARTUP_MS);
+    if (overuse != null) {
+      underuseStartMs = -1;
+      ++overuseCount;
+      if (overuseCount >= DOWN_SAMPLES && level < levels.size() - 1
+          && sample.timeMs - lastDownMs >= DOWN_HOLD_MS) {
+        if (lastUpMs > lastDownMs && sample.timeMs - lastUpMs < FAILED_UP_MS) {
+          upHoldMs = Math.min(MAX_UP_HOLD_MS, upHoldMs * 2);
+        }
+        lastDownMs = sample.timeMs;
+        overuseCount = 0;
+        return setLevel(level + 1, overuse);
+      }
+      return false;
+    }
+    overuseCount = 0;
+    if (level == 0 || !hasHeadroom(sample, current, loss)) {
+      underuseStartMs = -1;
+      return false;
+    }
+    if (underuseStartMs < 0) {
+      underuseStartMs = sample.timeMs;
+    }
+    if (sample.timeMs - underuseStartMs < upHoldMs || sample.timeMs - lastDownMs < upHoldMs) {
+      return false;
+    }
+    lastUpMs = sample.timeMs;
+    underuseStartMs = -1;
+    return setLevel(level - 1, "headroom");
+  }
+
+  // Returns the share of video packets lost since the previous sample, or NaN.
+  private double updateLoss(Sample sample) {
+    double loss = Double.NaN;
+    if (sample.packetsSent >= 0 && sample.packetsLost >= 0 && lastPacketsSent >= 0) {
+      long sent = sample.packetsSent - lastPacketsSent;
+      long lost = sample.packetsLost - lastPacketsLost;
+      if (sent > 0 && lost >= 0) {
+        loss = (double) lost / (sent + lost);
+      }
+    }
+    lastPacketsSent = sample.packetsSent;
+    lastPacketsLost = sample.packetsLost;
+    return loss;
+  }
+
+  // Returns why |sample| shows more load than |current| can take, or null. Only the CPU is
+  // checked until |rampedUp|.
+  private String findOveruse(Sample sample, Level current, double loss, boolean rampedUp) {
+    if (sample.cpuPercent >= CPU_OVERUSE_PERCENT) {
+      return "cpu " + sample.cpuPercent + "%";
+    }
+    if (sample.cpuPercent >= CPU_THROTTLED_OVERUSE_PERCENT && sample.frequencyScalePercent >= 0
+        && sample.frequencyScalePercent < FREQUENCY_THROTTLED_PERCENT) {
+      return "cpu " + sample.cpuPercent + "% at " + sample.frequencyScalePercent + "% frequency";
+    }
+    if (!rampedUp) {
+      return null;
+    }
+    if (sample.sentFps < current.framerate * FRAMERATE_DROP_RATIO) {
+      return "sent fps " + sample.sentFps;
+    }
+    if (loss > LOSS_OVERUSE) {
+      return "loss " + Math.round(loss * 100) + "%";
+    }
+    if (sample.rttMs > RTT_OVERUSE_MS) {
+      return "rtt " + sample.rttMs + " ms";
+    }
+    if (sample.targetBitrateBps < getBitrateCapKbps(current) * 1000 * BITRATE_OVERUSE_RATIO) {
+      return "target bitrate " + (long) sample.targetBitrateBps;
+    }
+    return null;
+  }
+
+  // Returns whether |sample| leaves enough headroom to raise the level above |current|.
+  private boolean hasHeadroom(Sample sample, Level current, double loss) {
+    if (sample.cpuPercent < 0 || sample.cpuPercent > CPU_UNDERUSE_PERCENT) {
+      return false;
+    }
+    if (!(sample.sentFps >= current.framerate * FRAMERATE_UNDERUSE_RATIO)) {
+      return false;
+    }
+    if (loss > LOSS_UNDERUSE) {
+      return false;
+    }
+    // The encoder target is capped by the level, so the network has room if the target reaches
+    // the cap or if the estimate already covers the next level.
+    Level next = levels.get(level - 1);
+    return sample.targetBitrateBps >= getBitrateCapKbps(current) * 1000 * BITRATE_UNDERUSE_RATIO
+        || sample.availableSendBandwidthBps >= getBitrateCapKbps(next) * 1000;
+  }
+
+  private boolean setLevel(int newLevel, String reason) {
+    Log.d(TAG, "Level " + level + " -> " + newLevel + " (" + levels.get(newLevel) + "): " + reason);
+    level = newLevel;
+    this.reason = reason;
+    return true;
+  }
+
+  private int getBitrateCapKbps(Level level) {
+    return (maxBitrateKbps > 0) ? Math.min(maxBitrateKbps, level.bitrateKbps) : level.bitrateKbps;
+  }
+
+  /** Returns the current level, 0 being the highest quality. */
+  int getLevel() {
+    return level;
+  }
+
+  int getLevelCount() {
+    return levels.size();
+  }
+
+  int getWidth() {
+    return levels.get(level).width;
+  }
+
+  int getHeight() {
+    return levels.get(level).height;
+  }
+
+  int getFramerate() {
+    return levels.get(level).framerate;
+  }
+
+  int getMaxBitrateKbps() {
+    return getBitrateCapKbps(levels.get(level));
+  }
+
+  /** Returns why the level last changed. */
+  String getReason() {
+    return reason;
+  }
+}
@@ -28,11 +28,17 @@ import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.zip.DataFormatException;
 
 /**
  * AsyncTask that converts an AppRTC room URL into the set of signaling
  * parameters to use with that room.
+ *
+ * <p>Results are delivered in two steps so that the caller can open the WebSocket while the
+ * TURN servers are still being fetched: onRoomJoined() as soon as the room response is parsed,
+ * then onSignalingParametersReady() once the ICE server list is complete.
  */
 public class RoomParametersFetcher {
   private static final String TAG = "RoomRTCClient";
@@ -40,15 +46,25 @@ public class RoomParametersFetcher {
   private final RoomParametersFetcherEvents events;
   private final String roomUrl;
   private final String roomMessage;
+  private final long turnCacheTtlMs;
+  private final SdpDeltaCodec sdpCodec;
   private AsyncHttpURLConnection httpConnection;
 
   /**
    * Room parameters fetcher callbacks.
    */
   public interface RoomParametersFetcherEvents {
+    /**
+     * Callback fired once the room response is parsed. The ICE servers of
+     * |params| are only those listed in the room's pc_config; the TURN
+     * servers may still be on their way.
+     */
+    void onRoomJoined(final SignalingParameters params);
+
     /**
      * Callback fired once the room's signaling parameters
-     * SignalingParameters are extracted.
+     * SignalingParameters are extracted, ICE servers included. Always
+     * follows onRoomJoined().
      */
     void onSignalingParametersReady(final SignalingParameters params);
 
@@ -60,23 +76,47 @@ public class RoomParametersFetcher {
 
   public RoomParametersFetcher(
       String roomUrl, String roomMessage, final RoomParametersFetcherEvents events) {
+    this(roomUrl, roomMessage, 0 /* turnCacheTtlMs */, events);
+  }
+
+  /**
+   * @param turnCacheTtlMs How long TURN servers fetched for this room may be reused by later
+   *     fetchers, 0 to always fetch fresh ones.
+   */
+  public RoomParametersFetcher(String roomUrl, String roomMessage, long turnCacheTtlMs,
+      final RoomParametersFetcherEvents events) {
+    this(roomUrl, roomMessage, turnCacheTtlMs, new SdpDeltaCodec(false /* deflate */), events);
+  }
+
+  /**
+   * @param sdpCodec Codec of the connection, which decodes the offer left in the room and
+   *     records its sequence number and the peer's SDP patch version for the answer. Used on the
+   *     HTTP thread before onRoomJoined().
+   */
+  RoomParametersFetcher(String roomUrl, String roomMessage, long turnCacheTtlMs,
+      SdpDeltaCodec sdpCodec, final RoomParametersFetcherEvents events) {
     this.roomUrl = roomUrl;
     this.roomMessage = roomMessage;
+    this.turnCacheTtlMs = turnCacheTtlMs;
+    this.sdpCodec = sdpCodec;
     this.events = events;
   }
 
   public void makeRequest() {
     Log.d(TAG, "Connecting to room: " + roomUrl);
+    SetupTracer.getDefault().begin(SetupTracer.ROOM_POST);
     httpConnection =
         new AsyncHttpURLConnection("POST", roomUrl, roomMessage, new AsyncHttpEvents() {
           @Override
           public void onHttpError(String errorMessage) {
+            SetupTracer.getDefault().end(SetupTracer.ROOM_POST);
             Log.e(TAG, "Room connection error: " + errorMessage);
             events.onSignalingParametersError(errorMessage);
           }
 
           @Override
           public void onHttpComplete(String response) {
+            SetupTracer.getDefault().end(SetupTracer.ROOM_POST);
             roomHttpResponseParse(response);
           }
         });
@@ -106,18 +146,20 @@ public class RoomParametersFetcher {
         iceCandidates = new LinkedList<IceCandidate>();
         String messagesString = roomJson.getString("messages");
         JSONArray messages = new JSONArray(messagesString);
+        SignalingCodec codec = new SignalingCodec();
         for (int i = 0; i < messages.length(); ++i) {
           String messageString = messages.getString(i);
-          JSONObject message = new JSONObject(messageString);
-          String messageType = message.getString("type");
+          SignalingCodec.Message message = codec.decode(messageString);
+          String messageType = message.type;
           Log.d(TAG, "GAE->C #" + i + " : " + messageString);
-          if (messageType.equals("offer")) {
+          if (messageType.equals(SignalingCodec.TYPE_OFFER)) {
+            // A patch was left for a client that had announced SDP patch support, only patches
+            // against the empty SDP can be rebuilt here.
             offerSdp = new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(messageType), message.getString("sdp"));
-          } else if (messageType.equals("candidate")) {
-            IceCandidate candidate = new IceCandidate(
-                message.getString("id"), message.getInt("label"), message.getString("candidate"));
-            iceCandidates.add(candidate);
+                SessionDescription.Type.fromCanonicalForm(messageType), sdpCodec.decode(message));
+          } else if (messageType.equals(SignalingCodec.TYPE_CANDIDATE)
+              || messageType.equals(SignalingCodec.TYPE_CANDIDATES)) {
+            iceCandidates.addAll(message.candidates);
           } else {
             Log.e(TAG, "Unknown message: " + messageString);
           }
@@ -138,10 +180,24 @@ public class RoomParametersFetcher {
           break;
         }
       }
+      // Signaling can start now, only the peer connection needs the TURN servers.
+      events.onRoomJoined(new SignalingParameters(new LinkedList<PeerConnection.IceServer>(
+          iceServers), initiator, clientId, wssUrl, wssPostUrl, offerSdp, iceCandidates));
+
       // Request TURN servers.
       if (!isTurnPresent) {
-        LinkedList<PeerConnection.IceServer> turnServers =
-            requestTurnServers(roomJson.getString("ice_server_url"));
+        String iceServerUrl = roomJson.getString("ice_server_url");
+        List<PeerConnection.IceServer> turnServers = TurnServerCache.get(iceServerUrl);
+        if (turnServers != null) {
+          Log.d(TAG, "Using cached TURN servers for: " + iceServerUrl);
+        } else {
+          SetupTracer.getDefault().begin(SetupTracer.TURN_FETCH);
+          try {
+            turnServers = requestTurnServers(iceServerUrl);
+          } finally {
+            SetupTracer.getDefault().end(SetupTracer.TURN_FETCH);
+          }
+        }
         for (PeerConnection.IceServer turnServer : turnServers) {
           Log.d(TAG, "TurnServer: " + turnServer);
           iceServers.add(turnServer);
@@ -153,6 +209,8 @@ public class RoomParametersFetcher {
       events.onSignalingParametersReady(params);
     } catch (JSONException e) {
       events.onSignalingParametersError("Room JSON parsing error: " + e.toString());
+    } catch (DataFormatException e) {
+      events.onSignalingParametersError("Room SDP patch error: " + e.toString());
     } catch (IOException e) {
       events.onSignalingParametersError("Room IO error: " + e.toString());
     }
@@ -179,6 +237,11 @@ public class RoomParametersFetcher {
     connection.disconnect();
     Log.d(TAG, "TURN response: " + response);
     JSONObject responseJSON = new JSONObject(response);
+    long ttlMs = turnCacheTtlMs;
+    if (responseJSON.has("lifetimeDuration")) {
+      // Credentials are valid for a limited time, never hand out ones in the second half of it.
+      ttlMs = Math.min(ttlMs, parseDurationMs(responseJSON.getString("lifetimeDuration")) / 2);
+    }
     JSONArray iceServers = responseJSON.getJSONArray("iceServers");
     for (int i = 0; i < iceServers.length(); ++i) {
       JSONObject server = iceServers.getJSONObject(i);
@@ -190,9 +253,23 @@ public class RoomParametersFetcher {
         turnServers.add(new PeerConnection.IceServer(turnUrl, username, credential));
       }
     }
+    TurnServerCache.put(url, turnServers, ttlMs);
     return turnServers;
   }
 
+  // Parses a duration such as "86400s". Returns 0 if the format is not recognized.
+  private static long parseDurationMs(String duration) {
+    if (!duration.endsWith("s")) {
+      return 0;
+    }
+    try {
+      return (long) (Double.parseDouble(duration.substring(0, duration.length() - 1)) * 1000);
+    } catch (NumberFormatException e) {
+      Log.e(TAG, "Invalid duration: " + duration);
+      return 0;
+    }
+  }
+
   // Return the list of ICE servers described by a WebRTCPeerConnection
   // configuration string.
   private LinkedList<PeerConnection.IceServer> iceServersFromPCConfigJSON(String pcConfig)
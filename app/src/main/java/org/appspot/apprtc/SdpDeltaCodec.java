@@ -0,0 +1,485 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.webrtc.StatsReport;
+
+/**
+ * Line-level delta and deflate encoding of the offers and answers sent over the WebSocket.
+ *
+ * <p>Every offer and answer carries a sequence number "seq", the "ack" of the last SDP received
+ * from the peer and the "delta" version this codec decodes. Peers that do not know the fields
+ * ignore them. Once the peer announced a version, an SDP is sent as a "patch" against the "base"
+ * SDP that the peer last acknowledged, or against the empty SDP, whichever is shorter than the
+ * full text. With deflate enabled the patch may also be compressed with raw deflate, primed with
+ * the SDP dictionary of BinarySignalingCodec, and sent in base64 with "deflate":1. Otherwise,
+ * and to peers that never announced a version, the full SDP goes out in "sdp" as before.
+ *
+ * <p>A patch is a list of operations separated by '\n' that rebuilds the lines of the SDP from the
+ * lines of the base: "=n" copies the next n lines of the base, "-n" skips them and "+text" inserts
+ * a line. Lines are split at '\n', so a line keeps its '\r'.
+ *
+ * <p>Encoding and decoding run on the signaling thread. The statistics may be read from any
+ * thread.
+ */
+final class SdpDeltaCodec {
+  /** Format version announced in "delta". A peer announcing a version decodes all earlier ones. */
+  static final int VERSION = 1;
+  /** StatsReport type of getStatsReport(). */
+  static final String STATS_TYPE = "apprtcSignaling";
+
+  private static final String STATS_ID = "sdp";
+  // Sent and received SDPs kept as bases. The peer may acknowledge an SDP while newer ones are
+  // in flight, so more than the last one is kept.
+  private static final int HISTORY_SIZE = 4;
+  // Above this many lines by lines of differing middle part, the lines are replaced wholesale
+  // instead of diffed.
+  private static final int MAX_DIFF_CELLS = 512 * 1024;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final char[] BASE64 =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+  private static final int[] BASE64_VALUES = new int[128];
+
+  static {
+    Arrays.fill(BASE64_VALUES, -1);
+    for (int i = 0; i < BASE64.length; ++i) {
+      BASE64_VALUES[BASE64[i]] = i;
+    }
+  }
+
+  private final boolean deflate;
+  private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true /* nowrap */);
+  private final Inflater inflater = new Inflater(true /* nowrap */);
+  private byte[] bytes = new byte[8 * 1024];
+
+  // Sequence number of the last SDP sent, and of the last sent SDP the peer acknowledged.
+  private int localSeq;
+  private int peerAck;
+  // Version announced by the peer, 0 if none.
+  private int peerVersion;
+  // Sequence number of the last SDP received, acknowledged in the next SDP sent.
+  private int remoteSeq;
+  private final int[] sentSeqs = new int[HISTORY_SIZE];
+  private final String[] sentSdps = new String[HISTORY_SIZE];
+  private final int[] receivedSeqs = new int[HISTORY_SIZE];
+  private final String[] receivedSdps = new String[HISTORY_SIZE];
+
+  // Diff state.
+  private final List<String> baseLines = new ArrayList<String>();
+  private final List<String> lines = new ArrayList<String>();
+  private int[] lcs = new int[0];
+  private final StringBuilder patch = new StringBuilder(1024);
+
+  // Statistics, guarded by this.
+  private int sentCount;
+  private int deltaCount;
+  private long sentTextBytes;
+  private long sentBytes;
+  private long encodeNanos;
+  private int receivedCount;
+  private long decodeNanos;
+
+  /** Creates a codec, that also deflates patches if |deflate|. */
+  SdpDeltaCodec(boolean deflate) {
+    this.deflate = deflate;
+  }
+
+  /**
+   * Fills |message| with the offer or answer |sdp| of |type|, ready for
+   * SignalingCodec.encodeSdp(Message).
+   */
+  void encode(String type, String sdp, SignalingCodec.Message message) {
+    long startNanos = System.nanoTime();
+    message.clear();
+    message.type = type;
+    message.sdpSeq = ++localSeq;
+    message.sdpAck = remoteSeq;
+    message.deltaVersion = VERSION;
+    String wire = sdp;
+    if (peerVersion > 0) {
+      String base = find(sentSeqs, sentSdps, peerAck);
+      if (base == null) {
+        base = "";
+      }
+      String delta = diff(base, sdp);
+      if (deflate) {
+        String deflated = deflate(delta);
+        if (deflated.length() < delta.length()) {
+          delta = deflated;
+          message.deflated = true;
+        }
+      }
+      if (delta.length() < sdp.length()) {
+        wire = delta;
+        message.patch = delta;
+        message.sdpBase = base.isEmpty() ? 0 : peerAck;
+      } else {
+        message.deflated = false;
+      }
+    }
+    if (message.patch.isEmpty()) {
+      message.sdp = sdp;
+    }
+    int slot = localSeq % HISTORY_SIZE;
+    sentSeqs[slot] = localSeq;
+    sentSdps[slot] = sdp;
+    long nanos = System.nanoTime() - startNanos;
+    synchronized (this) {
+      ++sentCount;
+      if (message.sdpBase > 0) {
+        ++deltaCount;
+      }
+      sentTextBytes += sdp.length();
+      sentBytes += wire.length();
+      encodeNanos += nanos;
+    }
+  }
+
+  /**
+   * Returns the SDP of the decoded offer or answer |message|, rebuilt from its patch if it has
+   * one, and records what the peer announced and acknowledged.
+   */
+  String decode(SignalingCodec.Message message) throws DataFormatException {
+    long startNanos = System.nanoTime();
+    if (message.deltaVersion > 0) {
+      peerVersion = message.deltaVersion;
+    }
+    if (message.sdpAck > peerAck && message.sdpAck <= localSeq) {
+      peerAck = message.sdpAck;
+    }
+    String sdp = message.sdp;
+    if (!message.patch.isEmpty()) {
+      String base = "";
+      if (message.sdpBase > 0) {
+        base = find(receivedSeqs, receivedSdps, message.sdpBase);
+        if (base == null) {
+          throw new DataFormatException("Unknown SDP base " + message.sdpBase);
+        }
+      }
+      sdp = apply(base, message.deflated ? inflate(message.patch) : message.patch);
+    }
+    if (message.sdpSeq > 0) {
+      remoteSeq = message.sdpSeq;
+      int slot = remoteSeq % HISTORY_SIZE;
+      receivedSeqs[slot] = remoteSeq;
+      receivedSdps[slot] = sdp;
+    }
+    long nanos = System.nanoTime() - startNanos;
+    synchronized (this) {
+      ++receivedCount;
+      decodeNanos += nanos;
+    }
+    return sdp;
+  }
+
+  /** Returns the version announced by the peer, 0 until it announced one. */
+  int getPeerVersion() {
+    return peerVersion;
+  }
+
+  /**
+   * Returns the sent bytes of offers and answers as a fraction of their full text, 1 until one
+   * was sent.
+   */
+  synchronized double getCompressionRatio() {
+    return (sentTextBytes == 0) ? 1 : (double) sentBytes / sentTextBytes;
+  }
+
+  /** Returns the statistics as a report for StatsSnapshot, with times in microseconds. */
+  synchronized StatsReport getStatsReport() {
+    StatsReport.Value[] values = {
+        new StatsReport.Value("sdpSent", Integer.toString(sentCount)),
+        new StatsReport.Value("sdpDeltasSent", Integer.toString(deltaCount)),
+        new StatsReport.Value("sdpCompressionRatio",
+            String.format(Locale.US, "%.3f", getCompressionRatio())),
+        new StatsReport.Value("sdpEncodeUs",
+            Long.toString((sentCount == 0) ? 0 : encodeNanos / sentCount / 1000)),
+        new StatsReport.Value("sdpReceived", Integer.toString(receivedCount)),
+        new StatsReport.Value("sdpDecodeUs",
+            Long.toString((receivedCount == 0) ? 0 : decodeNanos / receivedCount / 1000))};
+    return new StatsReport(STATS_ID, STATS_TYPE, System.currentTimeMillis(), values);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return sentCount + " SDPs sent, " + deltaCount + " as deltas, "
+        + (int) (100 * getCompressionRatio()) + "% of " + sentTextBytes + " bytes, "
+        + receivedCount + " received";
+  }
+
+  private static String find(int[] seqs, String[] sdps, int seq) {
+    if (seq <= 0) {
+      return null;
+    }
+    int slot = seq % HISTORY_SIZE;
+    return (seqs[slot] == seq) ? sdps[slot] : null;
+  }
+
+  // --------------------------------------------------------------------
+  // Line patches.
+
+  /** Returns the patch that turns |base| into |sdp|. */
+  String diff(String base, String sdp) {
+    split(base, baseLines);
+    split(sdp, lines);
+    int baseCount = baseLines.size();
+    int count = lines.size();
+    int prefix = 0;
+    while (prefix < baseCount && prefix < count
+        && baseLines.get(prefix).equals(lines.get(prefix))) {
+      ++prefix;
+    }
+    int suffix = 0;
+    while (suffix < baseCount - prefix && suffix < count - prefix
+        && baseLines.get(baseCount - 1 - suffix).equals(lines.get(count - 1 - suffix))) {
+      ++suffix;
+    }
+
+    patch.setLength(0);
+    appendRun('=', prefix);
+    int n = baseCount - prefix - suffix;
+    int m = count - prefix - suffix;
+    if ((long) n * m > MAX_DIFF_CELLS) {
+      appendRun('-', n);
+      for (int j = 0; j < m; ++j) {
+        appendInsert(lines.get(prefix + j));
+      }
+    } else {
+      diffMiddle(prefix, n, m);
+    }
+    appendRun('=', suffix);
+    // Drop the trailing separator.
+    if (patch.length() > 0) {
+      patch.setLength(patch.length() - 1);
+    }
+    return patch.toString();
+  }
+
+  // Appends the operations for the |n| base lines and |m| lines after |offset|, following their
+  // longest common subsequence.
+  private void diffMiddle(int offset, int n, int m) {
+    int width = m + 1;
+    int cells = (n + 1) * width;
+    if (lcs.length < cells) {
+      lcs = new int[cells];
+    }
+    // lcs[i * width + j] is the length of the longest common subsequence of the base lines from
+    // i and the lines from j.
+    for (int i = n; i >= 0; --i) {
+      for (int j = m; j >= 0; --j) {
+        int value;
+        if (i == n || j == m) {
+          value = 0;
+        } else if (baseLines.get(offset + i).equals(lines.get(offset + j))) {
+          value = lcs[(i + 1) * width + j + 1] + 1;
+        } else {
+          value = Math.max(lcs[(i + 1) * width + j], lcs[i * width + j + 1]);
+        }
+        lcs[i * width + j] = value;
+      }
+    }
+    int i = 0;
+    int j = 0;
+    int copies = 0;
+    int skips = 0;
+    while (i < n || j < m) {
+      if (i < n && j < m && baseLines.get(offset + i).equals(lines.get(offset + j))) {
+        appendRun('-', skips);
+        skips = 0;
+        ++copies;
+        ++i;
+        ++j;
+      } else if (j == m || (i < n && lcs[(i + 1) * width + j] >= lcs[i * width + j + 1])) {
+        appendRun('=', copies);
+        copies = 0;
+        ++skips;
+        ++i;
+      } else {
+        appendRun('=', copies);
+        appendRun('-', skips);
+        copies = 0;
+        skips = 0;
+        appendInsert(lines.get(offset + j));
+        ++j;
+      }
+    }
+    appendRun('=', copies);
+    appendRun('-', skips);
+  }
+
+  private void appendRun(char op, int count) {
+    if (count > 0) {
+      patch.append(op).append(count).append('\n');
+    }
+  }
+
+  private void appendInsert(String line) {
+    patch.append('+').append(line).append('\n');
+  }
+
+  /** Returns |base| with |patch| applied. */
+  String apply(String base, String patch) throws DataFormatException {
+    split(base, baseLines);
+    StringBuilder sdp = new StringBuilder(base.length() + patch.length());
+    int baseIndex = 0;
+    int start = 0;
+    boolean first = true;
+    while (start <= patch.length()) {
+      int end = patch.indexOf('\n', start);
+      if (end < 0) {
+        end = patch.length();
+      }
+      if (end == start) {
+        throw new DataFormatException("Empty SDP patch operation");
+      }
+      char op = patch.charAt(start);
+      if (op == '+') {
+        if (!first) {
+          sdp.append('\n');
+        }
+        sdp.append(patch, start + 1, end);
+        first = false;
+      } else if (op == '=' || op == '-') {
+        int count;
+        try {
+          count = Integer.parseInt(patch.substring(start + 1, end));
+        } catch (NumberFormatException e) {
+          throw new DataFormatException("Invalid SDP patch count");
+        }
+        if (count <= 0 || count > baseLines.size() - baseIndex) {
+          throw new DataFormatException("SDP patch past the end of the base");
+        }
+        if (op == '=') {
+          for (int k = 0; k < count; ++k) {
+            if (!first) {
+              sdp.append('\n');
+            }
+            sdp.append(baseLines.get(baseIndex + k));
+            first = false;
+          }
+        }
+        baseIndex += count;
+      } else {
+        throw new DataFormatException("Invalid SDP patch operation " + op);
+      }
+      start = end + 1;
+    }
+    return sdp.toString();
+  }
+
+  // Splits |text| at '\n' into |out|. Text ending with '\n' ends with an empty line.
+  private static void split(String text, List<String> out) {
+    out.clear();
+    int start = 0;
+    int end;
+    while ((end = text.indexOf('\n', start)) >= 0) {
+      out.add(text.substring(start, end));
+      start = end + 1;
+    }
+    out.add(text.substring(start));
+  }
+
+  // --------------------------------------------------------------------
+  // Deflate and base64.
+
+  private String deflate(String text) {
+    byte[] input = text.getBytes(UTF_8);
+    deflater.reset();
+    deflater.setDictionary(BinarySignalingCodec.DICTIONARY);
+    deflater.setInput(input);
+    deflater.finish();
+    int length = 0;
+    while (!deflater.finished()) {
+      if (length == bytes.length) {
+        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+      }
+      length += deflater.deflate(bytes, length, bytes.length - length);
+    }
+    return encodeBase64(bytes, length);
+  }
+
+  private String inflate(String base64) throws DataFormatException {
+    byte[] input = decodeBase64(base64);
+    inflater.reset();
+    inflater.setDictionary(BinarySignalingCodec.DICTIONARY);
+    inflater.setInput(input);
+    int length = 0;
+    while (!inflater.finished()) {
+      if (length == bytes.length) {
+        if (bytes.length >= TCPMessageCodec.MAX_MESSAGE_SIZE) {
+          throw new DataFormatException("SDP too large");
+        }
+        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+      }
+      int inflated = inflater.inflate(bytes, length, bytes.length - length);
+      if (inflated == 0 && inflater.needsInput()) {
+        throw new DataFormatException("Truncated SDP patch");
+      }
+      length += inflated;
+    }
+    return new String(bytes, 0, length, UTF_8);
+  }
+
+  static String encodeBase64(byte[] data, int length) {
+    StringBuilder out = new StringBuilder((length + 2) / 3 * 4);
+    for (int i = 0; i < length; i += 3) {
+      int remaining = length - i;
+      int bits = (data[i] & 0xff) << 16;
+      if (remaining > 1) {
+        bits |= (data[i + 1] & 0xff) << 8;
+      }
+      if (remaining > 2) {
+        bits |= data[i + 2] & 0xff;
+      }
+      out.append(BASE64[bits >> 18]).append(BASE64[(bits >> 12) & 0x3f]);
+      out.append((remaining > 1) ? BASE64[(bits >> 6) & 0x3f] : '=');
+      out.append((remaining > 2) ? BASE64[bits & 0x3f] : '=');
+    }
+    return out.toString();
+  }
+
+  static byte[] decodeBase64(String text) throws DataFormatException {
+    int length = text.length();
+    if (length % 4 != 0) {
+      throw new DataFormatException("Invalid base64 length");
+    }
+    int padding = 0;
+    while (padding < 2 && length > padding && text.charAt(length - 1 - padding) == '=') {
+      ++padding;
+    }
+    byte[] out = new byte[length / 4 * 3 - padding];
+    int position = 0;
+    for (int i = 0; i < length; i += 4) {
+      int bits = 0;
+      for (int k = 0; k < 4; ++k) {
+        char c = text.charAt(i + k);
+        int value = (c == '=' && i + k >= length - padding) ? 0
+            : (c < 128) ? BASE64_VALUES[c] : -1;
+        if (value < 0) {
+          throw new DataFormatException("Invalid base64 character");
+        }
+        bits = (bits << 6) | value;
+      }
+      for (int k = 0; k < 3 && position < out.length; ++k) {
+        out[position++] = (byte) (bits >> (16 - 8 * k));
+      }
+    }
+    return out;
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.appspot.apprtc.SessionDescriptionModel.MediaSection;
+
+/**
+ * Codec preference and bitrate edits applied to session descriptions.
+ *
+ * <p>A list of edits (codec preference on the m= line, start bitrate on the
+ * a=fmtp line) is registered once and then applied to any number of
+ * SessionDescriptionModels with apply(), which finds the payload types and
+ * lines to change through the model's indexes instead of scanning text.
+ *
+ * <p>The class has no Android dependencies so it can be exercised on the JVM.
+ * Registering edits is not thread safe. apply() only reads the edits and keeps
+ * no state between calls, so a rewriter whose edits are all registered before
+ * it is shared, for example through a final field, may be used from several
+ * threads.
+ */
+public class SdpRewriter {
+  private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
+  private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
+
+  private final List<Edit> edits = new ArrayList<Edit>();
+
+  /** Base class for a single edit. */
+  private abstract static class Edit {
+    final String codec;
+
+    Edit(String codec) {
+      this.codec = codec;
+    }
+  }
+
+  // Move |codec| to the front of the payload list of the first m=<media> line.
+  private static class PreferCodecEdit extends Edit {
+    final String media;
+
+    PreferCodecEdit(String codec, boolean isAudio) {
+      super(codec);
+      media = isAudio ? "audio" : "video";
+    }
+
+    @Override
+    public String toString() {
+      return "prefer " + codec + " on m=" + media;
+    }
+  }
+
+  // Add a bitrate parameter to the a=fmtp line of |codec|, creating the line if
+  // it does not exist.
+  private static class StartBitrateEdit extends Edit {
+    final String parameter;
+
+    StartBitrateEdit(String codec, boolean isVideoCodec, int bitrateKbps) {
+      super(codec);
+      if (isVideoCodec) {
+        parameter = VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
+      } else {
+        parameter = AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "set " + parameter + " for " + codec;
+    }
+  }
+
+  /**
+   * Move the payload type of |codec| to the front of the first audio or video
+   * m= line.
+   */
+  public SdpRewriter preferCodec(String codec, boolean isAudio) {
+    edits.add(new PreferCodecEdit(codec, isAudio));
+    return this;
+  }
+
+  /**
+   * Set the start bitrate (video) or the maximum average bitrate (audio) of
+   * |codec| through its a=fmtp line.
+   */
+  public SdpRewriter setStartBitrate(String codec, boolean isVideoCodec, int bitrateKbps) {
+    edits.add(new StartBitrateEdit(codec, isVideoCodec, bitrateKbps));
+    return this;
+  }
+
+  public boolean isEmpty() {
+    return edits.isEmpty();
+  }
+
+  /**
+   * Applies all registered edits to |model| and returns descriptions of the
+   * edits that could not be applied.
+   */
+  public List<String> apply(SessionDescriptionModel model) {
+    List<String> skippedEdits = new ArrayList<String>();
+    for (Edit edit : edits) {
+      if (edit instanceof PreferCodecEdit) {
+        MediaSection section = model.getSection(((PreferCodecEdit) edit).media);
+        String payloadType = section == null ? null : section.getPayloadType(edit.codec);
+        if (payloadType == null) {
+          skippedEdits.add(edit.toString());
+        } else if (!section.preferPayloadType(payloadType)) {
+          skippedEdits.add(edit + ": wrong media description format");
+        }
+      } else {
+        boolean applied = false;
+        for (MediaSection section : model.getSections()) {
+          String payloadType = section.getPayloadType(edit.codec);
+          if (payloadType != null) {
+            section.addFmtpParameter(payloadType, ((StartBitrateEdit) edit).parameter);
+            applied = true;
+            break;
+          }
+        }
+        if (!applied) {
+          skippedEdits.add(edit.toString());
+        }
+      }
+    }
+    return skippedEdits;
+  }
+}
@@ -0,0 +1,396 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.webrtc.SessionDescription;
+
+/**
+ * Parsed and indexed view of a SessionDescription.
+ *
+ * <p>The description string is scanned once. Lines are kept as offsets into
+ * the original string and every m= section indexes its rtpmap payload types,
+ * fmtp lines and ssrc groups, so lookups such as "payload type of VP9 in the
+ * video section" are hash lookups. Edits only materialize the lines of the
+ * section they touch and mark it dirty. Serialization copies clean sections
+ * verbatim from the original string and re-emits dirty ones; a model without
+ * edits serializes to the original string itself.
+ *
+ * <p>This class is not thread-safe.
+ */
+public class SessionDescriptionModel {
+  private static final String LINE_END = "\r\n";
+  private static final String RTPMAP_PREFIX = "a=rtpmap:";
+  private static final String FMTP_PREFIX = "a=fmtp:";
+  private static final String MID_PREFIX = "a=mid:";
+  private static final String SSRC_GROUP_PREFIX = "a=ssrc-group:";
+
+  private final SessionDescription.Type type;
+  private final String original;
+  // End offset of the session-level lines, i.e. start of the first m= line.
+  private final int sessionEnd;
+  private final List<MediaSection> sections;
+  private final Map<String, MediaSection> sectionByMedia;
+  private final Map<String, MediaSection> sectionByMid;
+  private String serialized;
+
+  /**
+   * Group of ssrcs declared with a=ssrc-group:<semantics> <ssrc> ...
+   */
+  public static class SsrcGroup {
+    public final String semantics;
+    public final List<String> ssrcs;
+
+    SsrcGroup(String semantics, List<String> ssrcs) {
+      this.semantics = semantics;
+      this.ssrcs = ssrcs;
+    }
+  }
+
+  /**
+   * One m= section. The m= line is always line 0.
+   */
+  public class MediaSection {
+    private final String media;
+    private final int start;
+    private int end;
+    // Line offsets into |original| while the section is clean.
+    private int[] lineStarts;
+    private int[] lineEnds;
+    private int lineCount;
+    // Materialized lines once the section is dirty.
+    private List<String> lines;
+    private String mid;
+    // Codec name -> payload type of its first rtpmap line.
+    private final Map<String, String> payloadTypeByCodec = new HashMap<String, String>();
+    // Payload type -> index of its rtpmap / fmtp line.
+    private final Map<String, Integer> rtpmapLineByPayloadType = new HashMap<String, Integer>();
+    private final Map<String, Integer> fmtpLineByPayloadType = new HashMap<String, Integer>();
+    private final List<SsrcGroup> ssrcGroups = new ArrayList<SsrcGroup>();
+
+    private MediaSection(String media, int start) {
+      this.media = media;
+      this.start = start;
+      lineStarts = new int[16];
+      lineEnds = new int[16];
+    }
+
+    public String getMedia() {
+      return media;
+    }
+
+    /** Returns the a=mid value or null if the section has none. */
+    public String getMid() {
+      return mid;
+    }
+
+    public boolean isDirty() {
+      return lines != null;
+    }
+
+    public int getLineCount() {
+      return lines != null ? lines.size() : lineCount;
+    }
+
+    public String getLine(int index) {
+      if (lines != null) {
+        return lines.get(index);
+      }
+      return original.substring(lineStarts[index], lineEnds[index]);
+    }
+
+    /** Returns the payload type mapped to |codec| or null if there is none. */
+    public String getPayloadType(String codec) {
+      return payloadTypeByCodec.get(codec);
+    }
+
+    /** Returns the a=fmtp line of |payloadType| or null if there is none. */
+    public String getFmtpLine(String payloadType) {
+      Integer index = fmtpLineByPayloadType.get(payloadType);
+      return index == null ? null : getLine(index);
+    }
+
+    public List<SsrcGroup> getSsrcGroups() {
+      return Collections.unmodifiableList(ssrcGroups);
+    }
+
+    /**
+     * Moves |payloadType| to the front of the format list of the m= line.
+     * Returns false if the m= line is malformed.
+     * Format is: m=<media> <port> <proto> <fmt> ...
+     */
+    public boolean preferPayloadType(String payloadType) {
+      String[] parts = getLine(0).split(" ");
+      if (parts.length <= 3) {
+        return false;
+      }
+      StringBuilder mLine = new StringBuilder();
+      mLine.append(parts[0]).append(" ").append(parts[1]).append(" ").append(parts[2]).append(" ");
+      mLine.append(payloadType);
+      for (int i = 3; i < parts.length; i++) {
+        if (!parts[i].equals(payloadType)) {
+          mLine.append(" ").append(parts[i]);
+        }
+      }
+      setLine(0, mLine.toString());
+      return true;
+    }
+
+    /**
+     * Adds |parameter| (name=value) to the a=fmtp line of |payloadType|. An
+     * existing line of the form a=fmtp:<pt> <name>=<number>... is extended,
+     * otherwise a new a=fmtp line is inserted after the rtpmap line.
+     */
+    public void addFmtpParameter(String payloadType, String parameter) {
+      Integer fmtpIndex = fmtpLineByPayloadType.get(payloadType);
+      if (fmtpIndex != null) {
+        String fmtpLine = getLine(fmtpIndex);
+        if (hasNumericParameter(fmtpLine, FMTP_PREFIX.length() + payloadType.length() + 1)) {
+          setLine(fmtpIndex, fmtpLine + "; " + parameter);
+          return;
+        }
+      }
+      Integer rtpmapIndex = rtpmapLineByPayloadType.get(payloadType);
+      int insertAt = rtpmapIndex == null ? getLineCount() : rtpmapIndex + 1;
+      insertLine(insertAt, FMTP_PREFIX + payloadType + " " + parameter);
+      if (fmtpIndex == null) {
+        fmtpLineByPayloadType.put(payloadType, insertAt);
+      }
+    }
+
+    /** Replaces line |index| and marks the section dirty. */
+    public void setLine(int index, String line) {
+      materialize();
+      lines.set(index, line);
+      serialized = null;
+    }
+
+    /** Inserts |line| before line |index| and marks the section dirty. */
+    public void insertLine(int index, String line) {
+      materialize();
+      lines.add(index, line);
+      shiftIndexes(rtpmapLineByPayloadType, index);
+      shiftIndexes(fmtpLineByPayloadType, index);
+      serialized = null;
+    }
+
+    private void materialize() {
+      if (lines != null) {
+        return;
+      }
+      lines = new ArrayList<String>(lineCount + 1);
+      for (int i = 0; i < lineCount; i++) {
+        lines.add(original.substring(lineStarts[i], lineEnds[i]));
+      }
+      lineStarts = null;
+      lineEnds = null;
+    }
+
+    private void addLine(int lineStart, int lineEnd) {
+      if (lineCount == lineStarts.length) {
+        int[] newStarts = new int[lineCount * 2];
+        int[] newEnds = new int[lineCount * 2];
+        System.arraycopy(lineStarts, 0, newStarts, 0, lineCount);
+        System.arraycopy(lineEnds, 0, newEnds, 0, lineCount);
+        lineStarts = newStarts;
+        lineEnds = newEnds;
+      }
+      int index = lineCount++;
+      lineStarts[index] = lineStart;
+      lineEnds[index] = lineEnd;
+
+      if (original.startsWith(RTPMAP_PREFIX, lineStart)) {
+        // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
+        int ptStart = lineStart + RTPMAP_PREFIX.length();
+        int space = original.indexOf(' ', ptStart);
+        if (space < 0 || space >= lineEnd) {
+          return;
+        }
+        int slash = original.indexOf('/', space);
+        if (slash < 0 || slash >= lineEnd) {
+          return;
+        }
+        String payloadType = original.substring(ptStart, space);
+        String codec = original.substring(space + 1, slash);
+        rtpmapLineByPayloadType.put(payloadType, index);
+        if (!payloadTypeByCodec.containsKey(codec)) {
+          payloadTypeByCodec.put(codec, payloadType);
+        }
+      } else if (original.startsWith(FMTP_PREFIX, lineStart)) {
+        int ptStart = lineStart + FMTP_PREFIX.length();
+        int space = original.indexOf(' ', ptStart);
+        if (space > 0 && space < lineEnd) {
+          String payloadType = original.substring(ptStart, space);
+          if (!fmtpLineByPayloadType.containsKey(payloadType)) {
+            fmtpLineByPayloadType.put(payloadType, index);
+          }
+        }
+      } else if (original.startsWith(MID_PREFIX, lineStart)) {
+        mid = original.substring(lineStart + MID_PREFIX.length(), lineEnd);
+      } else if (original.startsWith(SSRC_GROUP_PREFIX, lineStart)) {
+        String[] parts =
+            original.substring(lineStart + SSRC_GROUP_PREFIX.length(), lineEnd).split(" ");
+        List<String> ssrcs = new ArrayList<String>(parts.length - 1);
+        for (int i = 1; i < parts.length; i++) {
+          ssrcs.add(parts[i]);
+        }
+        ssrcGroups.add(new SsrcGroup(parts[0], ssrcs));
+      }
+    }
+
+    private void serialize(StringBuilder out) {
+      if (lines == null) {
+        out.append(original, start, end);
+        if (end > start && original.charAt(end - 1) != '\n') {
+          out.append(LINE_END);
+        }
+        return;
+      }
+      for (String line : lines) {
+        out.append(line).append(LINE_END);
+      }
+    }
+  }
+
+  private SessionDescriptionModel(SessionDescription.Type type, String original) {
+    this.type = type;
+    this.original = original;
+    sections = new ArrayList<MediaSection>();
+    sectionByMedia = new HashMap<String, MediaSection>();
+    sectionByMid = new HashMap<String, MediaSection>();
+
+    final int length = original.length();
+    int firstMediaStart = length;
+    MediaSection section = null;
+    int lineStart = 0;
+    while (lineStart < length) {
+      int lineEnd = original.indexOf('\n', lineStart);
+      int next;
+      if (lineEnd < 0) {
+        lineEnd = length;
+        next = length;
+      } else {
+        next = lineEnd + 1;
+      }
+      int contentEnd = lineEnd;
+      if (contentEnd > lineStart && original.charAt(contentEnd - 1) == '\r') {
+        contentEnd--;
+      }
+      if (original.startsWith("m=", lineStart)) {
+        if (section == null) {
+          firstMediaStart = lineStart;
+        } else {
+          addSection(section, lineStart);
+        }
+        int mediaEnd = original.indexOf(' ', lineStart);
+        if (mediaEnd < 0 || mediaEnd > contentEnd) {
+          mediaEnd = contentEnd;
+        }
+        section = new MediaSection(original.substring(lineStart + 2, mediaEnd), lineStart);
+      }
+      if (section != null && contentEnd > lineStart) {
+        section.addLine(lineStart, contentEnd);
+      }
+      lineStart = next;
+    }
+    if (section != null) {
+      addSection(section, length);
+    }
+    sessionEnd = firstMediaStart;
+    serialized = original;
+  }
+
+  /** Parses |sdp|. */
+  public static SessionDescriptionModel parse(SessionDescription sdp) {
+    return new SessionDescriptionModel(sdp.type, sdp.description);
+  }
+
+  public SessionDescription.Type getType() {
+    return type;
+  }
+
+  public List<MediaSection> getSections() {
+    return Collections.unmodifiableList(sections);
+  }
+
+  /** Returns the first section with m=<media>, or null. */
+  public MediaSection getSection(String media) {
+    return sectionByMedia.get(media);
+  }
+
+  /** Returns the section with a=mid:<mid>, or null. */
+  public MediaSection getSectionByMid(String mid) {
+    return sectionByMid.get(mid);
+  }
+
+  public boolean isDirty() {
+    return serialized == null;
+  }
+
+  /** Returns the description, re-serializing only the dirty sections. */
+  public String getDescription() {
+    if (serialized == null) {
+      StringBuilder out = new StringBuilder(original.length() + 128);
+      out.append(original, 0, sessionEnd);
+      for (MediaSection section : sections) {
+        section.serialize(out);
+      }
+      serialized = out.toString();
+    }
+    return serialized;
+  }
+
+  public SessionDescription toSessionDescription() {
+    return new SessionDescription(type, getDescription());
+  }
+
+  @Override
+  public String toString() {
+    return getDescription();
+  }
+
+  private void addSection(MediaSection section, int end) {
+    section.end = end;
+    sections.add(section);
+    if (!sectionByMedia.containsKey(section.media)) {
+      sectionByMedia.put(section.media, section);
+    }
+    if (section.mid != null && !sectionByMid.containsKey(section.mid)) {
+      sectionByMid.put(section.mid, section);
+    }
+  }
+
+  private static void shiftIndexes(Map<String, Integer> indexes, int insertedAt) {
+    for (Map.Entry<String, Integer> entry : indexes.entrySet()) {
+      if (entry.getValue() >= insertedAt) {
+        entry.setValue(entry.getValue() + 1);
+      }
+    }
+  }
+
+  // Checks for <name>=<digit> at |pos|, the format of an updatable fmtp line.
+  private static boolean hasNumericParameter(String line, int pos) {
+    int nameStart = pos;
+    while (pos < line.length() && isWordChar(line.charAt(pos))) {
+      pos++;
+    }
+    return pos > nameStart && pos + 1 < line.length() && line.charAt(pos) == '='
+        && Character.isDigit(line.charAt(pos + 1));
+  }
+
+  private static boolean isWordChar(char c) {
+    return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+  }
+}
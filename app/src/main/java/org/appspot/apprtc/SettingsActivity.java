@@ -30,6 +30,8 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
   private String keyprefResolution;
   private String keyprefFps;
   private String keyprefCaptureQualitySlider;
+  private String keyprefAutoQuality;
+  private String keyprefPerformanceGovernor;
   private String keyprefMaxVideoBitrateType;
   private String keyprefMaxVideoBitrateValue;
   private String keyPrefVideoCodec;
@@ -52,6 +54,13 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
   private String keyPrefRoomServerUrl;
   private String keyPrefDisplayHud;
   private String keyPrefTracing;
+  private String keyPrefTcpFraming;
+  private String keyPrefTcpBinarySignaling;
+  private String keyPrefSdpDeflate;
+  private String keyPrefCallRecovery;
+  private String keyPrefIceBatchWindow;
+  private String keyPrefTurnCacheTtl;
+  private String keyPrefRecordStats;
 
   private String keyprefEnableDataChannel;
   private String keyprefOrdered;
@@ -70,6 +79,8 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     keyprefResolution = getString(R.string.pref_resolution_key);
     keyprefFps = getString(R.string.pref_fps_key);
     keyprefCaptureQualitySlider = getString(R.string.pref_capturequalityslider_key);
+    keyprefAutoQuality = getString(R.string.pref_auto_quality_key);
+    keyprefPerformanceGovernor = getString(R.string.pref_performance_governor_key);
     keyprefMaxVideoBitrateType = getString(R.string.pref_maxvideobitrate_key);
     keyprefMaxVideoBitrateValue = getString(R.string.pref_maxvideobitratevalue_key);
     keyPrefVideoCodec = getString(R.string.pref_videocodec_key);
@@ -100,6 +111,13 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     keyPrefRoomServerUrl = getString(R.string.pref_room_server_url_key);
     keyPrefDisplayHud = getString(R.string.pref_displayhud_key);
     keyPrefTracing = getString(R.string.pref_tracing_key);
+    keyPrefTcpFraming = getString(R.string.pref_tcp_framing_key);
+    keyPrefTcpBinarySignaling = getString(R.string.pref_tcp_binary_signaling_key);
+    keyPrefSdpDeflate = getString(R.string.pref_sdp_deflate_key);
+    keyPrefCallRecovery = getString(R.string.pref_call_recovery_key);
+    keyPrefIceBatchWindow = getString(R.string.pref_ice_batch_window_key);
+    keyPrefTurnCacheTtl = getString(R.string.pref_turn_cache_ttl_key);
+    keyPrefRecordStats = getString(R.string.pref_record_stats_key);
 
     // Display the fragment as the main content.
     settingsFragment = new SettingsFragment();
@@ -122,6 +140,8 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     updateSummary(sharedPreferences, keyprefResolution);
     updateSummary(sharedPreferences, keyprefFps);
     updateSummaryB(sharedPreferences, keyprefCaptureQualitySlider);
+    updateSummaryB(sharedPreferences, keyprefAutoQuality);
+    updateSummaryB(sharedPreferences, keyprefPerformanceGovernor);
     updateSummary(sharedPreferences, keyprefMaxVideoBitrateType);
     updateSummaryBitrate(sharedPreferences, keyprefMaxVideoBitrateValue);
     setVideoBitrateEnable(sharedPreferences);
@@ -155,6 +175,13 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     updateSummary(sharedPreferences, keyPrefRoomServerUrl);
     updateSummaryB(sharedPreferences, keyPrefDisplayHud);
     updateSummaryB(sharedPreferences, keyPrefTracing);
+    updateSummaryB(sharedPreferences, keyPrefTcpFraming);
+    updateSummaryB(sharedPreferences, keyPrefTcpBinarySignaling);
+    updateSummaryB(sharedPreferences, keyPrefSdpDeflate);
+    updateSummaryB(sharedPreferences, keyPrefCallRecovery);
+    updateSummary(sharedPreferences, keyPrefIceBatchWindow);
+    updateSummary(sharedPreferences, keyPrefTurnCacheTtl);
+    updateSummaryB(sharedPreferences, keyPrefRecordStats);
 
     if (!Camera2Enumerator.isSupported(this)) {
       Preference camera2Preference = settingsFragment.findPreference(keyprefCamera2);
@@ -211,6 +238,8 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
         || key.equals(keyprefStartAudioBitrateType)
         || key.equals(keyPrefAudioCodec)
         || key.equals(keyPrefRoomServerUrl)
+        || key.equals(keyPrefIceBatchWindow)
+        || key.equals(keyPrefTurnCacheTtl)
         || key.equals(keyprefMaxRetransmitTimeMs)
         || key.equals(keyprefMaxRetransmits)
         || key.equals(keyprefDataProtocol)
@@ -223,7 +252,14 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
         || key.equals(keyprefScreencapture)
         || key.equals(keyprefCamera2)
         || key.equals(keyPrefTracing)
+        || key.equals(keyPrefTcpFraming)
+        || key.equals(keyPrefTcpBinarySignaling)
+        || key.equals(keyPrefSdpDeflate)
+        || key.equals(keyPrefCallRecovery)
+        || key.equals(keyPrefRecordStats)
         || key.equals(keyprefCaptureQualitySlider)
+        || key.equals(keyprefAutoQuality)
+        || key.equals(keyprefPerformanceGovernor)
         || key.equals(keyprefHwCodec)
         || key.equals(keyprefCaptureToTexture)
         || key.equals(keyprefFlexfec)
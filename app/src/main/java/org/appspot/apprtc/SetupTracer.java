@@ -0,0 +1,227 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the phases of a call setup as (phase, thread, time) events in a fixed size ring, and
+ * exports them as Chrome trace event JSON.
+ *
+ * <p>Times come from System.nanoTime(), the monotonic clock of the native trace written by
+ * PeerConnectionFactory.startInternalTracingCapture(), so both files can be loaded together in
+ * chrome://tracing. Threads are identified by their Java id and name.
+ *
+ * <p>Recording claims a slot with one atomic increment and does not allocate, so any thread may
+ * record, including the WebRTC threads. Once the ring is full the oldest events are overwritten.
+ * Events that are overwritten while being exported are skipped.
+ */
+final class SetupTracer {
+  static final int ROOM_POST = 0;
+  static final int TURN_FETCH = 1;
+  static final int WS_OPEN = 2;
+  static final int WS_REGISTER = 3;
+  static final int FACTORY_CREATE = 4;
+  static final int CAPTURER_START = 5;
+  static final int CREATE_OFFER = 6;
+  static final int CREATE_ANSWER = 7;
+  static final int SDP_MUNGE = 8;
+  static final int SET_LOCAL_DESCRIPTION = 9;
+  static final int SET_REMOTE_DESCRIPTION = 10;
+  static final int FIRST_CANDIDATE = 11;
+  static final int ICE_CHECKING = 12;
+  static final int ICE_CONNECTED = 13;
+  static final int FIRST_REMOTE_FRAME = 14;
+  // Recovery of an interrupted call.
+  static final int WS_RECONNECT = 15;
+  static final int ICE_RESTART = 16;
+  static final int CALL_RECOVERY = 17;
+  static final int PHASE_COUNT = 18;
+
+  static final String[] PHASE_NAMES = {"room_post", "turn_fetch", "ws_open", "ws_register",
+      "factory_create", "capturer_start", "create_offer", "create_answer", "sdp_munge",
+      "set_local_description", "set_remote_description", "first_candidate", "ice_checking",
+      "ice_connected", "first_remote_frame", "ws_reconnect", "ice_restart", "call_recovery"};
+
+  static final int DEFAULT_CAPACITY = 1024;
+
+  private static final int TYPE_BEGIN = 0;
+  private static final int TYPE_END = 1;
+  private static final int TYPE_INSTANT = 2;
+  private static final String[] TYPE_PHASES = {"B", "E", "i"};
+  private static final String CATEGORY = "apprtc";
+
+  private static SetupTracer defaultTracer;
+
+  private final int mask;
+  // Phase and type of each slot, packed as phase << 2 | type.
+  private final int[] events;
+  private final long[] timesNs;
+  private final long[] threadIds;
+  private final String[] threadNames;
+  // Sequence number + 1 of the event in each slot, 0 while the slot is written.
+  private final AtomicLongArray published;
+  private final AtomicLong nextSequence = new AtomicLong();
+  private volatile long firstSequence;
+  // Bit per phase recorded by once().
+  private final AtomicInteger oncePhases = new AtomicInteger();
+
+  /** Creates a tracer holding the last |capacity| events, which must be a power of two. */
+  SetupTracer(int capacity) {
+    if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+      throw new IllegalArgumentException("Capacity is not a power of two: " + capacity);
+    }
+    mask = capacity - 1;
+    events = new int[capacity];
+    timesNs = new long[capacity];
+    threadIds = new long[capacity];
+    threadNames = new String[capacity];
+    published = new AtomicLongArray(capacity);
+  }
+
+  /** Returns the tracer of the process, which every call setup records to. */
+  static synchronized SetupTracer getDefault() {
+    if (defaultTracer == null) {
+      defaultTracer = new SetupTracer(DEFAULT_CAPACITY);
+    }
+    return defaultTracer;
+  }
+
+  void begin(int phase) {
+    record(phase, TYPE_BEGIN);
+  }
+
+  void end(int phase) {
+    record(phase, TYPE_END);
+  }
+
+  void instant(int phase) {
+    record(phase, TYPE_INSTANT);
+  }
+
+  /** Records an instant of |phase| only the first time it is reached since reset(). */
+  void once(int phase) {
+    int bit = 1 << phase;
+    int phases;
+    do {
+      phases = oncePhases.get();
+      if ((phases & bit) != 0) {
+        return;
+      }
+    } while (!oncePhases.compareAndSet(phases, phases | bit));
+    record(phase, TYPE_INSTANT);
+  }
+
+  private void record(int phase, int type) {
+    long timeNs = System.nanoTime();
+    Thread thread = Thread.currentThread();
+    long sequence = nextSequence.getAndIncrement();
+    int slot = (int) sequence & mask;
+    published.set(slot, 0);
+    events[slot] = phase << 2 | type;
+    timesNs[slot] = timeNs;
+    threadIds[slot] = thread.getId();
+    threadNames[slot] = thread.getName();
+    published.set(slot, sequence + 1);
+  }
+
+  /** Drops the recorded events, e.g. once a call ended. */
+  void reset() {
+    firstSequence = nextSequence.get();
+    oncePhases.set(0);
+  }
+
+  /** Returns the number of events recorded since reset() and still in the ring. */
+  int getEventCount() {
+    long end = nextSequence.get();
+    return (int) (end - Math.max(firstSequence, end - events.length));
+  }
+
+  /**
+   * Writes the events recorded since reset() to |writer| as a Chrome trace event JSON object,
+   * with |pid| as the process id. Timestamps are in microseconds. Returns the number of events
+   * written.
+   */
+  int writeChromeTrace(Writer writer, int pid) throws IOException {
+    long end = nextSequence.get();
+    long start = Math.max(firstSequence, end - events.length);
+    Map<Long, String> threads = new HashMap<Long, String>();
+    int count = 0;
+    writer.write("{\"traceEvents\":[");
+    for (long sequence = start; sequence < end; ++sequence) {
+      int slot = (int) sequence & mask;
+      if (published.get(slot) != sequence + 1) {
+        continue;
+      }
+      int event = events[slot];
+      long timeNs = timesNs[slot];
+      long threadId = threadIds[slot];
+      String threadName = threadNames[slot];
+      if (published.get(slot) != sequence + 1) {
+        continue;
+      }
+      int type = event & 3;
+      if (count > 0) {
+        writer.write(',');
+      }
+      writer.write("{\"name\":\"" + PHASE_NAMES[event >> 2] + "\",\"cat\":\"" + CATEGORY
+          + "\",\"ph\":\"" + TYPE_PHASES[type] + "\",\"ts\":"
+          + String.format(Locale.US, "%.3f", timeNs / 1000.0)
+          + ",\"pid\":" + pid + ",\"tid\":" + threadId
+          + (type == TYPE_INSTANT ? ",\"s\":\"t\"}" : "}"));
+      threads.put(threadId, threadName);
+      ++count;
+    }
+    // Every named thread recorded an event, so a comma is always needed.
+    for (Map.Entry<Long, String> thread : threads.entrySet()) {
+      writer.write(",{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + pid + ",\"tid\":"
+          + thread.getKey() + ",\"args\":{\"name\":\"" + escape(thread.getValue()) + "\"}}");
+    }
+    writer.write("],\"displayTimeUnit\":\"ms\"}");
+    return count;
+  }
+
+  /** Writes the events recorded since reset() to |file|, see writeChromeTrace(Writer, int). */
+  int writeChromeTrace(File file, int pid) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    try {
+      return writeChromeTrace(writer, pid);
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static String escape(String value) {
+    StringBuilder builder = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        builder.append('\\').append(c);
+      } else if (c < 0x20) {
+        builder.append(String.format(Locale.US, "\\u%04x", (int) c));
+      } else {
+        builder.append(c);
+      }
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,678 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONException;
+import org.webrtc.IceCandidate;
+
+/**
+ * JSON codec of the signaling messages: offers and answers, single and batched ICE candidates,
+ * candidate removals and bye, plus the WebSocket server envelopes that carry them and the hello
+ * of direct connections. Offers and answers may carry the fields of SdpDeltaCodec.
+ *
+ * <p>Decoding is a single streaming pass over the text into a reused Message, without building
+ * JSON objects. A WebSocket envelope carries its payload as a JSON string, and the payload is
+ * parsed while that string is unescaped, so it is never copied out first. Unknown fields are
+ * skipped, and fields may come in any order.
+ *
+ * <p>Encoding writes straight into a reused buffer. Payloads still have to be escaped again
+ * inside the envelope, but '/' is never escaped, unlike with JSONObject, which saves a few
+ * hundred bytes on every SDP.
+ *
+ * <p>Not thread safe, use one codec per signaling thread.
+ */
+final class SignalingCodec {
+  static final String TYPE_OFFER = "offer";
+  static final String TYPE_ANSWER = "answer";
+  static final String TYPE_CANDIDATE = "candidate";
+  static final String TYPE_CANDIDATES = "candidates";
+  static final String TYPE_REMOVE_CANDIDATES = "remove-candidates";
+  static final String TYPE_BYE = "bye";
+  static final String TYPE_HELLO = "hello";
+
+  private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+  // Returned by read() at the end of the text, or of the envelope string while in it.
+  private static final int END = -1;
+  private static final int NONE = -2;
+
+  // Field names, matched without allocating.
+  private static final String[] FIELDS = {"type", "sdp", "id", "label", "candidate",
+      "candidates", "msg", "error", "binary", "seq", "ack", "delta", "base", "patch",
+      "deflate"};
+  private static final int FIELD_UNKNOWN = -1;
+  private static final int FIELD_TYPE = 0;
+  private static final int FIELD_SDP = 1;
+  private static final int FIELD_ID = 2;
+  private static final int FIELD_LABEL = 3;
+  private static final int FIELD_CANDIDATE = 4;
+  private static final int FIELD_CANDIDATES = 5;
+  private static final int FIELD_MSG = 6;
+  private static final int FIELD_ERROR = 7;
+  private static final int FIELD_BINARY = 8;
+  private static final int FIELD_SEQ = 9;
+  private static final int FIELD_ACK = 10;
+  private static final int FIELD_DELTA = 11;
+  private static final int FIELD_BASE = 12;
+  private static final int FIELD_PATCH = 13;
+  private static final int FIELD_DEFLATE = 14;
+
+  private static final String[] TYPES = {TYPE_OFFER, TYPE_ANSWER, TYPE_CANDIDATE,
+      TYPE_CANDIDATES, TYPE_REMOVE_CANDIDATES, TYPE_BYE, TYPE_HELLO};
+
+  /** Fields of one decoded message, valid until the next decode. Absent strings are empty. */
+  static final class Message {
+    String type = "";
+    String sdp = "";
+    // Error text of a WebSocket envelope.
+    String error = "";
+    // The candidate of a candidate message, or the candidates of the other candidate messages.
+    final List<IceCandidate> candidates = new ArrayList<IceCandidate>();
+    // BinarySignalingCodec version announced by a hello, 0 if none.
+    int binaryVersion;
+    // SdpDeltaCodec fields of an offer or answer, 0 or empty if absent. An offer or answer has
+    // either an sdp or a patch.
+    int sdpSeq;
+    int sdpAck;
+    int deltaVersion;
+    int sdpBase;
+    String patch = "";
+    boolean deflated;
+
+    void clear() {
+      type = "";
+      sdp = "";
+      error = "";
+      candidates.clear();
+      binaryVersion = 0;
+      sdpSeq = 0;
+      sdpAck = 0;
+      deltaVersion = 0;
+      sdpBase = 0;
+      patch = "";
+      deflated = false;
+    }
+
+    boolean hasPayload() {
+      return type.length() > 0;
+    }
+
+    IceCandidate[] getCandidates() {
+      return candidates.toArray(new IceCandidate[candidates.size()]);
+    }
+  }
+
+  // Decoding state.
+  private final Message message = new Message();
+  private String text;
+  private int pos;
+  private int peeked = NONE;
+  // True while reading the payload out of the string of a WebSocket envelope.
+  private boolean embedded;
+  private final StringBuilder stringBuilder = new StringBuilder(INITIAL_BUFFER_SIZE);
+
+  // Encoding buffer.
+  private final StringBuilder buffer = new StringBuilder(INITIAL_BUFFER_SIZE);
+
+  // --------------------------------------------------------------------
+  // Encoding.
+
+  /** Encodes an offer or answer. */
+  String encodeSdp(String type, String sdp) {
+    buffer.setLength(0);
+    buffer.append("{\"type\":");
+    appendString(buffer, type);
+    buffer.append(",\"sdp\":");
+    appendString(buffer, sdp);
+    return buffer.append('}').toString();
+  }
+
+  /** Encodes an offer or answer filled in by SdpDeltaCodec.encode(). */
+  String encodeSdp(Message message) {
+    buffer.setLength(0);
+    buffer.append("{\"type\":");
+    appendString(buffer, message.type);
+    if (message.patch.isEmpty()) {
+      buffer.append(",\"sdp\":");
+      appendString(buffer, message.sdp);
+    } else {
+      buffer.append(",\"base\":").append(message.sdpBase).append(",\"patch\":");
+      appendString(buffer, message.patch);
+      if (message.deflated) {
+        buffer.append(",\"deflate\":1");
+      }
+    }
+    buffer.append(",\"seq\":").append(message.sdpSeq)
+        .append(",\"ack\":").append(message.sdpAck)
+        .append(",\"delta\":").append(message.deltaVersion);
+    return buffer.append('}').toString();
+  }
+
+  /** Encodes one candidate as a candidate message, or several as a candidates batch. */
+  String encodeCandidates(List<IceCandidate> candidates) {
+    buffer.setLength(0);
+    if (candidates.size() == 1) {
+      buffer.append("{\"type\":\"" + TYPE_CANDIDATE + "\",");
+      appendCandidateFields(candidates.get(0));
+      return buffer.append('}').toString();
+    }
+    buffer.append("{\"type\":\"" + TYPE_CANDIDATES + "\",\"candidates\":[");
+    for (int i = 0; i < candidates.size(); ++i) {
+      if (i > 0) {
+        buffer.append(',');
+      }
+      buffer.append('{');
+      appendCandidateFields(candidates.get(i));
+      buffer.append('}');
+    }
+    return buffer.append("]}").toString();
+  }
+
+  /** Encodes a removal of |candidates|. */
+  String encodeRemoveCandidates(IceCandidate[] candidates) {
+    buffer.setLength(0);
+    buffer.append("{\"type\":\"" + TYPE_REMOVE_CANDIDATES + "\",\"candidates\":[");
+    for (int i = 0; i < candidates.length; ++i) {
+      if (i > 0) {
+        buffer.append(',');
+      }
+      buffer.append('{');
+      appendCandidateFields(candidates[i]);
+      buffer.append('}');
+    }
+    return buffer.append("]}").toString();
+  }
+
+  /** Encodes a bye. */
+  String encodeBye() {
+    return "{\"type\":\"" + TYPE_BYE + "\"}";
+  }
+
+  /** Encodes a hello announcing support of |binaryVersion| of BinarySignalingCodec. */
+  String encodeHello(int binaryVersion) {
+    return "{\"type\":\"" + TYPE_HELLO + "\",\"binary\":" + binaryVersion + "}";
+  }
+
+  /** Encodes the WebSocket envelope that relays |payload| to the other client. */
+  String encodeSend(String payload) {
+    buffer.setLength(0);
+    buffer.append("{\"cmd\":\"send\",\"msg\":");
+    appendString(buffer, payload);
+    return buffer.append('}').toString();
+  }
+
+  /** Encodes the WebSocket registration of |clientId| in |roomId|. */
+  String encodeRegister(String roomId, String clientId) {
+    buffer.setLength(0);
+    buffer.append("{\"cmd\":\"register\",\"roomid\":");
+    appendString(buffer, roomId);
+    buffer.append(",\"clientid\":");
+    appendString(buffer, clientId);
+    return buffer.append('}').toString();
+  }
+
+  // Leaves "id" out if the candidate has no sdpMid, as JSONObject did.
+  private void appendCandidateFields(IceCandidate candidate) {
+    buffer.append("\"label\":").append(candidate.sdpMLineIndex);
+    if (candidate.sdpMid != null) {
+      buffer.append(",\"id\":");
+      appendString(buffer, candidate.sdpMid);
+    }
+    buffer.append(",\"candidate\":");
+    appendString(buffer, candidate.sdp);
+  }
+
+  /** Appends |value| to |out| as a JSON string. */
+  static void appendString(StringBuilder out, String value) {
+    out.append('"');
+    int start = 0;
+    int length = value.length();
+    for (int i = 0; i < length; ++i) {
+      char c = value.charAt(i);
+      if (c >= 0x20 && c != '"' && c != '\\') {
+        continue;
+      }
+      out.append(value, start, i);
+      start = i + 1;
+      switch (c) {
+        case '"':
+        case '\\':
+          out.append('\\').append(c);
+          break;
+        case '\n':
+          out.append("\\n");
+          break;
+        case '\r':
+          out.append("\\r");
+          break;
+        case '\t':
+          out.append("\\t");
+          break;
+        case '\b':
+          out.append("\\b");
+          break;
+        case '\f':
+          out.append("\\f");
+          break;
+        default:
+          out.append("\\u00").append(Character.forDigit(c >> 4, 16))
+              .append(Character.forDigit(c & 0xf, 16));
+      }
+    }
+    out.append(value, start, length).append('"');
+  }
+
+  // --------------------------------------------------------------------
+  // Decoding.
+
+  /** Decodes the signaling message |text|. */
+  Message decode(String text) throws JSONException {
+    message.clear();
+    start(text);
+    readPayload(message);
+    expectEnd();
+    return message;
+  }
+
+  /**
+   * Decodes a message of the WebSocket server, which holds the payload as a string in "msg"
+   * or an error in "error". The message has no payload if "msg" is empty.
+   */
+  Message decodeWebSocketMessage(String text) throws JSONException {
+    message.clear();
+    start(text);
+    expect('{');
+    if (peekSkippingWhitespace() == '}') {
+      read();
+      expectEnd();
+      return message;
+    }
+    do {
+      int field = readFieldName();
+      if (field == FIELD_MSG && peekSkippingWhitespace() == '"') {
+        read();
+        // The payload is read through the string, unescaping as it goes.
+        embedded = true;
+        if (peekSkippingWhitespace() != END) {
+          readPayload(message);
+          if (peekSkippingWhitespace() != END) {
+            throw syntaxError("Trailing data in msg");
+          }
+        }
+        embedded = false;
+        peeked = NONE;
+        // Closing quote of the string.
+        read();
+      } else if (field == FIELD_ERROR) {
+        message.error = readStringValue();
+      } else {
+        skipValue();
+      }
+    } while (readSeparator('}'));
+    expectEnd();
+    return message;
+  }
+
+  private void start(String text) {
+    this.text = text;
+    pos = 0;
+    peeked = NONE;
+    embedded = false;
+  }
+
+  // Reads one signaling payload object.
+  private void readPayload(Message message) throws JSONException {
+    String id = null;
+    int label = -1;
+    String sdp = null;
+    boolean hasSdp = false;
+    boolean hasCandidates = false;
+    expect('{');
+    if (peekSkippingWhitespace() == '}') {
+      read();
+      return;
+    }
+    do {
+      switch (readFieldName()) {
+        case FIELD_TYPE:
+          message.type = readType();
+          break;
+        case FIELD_SDP:
+          message.sdp = readStringValue();
+          hasSdp = true;
+          break;
+        case FIELD_ID:
+          id = readStringValue();
+          break;
+        case FIELD_LABEL:
+          label = readIntValue();
+          break;
+        case FIELD_CANDIDATE:
+          sdp = readStringValue();
+          break;
+        case FIELD_CANDIDATES:
+          readCandidateArray(message.candidates);
+          hasCandidates = true;
+          break;
+        case FIELD_BINARY:
+          message.binaryVersion = readIntValue();
+          break;
+        case FIELD_SEQ:
+          message.sdpSeq = readIntValue();
+          break;
+        case FIELD_ACK:
+          message.sdpAck = readIntValue();
+          break;
+        case FIELD_DELTA:
+          message.deltaVersion = readIntValue();
+          break;
+        case FIELD_BASE:
+          message.sdpBase = readIntValue();
+          break;
+        case FIELD_PATCH:
+          message.patch = readStringValue();
+          hasSdp = true;
+          break;
+        case FIELD_DEFLATE:
+          message.deflated = readIntValue() != 0;
+          break;
+        default:
+          skipValue();
+      }
+    } while (readSeparator('}'));
+    // readType() returns the constants for the known types.
+    String type = message.type;
+    if (type == TYPE_CANDIDATE) {
+      message.candidates.add(toCandidate(id, label, sdp));
+    } else if ((type == TYPE_OFFER || type == TYPE_ANSWER) && !hasSdp) {
+      throw new JSONException("No sdp in " + type);
+    } else if ((type == TYPE_CANDIDATES || type == TYPE_REMOVE_CANDIDATES) && !hasCandidates) {
+      throw new JSONException("No candidates in " + type);
+    }
+  }
+
+  private void readCandidateArray(List<IceCandidate> candidates) throws JSONException {
+    expect('[');
+    if (peekSkippingWhitespace() == ']') {
+      read();
+      return;
+    }
+    do {
+      String id = null;
+      int label = -1;
+      String sdp = null;
+      expect('{');
+      if (peekSkippingWhitespace() != '}') {
+        do {
+          switch (readFieldName()) {
+            case FIELD_ID:
+              id = readStringValue();
+              break;
+            case FIELD_LABEL:
+              label = readIntValue();
+              break;
+            case FIELD_CANDIDATE:
+              sdp = readStringValue();
+              break;
+            default:
+              skipValue();
+          }
+        } while (readSeparator('}'));
+      } else {
+        read();
+      }
+      candidates.add(toCandidate(id, label, sdp));
+    } while (readSeparator(']'));
+  }
+
+  // A candidate without "id" has a null sdpMid, the label is enough to find its media section.
+  private static IceCandidate toCandidate(String id, int label, String sdp)
+      throws JSONException {
+    if (label < 0 || sdp == null) {
+      throw new JSONException("Incomplete candidate");
+    }
+    return new IceCandidate(id, label, sdp);
+  }
+
+  // Reads "name": and returns the FIELD_ constant of the name.
+  private int readFieldName() throws JSONException {
+    expect('"');
+    readStringContent();
+    expect(':');
+    for (int i = 0; i < FIELDS.length; ++i) {
+      if (contentEquals(stringBuilder, FIELDS[i])) {
+        return i;
+      }
+    }
+    return FIELD_UNKNOWN;
+  }
+
+  // Reads a type string, returning the shared constant for the known ones.
+  private String readType() throws JSONException {
+    expect('"');
+    readStringContent();
+    for (String type : TYPES) {
+      if (contentEquals(stringBuilder, type)) {
+        return type;
+      }
+    }
+    return stringBuilder.toString();
+  }
+
+  private String readStringValue() throws JSONException {
+    expect('"');
+    readStringContent();
+    return stringBuilder.toString();
+  }
+
+  // Reads a number, or a string holding one as JSONObject.getInt() accepts.
+  private int readIntValue() throws JSONException {
+    int c = peekSkippingWhitespace();
+    if (c == '"') {
+      String value = readStringValue();
+      try {
+        return Integer.parseInt(value);
+      } catch (NumberFormatException e) {
+        throw new JSONException("Not a number: " + value);
+      }
+    }
+    boolean negative = c == '-';
+    if (negative) {
+      read();
+    }
+    int value = 0;
+    int digits = 0;
+    while ((c = peek()) >= '0' && c <= '9') {
+      read();
+      value = value * 10 + (c - '0');
+      ++digits;
+    }
+    if (digits == 0) {
+      throw syntaxError("Expected a number");
+    }
+    return negative ? -value : value;
+  }
+
+  // Reads the rest of a string whose opening quote was read, into |stringBuilder|.
+  private void readStringContent() throws JSONException {
+    stringBuilder.setLength(0);
+    while (true) {
+      int c = read();
+      if (c == '"') {
+        return;
+      }
+      if (c == END) {
+        throw syntaxError("Unterminated string");
+      }
+      if (c == '\\') {
+        c = readEscape(false);
+      }
+      stringBuilder.append((char) c);
+    }
+  }
+
+  private void skipValue() throws JSONException {
+    int c = peekSkippingWhitespace();
+    if (c == '"') {
+      read();
+      readStringContent();
+    } else if (c == '{' || c == '[') {
+      read();
+      char close = (c == '{') ? '}' : ']';
+      if (peekSkippingWhitespace() == close) {
+        read();
+        return;
+      }
+      do {
+        if (close == '}') {
+          readFieldName();
+        }
+        skipValue();
+      } while (readSeparator(close));
+    } else {
+      // Number, true, false or null.
+      int length = 0;
+      while ((c = peek()) != END && c != ',' && c != '}' && c != ']' && !isWhitespace(c)) {
+        read();
+        ++length;
+      }
+      if (length == 0) {
+        throw syntaxError("Expected a value");
+      }
+    }
+  }
+
+  // Reads ',' and returns true, or reads |close| and returns false.
+  private boolean readSeparator(char close) throws JSONException {
+    int c = readSkippingWhitespace();
+    if (c == ',') {
+      return true;
+    }
+    if (c != close) {
+      throw syntaxError("Expected ',' or '" + close + "'");
+    }
+    return false;
+  }
+
+  private void expect(char expected) throws JSONException {
+    if (readSkippingWhitespace() != expected) {
+      throw syntaxError("Expected '" + expected + "'");
+    }
+  }
+
+  private void expectEnd() throws JSONException {
+    if (readSkippingWhitespace() != END) {
+      throw syntaxError("Trailing data");
+    }
+  }
+
+  private int readSkippingWhitespace() throws JSONException {
+    int c;
+    do {
+      c = read();
+    } while (isWhitespace(c));
+    return c;
+  }
+
+  private int peekSkippingWhitespace() throws JSONException {
+    int c = readSkippingWhitespace();
+    peeked = c;
+    return c;
+  }
+
+  private int peek() throws JSONException {
+    if (peeked == NONE) {
+      peeked = read();
+    }
+    return peeked;
+  }
+
+  // Returns the next character of the text, or of the envelope string unescaped while
+  // |embedded|, or END.
+  private int read() throws JSONException {
+    if (peeked != NONE) {
+      int c = peeked;
+      peeked = NONE;
+      return c;
+    }
+    if (pos >= text.length()) {
+      return END;
+    }
+    char c = text.charAt(pos++);
+    if (!embedded) {
+      return c;
+    }
+    if (c == '"') {
+      // End of the envelope string, left for the envelope to read.
+      --pos;
+      return END;
+    }
+    return (c == '\\') ? readEscape(true) : c;
+  }
+
+  // Decodes the escape sequence after a backslash, read from the raw text if |raw|.
+  private int readEscape(boolean raw) throws JSONException {
+    int c = raw ? readRaw() : read();
+    switch (c) {
+      case '"':
+      case '\\':
+      case '/':
+        return c;
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'u':
+        int value = 0;
+        for (int i = 0; i < 4; ++i) {
+          int digit = Character.digit(raw ? readRaw() : read(), 16);
+          if (digit < 0) {
+            throw syntaxError("Invalid unicode escape");
+          }
+          value = value * 16 + digit;
+        }
+        return value;
+      default:
+        throw syntaxError("Invalid escape");
+    }
+  }
+
+  private int readRaw() {
+    return (pos < text.length()) ? text.charAt(pos++) : END;
+  }
+
+  private static boolean isWhitespace(int c) {
+    return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+  }
+
+  private static boolean contentEquals(StringBuilder builder, String value) {
+    if (builder.length() != value.length()) {
+      return false;
+    }
+    for (int i = 0; i < value.length(); ++i) {
+      if (builder.charAt(i) != value.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private JSONException syntaxError(String description) {
+    return new JSONException(description + " at character " + pos);
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.json.JSONException;
+import org.webrtc.IceCandidate;
+
+/**
+ * Bounded queue of the signaling messages waiting to be written to the WebSocket.
+ *
+ * <p>Messages are classified by their type and taken out by priority: a bye first, then offers
+ * and answers, then other messages and ICE candidates last. Messages of the same class keep their
+ * order. Messages that became pointless are dropped before they are sent: a bye drops everything
+ * still queued, a removal of candidates that are still queued drops them from their message
+ * instead of being sent after it, and an offer or answer after the first one drops the queued
+ * candidates and removals. Such an SDP restarts ICE, the only renegotiation of the app, so the
+ * queued candidates belong to the previous ICE generation and would reach the peer after the
+ * SDP that replaced their credentials.
+ *
+ * <p>Once the capacity is reached, a new message takes the place of the oldest queued message of
+ * the same or a lower priority, or is dropped if there is none. Byes and SDP are never dropped
+ * and may exceed the capacity. The time every message spends queued is measured per class.
+ *
+ * <p>Not thread safe.
+ */
+final class SignalingOutbox {
+  static final int CLASS_BYE = 0;
+  static final int CLASS_SDP = 1;
+  static final int CLASS_CONTROL = 2;
+  static final int CLASS_CANDIDATE = 3;
+  static final int CLASS_COUNT = 4;
+  static final String[] CLASS_NAMES = {"bye", "sdp", "control", "candidate"};
+
+  static final int DEFAULT_CAPACITY = 64;
+
+  // Every message encoded by SignalingCodec starts with its type.
+  private static final String TYPE_PREFIX = "{\"type\":\"";
+
+  private static final class Entry {
+    String message;
+    final long enqueueTimeMs;
+    // The candidates of a candidate or candidates message, null for other messages.
+    final List<IceCandidate> candidates;
+
+    Entry(String message, long enqueueTimeMs, List<IceCandidate> candidates) {
+      this.message = message;
+      this.enqueueTimeMs = enqueueTimeMs;
+      this.candidates = candidates;
+    }
+  }
+
+  private final int capacity;
+  private final SignalingCodec codec = new SignalingCodec();
+  private final List<ArrayDeque<Entry>> queues = new ArrayList<ArrayDeque<Entry>>(CLASS_COUNT);
+  private int size;
+  // True once an offer or answer was queued.
+  private boolean sdpQueued;
+
+  private final int[] sentCounts = new int[CLASS_COUNT];
+  private final int[] droppedCounts = new int[CLASS_COUNT];
+  private final int[] coalescedCounts = new int[CLASS_COUNT];
+  private final long[] totalLatencyMs = new long[CLASS_COUNT];
+  private final long[] maxLatencyMs = new long[CLASS_COUNT];
+
+  SignalingOutbox(int capacity) {
+    this.capacity = Math.max(1, capacity);
+    for (int i = 0; i < CLASS_COUNT; ++i) {
+      queues.add(new ArrayDeque<Entry>());
+    }
+  }
+
+  /** Returns the class of a message encoded by SignalingCodec. */
+  static int classify(String message) {
+    if (!message.startsWith(TYPE_PREFIX)) {
+      return CLASS_CONTROL;
+    }
+    int offset = TYPE_PREFIX.length();
+    if (hasType(message, offset, SignalingCodec.TYPE_BYE)) {
+      return CLASS_BYE;
+    }
+    if (hasType(message, offset, SignalingCodec.TYPE_OFFER)
+        || hasType(message, offset, SignalingCodec.TYPE_ANSWER)) {
+      return CLASS_SDP;
+    }
+    if (hasType(message, offset, SignalingCodec.TYPE_CANDIDATE)
+        || hasType(message, offset, SignalingCodec.TYPE_CANDIDATES)
+        || hasType(message, offset, SignalingCodec.TYPE_REMOVE_CANDIDATES)) {
+      return CLASS_CANDIDATE;
+    }
+    return CLASS_CONTROL;
+  }
+
+  private static boolean hasType(String message, int offset, String type) {
+    return message.startsWith(type, offset)
+        && message.length() > offset + type.length()
+        && message.charAt(offset + type.length()) == '"';
+  }
+
+  /**
+   * Queues |message|, received at |nowMs|. Returns false if it was dropped because the outbox is
+   * full of messages of a higher priority.
+   */
+  boolean offer(String message, long nowMs) {
+    int messageClass = classify(message);
+    List<IceCandidate> candidates = null;
+    if (messageClass == CLASS_BYE) {
+      for (int i = 0; i < CLASS_COUNT; ++i) {
+        coalescedCounts[i] += queues.get(i).size();
+        queues.get(i).clear();
+      }
+      size = 0;
+    } else if (messageClass == CLASS_SDP) {
+      if (sdpQueued) {
+        ArrayDeque<Entry> candidateQueue = queues.get(CLASS_CANDIDATE);
+        coalescedCounts[CLASS_CANDIDATE] += candidateQueue.size();
+        size -= candidateQueue.size();
+        candidateQueue.clear();
+      }
+      sdpQueued = true;
+    } else if (messageClass == CLASS_CANDIDATE) {
+      SignalingCodec.Message decoded = null;
+      try {
+        decoded = codec.decode(message);
+      } catch (JSONException e) {
+        // Not coalesced, sent as is.
+      }
+      if (decoded != null && decoded.type.equals(SignalingCodec.TYPE_REMOVE_CANDIDATES)) {
+        message = coalesceRemoval(decoded.candidates);
+        if (message == null) {
+          ++coalescedCounts[CLASS_CANDIDATE];
+          return true;
+        }
+      } else if (decoded != null) {
+        candidates = new ArrayList<IceCandidate>(decoded.candidates);
+      }
+    }
+    if (size >= capacity && messageClass > CLASS_SDP && !evict(messageClass)) {
+      ++droppedCounts[messageClass];
+      return false;
+    }
+    queues.get(messageClass).addLast(new Entry(message, nowMs, candidates));
+    ++size;
+    return true;
+  }
+
+  /** Takes out the message to send next at |nowMs|, or returns null if none is queued. */
+  String poll(long nowMs) {
+    for (int i = 0; i < CLASS_COUNT; ++i) {
+      Entry entry = queues.get(i).pollFirst();
+      if (entry != null) {
+        --size;
+        long latencyMs = nowMs - entry.enqueueTimeMs;
+        ++sentCounts[i];
+        totalLatencyMs[i] += latencyMs;
+        maxLatencyMs[i] = Math.max(maxLatencyMs[i], latencyMs);
+        return entry.message;
+      }
+    }
+    return null;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Drops every queued message. */
+  void clear() {
+    for (int i = 0; i < CLASS_COUNT; ++i) {
+      droppedCounts[i] += queues.get(i).size();
+      queues.get(i).clear();
+    }
+    size = 0;
+  }
+
+  int getSentCount(int messageClass) {
+    return sentCounts[messageClass];
+  }
+
+  int getDroppedCount(int messageClass) {
+    return droppedCounts[messageClass];
+  }
+
+  int getCoalescedCount(int messageClass) {
+    return coalescedCounts[messageClass];
+  }
+
+  /** Returns the average time the sent messages of |messageClass| spent queued. */
+  double getAverageLatencyMs(int messageClass) {
+    return sentCounts[messageClass] == 0
+        ? 0
+        : (double) totalLatencyMs[messageClass] / sentCounts[messageClass];
+  }
+
+  long getMaxLatencyMs(int messageClass) {
+    return maxLatencyMs[messageClass];
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < CLASS_COUNT; ++i) {
+      if (sentCounts[i] == 0 && droppedCounts[i] == 0 && coalescedCounts[i] == 0) {
+        continue;
+      }
+      if (builder.length() > 0) {
+        builder.append(", ");
+      }
+      builder.append(CLASS_NAMES[i]).append(": ").append(sentCounts[i]).append(" sent in ")
+          .append(String.format("%.1f", getAverageLatencyMs(i))).append(" ms (max ")
+          .append(maxLatencyMs[i]).append(" ms), ").append(droppedCounts[i])
+          .append(" dropped, ").append(coalescedCounts[i]).append(" coalesced");
+    }
+    return builder.length() > 0 ? builder.toString() : "no message";
+  }
+
+  // Drops the oldest message of the lowest priority class that is not above |messageClass|.
+  private boolean evict(int messageClass) {
+    for (int i = CLASS_COUNT - 1; i >= messageClass; --i) {
+      if (queues.get(i).pollFirst() != null) {
+        --size;
+        ++droppedCounts[i];
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Drops the |removed| candidates that are still queued from their messages, and returns the
+  // removal of the others, or null if all of them were queued.
+  private String coalesceRemoval(List<IceCandidate> removed) {
+    List<IceCandidate> sent = new ArrayList<IceCandidate>(removed.size());
+    for (IceCandidate candidate : removed) {
+      if (!removeQueued(candidate)) {
+        sent.add(candidate);
+      }
+    }
+    if (sent.isEmpty()) {
+      return null;
+    }
+    return codec.encodeRemoveCandidates(sent.toArray(new IceCandidate[sent.size()]));
+  }
+
+  private boolean removeQueued(IceCandidate removed) {
+    Iterator<Entry> it = queues.get(CLASS_CANDIDATE).iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.candidates == null) {
+        continue;
+      }
+      for (int i = 0; i < entry.candidates.size(); ++i) {
+        if (!isSameCandidate(entry.candidates.get(i), removed)) {
+          continue;
+        }
+        entry.candidates.remove(i);
+        if (entry.candidates.isEmpty()) {
+          it.remove();
+          --size;
+          ++coalescedCounts[CLASS_CANDIDATE];
+        } else {
+          entry.message = codec.encodeCandidates(entry.candidates);
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isSameCandidate(IceCandidate a, IceCandidate b) {
+    return a.sdpMLineIndex == b.sdpMLineIndex && a.sdp.equals(b.sdp)
+        && (a.sdpMid == null ? b.sdpMid == null : a.sdpMid.equals(b.sdpMid));
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process wide table that interns StatsReport value names into small integer ids, so that
+ * stats can be stored in arrays indexed by key. The HUD labels of a name are derived once, when
+ * it is first seen.
+ */
+final class StatsKeys {
+  static final int MAX_KEYS = 256;
+
+  private static final Map<String, Integer> ids = new HashMap<String, Integer>();
+  private static final String[] names = new String[MAX_KEYS];
+  private static final String[] labels = new String[MAX_KEYS];
+  private static final String[] bweLabels = new String[MAX_KEYS];
+  private static int count;
+
+  // Keys read by name.
+  static final int TRACK_ID = intern("googTrackId");
+  static final int FRAME_RATE_SENT = intern("googFrameRateSent");
+  static final int FRAME_WIDTH_SENT = intern("googFrameWidthSent");
+  static final int FRAME_HEIGHT_SENT = intern("googFrameHeightSent");
+  static final int FRAME_WIDTH_RECEIVED = intern("googFrameWidthReceived");
+  static final int FRAME_HEIGHT_RECEIVED = intern("googFrameHeightReceived");
+  static final int FRAME_RATE_RECEIVED = intern("googFrameRateReceived");
+  static final int PACKETS_LOST = intern("packetsLost");
+  static final int JITTER_BUFFER_MS = intern("googJitterBufferMs");
+  static final int PACKETS_SENT = intern("packetsSent");
+  static final int BYTES_SENT = intern("bytesSent");
+  static final int BYTES_RECEIVED = intern("bytesReceived");
+  static final int RTT = intern("googRtt");
+  static final int CPU_LIMITED_RESOLUTION = intern("googCpuLimitedResolution");
+  static final int BANDWIDTH_LIMITED_RESOLUTION = intern("googBandwidthLimitedResolution");
+  static final int AVAILABLE_SEND_BANDWIDTH = intern("googAvailableSendBandwidth");
+  static final int AVAILABLE_RECEIVE_BANDWIDTH = intern("googAvailableReceiveBandwidth");
+  static final int TARGET_ENC_BITRATE = intern("googTargetEncBitrate");
+  static final int ACTUAL_ENC_BITRATE = intern("googActualEncBitrate");
+  static final int TRANSMIT_BITRATE = intern("googTransmitBitrate");
+  static final int ACTIVE_CONNECTION = intern("googActiveConnection");
+
+  private StatsKeys() {}
+
+  /** Returns the id of |name|, or -1 if the table is full. */
+  static synchronized int intern(String name) {
+    Integer id = ids.get(name);
+    if (id != null) {
+      return id;
+    }
+    if (count == MAX_KEYS) {
+      return -1;
+    }
+    names[count] = name;
+    labels[count] = name.replace("goog", "");
+    bweLabels[count] = labels[count].replace("Available", "");
+    ids.put(name, count);
+    return count++;
+  }
+
+  static synchronized String name(int id) {
+    return names[id];
+  }
+
+  /** Returns the name shown by the HUD. */
+  static synchronized String label(int id) {
+    return labels[id];
+  }
+
+  /** Returns the name shown by the HUD for bandwidth estimation values. */
+  static synchronized String bweLabel(int id) {
+    return bweLabels[id];
+  }
+}
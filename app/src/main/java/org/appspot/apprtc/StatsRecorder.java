@@ -0,0 +1,294 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Records a few QoS metrics per stats period into a fixed-size ring file, for post-mortems.
+ *
+ * <p>The file is memory mapped. After a 64-byte header it holds equally sized blocks that are
+ * reused in a ring, so the file never grows and the oldest samples are overwritten first. A
+ * block holds consecutive samples stored column by column: for each column a bitmap of the
+ * samples that have a value, then the values as zigzag varint deltas from the previous one.
+ * Metrics change little from one second to the next, so a sample takes a few bytes per
+ * column. The open block is encoded again on every sample, which keeps the file readable if
+ * the app dies mid-call.
+ *
+ * <p>StatsRecording reads the file back. Thread safe.
+ */
+public class StatsRecorder {
+  private static final String TAG = "StatsRecorder";
+  public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+  private static final int MAX_RECORDINGS = 10;
+  private static final String FILE_SUFFIX = ".stats";
+
+  // File format, shared with StatsRecording.
+  static final int MAGIC = 0x41535452; // "ASTR"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 64;
+  static final int BLOCK_SIZE = 4096;
+  // Block header: sequence number (long, 0 if unused), sample count and payload size (shorts).
+  static final int BLOCK_HEADER_SIZE = 12;
+  static final int MAX_SAMPLES_PER_BLOCK = 1024;
+  static final long MISSING = Long.MIN_VALUE;
+  static final String[] COLUMNS = {"time_ms", "send_bitrate_bps", "target_bitrate_bps",
+      "available_send_bps", "send_fps", "recv_fps", "rtt_ms", "packets_lost", "jitter_buffer_ms",
+      "cpu_percent", "process_cpu_percent", "encoder_cpu_percent", "decoder_cpu_percent",
+      "audio_cpu_percent", "network_cpu_percent", "signaling_cpu_percent", "render_cpu_percent",
+      "other_cpu_percent"};
+  // Index of the first thread group column, in ThreadCpuProfiler group order.
+  private static final int THREAD_GROUP_COLUMN = 11;
+
+  private final File file;
+  private final RandomAccessFile randomAccessFile;
+  private final MappedByteBuffer buffer;
+  private final int blockCount;
+
+  // Samples of the open block, by column.
+  private final long[][] samples = new long[COLUMNS.length][MAX_SAMPLES_PER_BLOCK];
+  private int sampleCount;
+  private final long[] row = new long[COLUMNS.length];
+  private final byte[] payload = new byte[BLOCK_SIZE - BLOCK_HEADER_SIZE];
+  private long sequence = 1;
+  private long totalSamples;
+  private boolean closed;
+
+  /**
+   * Creates a recording in |directory| named after the current time, and deletes the oldest
+   * recordings there beyond the last few.
+   */
+  public static StatsRecorder createForCall(File directory, int maxBytes) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Can not create " + directory);
+    }
+    File[] recordings = listRecordings(directory);
+    for (int i = 0; i <= recordings.length - MAX_RECORDINGS; ++i) {
+      if (!recordings[i].delete()) {
+        Log.e(TAG, "Can not delete " + recordings[i]);
+      }
+    }
+    return new StatsRecorder(
+        new File(directory, "call-" + System.currentTimeMillis() + FILE_SUFFIX), maxBytes);
+  }
+
+  /** Returns the recordings in |directory|, oldest first. */
+  public static File[] listRecordings(File directory) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return new File[0];
+    }
+    int count = 0;
+    for (File file : files) {
+      if (file.getName().endsWith(FILE_SUFFIX)) {
+        files[count++] = file;
+      }
+    }
+    files = Arrays.copyOf(files, count);
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File lhs, File rhs) {
+        long lhsModified = lhs.lastModified();
+        long rhsModified = rhs.lastModified();
+        return (lhsModified < rhsModified) ? -1 : ((lhsModified == rhsModified) ? 0 : 1);
+      }
+    });
+    return files;
+  }
+
+  /** Creates |file|, replacing any existing one, with room for about |maxBytes|. */
+  public StatsRecorder(File file, int maxBytes) throws IOException {
+    this.file = file;
+    blockCount = Math.max(2, (maxBytes - HEADER_SIZE) / BLOCK_SIZE);
+    int size = HEADER_SIZE + blockCount * BLOCK_SIZE;
+    randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(0);
+      randomAccessFile.setLength(size);
+      buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, VERSION);
+    buffer.putInt(8, BLOCK_SIZE);
+    buffer.putInt(12, blockCount);
+    buffer.putInt(16, COLUMNS.length);
+    buffer.putLong(20, System.currentTimeMillis());
+    Log.d(TAG, "Recording stats to " + file + ", " + size + " bytes");
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Records the metrics of |snapshot| as a sample taken at |timeMs|, with the system and
+   * process CPU usage and the usage of each ThreadCpuProfiler group. Negative values and a null
+   * |threadGroupPercents| are recorded as missing.
+   */
+  synchronized void record(long timeMs, StatsSnapshot snapshot, int cpuPercent,
+      int processCpuPercent, int[] threadGroupPercents) {
+    if (closed) {
+      return;
+    }
+    row[0] = timeMs;
+    row[1] = toLong(snapshot.getSectionNumber(
+        StatsSnapshot.SECTION_BWE, StatsKeys.ACTUAL_ENC_BITRATE));
+    row[2] = toLong(snapshot.getSectionNumber(
+        StatsSnapshot.SECTION_BWE, StatsKeys.TARGET_ENC_BITRATE));
+    row[3] = toLong(snapshot.getSectionNumber(
+        StatsSnapshot.SECTION_BWE, StatsKeys.AVAILABLE_SEND_BANDWIDTH));
+    row[4] = toLong(snapshot.getSectionNumber(
+        StatsSnapshot.SECTION_VIDEO_SEND, StatsKeys.FRAME_RATE_SENT));
+    row[5] = toLong(snapshot.getSectionNumber(
+        StatsSnapshot.SECTION_VIDEO_RECV, StatsKeys.FRAME_RATE_RECEIVED));
+    double rtt = snapshot.getSectionNumber(StatsSnapshot.SECTION_VIDEO_SEND, StatsKeys.RTT);
+    if (Double.isNaN(rtt)) {
+      rtt = snapshot.getSectionNumber(StatsSnapshot.SECTION_CANDIDATE_PAIR, StatsKeys.RTT);
+    }
+    row[6] = toLong(rtt);
+    row[7] = toLong(snapshot.getSectionNumber(
+        StatsSnapshot.SECTION_VIDEO_RECV, StatsKeys.PACKETS_LOST));
+    row[8] = toLong(snapshot.getSectionNumber(
+        StatsSnapshot.SECTION_VIDEO_RECV, StatsKeys.JITTER_BUFFER_MS));
+    row[9] = (cpuPercent >= 0) ? cpuPercent : MISSING;
+    row[10] = (processCpuPercent >= 0) ? processCpuPercent : MISSING;
+    for (int i = 0; i < ThreadCpuProfiler.GROUP_COUNT; ++i) {
+      row[THREAD_GROUP_COLUMN + i] =
+          (threadGroupPercents != null && threadGroupPercents[i] >= 0) ? threadGroupPercents[i]
+                                                                       : MISSING;
+    }
+    record(row);
+  }
+
+  /** Records one sample, one value per column. MISSING marks absent values. */
+  synchronized void record(long[] values) {
+    if (closed) {
+      return;
+    }
+    int size = -1;
+    if (sampleCount < MAX_SAMPLES_PER_BLOCK) {
+      addSample(values);
+      size = encode();
+      if (size < 0) {
+        --sampleCount;
+      }
+    }
+    if (size < 0) {
+      // The open block is full, its previous encoding is already in the file.
+      ++sequence;
+      sampleCount = 0;
+      addSample(values);
+      size = encode();
+    }
+    writeBlock(size);
+    ++totalSamples;
+  }
+
+  /** Flushes the file to storage and stops recording. */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    buffer.force();
+    try {
+      randomAccessFile.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Can not close " + file, e);
+    }
+    Log.d(TAG, "Recorded " + totalSamples + " samples in " + sequence + " blocks to " + file);
+  }
+
+  private void addSample(long[] values) {
+    for (int i = 0; i < COLUMNS.length; ++i) {
+      samples[i][sampleCount] = values[i];
+    }
+    ++sampleCount;
+  }
+
+  private static long toLong(double value) {
+    return Double.isNaN(value) ? MISSING : Math.round(value);
+  }
+
+  // Encodes the open block into |payload|. Returns its size, or -1 if it does not fit.
+  private int encode() {
+    int bitmapSize = (sampleCount + 7) / 8;
+    int position = 0;
+    for (long[] column : samples) {
+      if (position + bitmapSize > payload.length) {
+        return -1;
+      }
+      Arrays.fill(payload, position, position + bitmapSize, (byte) 0);
+      for (int i = 0; i < sampleCount; ++i) {
+        if (column[i] != MISSING) {
+          payload[position + i / 8] |= 1 << (i % 8);
+        }
+      }
+      position += bitmapSize;
+      long previous = 0;
+      for (int i = 0; i < sampleCount; ++i) {
+        if (column[i] == MISSING) {
+          continue;
+        }
+        position = writeVarint(payload, position, zigzag(column[i] - previous));
+        if (position < 0) {
+          return -1;
+        }
+        previous = column[i];
+      }
+    }
+    return position;
+  }
+
+  private void writeBlock(int size) {
+    int offset = HEADER_SIZE + (int) (sequence % blockCount) * BLOCK_SIZE;
+    // Invalidate the block while it is rewritten.
+    buffer.putLong(offset, 0);
+    buffer.position(offset + BLOCK_HEADER_SIZE);
+    buffer.put(payload, 0, size);
+    buffer.putShort(offset + 8, (short) sampleCount);
+    buffer.putShort(offset + 10, (short) size);
+    buffer.putLong(offset, sequence);
+  }
+
+  static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  // Returns the position after the varint, or -1 if it does not fit.
+  private static int writeVarint(byte[] out, int position, long value) {
+    while (true) {
+      if (position == out.length) {
+        return -1;
+      }
+      if ((value & ~0x7FL) == 0) {
+        out[position++] = (byte) value;
+        return position;
+      }
+      out[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The samples of a file written by StatsRecorder, oldest first, with CSV and JSON export.
+ */
+public class StatsRecording {
+  private final long startTimeMs;
+  private final List<long[]> samples;
+
+  private StatsRecording(long startTimeMs, List<long[]> samples) {
+    this.startTimeMs = startTimeMs;
+    this.samples = samples;
+  }
+
+  /** Reads |file|. Blocks that are damaged or were being written are skipped. */
+  public static StatsRecording read(File file) throws IOException {
+    ByteBuffer buffer;
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      buffer = ByteBuffer.allocate((int) channel.size());
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+      }
+      buffer.flip();
+    } finally {
+      in.close();
+    }
+
+    if (buffer.remaining() < StatsRecorder.HEADER_SIZE
+        || buffer.getInt(0) != StatsRecorder.MAGIC) {
+      throw new IOException("Not a stats recording: " + file);
+    }
+    if (buffer.getInt(4) != StatsRecorder.VERSION
+        || buffer.getInt(16) != StatsRecorder.COLUMNS.length) {
+      throw new IOException("Unsupported stats recording version: " + buffer.getInt(4));
+    }
+    int blockSize = buffer.getInt(8);
+    int blockCount = buffer.getInt(12);
+    long startTimeMs = buffer.getLong(20);
+    if (blockSize <= StatsRecorder.BLOCK_HEADER_SIZE || blockCount <= 0
+        || StatsRecorder.HEADER_SIZE + (long) blockSize * blockCount > buffer.limit()) {
+      throw new IOException("Corrupt stats recording header: " + file);
+    }
+
+    List<long[]> blocks = new ArrayList<long[]>();
+    for (int i = 0; i < blockCount; ++i) {
+      int offset = StatsRecorder.HEADER_SIZE + i * blockSize;
+      long sequence = buffer.getLong(offset);
+      if (sequence > 0) {
+        blocks.add(new long[] {sequence, offset});
+      }
+    }
+    Collections.sort(blocks, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] lhs, long[] rhs) {
+        return (lhs[0] < rhs[0]) ? -1 : ((lhs[0] == rhs[0]) ? 0 : 1);
+      }
+    });
+
+    List<long[]> samples = new ArrayList<long[]>();
+    for (long[] block : blocks) {
+      decodeBlock(buffer, (int) block[1], blockSize, samples);
+    }
+    return new StatsRecording(startTimeMs, samples);
+  }
+
+  private static void decodeBlock(
+      ByteBuffer buffer, int offset, int blockSize, List<long[]> samples) {
+    int sampleCount = buffer.getShort(offset + 8);
+    int size = buffer.getShort(offset + 10);
+    if (sampleCount <= 0 || sampleCount > StatsRecorder.MAX_SAMPLES_PER_BLOCK || size < 0
+        || size > blockSize - StatsRecorder.BLOCK_HEADER_SIZE) {
+      return;
+    }
+    long[][] rows = new long[sampleCount][StatsRecorder.COLUMNS.length];
+    int bitmapSize = (sampleCount + 7) / 8;
+    int position = offset + StatsRecorder.BLOCK_HEADER_SIZE;
+    int end = position + size;
+    for (int column = 0; column < StatsRecorder.COLUMNS.length; ++column) {
+      int bitmap = position;
+      position += bitmapSize;
+      long value = 0;
+      for (int i = 0; i < sampleCount; ++i) {
+        if ((buffer.get(bitmap + i / 8) & (1 << (i % 8))) == 0) {
+          rows[i][column] = StatsRecorder.MISSING;
+          continue;
+        }
+        long delta = 0;
+        int shift = 0;
+        byte b;
+        do {
+          if (position >= end || shift > 63) {
+            // Damaged block.
+            return;
+          }
+          b = buffer.get(position++);
+          delta |= (long) (b & 0x7F) << shift;
+          shift += 7;
+        } while ((b & 0x80) != 0);
+        value += StatsRecorder.unzigzag(delta);
+        rows[i][column] = value;
+      }
+    }
+    Collections.addAll(samples, rows);
+  }
+
+  /** Returns when the recording was started, in ms since the epoch. */
+  public long getStartTimeMs() {
+    return startTimeMs;
+  }
+
+  public int getSampleCount() {
+    return samples.size();
+  }
+
+  public static String[] getColumns() {
+    return StatsRecorder.COLUMNS.clone();
+  }
+
+  /** Returns the value of |column| in |sample|, or null if it was not reported. */
+  public Long getValue(int sample, int column) {
+    long value = samples.get(sample)[column];
+    return (value == StatsRecorder.MISSING) ? null : value;
+  }
+
+  /** Writes the samples as CSV with a header line. Missing values are left empty. */
+  public void writeCsv(Writer out) throws IOException {
+    for (int column = 0; column < StatsRecorder.COLUMNS.length; ++column) {
+      if (column > 0) {
+        out.write(',');
+      }
+      out.write(StatsRecorder.COLUMNS[column]);
+    }
+    out.write('\n');
+    for (long[] sample : samples) {
+      for (int column = 0; column < sample.length; ++column) {
+        if (column > 0) {
+          out.write(',');
+        }
+        if (sample[column] != StatsRecorder.MISSING) {
+          out.write(Long.toString(sample[column]));
+        }
+      }
+      out.write('\n');
+    }
+    out.flush();
+  }
+
+  /**
+   * Writes the samples as a JSON object: {"startTimeMs":..., "columns":[...],
+   * "samples":[[...], ...]}. Missing values are null.
+   */
+  public void writeJson(Writer out) throws IOException {
+    out.write("{\"startTimeMs\":");
+    out.write(Long.toString(startTimeMs));
+    out.write(",\"columns\":[");
+    for (int column = 0; column < StatsRecorder.COLUMNS.length; ++column) {
+      if (column > 0) {
+        out.write(',');
+      }
+      out.write('"');
+      out.write(StatsRecorder.COLUMNS[column]);
+      out.write('"');
+    }
+    out.write("],\"samples\":[");
+    for (int i = 0; i < samples.size(); ++i) {
+      long[] sample = samples.get(i);
+      out.write((i > 0) ? ",[" : "[");
+      for (int column = 0; column < sample.length; ++column) {
+        if (column > 0) {
+          out.write(',');
+        }
+        out.write(
+            (sample[column] == StatsRecorder.MISSING) ? "null" : Long.toString(sample[column]));
+      }
+      out.write(']');
+    }
+    out.write("]}");
+    out.flush();
+  }
+}
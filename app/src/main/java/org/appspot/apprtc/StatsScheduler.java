@@ -0,0 +1,301 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.webrtc.PeerConnection;
+import org.webrtc.StatsObserver;
+import org.webrtc.StatsReport;
+
+/**
+ * Polls PeerConnection.getStats() on the peer connection executor and delivers the reports to
+ * listeners, each at its own cadence.
+ *
+ * <p>The connection is polled at the shortest cadence among the listeners. During bitrate
+ * ramp-up, from start() or restartRampUp() until the available send bandwidth settles, every
+ * cadence is shortened to RAMP_UP_PERIOD_MS. A tick is skipped while the previous getStats()
+ * is still pending, so a slow stats collection never queues up more of them. The same
+ * observer and tick runnable serve every poll.
+ *
+ * <p>start(), stop(), restartRampUp() and listener registration must be called on the
+ * executor. Listeners are invoked on the WebRTC signaling thread.
+ */
+public class StatsScheduler {
+  private static final String TAG = "StatsScheduler";
+  public static final int RAMP_UP_PERIOD_MS = 500;
+  // Ramp-up ends when the available send bandwidth stays within RAMP_UP_STABLE_RATIO of the
+  // previous poll for RAMP_UP_STABLE_POLLS polls in a row, or after RAMP_UP_MAX_MS.
+  private static final double RAMP_UP_STABLE_RATIO = 0.1;
+  private static final int RAMP_UP_STABLE_POLLS = 4;
+  private static final long RAMP_UP_MAX_MS = 20000;
+  private static final String BWE_REPORT_ID = "bweforvideo";
+  private static final String AVAILABLE_SEND_BANDWIDTH = "googAvailableSendBandwidth";
+
+  /** Receives the reports of a getStats() call. */
+  public interface StatsListener {
+    void onStatsReady(StatsReport[] reports);
+  }
+
+  private static class Registration {
+    final StatsListener listener;
+    volatile int periodMs;
+    // Only accessed on the thread that delivers the stats.
+    long lastDeliveryMs;
+
+    Registration(StatsListener listener, int periodMs) {
+      this.listener = listener;
+      this.periodMs = periodMs;
+    }
+  }
+
+  private final ScheduledExecutorService executor;
+  private final CopyOnWriteArrayList<Registration> registrations =
+      new CopyOnWriteArrayList<Registration>();
+  private final Runnable tick = new Runnable() {
+    @Override
+    public void run() {
+      poll();
+    }
+  };
+  private final StatsObserver observer = new StatsObserver() {
+    @Override
+    public void onComplete(StatsReport[] reports) {
+      onStatsComplete(reports);
+    }
+  };
+
+  // Accessed on the executor only.
+  private PeerConnection peerConnection;
+  private ScheduledFuture<?> nextTick;
+  private long lastPollMs;
+
+  private volatile boolean pollPending;
+  private volatile long pollStartNs;
+  private volatile int pollPeriodMs;
+
+  // Ramp-up state, written on the executor and on the thread that delivers the stats.
+  private volatile boolean rampingUp;
+  private volatile long rampUpStartMs;
+  private double lastAvailableSendBandwidth;
+  private int stablePolls;
+
+  // Overhead counters.
+  private volatile long polls;
+  private volatile long skippedTicks;
+  private volatile long failedPolls;
+  private volatile long pollLatencyNs;
+  private volatile long dispatchNs;
+
+  public StatsScheduler(ScheduledExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /** Starts polling |peerConnection| once a listener is registered, in ramp-up. */
+  void start(PeerConnection peerConnection) {
+    this.peerConnection = peerConnection;
+    pollPending = false;
+    restartRampUp();
+  }
+
+  /** Stops polling and logs the polling overhead. Listeners stay registered. */
+  void stop() {
+    if (peerConnection == null) {
+      return;
+    }
+    peerConnection = null;
+    cancelNextTick();
+    Log.d(TAG, "Stopped. " + this);
+  }
+
+  /**
+   * Delivers reports to |listener| about every |periodMs|. Registering a listener again changes
+   * its cadence.
+   */
+  void addListener(StatsListener listener, int periodMs) {
+    if (periodMs <= 0) {
+      throw new IllegalArgumentException("Invalid stats period: " + periodMs);
+    }
+    Registration registration = find(listener);
+    if (registration != null) {
+      registration.periodMs = periodMs;
+    } else {
+      registrations.add(new Registration(listener, periodMs));
+    }
+    reschedule();
+  }
+
+  void removeListener(StatsListener listener) {
+    Registration registration = find(listener);
+    if (registration != null) {
+      registrations.remove(registration);
+      reschedule();
+    }
+  }
+
+  /** Polls fast until the send bandwidth settles again, e.g. after an ICE (re)connection. */
+  void restartRampUp() {
+    synchronized (this) {
+      rampingUp = true;
+      rampUpStartMs = SystemClock.elapsedRealtime();
+      lastAvailableSendBandwidth = 0;
+      stablePolls = 0;
+    }
+    reschedule();
+  }
+
+  boolean isRampingUp() {
+    return rampingUp;
+  }
+
+  private Registration find(StatsListener listener) {
+    for (Registration registration : registrations) {
+      if (registration.listener == listener) {
+        return registration;
+      }
+    }
+    return null;
+  }
+
+  // Returns the cadence of |registration|, shortened during ramp-up.
+  private int effectivePeriodMs(Registration registration) {
+    int periodMs = registration.periodMs;
+    return rampingUp ? Math.min(periodMs, RAMP_UP_PERIOD_MS) : periodMs;
+  }
+
+  private int computePollPeriodMs() {
+    int periodMs = Integer.MAX_VALUE;
+    for (Registration registration : registrations) {
+      periodMs = Math.min(periodMs, effectivePeriodMs(registration));
+    }
+    return periodMs;
+  }
+
+  private void cancelNextTick() {
+    if (nextTick != null) {
+      nextTick.cancel(false);
+      nextTick = null;
+    }
+  }
+
+  // Schedules the next tick for the current cadence, counted from the last poll.
+  private void reschedule() {
+    cancelNextTick();
+    if (peerConnection == null || registrations.isEmpty()) {
+      return;
+    }
+    pollPeriodMs = computePollPeriodMs();
+    long delayMs = lastPollMs + pollPeriodMs - SystemClock.elapsedRealtime();
+    nextTick = executor.schedule(tick, Math.max(0, delayMs), TimeUnit.MILLISECONDS);
+  }
+
+  private void poll() {
+    nextTick = null;
+    if (peerConnection == null) {
+      return;
+    }
+    lastPollMs = SystemClock.elapsedRealtime();
+    if (pollPending) {
+      ++skippedTicks;
+    } else {
+      pollPending = true;
+      pollStartNs = System.nanoTime();
+      if (!peerConnection.getStats(observer, null)) {
+        Log.e(TAG, "getStats() returns false!");
+        pollPending = false;
+        ++failedPolls;
+      }
+    }
+    reschedule();
+  }
+
+  private void onStatsComplete(StatsReport[] reports) {
+    long startNs = System.nanoTime();
+    pollLatencyNs += startNs - pollStartNs;
+    ++polls;
+    if (rampingUp) {
+      updateRampUp(reports);
+    }
+    long nowMs = SystemClock.elapsedRealtime();
+    // Polls drift by up to a period, deliver to listeners that are due within half of it.
+    int slackMs = pollPeriodMs / 2;
+    for (Registration registration : registrations) {
+      if (nowMs - registration.lastDeliveryMs + slackMs >= effectivePeriodMs(registration)) {
+        registration.lastDeliveryMs = nowMs;
+        registration.listener.onStatsReady(reports);
+      }
+    }
+    dispatchNs += System.nanoTime() - startNs;
+    pollPending = false;
+  }
+
+  private void updateRampUp(StatsReport[] reports) {
+    double bandwidth = findAvailableSendBandwidth(reports);
+    boolean ended;
+    synchronized (this) {
+      if (bandwidth > 0 && lastAvailableSendBandwidth > 0
+          && Math.abs(bandwidth - lastAvailableSendBandwidth)
+              <= lastAvailableSendBandwidth * RAMP_UP_STABLE_RATIO) {
+        ++stablePolls;
+      } else {
+        stablePolls = 0;
+      }
+      lastAvailableSendBandwidth = bandwidth;
+      ended = stablePolls >= RAMP_UP_STABLE_POLLS
+          || SystemClock.elapsedRealtime() - rampUpStartMs >= RAMP_UP_MAX_MS;
+    }
+    if (ended) {
+      Log.d(TAG, "Ramp-up done, available send bandwidth: " + (long) bandwidth);
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (StatsScheduler.this) {
+            if (!rampingUp) {
+              return;
+            }
+            rampingUp = false;
+          }
+          reschedule();
+        }
+      });
+    }
+  }
+
+  private static double findAvailableSendBandwidth(StatsReport[] reports) {
+    for (StatsReport report : reports) {
+      if (!report.id.equals(BWE_REPORT_ID)) {
+        continue;
+      }
+      for (StatsReport.Value value : report.values) {
+        if (value.name.equals(AVAILABLE_SEND_BANDWIDTH)) {
+          try {
+            return Double.parseDouble(value.value);
+          } catch (NumberFormatException e) {
+            return 0;
+          }
+        }
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public String toString() {
+    long completed = Math.max(1, polls);
+    return "Polls: " + polls + ", skipped ticks: " + skippedTicks + ", failed: " + failedPolls
+        + ", average getStats() latency: " + (pollLatencyNs / completed / 1000) + " us"
+        + ", average dispatch: " + (dispatchNs / completed / 1000) + " us";
+  }
+}
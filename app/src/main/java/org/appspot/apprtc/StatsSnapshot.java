@@ -0,0 +1,255 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.Arrays;
+import org.webrtc.StatsReport;
+
+/**
+ * The StatsReports of interest from the last getStats() call, stored in preallocated arrays.
+ *
+ * <p>Each report selected for the HUD (video send and receive, bandwidth estimation, the active
+ * candidate pair and the SDP statistics of SdpDeltaCodec) occupies a slot. A slot holds the raw
+ * value of each key, indexed by the key's StatsKeys id, and its numeric value, parsed once when
+ * the raw value changes. The order in which the report listed its keys is kept for display.
+ *
+ * <p>update() overwrites the snapshot in place and records which sections changed, so that a
+ * steady call allocates nothing beyond what getStats() itself produced. Not thread safe, all
+ * methods must be called on the thread that delivers the stats.
+ */
+final class StatsSnapshot {
+  static final int SECTION_VIDEO_SEND = 0;
+  static final int SECTION_VIDEO_RECV = 1;
+  static final int SECTION_BWE = 2;
+  static final int SECTION_CANDIDATE_PAIR = 3;
+  static final int SECTION_SIGNALING = 4;
+  static final int SECTION_COUNT = 5;
+  static final int MAX_REPORTS = 8;
+
+  private static final String BWE_REPORT_ID = "bweforvideo";
+
+  private int reportCount;
+  private final int[] sections = new int[MAX_REPORTS];
+  private final String[] reportIds = new String[MAX_REPORTS];
+  private final double[] timestamps = new double[MAX_REPORTS];
+  // Keys of each slot in report order.
+  private final int[] keyCounts = new int[MAX_REPORTS];
+  private final int[][] keys = new int[MAX_REPORTS][StatsKeys.MAX_KEYS];
+  // Values of each slot indexed by key id, null if absent. Numbers are NaN if absent or not
+  // numeric.
+  private final String[][] values = new String[MAX_REPORTS][StatsKeys.MAX_KEYS];
+  private final double[][] numbers = new double[MAX_REPORTS][StatsKeys.MAX_KEYS];
+  // Generation in which each key of a slot was last seen.
+  private final int[][] keyGenerations = new int[MAX_REPORTS][StatsKeys.MAX_KEYS];
+  private final int[] scratchKeys = new int[StatsKeys.MAX_KEYS];
+  private int generation;
+  // Bitmask of the sections changed by the last update(), by section number.
+  private int changedSections;
+
+  StatsSnapshot() {
+    for (double[] slotNumbers : numbers) {
+      Arrays.fill(slotNumbers, Double.NaN);
+    }
+  }
+
+  /** Replaces the content of the snapshot with the reports of interest among |reports|. */
+  void update(StatsReport[] reports) {
+    changedSections = 0;
+    int slot = 0;
+    for (StatsReport report : reports) {
+      if (slot == MAX_REPORTS) {
+        break;
+      }
+      int section = sectionOf(report);
+      if (section >= 0) {
+        updateSlot(slot++, section, report);
+      }
+    }
+    for (int i = slot; i < reportCount; ++i) {
+      changedSections |= 1 << sections[i];
+      clearSlot(i);
+    }
+    reportCount = slot;
+  }
+
+  private static int sectionOf(StatsReport report) {
+    if (report.type.equals("ssrc") && report.id.contains("ssrc")) {
+      if (report.id.contains("send")) {
+        String trackId = find(report, StatsKeys.TRACK_ID);
+        if (trackId != null && trackId.contains(PeerConnectionClient.VIDEO_TRACK_ID)) {
+          return SECTION_VIDEO_SEND;
+        }
+      } else if (report.id.contains("recv")) {
+        // Only video reports carry a frame size.
+        if (find(report, StatsKeys.FRAME_WIDTH_RECEIVED) != null) {
+          return SECTION_VIDEO_RECV;
+        }
+      }
+    } else if (report.id.equals(BWE_REPORT_ID)) {
+      return SECTION_BWE;
+    } else if (report.type.equals("googCandidatePair")) {
+      if ("true".equals(find(report, StatsKeys.ACTIVE_CONNECTION))) {
+        return SECTION_CANDIDATE_PAIR;
+      }
+    } else if (report.type.equals(SdpDeltaCodec.STATS_TYPE)) {
+      return SECTION_SIGNALING;
+    }
+    return -1;
+  }
+
+  private static String find(StatsReport report, int key) {
+    String name = StatsKeys.name(key);
+    for (StatsReport.Value value : report.values) {
+      if (value.name.equals(name)) {
+        return value.value;
+      }
+    }
+    return null;
+  }
+
+  private void updateSlot(int slot, int section, StatsReport report) {
+    boolean changed = slot >= reportCount || sections[slot] != section
+        || !report.id.equals(reportIds[slot]);
+    if (changed) {
+      clearSlot(slot);
+    }
+    sections[slot] = section;
+    reportIds[slot] = report.id;
+    timestamps[slot] = report.timestamp;
+
+    ++generation;
+    int keyCount = 0;
+    String[] slotValues = values[slot];
+    for (StatsReport.Value value : report.values) {
+      int key = StatsKeys.intern(value.name);
+      if (key < 0 || keyGenerations[slot][key] == generation) {
+        continue;
+      }
+      keyGenerations[slot][key] = generation;
+      scratchKeys[keyCount++] = key;
+      if (!value.value.equals(slotValues[key])) {
+        changed = true;
+        slotValues[key] = value.value;
+        numbers[slot][key] = parseNumber(value.value);
+      }
+    }
+
+    int[] slotKeys = keys[slot];
+    int oldKeyCount = keyCounts[slot];
+    boolean sameKeys = keyCount == oldKeyCount;
+    for (int i = 0; i < oldKeyCount; ++i) {
+      int key = slotKeys[i];
+      if (keyGenerations[slot][key] != generation) {
+        // No longer reported.
+        slotValues[key] = null;
+        numbers[slot][key] = Double.NaN;
+        sameKeys = false;
+      } else if (sameKeys && key != scratchKeys[i]) {
+        sameKeys = false;
+      }
+    }
+    if (!sameKeys) {
+      changed = true;
+      System.arraycopy(scratchKeys, 0, slotKeys, 0, keyCount);
+      keyCounts[slot] = keyCount;
+    }
+    if (changed) {
+      changedSections |= 1 << section;
+    }
+  }
+
+  private void clearSlot(int slot) {
+    for (int i = 0; i < keyCounts[slot]; ++i) {
+      int key = keys[slot][i];
+      values[slot][key] = null;
+      numbers[slot][key] = Double.NaN;
+    }
+    keyCounts[slot] = 0;
+    reportIds[slot] = null;
+  }
+
+  // Returns NaN for values that are not numbers, such as ids and flags.
+  private static double parseNumber(String value) {
+    if (value.isEmpty()) {
+      return Double.NaN;
+    }
+    char first = value.charAt(0);
+    if ((first < '0' || first > '9') && first != '-' && first != '.') {
+      return Double.NaN;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  /** Returns whether the last update() changed any report of |section|. */
+  boolean isChanged(int section) {
+    return (changedSections & (1 << section)) != 0;
+  }
+
+  /** Returns the number of occupied slots. */
+  int getReportCount() {
+    return reportCount;
+  }
+
+  int getSection(int slot) {
+    return sections[slot];
+  }
+
+  String getReportId(int slot) {
+    return reportIds[slot];
+  }
+
+  double getTimestamp(int slot) {
+    return timestamps[slot];
+  }
+
+  int getKeyCount(int slot) {
+    return keyCounts[slot];
+  }
+
+  /** Returns the id of the |index|th key listed by the report in |slot|. */
+  int getKey(int slot, int index) {
+    return keys[slot][index];
+  }
+
+  String getValue(int slot, int key) {
+    return values[slot][key];
+  }
+
+  double getNumber(int slot, int key) {
+    return numbers[slot][key];
+  }
+
+  /** Returns the first slot holding a report of |section|, or -1. */
+  int findSlot(int section) {
+    for (int i = 0; i < reportCount; ++i) {
+      if (sections[i] == section) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the value of |key| in the first report of |section|, or null. */
+  String getSectionValue(int section, int key) {
+    int slot = findSlot(section);
+    return (slot < 0) ? null : values[slot][key];
+  }
+
+  /** Returns the numeric value of |key| in the first report of |section|, or NaN. */
+  double getSectionNumber(int section, int key) {
+    int slot = findSlot(section);
+    return (slot < 0) ? Double.NaN : numbers[slot][key];
+  }
+}
@@ -14,30 +14,58 @@ import android.util.Log;
 
 import org.webrtc.ThreadUtils;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Replacement for WebSocketChannelClient for direct communication between two IP addresses. Handles
  * the signaling between the two clients using a TCP connection.
  *
+ * <p>Sockets are non-blocking and serviced by a TCPEventLoop, which may be shared by many clients.
+ * If the loop is also the executor passed in the constructor, events are dispatched directly from
+ * the loop. Otherwise the messages received by one read are handed to the executor together.
+ *
+ * <p>Messages are newline terminated by default. If framing is requested, the connecting side
+ * sends a short hello when the connection is established and, if the listening side has framing
+ * enabled too, both switch to length-prefixed frames (see TCPMessageCodec). Either side with
+ * framing enabled still accepts line protocol peers: it falls back to lines if the first bytes of
+ * the peer are not a hello, or if nothing arrives within NEGOTIATION_TIMEOUT_MS. The connecting
+ * side then ends its hello with a newline, which line protocol peers skip. Framed connections can
+ * also carry binary messages.
+ *
+ * <p>Messages sent in the same burst of executor tasks are coalesced and written with a single
+ * gathering write.
+ *
  * <p>All public methods should be called from a looper executor thread
  * passed in a constructor, otherwise exception will be thrown.
  * All events are dispatched on the same thread.
  */
 public class TCPChannelClient {
   private static final String TAG = "TCPChannelClient";
+  private static final int NEGOTIATION_TIMEOUT_MS = 1000;
+  // Sent by the connecting side to request framing, echoed back by the listening side to accept.
+  // Starts with a zero byte, which can never start a line protocol (JSON) message.
+  private static final byte[] FRAMING_HELLO = {0, 'R', 'T', 'C', 1};
+  // Sent by the connecting side after its hello when falling back to the line protocol.
+  private static final byte[] HELLO_TERMINATOR = {'\n'};
 
   private final ExecutorService executor;
+  private final TCPEventLoop eventLoop;
   private final ThreadUtils.ThreadChecker executorThreadCheck;
   private final TCPChannelEvents eventListener;
+  private final boolean useFraming;
   private TCPSocket socket;
 
   /**
@@ -47,24 +75,50 @@ public class TCPChannelClient {
   public interface TCPChannelEvents {
     void onTCPConnected(boolean server);
     void onTCPMessage(String message);
+    void onTCPBinaryMessage(byte[] message);
     void onTCPError(String description);
     void onTCPClose();
   }
 
+  /**
+   * Initializes the TCPChannelClient using the line protocol.
+   *
+   * @see #TCPChannelClient(ExecutorService, TCPChannelEvents, String, int, boolean, TCPEventLoop)
+   */
+  public TCPChannelClient(
+      ExecutorService executor, TCPChannelEvents eventListener, String ip, int port) {
+    this(executor, eventListener, ip, port, false /* useFraming */);
+  }
+
+  /**
+   * Initializes the TCPChannelClient on the default event loop.
+   *
+   * @see #TCPChannelClient(ExecutorService, TCPChannelEvents, String, int, boolean, TCPEventLoop)
+   */
+  public TCPChannelClient(ExecutorService executor, TCPChannelEvents eventListener, String ip,
+      int port, boolean useFraming) {
+    this(executor, eventListener, ip, port, useFraming, TCPEventLoop.getDefault());
+  }
+
   /**
    * Initializes the TCPChannelClient. If IP is a local IP address, starts a listening server on
    * that IP. If not, instead connects to the IP.
    *
+   * @param executor Executor events are dispatched on. May be |eventLoop| itself.
    * @param eventListener Listener that will receive events from the client.
    * @param ip IP address to listen on or connect to.
    * @param port Port to listen on or connect to.
+   * @param useFraming Whether to negotiate length-prefixed framing with the peer.
+   * @param eventLoop Loop servicing the socket.
    */
-  public TCPChannelClient(
-      ExecutorService executor, TCPChannelEvents eventListener, String ip, int port) {
+  public TCPChannelClient(ExecutorService executor, TCPChannelEvents eventListener, String ip,
+      int port, boolean useFraming, TCPEventLoop eventLoop) {
     this.executor = executor;
+    this.eventLoop = eventLoop;
     executorThreadCheck = new ThreadUtils.ThreadChecker();
     executorThreadCheck.detachThread();
     this.eventListener = eventListener;
+    this.useFraming = useFraming;
 
     InetAddress address;
     try {
@@ -80,11 +134,17 @@ public class TCPChannelClient {
       socket = new TCPSocketClient(address, port);
     }
 
-    socket.start();
+    eventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        socket.start();
+      }
+    });
   }
 
   /**
    * Disconnects the client if not already disconnected. This will fire the onTCPClose event.
+   * Messages passed to send() before are written out first.
    */
   public void disconnect() {
     executorThreadCheck.checkIsOnValidThread();
@@ -103,12 +163,29 @@ public class TCPChannelClient {
     socket.send(message);
   }
 
+  /**
+   * Sends a binary message on the socket. Only framed connections can carry them, see
+   * isFramed().
+   *
+   * @param message Message to be sent.
+   */
+  public void send(byte[] message) {
+    executorThreadCheck.checkIsOnValidThread();
+
+    socket.send(message);
+  }
+
+  /** Returns true once the connection has been established with length-prefixed framing. */
+  public boolean isFramed() {
+    return socket != null && socket.isFramed();
+  }
+
   /**
    * Helper method for firing onTCPError events. Calls onTCPError on the executor thread.
    */
   private void reportError(final String message) {
     Log.e(TAG, "TCP Error: " + message);
-    executor.execute(new Runnable() {
+    dispatch(new Runnable() {
       @Override
       public void run() {
         eventListener.onTCPError(message);
@@ -116,153 +193,433 @@ public class TCPChannelClient {
     });
   }
 
+  /** Runs |event| on the executor, directly if already on the executor's loop thread. */
+  private void dispatch(Runnable event) {
+    if (executor == eventLoop && eventLoop.inEventLoop()) {
+      event.run();
+      return;
+    }
+    try {
+      executor.execute(event);
+    } catch (RejectedExecutionException e) {
+      Log.w(TAG, "Executor shut down, dropping event.");
+    }
+  }
+
   /**
-   * Base class for server and client sockets. Contains a listening thread that will call
-   * eventListener.onTCPMessage on new messages.
+   * Base class for server and client sockets. Everything but send() and disconnect() runs on
+   * the event loop, which calls onReady() when the socket can make progress.
    */
-  private abstract class TCPSocket extends Thread {
-    // Lock for editing out and rawSocket
-    protected final Object rawSocketLock;
-    private PrintWriter out;
-    private Socket rawSocket;
+  private abstract class TCPSocket implements TCPEventLoop.Handler {
+    // Fields below are only accessed on the event loop.
+    private SocketChannel rawSocket;
+    private SelectionKey key;
+    private ByteBuffer hello;
+    private boolean negotiating;
+    private boolean closeWhenFlushed;
+    private final List<Object> received = new ArrayList<Object>();
+    private final List<ByteBuffer> writeQueue = new ArrayList<ByteBuffer>();
+    private ByteBuffer[] writeArray = new ByteBuffer[8];
+
+    // Set on the event loop once the protocol is agreed, read by send() on the executor.
+    private volatile TCPMessageCodec codec;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // Messages encoded by send() waiting for the event loop to write them.
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound =
+        new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flushRunnable = new Runnable() {
+      @Override
+      public void run() {
+        flushScheduled.set(false);
+        flush();
+      }
+    };
 
-    /**
-     * Connect to the peer, potentially a slow operation.
-     *
-     * @return Socket connection, null if connection failed.
-     */
-    public abstract Socket connect();
+    // Messages read by the event loop waiting to be dispatched on the executor.
+    private final ConcurrentLinkedQueue<Object> inbound = new ConcurrentLinkedQueue<Object>();
+    private final AtomicBoolean deliveryScheduled = new AtomicBoolean();
+    private final Runnable deliveryRunnable = new Runnable() {
+      @Override
+      public void run() {
+        deliveryScheduled.set(false);
+        Object message;
+        while ((message = inbound.poll()) != null) {
+          dispatchMessage(message);
+        }
+      }
+    };
+
+    private final Runnable negotiationTimeoutRunnable = new Runnable() {
+      @Override
+      public void run() {
+        if (negotiating && rawSocket != null) {
+          onNegotiationTimeout();
+        }
+      }
+    };
+
+    /** Starts listening or connecting. Runs on the event loop. */
+    public abstract void start();
     /** Returns true if sockets is a server rawSocket. */
     public abstract boolean isServer();
 
-    TCPSocket() {
-      rawSocketLock = new Object();
+    @Override
+    public void onReady(SelectionKey readyKey) {
+      try {
+        if (readyKey.isAcceptable()) {
+          onAcceptable(readyKey);
+          return;
+        }
+        if (readyKey.isConnectable()) {
+          boolean connected;
+          try {
+            connected = rawSocket.finishConnect();
+          } catch (IOException e) {
+            reportError("Failed to connect: " + e.getMessage());
+            close();
+            return;
+          }
+          if (connected) {
+            onConnected(rawSocket, readyKey);
+          }
+          return;
+        }
+        if (readyKey.isWritable()) {
+          flush();
+        }
+        if (readyKey.isValid() && readyKey.isReadable()) {
+          if (negotiating) {
+            readHello();
+          } else {
+            read();
+          }
+        }
+      } catch (IOException e) {
+        if (!closed.get()) {
+          reportError("Socket error: " + e.getMessage());
+        }
+        close();
+      }
     }
 
-    /**
-     * The listening thread.
-     */
-    @Override
-    public void run() {
-      Log.d(TAG, "Listening thread started...");
+    /** Client sockets wait here for a pending connect to complete. Runs on the event loop. */
+    protected void onPending(SocketChannel channel, SelectionKey socketKey) {
+      rawSocket = channel;
+      key = socketKey;
+    }
 
-      // Receive connection to temporary variable first, so we don't block.
-      Socket tempSocket = connect();
-      BufferedReader in;
+    /** Server sockets accept their peer here. Runs on the event loop. */
+    protected void onAcceptable(SelectionKey readyKey) throws IOException {}
 
+    /**
+     * Called once the connection is established, with |socketKey| registered for the socket.
+     * Runs on the event loop.
+     */
+    protected void onConnected(SocketChannel channel, SelectionKey socketKey) throws IOException {
       Log.d(TAG, "TCP connection established.");
+      rawSocket = channel;
+      key = socketKey;
+      key.interestOps(SelectionKey.OP_READ);
+      if (closed.get()) {
+        close();
+        return;
+      }
 
-      synchronized (rawSocketLock) {
-        if (rawSocket != null) {
-          Log.e(TAG, "Socket already existed and will be replaced.");
-        }
+      if (!useFraming) {
+        open(TCPMessageCodec.create(false /* framed */, null));
+        return;
+      }
+      hello = ByteBuffer.allocate(FRAMING_HELLO.length);
+      negotiating = true;
+      if (!isServer()) {
+        writeQueue.add(ByteBuffer.wrap(FRAMING_HELLO));
+        flush();
+      }
+      eventLoop.schedule(negotiationTimeoutRunnable, NEGOTIATION_TIMEOUT_MS);
+    }
 
-        rawSocket = tempSocket;
+    private void readHello() throws IOException {
+      if (rawSocket.read(hello) < 0) {
+        throw new IOException("Connection closed during negotiation.");
+      }
+      if (hello.get(0) != FRAMING_HELLO[0]) {
+        // Line protocol peer, what was read belongs to its first message.
+        hello.flip();
+        fallBackToLines(hello);
+        return;
+      }
+      if (hello.hasRemaining() && hello.get(0) == FRAMING_HELLO[0]) {
+        return;
+      }
+      hello.flip();
+      if (!hello.equals(ByteBuffer.wrap(FRAMING_HELLO))) {
+        reportError("Unsupported framing hello.");
+        close();
+        return;
+      }
+      if (isServer()) {
+        writeQueue.add(ByteBuffer.wrap(FRAMING_HELLO));
+        flush();
+      }
+      open(TCPMessageCodec.create(true /* framed */, null));
+    }
 
-        // Connecting failed, error has already been reported, just exit.
-        if (rawSocket == null) {
-          return;
-        }
+    private void onNegotiationTimeout() {
+      if (hello.position() == 0) {
+        // Nothing was sent, so this is a line protocol peer waiting for us.
+        fallBackToLines(null);
+        return;
+      }
+      reportError("Incomplete framing hello.");
+      close();
+    }
 
-        try {
-          out = new PrintWriter(rawSocket.getOutputStream(), true);
-          in = new BufferedReader(new InputStreamReader(rawSocket.getInputStream()));
-        } catch (IOException e) {
-          reportError("Failed to open IO on rawSocket: " + e.getMessage());
+    /** Switches to the line protocol, with |received| holding the first bytes of the peer. */
+    private void fallBackToLines(ByteBuffer received) {
+      Log.d(TAG, "Peer does not use framing.");
+      if (!isServer()) {
+        writeQueue.add(ByteBuffer.wrap(HELLO_TERMINATOR));
+        flush();
+        if (rawSocket == null) {
           return;
         }
       }
+      open(TCPMessageCodec.create(false /* framed */, received));
+    }
 
-      Log.v(TAG, "Execute onTCPConnected");
-      executor.execute(new Runnable() {
+    private void open(TCPMessageCodec newCodec) {
+      negotiating = false;
+      hello = null;
+      codec = newCodec;
+      Log.d(TAG, "Using " + (newCodec.isFramed() ? "framed" : "line") + " protocol.");
+      dispatch(new Runnable() {
         @Override
         public void run() {
           Log.v(TAG, "Run onTCPConnected");
           eventListener.onTCPConnected(isServer());
         }
       });
+      // Bytes received during negotiation may already hold complete messages.
+      try {
+        read();
+      } catch (IOException e) {
+        reportError("Failed to read from rawSocket: " + e.getMessage());
+        close();
+      }
+    }
 
-      while (true) {
-        final String message;
-        try {
-          message = in.readLine();
-        } catch (IOException e) {
-          synchronized (rawSocketLock) {
-            // If socket was closed, this is expected.
-            if (rawSocket == null) {
-              break;
-            }
-          }
+    private void read() throws IOException {
+      boolean open = codec.read(rawSocket, received);
+      if (!received.isEmpty()) {
+        deliver(received);
+        received.clear();
+      }
+      if (!open) {
+        Log.d(TAG, "Connection closed by peer.");
+        close();
+      }
+    }
 
-          reportError("Failed to read from rawSocket: " + e.getMessage());
-          break;
+    private void deliver(List<Object> messages) {
+      if (executor == eventLoop) {
+        for (Object message : messages) {
+          dispatchMessage(message);
         }
+        return;
+      }
+      inbound.addAll(messages);
+      if (deliveryScheduled.compareAndSet(false, true)) {
+        try {
+          executor.execute(deliveryRunnable);
+        } catch (RejectedExecutionException e) {
+          Log.w(TAG, "Executor shut down, dropping messages.");
+        }
+      }
+    }
+
+    private void dispatchMessage(Object message) {
+      if (message instanceof byte[]) {
+        Log.v(TAG, "Receive: " + ((byte[]) message).length + " bytes");
+        eventListener.onTCPBinaryMessage((byte[]) message);
+      } else {
+        Log.v(TAG, "Receive: " + message);
+        eventListener.onTCPMessage((String) message);
+      }
+    }
 
-        // No data received, rawSocket probably closed.
-        if (message == null) {
-          break;
+    /**
+     * Closes the rawSocket once pending messages are written. Also fires the onTCPClose event.
+     * Should only be called on the executor thread.
+     */
+    public void disconnect() {
+      if (closed.getAndSet(true)) {
+        return;
+      }
+      dispatch(new Runnable() {
+        @Override
+        public void run() {
+          eventListener.onTCPClose();
+        }
+      });
+      eventLoop.execute(new Runnable() {
+        @Override
+        public void run() {
+          closeWhenFlushed = true;
+          flush();
         }
+      });
+    }
 
-        executor.execute(new Runnable() {
+    /**
+     * Closes the rawSocket immediately, firing onTCPClose unless disconnect() was called.
+     * Runs on the event loop.
+     */
+    protected void close() {
+      if (!closed.getAndSet(true)) {
+        dispatch(new Runnable() {
           @Override
           public void run() {
-            Log.v(TAG, "Receive: " + message);
-            eventListener.onTCPMessage(message);
+            eventListener.onTCPClose();
           }
         });
       }
-
-      Log.d(TAG, "Receiving thread exiting...");
-
-      // Close the rawSocket if it is still open.
-      disconnect();
+      if (key != null) {
+        key.cancel();
+      }
+      if (rawSocket != null) {
+        try {
+          rawSocket.close();
+        } catch (IOException e) {
+          reportError("Failed to close rawSocket: " + e.getMessage());
+        }
+        rawSocket = null;
+      }
+      negotiating = false;
+      TCPMessageCodec oldCodec = codec;
+      codec = null;
+      if (oldCodec != null) {
+        oldCodec.release();
+      }
+      releaseAll(writeQueue);
+      ByteBuffer buffer;
+      while ((buffer = outbound.poll()) != null) {
+        TCPMessageCodec.releaseBuffer(buffer);
+      }
     }
 
     /**
-     * Closes the rawSocket if it is still open. Also fires the onTCPClose event.
+     * Queues a message on the socket. Should only be called on the executor thread. The message
+     * is written by the event loop, together with any other messages sent before it gets to it.
      */
-    public void disconnect() {
+    public void send(String message) {
+      Log.v(TAG, "Send: " + message);
+
+      TCPMessageCodec currentCodec = codec;
+      if (currentCodec == null || closed.get()) {
+        reportError("Sending data on closed socket.");
+        return;
+      }
+
       try {
-        synchronized (rawSocketLock) {
-          if (rawSocket != null) {
-            rawSocket.close();
-            rawSocket = null;
-            out = null;
-
-            executor.execute(new Runnable() {
-              @Override
-              public void run() {
-                eventListener.onTCPClose();
-              }
-            });
-          }
-        }
+        queue(currentCodec.encode(message));
+      } catch (IOException e) {
+        reportError("Failed to encode message: " + e.getMessage());
+      }
+    }
+
+    /** Queues a binary message, see send(String). */
+    public void send(byte[] message) {
+      Log.v(TAG, "Send: " + message.length + " bytes");
+
+      TCPMessageCodec currentCodec = codec;
+      if (currentCodec == null || closed.get()) {
+        reportError("Sending data on closed socket.");
+        return;
+      }
+
+      try {
+        queue(currentCodec.encode(message));
       } catch (IOException e) {
-        reportError("Failed to close rawSocket: " + e.getMessage());
+        reportError("Failed to encode message: " + e.getMessage());
+      }
+    }
+
+    public boolean isFramed() {
+      TCPMessageCodec currentCodec = codec;
+      return currentCodec != null && currentCodec.isFramed();
+    }
+
+    private void queue(ByteBuffer buffer) {
+      outbound.add(buffer);
+      if (flushScheduled.compareAndSet(false, true)) {
+        eventLoop.execute(flushRunnable);
       }
     }
 
     /**
-     * Sends a message on the socket. Should only be called on the executor thread.
+     * Writes queued messages with a single gathering write, and waits for the socket to become
+     * writable if they do not fit. Runs on the event loop.
      */
-    public void send(String message) {
-      Log.v(TAG, "Send: " + message);
-
-      synchronized (rawSocketLock) {
-        if (out == null) {
-          reportError("Sending data on closed socket.");
+    private void flush() {
+      if (rawSocket == null) {
+        if (closeWhenFlushed) {
+          close();
+        }
+        return;
+      }
+      ByteBuffer buffer;
+      while ((buffer = outbound.poll()) != null) {
+        writeQueue.add(buffer);
+      }
+      if (!writeQueue.isEmpty()) {
+        if (writeArray.length < writeQueue.size()) {
+          writeArray = new ByteBuffer[Math.max(writeQueue.size(), writeArray.length * 2)];
+        }
+        int count = writeQueue.size();
+        writeQueue.toArray(writeArray);
+        try {
+          rawSocket.write(writeArray, 0, count);
+        } catch (IOException e) {
+          reportError("Failed to write to rawSocket: " + e.getMessage());
+          close();
           return;
         }
+        int written = 0;
+        while (written < count && !writeArray[written].hasRemaining()) {
+          TCPMessageCodec.releaseBuffer(writeArray[written]);
+          ++written;
+        }
+        writeQueue.subList(0, written).clear();
+        for (int i = 0; i < count; ++i) {
+          writeArray[i] = null;
+        }
+      }
+
+      if (writeQueue.isEmpty()) {
+        if (closeWhenFlushed) {
+          close();
+        } else if (key.isValid()) {
+          key.interestOps(SelectionKey.OP_READ);
+        }
+      } else if (key.isValid()) {
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
 
-        out.write(message + "\n");
-        out.flush();
+    private void releaseAll(List<ByteBuffer> buffers) {
+      for (ByteBuffer buffer : buffers) {
+        TCPMessageCodec.releaseBuffer(buffer);
       }
+      buffers.clear();
     }
   }
 
   private class TCPSocketServer extends TCPSocket {
-    // Server socket is also guarded by rawSocketLock.
-    private ServerSocket serverSocket;
+    // Only accessed on the event loop.
+    private ServerSocketChannel serverSocket;
+    private SelectionKey acceptKey;
 
     final private InetAddress address;
     final private int port;
@@ -272,50 +629,55 @@ public class TCPChannelClient {
       this.port = port;
     }
 
-    /** Opens a listening socket and waits for a connection. */
+    /** Opens a listening socket, the connection is accepted once it arrives. */
     @Override
-    public Socket connect() {
+    public void start() {
       Log.d(TAG, "Listening on [" + address.getHostAddress() + "]:" + Integer.toString(port));
 
-      final ServerSocket tempSocket;
       try {
-        tempSocket = new ServerSocket(port, 0, address);
+        serverSocket = ServerSocketChannel.open();
+        serverSocket.configureBlocking(false);
+        serverSocket.socket().bind(new InetSocketAddress(address, port));
+        acceptKey = eventLoop.register(serverSocket, SelectionKey.OP_ACCEPT, this);
       } catch (IOException e) {
         reportError("Failed to create server socket: " + e.getMessage());
-        return null;
-      }
-
-      synchronized (rawSocketLock) {
-        if (serverSocket != null) {
-          Log.e(TAG, "Server rawSocket was already listening and new will be opened.");
-        }
-
-        serverSocket = tempSocket;
+        close();
       }
+    }
 
+    @Override
+    protected void onAcceptable(SelectionKey readyKey) throws IOException {
+      SocketChannel channel;
       try {
-        return tempSocket.accept();
+        channel = serverSocket.accept();
       } catch (IOException e) {
         reportError("Failed to receive connection: " + e.getMessage());
-        return null;
+        close();
+        return;
       }
+      if (channel == null) {
+        return;
+      }
+      // Only one peer is served, further connections wait in the backlog as before.
+      acceptKey.interestOps(0);
+      channel.configureBlocking(false);
+      onConnected(channel, eventLoop.register(channel, SelectionKey.OP_READ, this));
     }
 
     /** Closes the listening socket and calls super. */
     @Override
-    public void disconnect() {
-      try {
-        synchronized (rawSocketLock) {
-          if (serverSocket != null) {
-            serverSocket.close();
-            serverSocket = null;
-          }
+    protected void close() {
+      if (serverSocket != null) {
+        acceptKey = null;
+        try {
+          serverSocket.close();
+        } catch (IOException e) {
+          reportError("Failed to close server socket: " + e.getMessage());
         }
-      } catch (IOException e) {
-        reportError("Failed to close server socket: " + e.getMessage());
+        serverSocket = null;
       }
 
-      super.disconnect();
+      super.close();
     }
 
     @Override
@@ -333,16 +695,22 @@ public class TCPChannelClient {
       this.port = port;
     }
 
-    /** Connects to the peer. */
+    /** Starts connecting to the peer. */
     @Override
-    public Socket connect() {
+    public void start() {
       Log.d(TAG, "Connecting to [" + address.getHostAddress() + "]:" + Integer.toString(port));
 
       try {
-        return new Socket(address, port);
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        if (channel.connect(new InetSocketAddress(address, port))) {
+          onConnected(channel, eventLoop.register(channel, SelectionKey.OP_READ, this));
+        } else {
+          onPending(channel, eventLoop.register(channel, SelectionKey.OP_CONNECT, this));
+        }
       } catch (IOException e) {
         reportError("Failed to connect: " + e.getMessage());
-        return null;
+        close();
       }
     }
 
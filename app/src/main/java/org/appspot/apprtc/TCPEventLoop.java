@@ -0,0 +1,250 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single thread that multiplexes the sockets of any number of TCPChannelClients with a Selector.
+ *
+ * <p>The loop is also an executor, running submitted tasks between selects. A client created
+ * with the loop as its executor receives its TCPChannelEvents callbacks directly on the loop
+ * thread, without any thread hop. Such callbacks, like all tasks run by the loop, must not block
+ * since they hold up every other connection.
+ */
+public class TCPEventLoop extends AbstractExecutorService {
+  private static final String TAG = "TCPEventLoop";
+
+  private static TCPEventLoop defaultLoop;
+
+  private final Selector selector;
+  private final Thread thread;
+  private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  // Only accessed on the loop thread.
+  private final PriorityQueue<TimedTask> timedTasks = new PriorityQueue<TimedTask>();
+  private final CountDownLatch terminated = new CountDownLatch(1);
+  private volatile boolean shutdown;
+
+  /** Callback for channels registered with the loop, invoked on the loop thread. */
+  interface Handler {
+    /** Called when the channel is ready for some of the operations it is registered for. */
+    void onReady(SelectionKey key);
+  }
+
+  private static class TimedTask implements Comparable<TimedTask> {
+    final long deadlineMs;
+    final Runnable task;
+
+    TimedTask(long deadlineMs, Runnable task) {
+      this.deadlineMs = deadlineMs;
+      this.task = task;
+    }
+
+    @Override
+    public int compareTo(TimedTask other) {
+      return deadlineMs < other.deadlineMs ? -1 : (deadlineMs == other.deadlineMs ? 0 : 1);
+    }
+  }
+
+  /** Returns the loop shared by clients that are not given one, starting it if needed. */
+  public static synchronized TCPEventLoop getDefault() {
+    if (defaultLoop == null || defaultLoop.isShutdown()) {
+      defaultLoop = new TCPEventLoop();
+    }
+    return defaultLoop;
+  }
+
+  /** Creates and starts a new loop thread. */
+  public TCPEventLoop() {
+    try {
+      selector = Selector.open();
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to open selector: " + e.getMessage());
+    }
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        loop();
+      }
+    }, TAG);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Returns true if called on the loop thread. */
+  public boolean inEventLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    if (shutdown) {
+      throw new RejectedExecutionException("Event loop is shut down.");
+    }
+    tasks.add(task);
+    if (!inEventLoop()) {
+      selector.wakeup();
+    }
+  }
+
+  /** Runs |task| on the loop thread after |delayMs|. Must be called on the loop thread. */
+  void schedule(Runnable task, long delayMs) {
+    checkInEventLoop();
+    timedTasks.add(new TimedTask(nowMs() + delayMs, task));
+  }
+
+  /**
+   * Registers |channel|, which must be non-blocking, with the loop. Must be called on the loop
+   * thread.
+   */
+  SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+      throws ClosedChannelException {
+    checkInEventLoop();
+    return channel.register(selector, ops, handler);
+  }
+
+  @Override
+  public void shutdown() {
+    shutdown = true;
+    selector.wakeup();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    shutdown();
+    List<Runnable> pending = new ArrayList<Runnable>();
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      pending.add(task);
+    }
+    return pending;
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return terminated.getCount() == 0;
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return terminated.await(timeout, unit);
+  }
+
+  private void loop() {
+    Log.d(TAG, "Event loop started.");
+    while (true) {
+      runTasks();
+      if (shutdown) {
+        break;
+      }
+      try {
+        long timeoutMs = 0;
+        TimedTask next = timedTasks.peek();
+        if (next != null) {
+          timeoutMs = Math.max(1, next.deadlineMs - nowMs());
+        }
+        selector.select(timeoutMs);
+      } catch (IOException e) {
+        Log.e(TAG, "Select failed: " + e.getMessage());
+        break;
+      }
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (key.isValid()) {
+          dispatchReady(key);
+        }
+      }
+    }
+
+    // Close whatever is still registered.
+    for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+      try {
+        key.channel().close();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to close channel: " + e.getMessage());
+      }
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to close selector: " + e.getMessage());
+    }
+    terminated.countDown();
+    Log.d(TAG, "Event loop exiting...");
+  }
+
+  private void runTasks() {
+    long now = nowMs();
+    while (!timedTasks.isEmpty() && timedTasks.peek().deadlineMs <= now) {
+      runTask(timedTasks.poll().task);
+    }
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      runTask(task);
+    }
+  }
+
+  private void runTask(Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Task failed: " + e);
+    }
+  }
+
+  // A failing handler only loses its own channel, the loop keeps serving the others.
+  private void dispatchReady(SelectionKey key) {
+    try {
+      ((Handler) key.attachment()).onReady(key);
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Handler failed, closing its channel: " + e);
+      key.cancel();
+      try {
+        key.channel().close();
+      } catch (IOException closeException) {
+        Log.e(TAG, "Failed to close channel: " + closeException.getMessage());
+      }
+    }
+  }
+
+  private void checkInEventLoop() {
+    if (!inEventLoop()) {
+      throw new IllegalStateException("Not on the event loop thread.");
+    }
+  }
+
+  private static long nowMs() {
+    return System.nanoTime() / 1000000;
+  }
+}
@@ -0,0 +1,371 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+
+/**
+ * Wire format of the messages exchanged by TCPChannelClient.
+ *
+ * <p>The line codec is the original protocol: UTF-8 text terminated by '\n'. The framed codec
+ * prefixes each UTF-8 message with its length as a 4-byte big-endian integer, so the receiver
+ * never has to scan for a delimiter. Both encode straight into direct buffers taken from a
+ * shared pool and decode straight out of the channel's read buffer.
+ *
+ * <p>The line codec skips lines starting with a zero byte. They are the framing hello of a
+ * TCPChannelClient peer that fell back to the line protocol, never a JSON message.
+ *
+ * <p>The framed codec can also carry binary messages, whose length has the top bit set. Decoded
+ * messages are Strings, or byte arrays for binary ones.
+ *
+ * <p>Reading and writing may happen on different threads. The read side (read()) and the
+ * write side (encode()) each keep their own state and must each be used from one thread only.
+ */
+abstract class TCPMessageCodec {
+  // Size of pooled buffers. Fits a typical offer; larger messages use one-off heap buffers.
+  static final int BUFFER_SIZE = 16 * 1024;
+  // Upper bound for a single message, protects against a corrupt length prefix.
+  static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+  private static final int MAX_POOLED_BUFFERS = 16;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final BufferPool bufferPool =
+      new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS, true /* direct */);
+
+  // Write side.
+  private final CharsetEncoder encoder;
+
+  // Read side. |readBuffer| is kept in write mode between calls to read().
+  private final CharsetDecoder decoder;
+  private final ByteBuffer pooledReadBuffer;
+  private ByteBuffer readBuffer;
+  private CharBuffer charBuffer;
+
+  /**
+   * Creates a codec. |received| holds bytes already read from the channel (for example during
+   * negotiation) that belong to the first message, it may be null.
+   */
+  static TCPMessageCodec create(boolean framed, ByteBuffer received) {
+    TCPMessageCodec codec = framed ? new FramedCodec() : new LineCodec();
+    if (received != null) {
+      codec.readBuffer.put(received);
+    }
+    return codec;
+  }
+
+  /** Returns a direct buffer of BUFFER_SIZE bytes, cleared. */
+  static ByteBuffer acquireBuffer() {
+    return bufferPool.acquire();
+  }
+
+  /** Offers |buffer| back to the pool, see BufferPool.release(). */
+  static void releaseBuffer(ByteBuffer buffer) {
+    bufferPool.release(buffer);
+  }
+
+  private TCPMessageCodec() {
+    encoder = UTF_8.newEncoder()
+                  .onMalformedInput(CodingErrorAction.REPLACE)
+                  .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    decoder = UTF_8.newDecoder()
+                  .onMalformedInput(CodingErrorAction.REPLACE)
+                  .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    pooledReadBuffer = bufferPool.acquire();
+    readBuffer = pooledReadBuffer;
+    charBuffer = CharBuffer.allocate(BUFFER_SIZE);
+  }
+
+  /** True if this codec uses length-prefixed frames. */
+  abstract boolean isFramed();
+
+  /** Number of bytes reserved in front of the encoded message. */
+  abstract int headerSize();
+
+  /** Number of bytes appended after the encoded message. */
+  abstract int trailerSize();
+
+  /** Completes a message whose payload was encoded into |out| after headerSize() bytes. */
+  abstract void finishMessage(ByteBuffer out, int payloadSize);
+
+  /**
+   * Decodes all complete messages from |in|, which is in read mode, and leaves the position
+   * at the start of the first incomplete one.
+   */
+  abstract void decodeMessages(ByteBuffer in, List<Object> messages) throws IOException;
+
+  /** Called at end of stream with the unconsumed bytes in |in|. */
+  abstract void decodeRemainder(ByteBuffer in, List<Object> messages) throws IOException;
+
+  /**
+   * Returns |message| encoded for the wire, flipped and ready to be written. Pass the buffer to
+   * releaseBuffer() once it has been written.
+   */
+  ByteBuffer encode(String message) throws IOException {
+    ByteBuffer out = bufferPool.acquire();
+    if (!encodeInto(message, out)) {
+      // Did not fit a pooled buffer; size a heap buffer for the worst case.
+      bufferPool.release(out);
+      long maxSize =
+          headerSize() + (long) (message.length() * encoder.maxBytesPerChar()) + trailerSize();
+      out = ByteBuffer.allocate((int) Math.min(maxSize, headerSize() + MAX_MESSAGE_SIZE + 1));
+      if (!encodeInto(message, out)) {
+        throw new ProtocolException("Message too large: " + message.length() + " chars");
+      }
+    }
+    out.flip();
+    return out;
+  }
+
+  /**
+   * Returns the binary |message| encoded for the wire, see encode(String). Only the framed codec
+   * supports binary messages.
+   */
+  ByteBuffer encode(byte[] message) throws IOException {
+    if (!isFramed()) {
+      throw new ProtocolException("Binary messages need framing.");
+    }
+    if (message.length > MAX_MESSAGE_SIZE) {
+      throw new ProtocolException("Message too large: " + message.length + " bytes");
+    }
+    ByteBuffer out;
+    if (headerSize() + message.length <= BUFFER_SIZE) {
+      out = bufferPool.acquire();
+    } else {
+      out = ByteBuffer.allocate(headerSize() + message.length);
+    }
+    out.clear();
+    out.position(headerSize());
+    out.put(message);
+    finishBinaryMessage(out, message.length);
+    out.flip();
+    return out;
+  }
+
+  /** Completes a binary message written into |out| after headerSize() bytes. */
+  void finishBinaryMessage(ByteBuffer out, int payloadSize) throws ProtocolException {
+    throw new ProtocolException("Binary messages need framing.");
+  }
+
+  private boolean encodeInto(String message, ByteBuffer out) throws CharacterCodingException {
+    out.clear();
+    out.position(headerSize());
+    encoder.reset();
+    CoderResult result = encoder.encode(CharBuffer.wrap(message), out, true);
+    if (result.isUnderflow()) {
+      result = encoder.flush(out);
+    }
+    if (result.isOverflow()) {
+      return false;
+    }
+    if (result.isError()) {
+      result.throwException();
+    }
+    int payloadSize = out.position() - headerSize();
+    if (payloadSize > MAX_MESSAGE_SIZE || out.remaining() < trailerSize()) {
+      return false;
+    }
+    finishMessage(out, payloadSize);
+    return true;
+  }
+
+  /**
+   * Reads from |channel| once and appends every message completed by the read to |messages|.
+   * Returns false once the end of the stream has been reached.
+   */
+  boolean read(ReadableByteChannel channel, List<Object> messages) throws IOException {
+    int bytesRead = channel.read(readBuffer);
+    readBuffer.flip();
+    if (bytesRead < 0) {
+      decodeRemainder(readBuffer, messages);
+      readBuffer.clear();
+      return false;
+    }
+    decodeMessages(readBuffer, messages);
+    readBuffer.compact();
+    if (!readBuffer.hasRemaining()) {
+      growReadBuffer();
+    } else if (readBuffer != pooledReadBuffer && readBuffer.position() == 0) {
+      // The oversized message has been consumed, go back to the pooled buffer.
+      readBuffer = pooledReadBuffer;
+      readBuffer.clear();
+    }
+    return true;
+  }
+
+  /** Returns the read buffer to the pool. The codec must not be used afterwards. */
+  void release() {
+    bufferPool.release(pooledReadBuffer);
+  }
+
+  // A single incomplete message fills the whole read buffer.
+  private void growReadBuffer() throws ProtocolException {
+    int capacity = readBuffer.capacity();
+    int limit = headerSize() + MAX_MESSAGE_SIZE + trailerSize();
+    if (capacity >= limit) {
+      throw new ProtocolException("Message exceeds " + MAX_MESSAGE_SIZE + " bytes");
+    }
+    ByteBuffer grown = ByteBuffer.allocate(Math.min(capacity * 2, limit));
+    readBuffer.flip();
+    grown.put(readBuffer);
+    if (readBuffer == pooledReadBuffer) {
+      pooledReadBuffer.clear();
+    }
+    readBuffer = grown;
+  }
+
+  /** Decodes |length| bytes of UTF-8 from |in| and advances its position past them. */
+  String decode(ByteBuffer in, int length) {
+    int end = in.position() + length;
+    int limit = in.limit();
+    in.limit(end);
+    // UTF-8 never yields more chars than bytes.
+    if (charBuffer.capacity() < length) {
+      charBuffer = CharBuffer.allocate(length);
+    }
+    charBuffer.clear();
+    decoder.reset();
+    decoder.decode(in, charBuffer, true);
+    decoder.flush(charBuffer);
+    in.limit(limit);
+    in.position(end);
+    charBuffer.flip();
+    return charBuffer.toString();
+  }
+
+  /** Newline terminated messages, compatible with BufferedReader.readLine() peers. */
+  private static class LineCodec extends TCPMessageCodec {
+    // Bytes at the start of the read buffer already known not to contain a newline.
+    private int scanned;
+
+    @Override
+    boolean isFramed() {
+      return false;
+    }
+
+    @Override
+    int headerSize() {
+      return 0;
+    }
+
+    @Override
+    int trailerSize() {
+      return 1;
+    }
+
+    @Override
+    void finishMessage(ByteBuffer out, int payloadSize) {
+      out.put((byte) '\n');
+    }
+
+    @Override
+    void decodeMessages(ByteBuffer in, List<Object> messages) {
+      int start = in.position();
+      for (int i = start + scanned; i < in.limit(); ++i) {
+        if (in.get(i) == '\n') {
+          int length = i - start;
+          if (length > 0 && in.get(i - 1) == '\r') {
+            --length;
+          }
+          if (length == 0 || in.get(start) != 0) {
+            messages.add(decode(in, length));
+          }
+          start = i + 1;
+          in.position(start);
+        }
+      }
+      scanned = in.remaining();
+    }
+
+    @Override
+    void decodeRemainder(ByteBuffer in, List<Object> messages) {
+      decodeMessages(in, messages);
+      if (in.hasRemaining()) {
+        messages.add(decode(in, in.remaining()));
+      }
+      scanned = 0;
+    }
+  }
+
+  /**
+   * Messages prefixed by their UTF-8 length as a 4-byte big-endian integer, or by their length
+   * with BINARY_FLAG set for binary ones.
+   */
+  private static class FramedCodec extends TCPMessageCodec {
+    private static final int HEADER_SIZE = 4;
+    private static final int BINARY_FLAG = 0x80000000;
+
+    @Override
+    boolean isFramed() {
+      return true;
+    }
+
+    @Override
+    int headerSize() {
+      return HEADER_SIZE;
+    }
+
+    @Override
+    int trailerSize() {
+      return 0;
+    }
+
+    @Override
+    void finishMessage(ByteBuffer out, int payloadSize) {
+      out.putInt(0, payloadSize);
+    }
+
+    @Override
+    void finishBinaryMessage(ByteBuffer out, int payloadSize) {
+      out.putInt(0, payloadSize | BINARY_FLAG);
+    }
+
+    @Override
+    void decodeMessages(ByteBuffer in, List<Object> messages) throws ProtocolException {
+      while (in.remaining() >= HEADER_SIZE) {
+        int header = in.getInt(in.position());
+        int length = header & ~BINARY_FLAG;
+        if (length > MAX_MESSAGE_SIZE) {
+          throw new ProtocolException("Invalid frame length: " + length);
+        }
+        if (in.remaining() < HEADER_SIZE + length) {
+          return;
+        }
+        in.position(in.position() + HEADER_SIZE);
+        if ((header & BINARY_FLAG) != 0) {
+          byte[] message = new byte[length];
+          in.get(message);
+          messages.add(message);
+        } else {
+          messages.add(decode(in, length));
+        }
+      }
+    }
+
+    @Override
+    void decodeRemainder(ByteBuffer in, List<Object> messages) throws ProtocolException {
+      decodeMessages(in, messages);
+      if (in.hasRemaining()) {
+        throw new ProtocolException("Stream ended inside a frame.");
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+/**
+ * Attributes the CPU time of this process to pipeline stages, by thread name.
+ *
+ * <p>Each CpuSampler sample, the time every thread used since the previous sample is added to
+ * the group whose name prefix matches the thread name, or to GROUP_OTHER. Linux truncates
+ * thread names to 15 characters, so the prefixes are at most that long. The usage of a group
+ * is its share of the capacity of all CPUs, like CpuMonitor's system usage, and is kept as a
+ * moving average. Not thread safe.
+ */
+final class ThreadCpuProfiler {
+  static final int GROUP_ENCODER = 0;
+  static final int GROUP_DECODER = 1;
+  static final int GROUP_AUDIO = 2;
+  static final int GROUP_NETWORK = 3;
+  static final int GROUP_SIGNALING = 4;
+  static final int GROUP_RENDER = 5;
+  static final int GROUP_OTHER = 6;
+  static final int GROUP_COUNT = 7;
+
+  static final String[] GROUP_NAMES = {
+      "encoder", "decoder", "audio", "network", "signaling", "render", "other"};
+
+  // Thread name prefixes of each group.
+  private static final String[][] GROUP_PREFIXES = {
+      // Encoder: WebRTC's encoder queue and the MediaCodec encoder threads.
+      {"EncoderQueue", "EncoderThread", "MediaCodecVideo", "HwEncoder"},
+      // Decoder.
+      {"DecodingThread", "DecoderThread", "HwDecoder"},
+      // Audio: voice engine and the Java audio device threads.
+      {"VoiceProcessThr", "AudioRecordJava", "AudioTrackJavaT", "AudioDevice", "rtc-low-prio"},
+      // Network: WebRTC's network thread, the direct TCP event loop and the HTTP engine.
+      {"network_thread", "TCPEventLoop", "AsyncHttpEngine"},
+      // Signaling: WebRTC's signaling and worker threads, the PeerConnectionClient executor and
+      // the WebSocket signaling thread.
+      {"signaling_threa", "worker_thread", PeerConnectionClient.EXECUTOR_THREAD_NAME,
+          "WSRTCClient"},
+      // Render: the app's views and the video renderers.
+      {"RenderThread", "SurfaceViewRend", "EglRenderer", "GLThread"},
+  };
+
+  private final CpuMonitor.MovingAverage[] usages = new CpuMonitor.MovingAverage[GROUP_COUNT];
+  private final long[] groupTimes = new long[GROUP_COUNT];
+
+  ThreadCpuProfiler(int movingAverageSamples) {
+    for (int i = 0; i < GROUP_COUNT; ++i) {
+      usages[i] = new CpuMonitor.MovingAverage(movingAverageSamples);
+    }
+  }
+
+  /** Returns the group of the thread named |name|. */
+  static int groupOf(String name) {
+    if (name == null) {
+      return GROUP_OTHER;
+    }
+    for (int group = 0; group < GROUP_PREFIXES.length; ++group) {
+      for (String prefix : GROUP_PREFIXES[group]) {
+        if (name.startsWith(prefix)) {
+          return group;
+        }
+      }
+    }
+    return GROUP_OTHER;
+  }
+
+  /**
+   * Adds the thread times of the last sample of |sampler|, out of |allTime| clock ticks of all
+   * CPUs.
+   */
+  void update(CpuSampler sampler, long allTime) {
+    if (allTime <= 0) {
+      return;
+    }
+    for (int i = 0; i < GROUP_COUNT; ++i) {
+      groupTimes[i] = 0;
+    }
+    for (int i = 0; i < sampler.getThreadCount(); ++i) {
+      long time = sampler.getThreadTimeDelta(i);
+      if (time > 0) {
+        groupTimes[groupOf(sampler.getThreadName(i))] += time;
+      }
+    }
+    for (int i = 0; i < GROUP_COUNT; ++i) {
+      usages[i].addValue(groupTimes[i] / (double) allTime);
+    }
+  }
+
+  void reset() {
+    for (CpuMonitor.MovingAverage usage : usages) {
+      usage.reset();
+    }
+  }
+
+  /** Returns the usage of |group| in the last sample, as a fraction of all CPUs. */
+  double getCurrent(int group) {
+    return usages[group].getCurrent();
+  }
+
+  double getAverage(int group) {
+    return usages[group].getAverage();
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.webrtc.PeerConnection;
+
+/**
+ * Process wide cache of the TURN servers returned by a room's ice_server_url, so that rejoining
+ * a room does not have to fetch fresh credentials every time.
+ */
+class TurnServerCache {
+  private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+  private static class Entry {
+    final List<PeerConnection.IceServer> servers;
+    final long expiresAtMs;
+
+    Entry(List<PeerConnection.IceServer> servers, long expiresAtMs) {
+      this.servers = servers;
+      this.expiresAtMs = expiresAtMs;
+    }
+  }
+
+  private TurnServerCache() {}
+
+  /** Returns a copy of the servers cached for |url|, or null if none are cached or they expired. */
+  static synchronized List<PeerConnection.IceServer> get(String url) {
+    Entry entry = entries.get(url);
+    if (entry == null) {
+      return null;
+    }
+    if (nowMs() >= entry.expiresAtMs) {
+      entries.remove(url);
+      return null;
+    }
+    return new ArrayList<PeerConnection.IceServer>(entry.servers);
+  }
+
+  /** Caches |servers| fetched from |url| for |ttlMs|. */
+  static synchronized void put(String url, List<PeerConnection.IceServer> servers, long ttlMs) {
+    if (ttlMs <= 0) {
+      return;
+    }
+    entries.put(url, new Entry(new ArrayList<PeerConnection.IceServer>(servers), nowMs() + ttlMs));
+  }
+
+  /** Drops all cached servers. */
+  static synchronized void clear() {
+    entries.clear();
+  }
+
+  private static long nowMs() {
+    return System.nanoTime() / 1000000;
+  }
+}
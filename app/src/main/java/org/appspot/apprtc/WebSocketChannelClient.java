@@ -20,12 +20,8 @@ import de.tavendo.autobahn.WebSocket.WebSocketConnectionObserver;
 import de.tavendo.autobahn.WebSocketConnection;
 import de.tavendo.autobahn.WebSocketException;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.LinkedList;
 
 /**
  * WebSocket client implementation.
@@ -33,11 +29,25 @@ import java.util.LinkedList;
  * <p>All public methods should be called from a looper executor thread
  * passed in a constructor, otherwise exception will be thrown.
  * All events are dispatched on the same thread.
+ *
+ * <p>With reconnection enabled, a connection that closes without disconnect()
+ * is opened again with exponential backoff and registered with the same room
+ * and client ids. Messages sent in the meantime are queued and sent once
+ * registered. onWebSocketClose() is only fired if every attempt failed.
+ *
+ * <p>Outgoing messages go through a SignalingOutbox, which orders them by
+ * priority and bounds how many may wait. Once registered, it is drained a few
+ * messages per looper turn so that a burst does not hold up incoming messages.
  */
 
 public class WebSocketChannelClient {
   private static final String TAG = "WSChannelRTCClient";
   private static final int CLOSE_TIMEOUT = 1000;
+  private static final long RECONNECT_INITIAL_DELAY_MS = 500;
+  private static final long RECONNECT_MAX_DELAY_MS = 8000;
+  private static final int RECONNECT_MAX_ATTEMPTS = 8;
+  // Messages written per looper turn when draining the outbox.
+  private static final int MAX_MESSAGES_PER_DRAIN = 4;
   private final WebSocketChannelEvents events;
   private final Handler handler;
   private WebSocketConnection ws;
@@ -49,9 +59,30 @@ public class WebSocketChannelClient {
   private WebSocketConnectionState state;
   private final Object closeEventLock = new Object();
   private boolean closeEvent;
-  // WebSocket send queue. Messages are added to the queue when WebSocket
-  // client is not registered and are consumed in register() call.
-  private final LinkedList<String> wsSendQueue;
+  // Outgoing messages. They accumulate until the client is registered and are
+  // then written by drainTask.
+  private final SignalingOutbox outbox = new SignalingOutbox(SignalingOutbox.DEFAULT_CAPACITY);
+  private boolean drainScheduled;
+  private final SignalingCodec codec = new SignalingCodec();
+  private final Runnable drainTask = new Runnable() {
+    @Override
+    public void run() {
+      drainScheduled = false;
+      drainOutbox();
+    }
+  };
+  // Null if reconnection is disabled.
+  private final ExponentialBackoff reconnectBackoff;
+  private boolean reconnecting;
+  private long connectionLostTimeMs;
+  private final Runnable reconnectTask = new Runnable() {
+    @Override
+    public void run() {
+      if (reconnecting && state == WebSocketConnectionState.NEW) {
+        connect(wsServerUrl, postServerUrl);
+      }
+    }
+  };
 
   /**
    * Possible WebSocket connection states.
@@ -66,15 +97,23 @@ public class WebSocketChannelClient {
     void onWebSocketMessage(final String message);
     void onWebSocketClose();
     void onWebSocketError(final String description);
+    // The connection was registered again |downtimeMs| after it was lost.
+    void onWebSocketReconnected(final long downtimeMs);
   }
 
   public WebSocketChannelClient(Handler handler, WebSocketChannelEvents events) {
+    this(handler, events, false /* reconnect */);
+  }
+
+  public WebSocketChannelClient(
+      Handler handler, WebSocketChannelEvents events, boolean reconnect) {
     this.handler = handler;
     this.events = events;
     roomID = null;
     clientID = null;
-    wsSendQueue = new LinkedList<String>();
     state = WebSocketConnectionState.NEW;
+    reconnectBackoff = reconnect ? new ExponentialBackoff(RECONNECT_INITIAL_DELAY_MS,
+        RECONNECT_MAX_DELAY_MS, RECONNECT_MAX_ATTEMPTS) : null;
   }
 
   public WebSocketConnectionState getState() {
@@ -94,6 +133,7 @@ public class WebSocketChannelClient {
     Log.d(TAG, "Connecting WebSocket to: " + wsUrl + ". Post URL: " + postUrl);
     ws = new WebSocketConnection();
     wsObserver = new WebSocketObserver();
+    SetupTracer.getDefault().begin(SetupTracer.WS_OPEN);
     try {
       ws.connect(new URI(wsServerUrl), wsObserver);
     } catch (URISyntaxException e) {
@@ -112,21 +152,27 @@ public class WebSocketChannelClient {
       return;
     }
     Log.d(TAG, "Registering WebSocket for room " + roomID + ". ClientID: " + clientID);
-    JSONObject json = new JSONObject();
+    SetupTracer.getDefault().begin(SetupTracer.WS_REGISTER);
     try {
-      json.put("cmd", "register");
-      json.put("roomid", roomID);
-      json.put("clientid", clientID);
-      Log.d(TAG, "C->WSS: " + json.toString());
-      ws.sendTextMessage(json.toString());
+      String message = codec.encodeRegister(roomID, clientID);
+      Log.d(TAG, "C->WSS: " + message);
+      ws.sendTextMessage(message);
       state = WebSocketConnectionState.REGISTERED;
-      // Send any previously accumulated messages.
-      for (String sendMessage : wsSendQueue) {
-        send(sendMessage);
+      if (reconnectBackoff != null) {
+        reconnectBackoff.reset();
       }
-      wsSendQueue.clear();
-    } catch (JSONException e) {
-      reportError("WebSocket register JSON error: " + e.getMessage());
+      if (reconnecting) {
+        reconnecting = false;
+        SetupTracer.getDefault().end(SetupTracer.WS_RECONNECT);
+        long downtimeMs = System.currentTimeMillis() - connectionLostTimeMs;
+        Log.d(TAG, "WebSocket registered again after " + downtimeMs + " ms. Replaying "
+            + outbox.size() + " messages.");
+        events.onWebSocketReconnected(downtimeMs);
+      }
+      // Send any previously accumulated messages.
+      scheduleDrain();
+    } finally {
+      SetupTracer.getDefault().end(SetupTracer.WS_REGISTER);
     }
   }
 
@@ -138,27 +184,25 @@ public class WebSocketChannelClient {
         // Store outgoing messages and send them after websocket client
         // is registered.
         Log.d(TAG, "WS ACC: " + message);
-        wsSendQueue.add(message);
+        queueMessage(message);
         return;
       case ERROR:
       case CLOSED:
         Log.e(TAG, "WebSocket send() in error or closed state : " + message);
         return;
       case REGISTERED:
-        JSONObject json = new JSONObject();
-        try {
-          json.put("cmd", "send");
-          json.put("msg", message);
-          message = json.toString();
-          Log.d(TAG, "C->WSS: " + message);
-          ws.sendTextMessage(message);
-        } catch (JSONException e) {
-          reportError("WebSocket send JSON error: " + e.getMessage());
-        }
+        queueMessage(message);
+        scheduleDrain();
         break;
     }
   }
 
+  private void queueMessage(String message) {
+    if (!outbox.offer(message, System.currentTimeMillis())) {
+      Log.w(TAG, "WebSocket outbox full, dropped: " + message);
+    }
+  }
+
   // This call can be used to send WebSocket messages before WebSocket
   // connection is opened.
   public void post(String message) {
@@ -169,15 +213,29 @@ public class WebSocketChannelClient {
   public void disconnect(boolean waitForComplete) {
     checkIfCalledOnValidThread();
     Log.d(TAG, "Disconnect WebSocket. State: " + state);
+    if (reconnecting) {
+      reconnecting = false;
+      handler.removeCallbacks(reconnectTask);
+      SetupTracer.getDefault().end(SetupTracer.WS_RECONNECT);
+      if (ws == null) {
+        state = WebSocketConnectionState.CLOSED;
+      }
+    }
+    handler.removeCallbacks(drainTask);
+    drainScheduled = false;
+    // Nothing queued is of use to the other client after a bye.
+    outbox.clear();
+    Log.d(TAG, "WebSocket outbox: " + outbox);
     if (state == WebSocketConnectionState.REGISTERED) {
       // Send "bye" to WebSocket server.
-      send("{\"type\": \"bye\"}");
+      writeMessage(codec.encodeBye());
       state = WebSocketConnectionState.CONNECTED;
       // Send http DELETE to http WebSocket server.
       sendWSSMessage("DELETE", "");
     }
-    // Close WebSocket in CONNECTED or ERROR states only.
-    if (state == WebSocketConnectionState.CONNECTED || state == WebSocketConnectionState.ERROR) {
+    // Close WebSocket in CONNECTED or ERROR states, or while it is being opened.
+    if (state == WebSocketConnectionState.CONNECTED || state == WebSocketConnectionState.ERROR
+        || (state == WebSocketConnectionState.NEW && ws != null)) {
       ws.disconnect();
       state = WebSocketConnectionState.CLOSED;
 
@@ -212,6 +270,65 @@ public class WebSocketChannelClient {
     });
   }
 
+  private void scheduleDrain() {
+    if (!drainScheduled) {
+      drainScheduled = true;
+      handler.post(drainTask);
+    }
+  }
+
+  // Writes the next few messages of the outbox, and schedules the rest for
+  // the next looper turn.
+  private void drainOutbox() {
+    if (state != WebSocketConnectionState.REGISTERED) {
+      return;
+    }
+    long nowMs = System.currentTimeMillis();
+    for (int i = 0; i < MAX_MESSAGES_PER_DRAIN; ++i) {
+      String message = outbox.poll(nowMs);
+      if (message == null) {
+        return;
+      }
+      writeMessage(message);
+    }
+    if (!outbox.isEmpty()) {
+      scheduleDrain();
+    }
+  }
+
+  private void writeMessage(String message) {
+    message = codec.encodeSend(message);
+    Log.d(TAG, "C->WSS: " + message);
+    ws.sendTextMessage(message);
+  }
+
+  // Schedules the next attempt to open the lost connection. Returns false if
+  // reconnection is disabled, the connection was never requested to register,
+  // or every attempt failed.
+  private boolean scheduleReconnect() {
+    if (reconnectBackoff == null || roomID == null || clientID == null
+        || state == WebSocketConnectionState.ERROR) {
+      return false;
+    }
+    long delayMs = reconnectBackoff.nextDelayMs();
+    if (delayMs < 0) {
+      Log.e(TAG, "WebSocket reconnection failed after " + reconnectBackoff.getAttempts()
+              + " attempts.");
+      return false;
+    }
+    if (!reconnecting) {
+      reconnecting = true;
+      connectionLostTimeMs = System.currentTimeMillis();
+      SetupTracer.getDefault().begin(SetupTracer.WS_RECONNECT);
+    }
+    state = WebSocketConnectionState.NEW;
+    ws = null;
+    Log.d(TAG, "Reconnecting WebSocket in " + delayMs + " ms, attempt "
+            + reconnectBackoff.getAttempts() + ".");
+    handler.postDelayed(reconnectTask, delayMs);
+    return true;
+  }
+
   // Asynchronously send POST/DELETE to WebSocket server.
   private void sendWSSMessage(final String method, final String message) {
     String postUrl = postServerUrl + "/" + roomID + "/" + clientID;
@@ -226,6 +343,7 @@ public class WebSocketChannelClient {
           @Override
           public void onHttpComplete(String response) {}
         });
+    httpConnection.setExclusive(true);
     httpConnection.send();
   }
 
@@ -241,9 +359,14 @@ public class WebSocketChannelClient {
     @Override
     public void onOpen() {
       Log.d(TAG, "WebSocket connection opened to: " + wsServerUrl);
+      SetupTracer.getDefault().end(SetupTracer.WS_OPEN);
       handler.post(new Runnable() {
         @Override
         public void run() {
+          if (wsObserver != WebSocketObserver.this
+              || state != WebSocketConnectionState.NEW) {
+            return;
+          }
           state = WebSocketConnectionState.CONNECTED;
           // Check if we have pending register request.
           if (roomID != null && clientID != null) {
@@ -264,7 +387,14 @@ public class WebSocketChannelClient {
       handler.post(new Runnable() {
         @Override
         public void run() {
-          if (state != WebSocketConnectionState.CLOSED) {
+          if (wsObserver != WebSocketObserver.this) {
+            return;
+          }
+          if (state != WebSocketConnectionState.CLOSED && !scheduleReconnect()) {
+            if (reconnecting) {
+              reconnecting = false;
+              SetupTracer.getDefault().end(SetupTracer.WS_RECONNECT);
+            }
             state = WebSocketConnectionState.CLOSED;
             events.onWebSocketClose();
           }
@@ -279,8 +409,9 @@ public class WebSocketChannelClient {
       handler.post(new Runnable() {
         @Override
         public void run() {
-          if (state == WebSocketConnectionState.CONNECTED
-              || state == WebSocketConnectionState.REGISTERED) {
+          if (wsObserver == WebSocketObserver.this
+              && (state == WebSocketConnectionState.CONNECTED
+                     || state == WebSocketConnectionState.REGISTERED)) {
             events.onWebSocketMessage(message);
           }
         }
@@ -13,6 +13,7 @@ package org.appspot.apprtc;
 import org.appspot.apprtc.RoomParametersFetcher.RoomParametersFetcherEvents;
 import org.appspot.apprtc.WebSocketChannelClient.WebSocketChannelEvents;
 import org.appspot.apprtc.WebSocketChannelClient.WebSocketConnectionState;
+import org.appspot.apprtc.util.AsyncHttpEngine;
 import org.appspot.apprtc.util.AsyncHttpURLConnection;
 import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
 
@@ -20,11 +21,15 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
+import org.webrtc.StatsReport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
 
 /**
  * Negotiates signaling for chatting with https://appr.tc "rooms".
@@ -35,6 +40,10 @@ import org.webrtc.SessionDescription;
  * onConnectedToRoom() callback with room parameters is invoked.
  * Messages to other party (with local Ice candidates and answer SDP) can
  * be sent after WebSocket connection is established.
+ *
+ * <p>The WebSocket is opened as soon as the room is joined, while the TURN
+ * servers are still being fetched. Messages it receives before
+ * onConnectedToRoom() are held back until then.
  */
 public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents {
   private static final String TAG = "WSRTCClient";
@@ -44,7 +53,8 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
 
   private enum ConnectionState { NEW, CONNECTED, CLOSED, ERROR }
 
-  private enum MessageType { MESSAGE, LEAVE }
+  // An ORDERED_MESSAGE is posted alone, see sendPostMessage().
+  private enum MessageType { MESSAGE, ORDERED_MESSAGE, LEAVE }
 
   private final Handler handler;
   private boolean initiator;
@@ -54,9 +64,21 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
   private RoomConnectionParameters connectionParameters;
   private String messageUrl;
   private String leaveUrl;
-
-  public WebSocketRTCClient(SignalingEvents events) {
+  private IceCandidateBatcher candidateBatcher;
+  // Encodes outgoing and decodes incoming signaling messages on the looper thread.
+  private final SignalingCodec codec = new SignalingCodec();
+  // Sends offers and answers as patches to peers that support them.
+  private final SdpDeltaCodec sdpCodec;
+  private final SignalingCodec.Message sdpMessage = new SignalingCodec.Message();
+  private long joinStartTimeMs;
+  // WebSocket messages received between joining the room and onConnectedToRoom(), null outside
+  // of that window.
+  private List<String> pendingWsMessages;
+
+  /** Creates a client, that also deflates the SDP patches it sends if |deflateSdp|. */
+  public WebSocketRTCClient(SignalingEvents events, boolean deflateSdp) {
     this.events = events;
+    sdpCodec = new SdpDeltaCodec(deflateSdp);
     roomState = ConnectionState.NEW;
     final HandlerThread handlerThread = new HandlerThread(TAG);
     handlerThread.start();
@@ -93,10 +115,33 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
   private void connectToRoomInternal() {
     String connectionUrl = getConnectionUrl(connectionParameters);
     Log.d(TAG, "Connect to room: " + connectionUrl);
+    joinStartTimeMs = System.currentTimeMillis();
     roomState = ConnectionState.NEW;
-    wsClient = new WebSocketChannelClient(handler, this);
+    wsClient = new WebSocketChannelClient(handler, this, connectionParameters.reconnect);
+    candidateBatcher = new IceCandidateBatcher(connectionParameters.iceCandidateBatchWindowMs,
+        IceCandidateBatcher.DEFAULT_MAX_BATCH_SIZE, new IceCandidateBatcher.BatcherEvents() {
+          @Override
+          public void onSendCandidates(List<IceCandidate> candidates) {
+            sendCandidates(codec.encodeCandidates(candidates));
+          }
+
+          @Override
+          public void onScheduleFlush(Runnable flushTask, long delayMs) {
+            handler.postDelayed(flushTask, delayMs);
+          }
+        });
 
     RoomParametersFetcherEvents callbacks = new RoomParametersFetcherEvents() {
+      @Override
+      public void onRoomJoined(final SignalingParameters params) {
+        WebSocketRTCClient.this.handler.post(new Runnable() {
+          @Override
+          public void run() {
+            WebSocketRTCClient.this.roomJoined(params);
+          }
+        });
+      }
+
       @Override
       public void onSignalingParametersReady(final SignalingParameters params) {
         WebSocketRTCClient.this.handler.post(new Runnable() {
@@ -113,12 +158,20 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
       }
     };
 
-    new RoomParametersFetcher(connectionUrl, null, callbacks).makeRequest();
+    new RoomParametersFetcher(
+        connectionUrl, null, connectionParameters.turnCacheTtlMs, sdpCodec, callbacks)
+        .makeRequest();
   }
 
   // Disconnect from room and send bye messages - runs on a local looper thread.
   private void disconnectFromRoomInternal() {
     Log.d(TAG, "Disconnect. Room state: " + roomState);
+    pendingWsMessages = null;
+    if (candidateBatcher != null) {
+      candidateBatcher.clear();
+      Log.d(TAG, "ICE candidates sent: " + candidateBatcher);
+    }
+    Log.d(TAG, "SDP patches: " + sdpCodec);
     if (roomState == ConnectionState.CONNECTED) {
       Log.d(TAG, "Closing room.");
       sendPostMessage(MessageType.LEAVE, leaveUrl, null);
@@ -127,6 +180,7 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     if (wsClient != null) {
       wsClient.disconnect(true);
     }
+    Log.d(TAG, "HTTP requests: " + AsyncHttpEngine.getDefault());
   }
 
   // Helper functions to get connection, post message and leave message URLs
@@ -146,10 +200,10 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
         + signalingParameters.clientId;
   }
 
-  // Callback issued when room parameters are extracted. Runs on local
-  // looper thread.
-  private void signalingParametersReady(final SignalingParameters signalingParameters) {
-    Log.d(TAG, "Room connection completed.");
+  // Callback issued when the room response is parsed, possibly before the
+  // TURN servers are known. Runs on local looper thread.
+  private void roomJoined(final SignalingParameters signalingParameters) {
+    Log.d(TAG, "Room joined, delay=" + (System.currentTimeMillis() - joinStartTimeMs) + "ms");
     if (connectionParameters.loopback
         && (!signalingParameters.initiator || signalingParameters.offerSdp != null)) {
       reportError("Loopback room is busy.");
@@ -165,13 +219,33 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     Log.d(TAG, "Message URL: " + messageUrl);
     Log.d(TAG, "Leave URL: " + leaveUrl);
     roomState = ConnectionState.CONNECTED;
+    pendingWsMessages = new ArrayList<String>();
+
+    // Connect and register WebSocket client while the TURN servers are fetched.
+    wsClient.connect(signalingParameters.wssUrl, signalingParameters.wssPostUrl);
+    wsClient.register(connectionParameters.roomId, signalingParameters.clientId);
+  }
+
+  // Callback issued when room parameters are extracted, ICE servers included.
+  // Runs on local looper thread.
+  private void signalingParametersReady(final SignalingParameters signalingParameters) {
+    if (roomState != ConnectionState.CONNECTED) {
+      return;
+    }
+    Log.d(TAG, "Room connection completed, delay="
+        + (System.currentTimeMillis() - joinStartTimeMs) + "ms");
 
     // Fire connection and signaling parameters events.
     events.onConnectedToRoom(signalingParameters);
 
-    // Connect and register WebSocket client.
-    wsClient.connect(signalingParameters.wssUrl, signalingParameters.wssPostUrl);
-    wsClient.register(connectionParameters.roomId, signalingParameters.clientId);
+    // Deliver what the WebSocket received in the meantime.
+    List<String> messages = pendingWsMessages;
+    pendingWsMessages = null;
+    if (messages != null) {
+      for (String message : messages) {
+        onWebSocketMessage(message);
+      }
+    }
   }
 
   // Send local offer SDP to the other participant.
@@ -184,10 +258,9 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
           reportError("Sending offer SDP in non connected state.");
           return;
         }
-        JSONObject json = new JSONObject();
-        jsonPut(json, "sdp", sdp.description);
-        jsonPut(json, "type", "offer");
-        sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+        candidateBatcher.flush();
+        sdpCodec.encode(SignalingCodec.TYPE_OFFER, sdp.description, sdpMessage);
+        sendPostMessage(MessageType.ORDERED_MESSAGE, messageUrl, codec.encodeSdp(sdpMessage));
         if (connectionParameters.loopback) {
           // In loopback mode rename this offer to answer and route it back.
           SessionDescription sdpAnswer = new SessionDescription(
@@ -208,10 +281,9 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
           Log.e(TAG, "Sending answer in loopback mode.");
           return;
         }
-        JSONObject json = new JSONObject();
-        jsonPut(json, "sdp", sdp.description);
-        jsonPut(json, "type", "answer");
-        wsClient.send(json.toString());
+        candidateBatcher.flush();
+        sdpCodec.encode(SignalingCodec.TYPE_ANSWER, sdp.description, sdpMessage);
+        wsClient.send(codec.encodeSdp(sdpMessage));
       }
     });
   }
@@ -222,25 +294,17 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     handler.post(new Runnable() {
       @Override
       public void run() {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "type", "candidate");
-        jsonPut(json, "label", candidate.sdpMLineIndex);
-        jsonPut(json, "id", candidate.sdpMid);
-        jsonPut(json, "candidate", candidate.sdp);
         if (initiator) {
-          // Call initiator sends ice candidates to GAE server.
           if (roomState != ConnectionState.CONNECTED) {
             reportError("Sending ICE candidate in non connected state.");
             return;
           }
-          sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
           if (connectionParameters.loopback) {
             events.onRemoteIceCandidate(candidate);
           }
-        } else {
-          // Call receiver sends ice candidates to websocket server.
-          wsClient.send(json.toString());
         }
+        // Sent once the batching window closes, see sendCandidates().
+        candidateBatcher.add(candidate);
       }
     });
   }
@@ -251,31 +315,32 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     handler.post(new Runnable() {
       @Override
       public void run() {
-        JSONObject json = new JSONObject();
-        jsonPut(json, "type", "remove-candidates");
-        JSONArray jsonArray = new JSONArray();
-        for (final IceCandidate candidate : candidates) {
-          jsonArray.put(toJsonCandidate(candidate));
-        }
-        jsonPut(json, "candidates", jsonArray);
+        candidateBatcher.flush();
+        String message = codec.encodeRemoveCandidates(candidates);
         if (initiator) {
           // Call initiator sends ice candidates to GAE server.
           if (roomState != ConnectionState.CONNECTED) {
             reportError("Sending ICE candidate removals in non connected state.");
             return;
           }
-          sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+          // Must not overtake the candidates it removes.
+          sendPostMessage(MessageType.ORDERED_MESSAGE, messageUrl, message);
           if (connectionParameters.loopback) {
             events.onRemoteIceCandidatesRemoved(candidates);
           }
         } else {
           // Call receiver sends ice candidates to websocket server.
-          wsClient.send(json.toString());
+          wsClient.send(message);
         }
       }
     });
   }
 
+  /** Returns the SDP patch statistics, see SdpDeltaCodec.getStatsReport(). */
+  public StatsReport getSdpStatsReport() {
+    return sdpCodec.getStatsReport();
+  }
+
   // --------------------------------------------------------------------
   // WebSocketChannelEvents interface implementation.
   // All events are called by WebSocketChannelClient on a local looper thread
@@ -286,52 +351,74 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
       Log.e(TAG, "Got WebSocket message in non registered state.");
       return;
     }
+    if (pendingWsMessages != null) {
+      // The peer connection does not exist yet.
+      pendingWsMessages.add(msg);
+      return;
+    }
     try {
-      JSONObject json = new JSONObject(msg);
-      String msgText = json.getString("msg");
-      String errorText = json.optString("error");
-      if (msgText.length() > 0) {
-        json = new JSONObject(msgText);
-        String type = json.optString("type");
-        if (type.equals("candidate")) {
-          events.onRemoteIceCandidate(toJavaCandidate(json));
-        } else if (type.equals("remove-candidates")) {
-          JSONArray candidateArray = json.getJSONArray("candidates");
-          IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
-          for (int i = 0; i < candidateArray.length(); ++i) {
-            candidates[i] = toJavaCandidate(candidateArray.getJSONObject(i));
-          }
-          events.onRemoteIceCandidatesRemoved(candidates);
-        } else if (type.equals("answer")) {
-          if (initiator) {
-            SessionDescription sdp = new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
-            events.onRemoteDescription(sdp);
-          } else {
-            reportError("Received answer for call initiator: " + msg);
-          }
-        } else if (type.equals("offer")) {
-          if (!initiator) {
-            SessionDescription sdp = new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp"));
-            events.onRemoteDescription(sdp);
-          } else {
-            reportError("Received offer for call receiver: " + msg);
-          }
-        } else if (type.equals("bye")) {
-          events.onChannelClose();
+      String error = dispatchWebSocketMessage(codec, sdpCodec, msg, initiator, events);
+      if (error != null) {
+        reportError(error);
+      }
+    } catch (JSONException e) {
+      reportError("WebSocket message JSON parsing error: " + e.toString());
+    }
+  }
+
+  // Decodes a message relayed by the WebSocket server with |codec|, and the
+  // SDP of offers and answers with |sdpCodec|, and fires the matching |events|
+  // callback. Returns an error description, or null on success. Static so
+  // that it can be driven by the benchmarks module.
+  static String dispatchWebSocketMessage(SignalingCodec codec, SdpDeltaCodec sdpCodec,
+      String msg, boolean initiator, SignalingEvents events) throws JSONException {
+    SignalingCodec.Message message = codec.decodeWebSocketMessage(msg);
+    if (message.hasPayload()) {
+      String type = message.type;
+      if (type.equals(SignalingCodec.TYPE_CANDIDATE)
+          || type.equals(SignalingCodec.TYPE_CANDIDATES)) {
+        for (IceCandidate candidate : message.candidates) {
+          events.onRemoteIceCandidate(candidate);
+        }
+      } else if (type.equals(SignalingCodec.TYPE_REMOVE_CANDIDATES)) {
+        events.onRemoteIceCandidatesRemoved(message.getCandidates());
+      } else if (type.equals(SignalingCodec.TYPE_ANSWER)) {
+        if (initiator) {
+          SessionDescription sdp = new SessionDescription(
+              SessionDescription.Type.fromCanonicalForm(type), decodeSdp(sdpCodec, message));
+          events.onRemoteDescription(sdp);
         } else {
-          reportError("Unexpected WebSocket message: " + msg);
+          return "Received answer for call initiator: " + msg;
         }
-      } else {
-        if (errorText != null && errorText.length() > 0) {
-          reportError("WebSocket error message: " + errorText);
+      } else if (type.equals(SignalingCodec.TYPE_OFFER)) {
+        if (!initiator) {
+          SessionDescription sdp = new SessionDescription(
+              SessionDescription.Type.fromCanonicalForm(type), decodeSdp(sdpCodec, message));
+          events.onRemoteDescription(sdp);
         } else {
-          reportError("Unexpected WebSocket message: " + msg);
+          return "Received offer for call receiver: " + msg;
         }
+      } else if (type.equals(SignalingCodec.TYPE_BYE)) {
+        events.onChannelClose();
+      } else {
+        return "Unexpected WebSocket message: " + msg;
+      }
+    } else {
+      if (message.error.length() > 0) {
+        return "WebSocket error message: " + message.error;
+      } else {
+        return "Unexpected WebSocket message: " + msg;
       }
-    } catch (JSONException e) {
-      reportError("WebSocket message JSON parsing error: " + e.toString());
+    }
+    return null;
+  }
+
+  private static String decodeSdp(SdpDeltaCodec sdpCodec, SignalingCodec.Message message)
+      throws JSONException {
+    try {
+      return sdpCodec.decode(message);
+    } catch (DataFormatException e) {
+      throw new JSONException("SDP patch error: " + e.getMessage());
     }
   }
 
@@ -345,6 +432,11 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     reportError("WebSocket error: " + description);
   }
 
+  @Override
+  public void onWebSocketReconnected(long downtimeMs) {
+    Log.d(TAG, "Signaling reconnected after " + downtimeMs + " ms.");
+  }
+
   // --------------------------------------------------------------------
   // Helper functions.
   private void reportError(final String errorMessage) {
@@ -360,16 +452,23 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
     });
   }
 
-  // Put a |key|->|value| mapping in |json|.
-  private static void jsonPut(JSONObject json, String key, Object value) {
-    try {
-      json.put(key, value);
-    } catch (JSONException e) {
-      throw new RuntimeException(e);
+  // Send a batch of local ICE candidates to the other participant.
+  private void sendCandidates(String message) {
+    if (initiator) {
+      // Call initiator sends ice candidates to GAE server.
+      if (roomState != ConnectionState.CONNECTED) {
+        reportError("Sending ICE candidate in non connected state.");
+        return;
+      }
+      sendPostMessage(MessageType.MESSAGE, messageUrl, message);
+    } else {
+      // Call receiver sends ice candidates to websocket server.
+      wsClient.send(message);
     }
   }
 
-  // Send SDP or ICE candidate to a room server.
+  // Send SDP or ICE candidate to a room server. Candidates may be posted concurrently, other
+  // messages are posted alone so that they keep their order with the candidates.
   private void sendPostMessage(
       final MessageType messageType, final String url, final String message) {
     String logInfo = url;
@@ -386,7 +485,7 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
 
           @Override
           public void onHttpComplete(String response) {
-            if (messageType == MessageType.MESSAGE) {
+            if (messageType != MessageType.LEAVE) {
               try {
                 JSONObject roomJson = new JSONObject(response);
                 String result = roomJson.getString("result");
@@ -399,21 +498,7 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelEvents
             }
           }
         });
+    httpConnection.setExclusive(messageType != MessageType.MESSAGE);
     httpConnection.send();
   }
-
-  // Converts a Java candidate to a JSONObject.
-  private JSONObject toJsonCandidate(final IceCandidate candidate) {
-    JSONObject json = new JSONObject();
-    jsonPut(json, "label", candidate.sdpMLineIndex);
-    jsonPut(json, "id", candidate.sdpMid);
-    jsonPut(json, "candidate", candidate.sdp);
-    return json;
-  }
-
-  // Converts a JSON candidate to a Java object.
-  IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
-    return new IceCandidate(
-        json.getString("id"), json.getInt("label"), json.getString("candidate"));
-  }
 }
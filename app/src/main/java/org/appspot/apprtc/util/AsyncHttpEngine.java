@@ -0,0 +1,223 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared worker pool that runs the requests of AsyncHttpURLConnection.
+ *
+ * <p>Requests with the same ordering key, in practice the same URL, start in submission order and
+ * at most |maxRequestsPerKey| of them run at once, each on its own kept-alive connection, so a
+ * burst of candidates posted to a room does not take a round trip per candidate. An exclusive
+ * request runs alone: it starts once every earlier request with its key has completed, and later
+ * ones wait for it. That keeps an offer ahead of the candidates that follow it. Requests with
+ * different keys run in parallel on up to |maxThreads| workers; idle workers exit after a while.
+ *
+ * <p>Also keeps latency counters for the requests it has run.
+ */
+public class AsyncHttpEngine {
+  private static final String TAG = "AsyncHttpEngine";
+  private static final int DEFAULT_MAX_THREADS = 4;
+  // Leaves a worker for requests to other hosts.
+  private static final int DEFAULT_MAX_REQUESTS_PER_KEY = 3;
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  private static AsyncHttpEngine defaultEngine;
+
+  private final ThreadPoolExecutor executor;
+  private final int maxRequestsPerKey;
+  // Requests running or waiting, by key. A key is present while one of its requests is.
+  private final Map<String, KeyQueue> keyQueues = new HashMap<String, KeyQueue>();
+
+  // Guarded by |this|.
+  private int requestCount;
+  private int errorCount;
+  private long totalLatencyMs;
+  private long maxLatencyMs;
+
+  /** Returns the engine used by AsyncHttpURLConnection unless it is given another one. */
+  public static synchronized AsyncHttpEngine getDefault() {
+    if (defaultEngine == null) {
+      defaultEngine = new AsyncHttpEngine(DEFAULT_MAX_THREADS, DEFAULT_MAX_REQUESTS_PER_KEY);
+    }
+    return defaultEngine;
+  }
+
+  public AsyncHttpEngine(int maxThreads) {
+    this(maxThreads, Math.min(maxThreads, DEFAULT_MAX_REQUESTS_PER_KEY));
+  }
+
+  public AsyncHttpEngine(int maxThreads, int maxRequestsPerKey) {
+    this.maxRequestsPerKey = Math.max(1, maxRequestsPerKey);
+    final AtomicInteger threadCount = new AtomicInteger();
+    executor = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, TAG + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Runs |request| on a worker once every request previously submitted with the same
+   * |orderingKey| has started, and fewer than maxRequestsPerKey of them are running. A null key
+   * imposes no ordering.
+   */
+  public void execute(String orderingKey, Runnable request) {
+    execute(orderingKey, request, false /* exclusive */);
+  }
+
+  /**
+   * Runs |request| alone on a worker once every request previously submitted with the same
+   * |orderingKey| has completed. Requests submitted after it with that key wait for it.
+   */
+  public void executeExclusive(String orderingKey, Runnable request) {
+    execute(orderingKey, request, true /* exclusive */);
+  }
+
+  private void execute(String orderingKey, Runnable request, boolean exclusive) {
+    if (orderingKey == null) {
+      executor.execute(request);
+      return;
+    }
+    List<Runnable> ready;
+    synchronized (keyQueues) {
+      KeyQueue queue = keyQueues.get(orderingKey);
+      if (queue == null) {
+        queue = new KeyQueue();
+        keyQueues.put(orderingKey, queue);
+      }
+      queue.waiting.add(new KeyedRequest(orderingKey, request, exclusive));
+      ready = queue.takeReady();
+    }
+    for (Runnable runnable : ready) {
+      executor.execute(runnable);
+    }
+  }
+
+  /** Stops accepting requests and lets the idle workers exit. */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /** Records the outcome of one request. */
+  synchronized void onRequestComplete(long latencyMs, boolean success) {
+    ++requestCount;
+    if (!success) {
+      ++errorCount;
+    }
+    totalLatencyMs += latencyMs;
+    maxLatencyMs = Math.max(maxLatencyMs, latencyMs);
+  }
+
+  /** Returns the number of completed requests, failed ones included. */
+  public synchronized int getRequestCount() {
+    return requestCount;
+  }
+
+  /** Returns the number of failed requests. */
+  public synchronized int getErrorCount() {
+    return errorCount;
+  }
+
+  /** Returns the average request latency in milliseconds. */
+  public synchronized long getAverageLatencyMs() {
+    return requestCount == 0 ? 0 : totalLatencyMs / requestCount;
+  }
+
+  /** Returns the largest request latency in milliseconds. */
+  public synchronized long getMaxLatencyMs() {
+    return maxLatencyMs;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return requestCount + " requests, " + errorCount + " failed, average "
+        + getAverageLatencyMs() + " ms, max " + maxLatencyMs + " ms";
+  }
+
+  // Requests of one key. Guarded by |keyQueues|.
+  private class KeyQueue {
+    final ArrayDeque<KeyedRequest> waiting = new ArrayDeque<KeyedRequest>();
+    int running;
+    boolean exclusiveRunning;
+
+    // Marks the requests at the head of |waiting| that may start now as running and returns them.
+    List<Runnable> takeReady() {
+      List<Runnable> ready = new ArrayList<Runnable>();
+      while (!waiting.isEmpty() && !exclusiveRunning) {
+        KeyedRequest next = waiting.peek();
+        if (next.exclusive ? running > 0 : running >= maxRequestsPerKey) {
+          break;
+        }
+        waiting.poll();
+        ++running;
+        exclusiveRunning = next.exclusive;
+        ready.add(next);
+      }
+      return ready;
+    }
+  }
+
+  // Runs a request, then starts the requests of the same key that were waiting for it.
+  private class KeyedRequest implements Runnable {
+    private final String orderingKey;
+    private final Runnable request;
+    private final boolean exclusive;
+
+    KeyedRequest(String orderingKey, Runnable request, boolean exclusive) {
+      this.orderingKey = orderingKey;
+      this.request = request;
+      this.exclusive = exclusive;
+    }
+
+    @Override
+    public void run() {
+      try {
+        request.run();
+      } catch (RuntimeException e) {
+        // Later requests must not be stranded.
+        Log.e(TAG, "Request to " + orderingKey + " failed: " + e);
+      }
+      List<Runnable> ready;
+      synchronized (keyQueues) {
+        KeyQueue queue = keyQueues.get(orderingKey);
+        --queue.running;
+        if (exclusive) {
+          queue.exclusiveRunning = false;
+        }
+        ready = queue.takeReady();
+        if (queue.running == 0 && queue.waiting.isEmpty()) {
+          keyQueues.remove(orderingKey);
+        }
+      }
+      for (Runnable runnable : ready) {
+        executor.execute(runnable);
+      }
+    }
+  }
+}
@@ -10,6 +10,8 @@
 
 package org.appspot.apprtc.util;
 
+import android.util.Log;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -20,15 +22,23 @@ import java.util.Scanner;
 
 /**
  * Asynchronous http requests implementation.
+ *
+ * <p>Requests run on an AsyncHttpEngine. Requests to the same URL start in order and a few of
+ * them may be in flight at once, unless a request is exclusive. Response bodies are always read
+ * to the end and the connection is left open, so HttpURLConnection can keep it alive and reuse
+ * it for the next request to the same host.
  */
 public class AsyncHttpURLConnection {
+  private static final String TAG = "AsyncHttpURLConnection";
   private static final int HTTP_TIMEOUT_MS = 8000;
   private static final String HTTP_ORIGIN = "https://appr.tc";
   private final String method;
   private final String url;
   private final String message;
   private final AsyncHttpEvents events;
+  private final AsyncHttpEngine engine;
   private String contentType;
+  private boolean exclusive;
 
   /**
    * Http requests callbacks.
@@ -39,26 +49,49 @@ public class AsyncHttpURLConnection {
   }
 
   public AsyncHttpURLConnection(String method, String url, String message, AsyncHttpEvents events) {
+    this(method, url, message, events, AsyncHttpEngine.getDefault());
+  }
+
+  public AsyncHttpURLConnection(String method, String url, String message, AsyncHttpEvents events,
+      AsyncHttpEngine engine) {
     this.method = method;
     this.url = url;
     this.message = message;
     this.events = events;
+    this.engine = engine;
   }
 
   public void setContentType(String contentType) {
     this.contentType = contentType;
   }
 
+  /**
+   * Sends the request alone: after every earlier request to the same URL has completed, and
+   * before any later one starts. For messages the peer must receive in order with the others.
+   */
+  public void setExclusive(boolean exclusive) {
+    this.exclusive = exclusive;
+  }
+
   public void send() {
     Runnable runHttp = new Runnable() {
       public void run() {
-        sendHttpMessage();
+        long startTimeNs = System.nanoTime();
+        boolean success = sendHttpMessage();
+        long latencyMs = (System.nanoTime() - startTimeNs) / 1000000;
+        engine.onRequestComplete(latencyMs, success);
+        Log.d(TAG, method + " " + url + " done in " + latencyMs + " ms");
       }
     };
-    new Thread(runHttp).start();
+    if (exclusive) {
+      engine.executeExclusive(url, runHttp);
+    } else {
+      engine.execute(url, runHttp);
+    }
   }
 
-  private void sendHttpMessage() {
+  // Returns true if the request succeeded.
+  private boolean sendHttpMessage() {
     try {
       HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
       byte[] postData = new byte[0];
@@ -94,21 +127,29 @@ public class AsyncHttpURLConnection {
       // Get response.
       int responseCode = connection.getResponseCode();
       if (responseCode != 200) {
+        // Drain the error body too, otherwise the connection cannot be reused.
+        InputStream errorStream = connection.getErrorStream();
+        if (errorStream != null) {
+          drainStream(errorStream);
+          errorStream.close();
+        }
         events.onHttpError("Non-200 response to " + method + " to URL: " + url + " : "
             + connection.getHeaderField(null));
-        connection.disconnect();
-        return;
+        return false;
       }
       InputStream responseStream = connection.getInputStream();
       String response = drainStream(responseStream);
+      // Closing a fully read stream returns the connection to the keep-alive pool; disconnect()
+      // would close the socket.
       responseStream.close();
-      connection.disconnect();
       events.onHttpComplete(response);
+      return true;
     } catch (SocketTimeoutException e) {
       events.onHttpError("HTTP " + method + " to " + url + " timeout");
     } catch (IOException e) {
       events.onHttpError("HTTP " + method + " to " + url + " error: " + e.getMessage());
     }
+    return false;
   }
 
   // Return the contents of an InputStream as a String.
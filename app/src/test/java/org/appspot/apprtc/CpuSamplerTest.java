@@ -0,0 +1,228 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Samples the proc-tree.txt fixture, a copy of procfs and sysfs taken during a call, and
+ * variations of it, and checks what CpuSampler parses out of well-formed and malformed files.
+ */
+public class CpuSamplerTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  // Slots of the fixture threads, which are kept sorted by id.
+  private static final int ENCODER_SLOT = 4;
+  private static final int TCP_SOCKET_SLOT = 11;
+  private static final String ENCODER_STAT = "proc/self/task/4330/stat";
+  private static final String STAT_TAIL = " 0 0 10 -10 43 0 13567 1793826816 38467\n";
+
+  private File root;
+  private CpuSampler sampler;
+
+  @Before
+  public void setUp() throws IOException {
+    root = TestFixtures.writeTree("fixtures/proc-tree.txt");
+  }
+
+  @After
+  public void tearDown() {
+    if (sampler != null) {
+      sampler.close();
+    }
+    TestFixtures.deleteTree(root);
+  }
+
+  private void write(String path, String content) throws IOException {
+    TestFixtures.writeFile(new File(root, path), content);
+  }
+
+  // A task stat file of thread |tid| named |name|, with the given utime and stime.
+  private static String taskStat(int tid, String name, long utime, long stime) {
+    return tid + " (" + name + ") S 512 512 0 0 -1 1077936448 81843 0 12 0 " + utime + " "
+        + stime + STAT_TAIL;
+  }
+
+  private boolean parse(String procStat) {
+    byte[] data = procStat.getBytes(UTF_8);
+    return sampler.parseProcStat(data, data.length);
+  }
+
+  @Test
+  public void samplesFixtureTree() {
+    sampler = new CpuSampler(root);
+    assertTrue(sampler.sample());
+
+    assertEquals(4, sampler.getCpuCount());
+    // user + nice + iowait, system + irq + softirq.
+    assertEquals(5093818 + 271838 + 101374, sampler.getUserTime());
+    assertEquals(3512830 + 447076 + 272086, sampler.getSystemTime());
+    assertEquals(165934119, sampler.getIdleTime());
+    assertEquals(7525 + 1263, sampler.getProcessTime());
+
+    assertEquals(1800000, sampler.getMaxFrequency(0));
+    assertEquals(2400000, sampler.getMaxFrequency(2));
+    assertEquals(1190400, sampler.getCurrentFrequency(1));
+    // cpu3 is offline and has no cpufreq files.
+    assertEquals(0, sampler.getMaxFrequency(3));
+    assertEquals(0, sampler.getCurrentFrequency(3));
+
+    assertEquals(12, sampler.getThreadCount());
+    assertEquals(4301, sampler.getThreadId(0));
+    assertEquals(4330, sampler.getThreadId(ENCODER_SLOT));
+    assertEquals("EncoderThread", sampler.getThreadName(ENCODER_SLOT));
+    // The name ends at the last ')'.
+    assertEquals("TCPSocket (x)", sampler.getThreadName(TCP_SOCKET_SLOT));
+    for (int i = 0; i < sampler.getThreadCount(); ++i) {
+      assertEquals(0, sampler.getThreadTimeDelta(i));
+    }
+  }
+
+  @Test
+  public void threadTimeDeltaIsSinceThePreviousSample() throws IOException {
+    sampler = new CpuSampler(root);
+    assertTrue(sampler.sample());
+    write(ENCODER_STAT, taskStat(4330, "EncoderThread", 2500, 140));
+    assertTrue(sampler.sample());
+
+    assertEquals(100 + 20, sampler.getThreadTimeDelta(ENCODER_SLOT));
+    assertEquals(0, sampler.getThreadTimeDelta(TCP_SOCKET_SLOT));
+    assertTrue(sampler.sample());
+    assertEquals(0, sampler.getThreadTimeDelta(ENCODER_SLOT));
+  }
+
+  @Test
+  public void renamedThreadIsReported() throws IOException {
+    sampler = new CpuSampler(root);
+    assertTrue(sampler.sample());
+    write(ENCODER_STAT, taskStat(4330, "MediaCodec_loop", 2400, 120));
+    assertTrue(sampler.sample());
+
+    assertEquals("MediaCodec_loop", sampler.getThreadName(ENCODER_SLOT));
+  }
+
+  @Test
+  public void exitedThreadKeepsItsSlotUntilTheNextRescan() throws IOException {
+    sampler = new CpuSampler(root);
+    assertTrue(sampler.sample());
+    // An open stat file of an exited thread reads as empty.
+    write(ENCODER_STAT, "");
+    assertTrue(sampler.sample());
+    assertEquals(12, sampler.getThreadCount());
+    assertEquals(0, sampler.getThreadTimeDelta(ENCODER_SLOT));
+
+    TestFixtures.deleteTree(new File(root, "proc/self/task/4330"));
+    for (int i = 0; i < 9; ++i) {
+      assertTrue(sampler.sample());
+    }
+    assertEquals(11, sampler.getThreadCount());
+    assertEquals(4331, sampler.getThreadId(ENCODER_SLOT));
+  }
+
+  @Test
+  public void truncatedTaskStatIsUnreadable() throws IOException {
+    write("proc/self/stat", "4301 (org.appspot.apprtc) S 512 512 0 0 -1 1077936448 81843 0\n");
+    write(ENCODER_STAT, "4330 (EncoderThread");
+    sampler = new CpuSampler(root);
+    assertTrue(sampler.sample());
+
+    assertEquals(-1, sampler.getProcessTime());
+    assertEquals(0, sampler.getThreadTimeDelta(ENCODER_SLOT));
+    assertNull(sampler.getThreadName(ENCODER_SLOT));
+  }
+
+  @Test
+  public void parsesAggregateLineOfFixture() throws IOException {
+    sampler = new CpuSampler(root);
+    assertTrue(parse(TestFixtures.readString("fixtures/proc-stat.txt")));
+
+    assertEquals(5093818 + 271838 + 101374, sampler.getUserTime());
+    assertEquals(3512830 + 447076 + 272086, sampler.getSystemTime());
+    assertEquals(165934119, sampler.getIdleTime());
+  }
+
+  @Test
+  public void parsesFourFieldLineOfOldKernels() {
+    sampler = new CpuSampler(root);
+    // No iowait, irq and softirq before Linux 2.5.41, and no newline at the end.
+    assertTrue(parse("cpu  10 2 30 400"));
+
+    assertEquals(12, sampler.getUserTime());
+    assertEquals(30, sampler.getSystemTime());
+    assertEquals(400, sampler.getIdleTime());
+  }
+
+  @Test
+  public void rejectsMalformedProcStat() {
+    sampler = new CpuSampler(root);
+    assertTrue(parse("cpu  10 2 30 400\n"));
+
+    assertFalse(parse(""));
+    assertFalse(parse("cpu"));
+    assertFalse(parse("cpu \n"));
+    // Three fields, the fourth one on the next line.
+    assertFalse(parse("cpu  10 2 30\n400\n"));
+    // A single CPU instead of the aggregate line.
+    assertFalse(parse("cpu0 11 3 31 401\n"));
+    assertFalse(parse("intr 11 3 31 401\n"));
+    assertFalse(parse("cpu  11 3 -31 401\n"));
+    assertFalse(parse("cpu  11 3 x 401\n"));
+
+    // The times of the last good line are kept.
+    assertEquals(12, sampler.getUserTime());
+    assertEquals(30, sampler.getSystemTime());
+    assertEquals(400, sampler.getIdleTime());
+  }
+
+  @Test
+  public void sampleFailsOnMalformedProcStat() throws IOException {
+    write("proc/stat", "cpu  10 2 30\n");
+    sampler = new CpuSampler(root);
+    assertFalse(sampler.sample());
+
+    write("proc/stat", "");
+    assertFalse(sampler.sample());
+
+    write("proc/stat", "cpu  10 2 30 400 0 0 0 0 0 0\n");
+    assertTrue(sampler.sample());
+    assertEquals(12, sampler.getUserTime());
+  }
+
+  @Test
+  public void readsCpuCountFromPresentRange() throws IOException {
+    write("sys/devices/system/cpu/present", "0-7\n");
+    assertEquals(8, new CpuSampler(root).getCpuCount());
+    write("sys/devices/system/cpu/present", "0\n");
+    assertEquals(1, new CpuSampler(root).getCpuCount());
+    write("sys/devices/system/cpu/present", "\n");
+    assertEquals(0, new CpuSampler(root).getCpuCount());
+  }
+
+  @Test
+  public void samplesWithoutCpuInformation() {
+    new File(root, "sys/devices/system/cpu/present").delete();
+    sampler = new CpuSampler(root);
+    assertEquals(0, sampler.getCpuCount());
+
+    assertTrue(sampler.sample());
+    assertEquals(165934119, sampler.getIdleTime());
+    assertEquals(12, sampler.getThreadCount());
+  }
+}
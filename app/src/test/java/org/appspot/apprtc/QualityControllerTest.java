@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the control law of QualityController with one sample per second: when it steps down,
+ * when it steps back up, and the hysteresis between the two.
+ */
+public class QualityControllerTest {
+  private static final int HEALTHY_CPU_PERCENT = 40;
+  private static final int OVERUSED_CPU_PERCENT = 90;
+
+  private QualityController controller;
+  private long packetsSent;
+
+  @Before
+  public void setUp() {
+    controller = new QualityController(1280, 720, 30, 0 /* maxBitrateKbps */);
+  }
+
+  // A period with headroom at any level: the encoder reaches the cap of the highest level.
+  private QualityController.Sample healthy(long timeMs) {
+    QualityController.Sample sample = new QualityController.Sample();
+    sample.timeMs = timeMs;
+    sample.targetBitrateBps = 2000000;
+    sample.actualBitrateBps = 2000000;
+    sample.availableSendBandwidthBps = 2500000;
+    sample.sentFps = 30;
+    sample.rttMs = 50;
+    packetsSent += 200;
+    sample.packetsSent = packetsSent;
+    sample.packetsLost = 0;
+    sample.cpuPercent = HEALTHY_CPU_PERCENT;
+    sample.frequencyScalePercent = 100;
+    return sample;
+  }
+
+  private QualityController.Sample cpuOveruse(long timeMs) {
+    QualityController.Sample sample = healthy(timeMs);
+    sample.cpuPercent = OVERUSED_CPU_PERCENT;
+    return sample;
+  }
+
+  // Feeds one sample per second from |fromMs| to |toMs| included, and returns the level.
+  private int feedHealthy(long fromMs, long toMs) {
+    for (long timeMs = fromMs; timeMs <= toMs; timeMs += 1000) {
+      controller.update(healthy(timeMs));
+    }
+    return controller.getLevel();
+  }
+
+  private int feedCpuOveruse(long fromMs, long toMs) {
+    for (long timeMs = fromMs; timeMs <= toMs; timeMs += 1000) {
+      controller.update(cpuOveruse(timeMs));
+    }
+    return controller.getLevel();
+  }
+
+  @Test
+  public void startsAtConfiguredFormat() {
+    assertEquals(0, controller.getLevel());
+    assertEquals(1280, controller.getWidth());
+    assertEquals(720, controller.getHeight());
+    assertEquals(30, controller.getFramerate());
+    assertTrue(controller.getLevelCount() > 1);
+  }
+
+  @Test
+  public void stepsDownAfterDownSamplesOfOveruse() {
+    assertEquals(0, feedCpuOveruse(0, (QualityController.DOWN_SAMPLES - 2) * 1000));
+    assertTrue(controller.update(cpuOveruse((QualityController.DOWN_SAMPLES - 1) * 1000)));
+    assertEquals(1, controller.getLevel());
+    assertTrue(controller.getReason().startsWith("cpu"));
+    // The lower level needs less of the encoder.
+    assertTrue(controller.getWidth() * controller.getHeight() * controller.getFramerate()
+        < 1280 * 720 * 30);
+  }
+
+  @Test
+  public void interruptedOveruseDoesNotStepDown() {
+    for (long timeMs = 0; timeMs < 60000; timeMs += 3000) {
+      feedCpuOveruse(timeMs, timeMs + 1000);
+      controller.update(healthy(timeMs + 2000));
+    }
+    assertEquals(0, controller.getLevel());
+  }
+
+  @Test
+  public void throttledCpuCountsAsOveruseAtLowerUsage() {
+    for (long timeMs = 0; timeMs < 3000; timeMs += 1000) {
+      QualityController.Sample sample = healthy(timeMs);
+      sample.cpuPercent = 75;
+      sample.frequencyScalePercent = 40;
+      controller.update(sample);
+    }
+    assertEquals(1, controller.getLevel());
+  }
+
+  @Test
+  public void networkIsIgnoredDuringStartup() {
+    for (long timeMs = 0; timeMs < 23000; timeMs += 1000) {
+      QualityController.Sample sample = healthy(timeMs);
+      sample.rttMs = 2000;
+      controller.update(sample);
+      // The network is watched from 20 s on, the third overused period steps down.
+      assertEquals(timeMs < 22000 ? 0 : 1, controller.getLevel());
+    }
+    assertTrue(controller.getReason().startsWith("rtt"));
+  }
+
+  @Test
+  public void consecutiveStepsDownAreSpacedByHoldTime() {
+    assertEquals(1, feedCpuOveruse(0, 2000));
+    // Three more overused periods, but too soon after the first step.
+    assertEquals(1, feedCpuOveruse(3000, 6000));
+    assertEquals(2, feedCpuOveruse(7000, 7000));
+  }
+
+  @Test
+  public void stepsUpAfterHoldTimeWithHeadroom() {
+    assertEquals(1, feedCpuOveruse(0, 2000));
+    // Headroom from 3 s on, the level is raised 10 s later.
+    assertEquals(1, feedHealthy(3000, 12000));
+    assertTrue(controller.update(healthy(13000)));
+    assertEquals(0, controller.getLevel());
+    assertEquals("headroom", controller.getReason());
+  }
+
+  @Test
+  public void stepUpWaitsForUninterruptedHeadroom() {
+    assertEquals(1, feedCpuOveruse(0, 2000));
+    assertEquals(1, feedHealthy(3000, 10000));
+    // CPU between the overuse and underuse thresholds restarts the hold time.
+    QualityController.Sample busy = healthy(11000);
+    busy.cpuPercent = 70;
+    assertFalse(controller.update(busy));
+    assertEquals(1, feedHealthy(12000, 21000));
+    assertEquals(0, feedHealthy(22000, 22000));
+  }
+
+  @Test
+  public void failedStepUpDoublesHoldTime() {
+    assertEquals(1, feedCpuOveruse(0, 2000));
+    assertEquals(0, feedHealthy(3000, 13000));
+    // Overuse right after the raise: the raise failed.
+    assertEquals(1, feedCpuOveruse(14000, 16000));
+    // Headroom from 17 s on now has to last 20 s.
+    assertEquals(1, feedHealthy(17000, 36000));
+    assertEquals(0, feedHealthy(37000, 37000));
+  }
+
+  @Test
+  public void neverStepsBelowLowestLevel() {
+    feedCpuOveruse(0, 600000);
+    assertEquals(controller.getLevelCount() - 1, controller.getLevel());
+  }
+
+  @Test
+  public void replaysRecordedTrace() throws IOException {
+    List<QualityController.Sample> trace =
+        TestFixtures.readQualityTrace("fixtures/quality-trace.csv");
+    int levelAfterCpuOveruse = -1;
+    int levelBeforeLoss = -1;
+    int levelAfterLoss = -1;
+    for (QualityController.Sample sample : trace) {
+      controller.update(sample);
+      if (sample.timeMs == 45000) {
+        levelAfterCpuOveruse = controller.getLevel();
+      } else if (sample.timeMs == 109000) {
+        levelBeforeLoss = controller.getLevel();
+      } else if (sample.timeMs == 124000) {
+        levelAfterLoss = controller.getLevel();
+      }
+    }
+    assertTrue("No step down during CPU overuse", levelAfterCpuOveruse > 0);
+    assertTrue("No step down during loss", levelAfterLoss > levelBeforeLoss);
+    assertTrue("No step up after recovery", controller.getLevel() < levelAfterLoss);
+  }
+}
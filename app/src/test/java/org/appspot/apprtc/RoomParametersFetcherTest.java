@@ -0,0 +1,258 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.RoomParametersFetcher.RoomParametersFetcherEvents;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.PeerConnection;
+
+/**
+ * Joins a local stand-in for the room server and its TURN endpoint, and checks the two steps in
+ * which RoomParametersFetcher reports the room and how it caches the TURN servers.
+ */
+public class RoomParametersFetcherTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final long TIMEOUT_MS = 5000;
+  private static final String STUN_URL = "stun:203.0.113.1:19302";
+  private static final String TURN_SERVERS = "\"iceServers\":[{\"urls\":"
+      + "[\"turn:203.0.113.1:3478?transport=udp\",\"turn:203.0.113.1:3478?transport=tcp\"],"
+      + "\"username\":\"1492000000:apprtc\",\"credential\":\"c2VjcmV0\"}]";
+
+  private HttpServer server;
+  private String baseUrl;
+  private String roomResponse;
+  private volatile String turnResponse;
+  private final AtomicInteger turnRequests = new AtomicInteger();
+  private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+  private final List<SignalingParameters> joinedParams = new ArrayList<SignalingParameters>();
+  private final List<SignalingParameters> readyParams = new ArrayList<SignalingParameters>();
+
+  private final RoomParametersFetcherEvents fetcherEvents = new RoomParametersFetcherEvents() {
+    @Override
+    public void onRoomJoined(SignalingParameters params) {
+      synchronized (joinedParams) {
+        joinedParams.add(params);
+      }
+      events.add("joined");
+    }
+
+    @Override
+    public void onSignalingParametersReady(SignalingParameters params) {
+      synchronized (readyParams) {
+        readyParams.add(params);
+      }
+      events.add("ready");
+    }
+
+    @Override
+    public void onSignalingParametersError(String description) {
+      events.add("error " + description);
+    }
+  };
+
+  private abstract static class StringHandler implements HttpHandler {
+    abstract String respond();
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      InputStream in = exchange.getRequestBody();
+      byte[] buffer = new byte[4096];
+      while (in.read(buffer) >= 0) {
+      }
+      byte[] body = respond().getBytes(UTF_8);
+      exchange.sendResponseHeaders(200, body.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.close();
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException, JSONException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    roomResponse = successResponse(baseUrl + "/turn");
+    turnResponse = "{\"lifetimeDuration\":\"86400s\"," + TURN_SERVERS + "}";
+    server.createContext("/join", new StringHandler() {
+      @Override
+      String respond() {
+        return roomResponse;
+      }
+    });
+    server.createContext("/turn", new StringHandler() {
+      @Override
+      String respond() {
+        turnRequests.incrementAndGet();
+        return turnResponse;
+      }
+    });
+    server.start();
+    TurnServerCache.clear();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    TurnServerCache.clear();
+  }
+
+  private static String successResponse(String iceServerUrl) throws JSONException {
+    return successResponse(iceServerUrl, null);
+  }
+
+  // A room joined as the initiator, or as the second client with |messages| left in the room.
+  private static String successResponse(String iceServerUrl, JSONArray messages)
+      throws JSONException {
+    JSONObject params = new JSONObject();
+    params.put("room_id", "test");
+    params.put("client_id", "12345678");
+    params.put("wss_url", "wss://127.0.0.1:8089/ws");
+    params.put("wss_post_url", "https://127.0.0.1:8089");
+    params.put("is_initiator", messages == null);
+    if (messages != null) {
+      params.put("messages", messages.toString());
+    }
+    params.put("pc_config", "{\"iceServers\":[{\"urls\":\"" + STUN_URL + "\"}]}");
+    params.put("ice_server_url", iceServerUrl);
+    JSONObject room = new JSONObject();
+    room.put("result", "SUCCESS");
+    room.put("params", params.toString());
+    return room.toString();
+  }
+
+  private void join(long turnCacheTtlMs) throws InterruptedException {
+    new RoomParametersFetcher(baseUrl + "/join/test", null, turnCacheTtlMs, fetcherEvents)
+        .makeRequest();
+    assertEquals("joined", events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertEquals("ready", events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+  }
+
+  private SignalingParameters lastReady() {
+    synchronized (readyParams) {
+      return readyParams.get(readyParams.size() - 1);
+    }
+  }
+
+  private static int countTurnServers(SignalingParameters params) {
+    int count = 0;
+    for (PeerConnection.IceServer server : params.iceServers) {
+      if (server.uri.startsWith("turn:")) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void roomJoinedBeforeTurnServersAreAdded() throws InterruptedException {
+    join(0 /* turnCacheTtlMs */);
+
+    SignalingParameters joined = joinedParams.get(0);
+    assertEquals(1, joined.iceServers.size());
+    assertEquals(STUN_URL, joined.iceServers.get(0).uri);
+    assertTrue(joined.initiator);
+    assertEquals("12345678", joined.clientId);
+
+    SignalingParameters ready = lastReady();
+    assertEquals(3, ready.iceServers.size());
+    assertEquals(2, countTurnServers(ready));
+    assertEquals("1492000000:apprtc", ready.iceServers.get(1).username);
+  }
+
+  @Test
+  public void turnServersFetchedEveryTimeWithoutCache() throws InterruptedException {
+    join(0 /* turnCacheTtlMs */);
+    join(0 /* turnCacheTtlMs */);
+
+    assertEquals(2, turnRequests.get());
+    assertNull(TurnServerCache.get(baseUrl + "/turn"));
+  }
+
+  @Test
+  public void cachedTurnServersAreReused() throws InterruptedException {
+    join(60000 /* turnCacheTtlMs */);
+    join(60000 /* turnCacheTtlMs */);
+
+    assertEquals(1, turnRequests.get());
+    assertEquals(2, countTurnServers(lastReady()));
+  }
+
+  @Test
+  public void cacheLifetimeIsCappedByCredentialLifetime() throws InterruptedException {
+    // Cached for half of the 0.2 s the credentials are valid, despite the longer TTL.
+    turnResponse = "{\"lifetimeDuration\":\"0.2s\"," + TURN_SERVERS + "}";
+    join(60000 /* turnCacheTtlMs */);
+    assertNotNull(TurnServerCache.get(baseUrl + "/turn"));
+
+    Thread.sleep(150);
+    assertNull(TurnServerCache.get(baseUrl + "/turn"));
+    join(60000 /* turnCacheTtlMs */);
+    assertEquals(2, turnRequests.get());
+  }
+
+  @Test
+  public void offerLeftInRoomIsDecodedByConnectionCodec()
+      throws InterruptedException, JSONException {
+    String sdp = "v=0\r\no=- 1 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n";
+    SignalingCodec.Message offer = new SignalingCodec.Message();
+    new SdpDeltaCodec(false /* deflate */).encode(SignalingCodec.TYPE_OFFER, sdp, offer);
+    JSONArray messages = new JSONArray();
+    messages.put(new SignalingCodec().encodeSdp(offer));
+    roomResponse = successResponse(baseUrl + "/turn", messages);
+    SdpDeltaCodec sdpCodec = new SdpDeltaCodec(false /* deflate */);
+
+    new RoomParametersFetcher(baseUrl + "/join/test", null, 0 /* turnCacheTtlMs */, sdpCodec,
+        fetcherEvents).makeRequest();
+    assertEquals("joined", events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertEquals(sdp, joinedParams.get(0).offerSdp.description);
+
+    // The answer acknowledges the offer and may be patched.
+    assertEquals(SdpDeltaCodec.VERSION, sdpCodec.getPeerVersion());
+    SignalingCodec.Message answer = new SignalingCodec.Message();
+    sdpCodec.encode(SignalingCodec.TYPE_ANSWER, sdp, answer);
+    assertEquals(offer.sdpSeq, answer.sdpAck);
+  }
+
+  @Test
+  public void roomErrorIsReported() throws InterruptedException {
+    roomResponse = "{\"result\":\"FULL\"}";
+    new RoomParametersFetcher(baseUrl + "/join/test", null, fetcherEvents).makeRequest();
+
+    assertEquals("error Room response error: FULL", events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertTrue(joinedParams.isEmpty());
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.SessionDescription;
+
+/**
+ * Checks the edits SdpRewriter applies to a SessionDescriptionModel against the output of the
+ * regular expression based preferCodec() and setStartBitrate() chain they replaced in
+ * PeerConnectionClient. The golden files were produced by that chain from
+ * fixtures/offer-simulcast.sdp, which reuses payload type 102 in its audio and video sections.
+ */
+public class SdpRewriterTest {
+  private SessionDescription offer;
+
+  @Before
+  public void setUp() throws IOException {
+    offer = new SessionDescription(
+        SessionDescription.Type.OFFER, TestFixtures.readString("fixtures/offer-simulcast.sdp"));
+  }
+
+  @Test
+  public void preferCodecsMatchesGolden() throws IOException {
+    SdpRewriter rewriter = new SdpRewriter().preferCodec("ISAC", true).preferCodec("H264", false);
+    assertRewrite("golden/offer-simulcast-local.sdp", rewriter);
+  }
+
+  @Test
+  public void audioBitrateUpdatesExistingFmtpLine() throws IOException {
+    SdpRewriter rewriter = new SdpRewriter()
+                               .preferCodec("ISAC", true)
+                               .preferCodec("H264", false)
+                               .setStartBitrate("opus", false, 32);
+    assertRewrite("golden/offer-simulcast-remote.sdp", rewriter);
+  }
+
+  @Test
+  public void videoBitrateAddsFmtpLine() throws IOException {
+    SdpRewriter rewriter =
+        new SdpRewriter().preferCodec("VP9", false).setStartBitrate("VP8", true, 1000);
+    assertRewrite("golden/offer-simulcast-vp9-vp8-bitrate.sdp", rewriter);
+  }
+
+  @Test
+  public void missingCodecsAreSkipped() throws IOException {
+    SdpRewriter rewriter =
+        new SdpRewriter().preferCodec("H265", false).setStartBitrate("G729", false, 32);
+    SessionDescriptionModel model = SessionDescriptionModel.parse(offer);
+    List<String> skippedEdits = rewriter.apply(model);
+    assertEquals(TestFixtures.readString("golden/offer-simulcast-missing-codecs.sdp"),
+        model.getDescription());
+    assertEquals(
+        Arrays.asList("prefer H265 on m=video", "set maxaveragebitrate=32000 for G729"),
+        skippedEdits);
+  }
+
+  @Test
+  public void emptyRewriterKeepsDescription() {
+    SdpRewriter rewriter = new SdpRewriter();
+    assertTrue(rewriter.isEmpty());
+    SessionDescriptionModel model = SessionDescriptionModel.parse(offer);
+    assertTrue(rewriter.apply(model).isEmpty());
+    assertFalse(model.isDirty());
+    assertEquals(offer.description, model.getDescription());
+  }
+
+  private void assertRewrite(String goldenPath, SdpRewriter rewriter) throws IOException {
+    SessionDescriptionModel model = SessionDescriptionModel.parse(offer);
+    List<String> skippedEdits = rewriter.apply(model);
+    assertEquals(TestFixtures.readString(goldenPath), model.getDescription());
+    assertTrue(skippedEdits.isEmpty());
+  }
+}
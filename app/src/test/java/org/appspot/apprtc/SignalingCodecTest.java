@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.json.JSONException;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+
+/** Checks the candidate messages of SignalingCodec, with and without an sdpMid. */
+public class SignalingCodecTest {
+  private static final String CANDIDATE_SDP =
+      "candidate:842163049 1 udp 2122260223 192.168.0.10 50000 typ host generation 0";
+
+  private final SignalingCodec codec = new SignalingCodec();
+
+  @Test
+  public void candidateRoundTrips() throws JSONException {
+    String text = codec.encodeCandidates(
+        Collections.singletonList(new IceCandidate("audio", 0, CANDIDATE_SDP)));
+
+    IceCandidate candidate = codec.decode(text).candidates.get(0);
+    assertEquals("audio", candidate.sdpMid);
+    assertEquals(0, candidate.sdpMLineIndex);
+    assertEquals(CANDIDATE_SDP, candidate.sdp);
+  }
+
+  @Test
+  public void candidateWithoutMidLeavesIdOut() throws JSONException {
+    String text = codec.encodeCandidates(
+        Collections.singletonList(new IceCandidate(null, 1, CANDIDATE_SDP)));
+    assertFalse(text.contains("\"id\""));
+
+    IceCandidate candidate = codec.decode(text).candidates.get(0);
+    assertNull(candidate.sdpMid);
+    assertEquals(1, candidate.sdpMLineIndex);
+    assertEquals(CANDIDATE_SDP, candidate.sdp);
+  }
+
+  @Test
+  public void batchAndRemovalWithoutMidRoundTrip() throws JSONException {
+    IceCandidate[] candidates = {
+        new IceCandidate(null, 0, CANDIDATE_SDP), new IceCandidate("video", 1, CANDIDATE_SDP)};
+
+    SignalingCodec.Message batch = codec.decode(codec.encodeCandidates(Arrays.asList(candidates)));
+    assertEquals(2, batch.candidates.size());
+    assertNull(batch.candidates.get(0).sdpMid);
+    assertEquals("video", batch.candidates.get(1).sdpMid);
+
+    SignalingCodec.Message removal = codec.decode(codec.encodeRemoveCandidates(candidates));
+    assertEquals(SignalingCodec.TYPE_REMOVE_CANDIDATES, removal.type);
+    assertNull(removal.candidates.get(0).sdpMid);
+  }
+}
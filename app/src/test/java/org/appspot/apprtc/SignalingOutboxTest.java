@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+
+/** Checks the order in which SignalingOutbox takes out an answer and the candidates around it. */
+public class SignalingOutboxTest {
+  private final SignalingCodec codec = new SignalingCodec();
+  private final SignalingOutbox outbox = new SignalingOutbox(SignalingOutbox.DEFAULT_CAPACITY);
+
+  private String answer(String ufrag) {
+    return codec.encodeSdp(SignalingCodec.TYPE_ANSWER,
+        "v=0\r\no=- 1 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\na=ice-ufrag:" + ufrag + "\r\n");
+  }
+
+  private String candidate(int port, String ufrag) {
+    return codec.encodeCandidates(Collections.singletonList(new IceCandidate("audio", 0,
+        "candidate:842163049 1 udp 2122260223 192.168.0.10 " + port
+            + " typ host generation 0 ufrag " + ufrag)));
+  }
+
+  @Test
+  public void firstAnswerOvertakesQueuedCandidates() {
+    String first = candidate(50000, "Hb3f");
+    String answer = answer("Hb3f");
+    assertTrue(outbox.offer(first, 0));
+    assertTrue(outbox.offer(answer, 0));
+
+    assertEquals(answer, outbox.poll(0));
+    assertEquals(first, outbox.poll(0));
+    assertNull(outbox.poll(0));
+  }
+
+  @Test
+  public void restartAnswerDropsCandidatesOfPreviousGeneration() {
+    assertTrue(outbox.offer(answer("Hb3f"), 0));
+    assertEquals(answer("Hb3f"), outbox.poll(0));
+    assertTrue(outbox.offer(candidate(50000, "Hb3f"), 0));
+    assertTrue(outbox.offer(candidate(50001, "Hb3f"), 0));
+
+    String restart = answer("Zx9q");
+    String next = candidate(50002, "Zx9q");
+    assertTrue(outbox.offer(restart, 0));
+    assertTrue(outbox.offer(next, 0));
+    assertEquals(2, outbox.size());
+    assertEquals(restart, outbox.poll(0));
+    assertEquals(next, outbox.poll(0));
+    assertNull(outbox.poll(0));
+    assertEquals(2, outbox.getCoalescedCount(SignalingOutbox.CLASS_CANDIDATE));
+  }
+
+  @Test
+  public void byeDropsEverything() {
+    assertTrue(outbox.offer(candidate(50000, "Hb3f"), 0));
+    assertTrue(outbox.offer(answer("Hb3f"), 0));
+    assertTrue(outbox.offer(codec.encodeBye(), 0));
+
+    assertEquals(1, outbox.size());
+    assertEquals(codec.encodeBye(), outbox.poll(0));
+    assertTrue(outbox.isEmpty());
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads test resources: the recorded inputs shared with the benchmarks under
+ * fixtures/, and the expected outputs under golden/.
+ */
+final class TestFixtures {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private TestFixtures() {}
+
+  /** Reads the resource |path|, line endings included. */
+  static String readString(String path) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    BufferedReader reader = open(path);
+    try {
+      char[] buffer = new char[4096];
+      int read;
+      while ((read = reader.read(buffer)) != -1) {
+        sb.append(buffer, 0, read);
+      }
+    } finally {
+      reader.close();
+    }
+    return sb.toString();
+  }
+
+  /** Reads the non-empty lines of the resource |path|. */
+  static List<String> readLines(String path) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader = open(path);
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.isEmpty()) {
+          lines.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+
+  /** Reads a QualityController trace, one stats period per line after a line of column names. */
+  static List<QualityController.Sample> readQualityTrace(String path) throws IOException {
+    List<String> lines = readLines(path);
+    List<QualityController.Sample> samples = new ArrayList<QualityController.Sample>();
+    for (String line : lines.subList(1, lines.size())) {
+      String[] fields = line.split(",");
+      QualityController.Sample sample = new QualityController.Sample();
+      sample.timeMs = Long.parseLong(fields[0]);
+      sample.targetBitrateBps = Double.parseDouble(fields[1]);
+      sample.actualBitrateBps = Double.parseDouble(fields[2]);
+      sample.availableSendBandwidthBps = Double.parseDouble(fields[3]);
+      sample.sentFps = Double.parseDouble(fields[4]);
+      sample.rttMs = Double.parseDouble(fields[5]);
+      sample.packetsSent = Long.parseLong(fields[6]);
+      sample.packetsLost = Long.parseLong(fields[7]);
+      sample.cpuPercent = Integer.parseInt(fields[8]);
+      sample.frequencyScalePercent = Integer.parseInt(fields[9]);
+      samples.add(sample);
+    }
+    return samples;
+  }
+
+  /**
+   * Writes the files of the resource |path|, each introduced by a "=== <relative path>" line,
+   * under a new temporary directory, and returns that directory.
+   */
+  static File writeTree(String path) throws IOException {
+    File root = File.createTempFile("fixture", "");
+    if (!root.delete() || !root.mkdir()) {
+      throw new IOException("Can not create " + root);
+    }
+    StringBuilder content = null;
+    File file = null;
+    for (String line : readLines(path)) {
+      if (line.startsWith("=== ")) {
+        if (file != null) {
+          writeFile(file, content.toString());
+        }
+        file = new File(root, line.substring(4));
+        content = new StringBuilder();
+      } else {
+        content.append(line).append('\n');
+      }
+    }
+    if (file != null) {
+      writeFile(file, content.toString());
+    }
+    return root;
+  }
+
+  static void deleteTree(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteTree(child);
+      }
+    }
+    file.delete();
+  }
+
+  /** Writes |content| to |file|, creating its directory if needed. */
+  static void writeFile(File file, String content) throws IOException {
+    if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+      throw new IOException("Can not create " + file.getParentFile());
+    }
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes(UTF_8));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static BufferedReader open(String path) throws IOException {
+    InputStream in = TestFixtures.class.getResourceAsStream("/" + path);
+    if (in == null) {
+      throw new IOException("Missing test resource: " + path);
+    }
+    return new BufferedReader(new InputStreamReader(in, UTF_8));
+  }
+}
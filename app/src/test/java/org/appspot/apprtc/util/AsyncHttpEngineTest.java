@@ -0,0 +1,163 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+/** Checks how AsyncHttpEngine schedules the requests that share an ordering key. */
+public class AsyncHttpEngineTest {
+  private static final String KEY = "https://appr.tc/message/room/client";
+  private static final long TIMEOUT_MS = 5000;
+  // Long enough for a request that is wrongly let through to start.
+  private static final long SETTLE_MS = 100;
+
+  private AsyncHttpEngine engine;
+
+  // Blocks until released, tracking how many requests of its group run at once.
+  private static class BlockingRequest implements Runnable {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicInteger running;
+    private final AtomicInteger maxRunning;
+
+    BlockingRequest(AtomicInteger running, AtomicInteger maxRunning) {
+      this.running = running;
+      this.maxRunning = maxRunning;
+    }
+
+    @Override
+    public void run() {
+      int now = running.incrementAndGet();
+      synchronized (maxRunning) {
+        maxRunning.set(Math.max(maxRunning.get(), now));
+      }
+      started.countDown();
+      try {
+        release.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      running.decrementAndGet();
+      done.countDown();
+    }
+
+    boolean awaitStarted() throws InterruptedException {
+      return started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    boolean hasStarted() throws InterruptedException {
+      return started.await(SETTLE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    boolean finish() throws InterruptedException {
+      release.countDown();
+      return done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private final AtomicInteger running = new AtomicInteger();
+  private final AtomicInteger maxRunning = new AtomicInteger();
+
+  private BlockingRequest newRequest() {
+    return new BlockingRequest(running, maxRunning);
+  }
+
+  @After
+  public void tearDown() {
+    engine.shutdown();
+  }
+
+  @Test
+  public void sameKeyRunsUpToMaxRequestsPerKey() throws InterruptedException {
+    engine = new AsyncHttpEngine(4, 2);
+    BlockingRequest[] requests = new BlockingRequest[4];
+    for (int i = 0; i < requests.length; ++i) {
+      requests[i] = newRequest();
+      engine.execute(KEY, requests[i]);
+    }
+    assertTrue(requests[0].awaitStarted());
+    assertTrue(requests[1].awaitStarted());
+    assertFalse(requests[2].hasStarted());
+
+    assertTrue(requests[0].finish());
+    assertTrue(requests[2].awaitStarted());
+    assertFalse(requests[3].hasStarted());
+    assertTrue(requests[1].finish());
+    assertTrue(requests[2].finish());
+    assertTrue(requests[3].finish());
+    assertEquals(2, maxRunning.get());
+  }
+
+  @Test
+  public void exclusiveRequestRunsAlone() throws InterruptedException {
+    engine = new AsyncHttpEngine(4, 3);
+    BlockingRequest first = newRequest();
+    BlockingRequest second = newRequest();
+    BlockingRequest exclusive = newRequest();
+    BlockingRequest after = newRequest();
+    engine.execute(KEY, first);
+    engine.execute(KEY, second);
+    engine.executeExclusive(KEY, exclusive);
+    engine.execute(KEY, after);
+
+    assertTrue(first.awaitStarted());
+    assertTrue(second.awaitStarted());
+    assertFalse(exclusive.hasStarted());
+    assertTrue(first.finish());
+    assertFalse(exclusive.hasStarted());
+    assertTrue(second.finish());
+
+    assertTrue(exclusive.awaitStarted());
+    assertFalse(after.hasStarted());
+    assertTrue(exclusive.finish());
+    assertTrue(after.awaitStarted());
+    assertTrue(after.finish());
+  }
+
+  @Test
+  public void differentKeysRunInParallel() throws InterruptedException {
+    engine = new AsyncHttpEngine(2, 1);
+    BlockingRequest first = newRequest();
+    BlockingRequest other = newRequest();
+    engine.execute(KEY, first);
+    engine.executeExclusive(KEY + "/other", other);
+
+    assertTrue(first.awaitStarted());
+    assertTrue(other.awaitStarted());
+    assertTrue(first.finish());
+    assertTrue(other.finish());
+  }
+
+  @Test
+  public void failedRequestDoesNotHoldBackLaterOnes() throws InterruptedException {
+    engine = new AsyncHttpEngine(2, 1);
+    BlockingRequest later = newRequest();
+    engine.executeExclusive(KEY, new Runnable() {
+      @Override
+      public void run() {
+        throw new IllegalStateException("Request failed.");
+      }
+    });
+    engine.execute(KEY, later);
+
+    assertTrue(later.awaitStarted());
+    assertTrue(later.finish());
+  }
+}
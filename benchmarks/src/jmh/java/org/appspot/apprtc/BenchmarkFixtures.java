@@ -0,0 +1,187 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.webrtc.StatsReport;
+
+/**
+ * Loads the recorded inputs under src/jmh/resources/fixtures.
+ *
+ * <p>ws-messages.txt and tcp-messages.txt hold one signaling message per line,
+ * as relayed by the room server and as sent over the direct TCP channel. The
+ * first line of each is the offer, followed by a candidate burst.
+ * stats-100.txt holds StatsReports as an "id|type|timestamp" header, one
+ * "name=value" line per value and a blank line between reports.
+ * quality-trace.csv holds three minutes of QualityController inputs, one
+ * stats period per line: bitrate ramp-up, then CPU overuse and throttling,
+ * a steady stretch, a lossy network episode and the recovery.
+ * proc-tree.txt holds the procfs and sysfs files read by CpuSampler, each
+ * after a "=== path" line, for a 4 core device with one core offline and a
+ * call in progress.
+ */
+final class BenchmarkFixtures {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private BenchmarkFixtures() {}
+
+  static String readString(String name) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    BufferedReader reader = open(name);
+    try {
+      char[] buffer = new char[4096];
+      int read;
+      while ((read = reader.read(buffer)) != -1) {
+        sb.append(buffer, 0, read);
+      }
+    } finally {
+      reader.close();
+    }
+    return sb.toString();
+  }
+
+  static List<String> readLines(String name) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader = open(name);
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.isEmpty()) {
+          lines.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+
+  static StatsReport[] readStatsReports(String name) throws IOException {
+    List<StatsReport> reports = new ArrayList<StatsReport>();
+    BufferedReader reader = open(name);
+    try {
+      String[] header = null;
+      List<StatsReport.Value> values = new ArrayList<StatsReport.Value>();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          if (header != null) {
+            reports.add(toReport(header, values));
+            header = null;
+            values.clear();
+          }
+        } else if (header == null) {
+          header = line.split("\\|");
+        } else {
+          int separator = line.indexOf('=');
+          values.add(new StatsReport.Value(
+              line.substring(0, separator), line.substring(separator + 1)));
+        }
+      }
+      if (header != null) {
+        reports.add(toReport(header, values));
+      }
+    } finally {
+      reader.close();
+    }
+    return reports.toArray(new StatsReport[reports.size()]);
+  }
+
+  static List<QualityController.Sample> readQualityTrace(String name) throws IOException {
+    List<String> lines = readLines(name);
+    List<QualityController.Sample> samples = new ArrayList<QualityController.Sample>();
+    // The first line names the columns.
+    for (String line : lines.subList(1, lines.size())) {
+      String[] fields = line.split(",");
+      QualityController.Sample sample = new QualityController.Sample();
+      sample.timeMs = Long.parseLong(fields[0]);
+      sample.targetBitrateBps = Double.parseDouble(fields[1]);
+      sample.actualBitrateBps = Double.parseDouble(fields[2]);
+      sample.availableSendBandwidthBps = Double.parseDouble(fields[3]);
+      sample.sentFps = Double.parseDouble(fields[4]);
+      sample.rttMs = Double.parseDouble(fields[5]);
+      sample.packetsSent = Long.parseLong(fields[6]);
+      sample.packetsLost = Long.parseLong(fields[7]);
+      sample.cpuPercent = Integer.parseInt(fields[8]);
+      sample.frequencyScalePercent = Integer.parseInt(fields[9]);
+      samples.add(sample);
+    }
+    return samples;
+  }
+
+  /** Writes the files of a tree fixture under a new temporary directory. */
+  static File writeTree(String name) throws IOException {
+    File root = File.createTempFile("fixture", "");
+    if (!root.delete() || !root.mkdir()) {
+      throw new IOException("Can not create " + root);
+    }
+    StringBuilder content = null;
+    File file = null;
+    for (String line : readLines(name)) {
+      if (line.startsWith("=== ")) {
+        if (file != null) {
+          writeFile(file, content.toString());
+        }
+        file = new File(root, line.substring(4));
+        content = new StringBuilder();
+      } else {
+        content.append(line).append('\n');
+      }
+    }
+    if (file != null) {
+      writeFile(file, content.toString());
+    }
+    return root;
+  }
+
+  static void deleteTree(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteTree(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static void writeFile(File file, String content) throws IOException {
+    if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+      throw new IOException("Can not create " + file.getParentFile());
+    }
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes(UTF_8));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static StatsReport toReport(String[] header, List<StatsReport.Value> values) {
+    return new StatsReport(header[0], header[1], Double.parseDouble(header[2]),
+        values.toArray(new StatsReport.Value[values.size()]));
+  }
+
+  private static BufferedReader open(String name) throws IOException {
+    InputStream in = BenchmarkFixtures.class.getResourceAsStream("/fixtures/" + name);
+    if (in == null) {
+      throw new IOException("Missing fixture: " + name);
+    }
+    return new BufferedReader(new InputStreamReader(in, UTF_8));
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.webrtc.IceCandidate;
+
+/**
+ * Encoding and decoding the recorded direct connection offer and candidate burst with
+ * BinarySignalingCodec.
+ *
+ * <p>setUp() checks that both survive a round trip, and that the binary messages take less than a
+ * quarter of the bytes of the JSON ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BinarySignalingBenchmark {
+  private final BinarySignalingCodec binaryCodec = new BinarySignalingCodec();
+  private String offerSdp;
+  private List<IceCandidate> candidates;
+  private byte[] binaryOffer;
+  private byte[] binaryCandidates;
+
+  @Setup
+  public void setUp() throws Exception {
+    List<String> messages = BenchmarkFixtures.readLines("tcp-messages.txt");
+    offerSdp = new JSONObject(messages.get(0)).getString("sdp");
+    candidates = new ArrayList<IceCandidate>();
+    int jsonBytes = messages.get(0).length();
+    for (String msg : messages.subList(1, messages.size() - 1)) {
+      JSONObject json = new JSONObject(msg);
+      candidates.add(new IceCandidate(
+          json.getString("id"), json.getInt("label"), json.getString("candidate")));
+      jsonBytes += msg.length();
+    }
+    binaryOffer = encodeOffer();
+    binaryCandidates = encodeCandidates();
+
+    if (!binaryCodec.decode(binaryOffer).sdp.equals(offerSdp)) {
+      throw new IllegalStateException("Offer SDP not decoded");
+    }
+    List<IceCandidate> decoded = binaryCodec.decode(binaryCandidates).candidates;
+    for (int i = 0; i < candidates.size(); ++i) {
+      IceCandidate candidate = candidates.get(i);
+      if (!decoded.get(i).sdpMid.equals(candidate.sdpMid)
+          || decoded.get(i).sdpMLineIndex != candidate.sdpMLineIndex
+          || !decoded.get(i).sdp.equals(candidate.sdp)) {
+        throw new IllegalStateException("Candidate not decoded: " + candidate);
+      }
+    }
+    int binaryBytes = binaryOffer.length + binaryCandidates.length;
+    if (decoded.size() != candidates.size() || binaryBytes * 4 > jsonBytes) {
+      throw new IllegalStateException(
+          "Binary signaling: " + binaryBytes + " bytes, JSON: " + jsonBytes + " bytes");
+    }
+  }
+
+  @Benchmark
+  public byte[] encodeOffer() {
+    return binaryCodec.encodeSdp(SignalingCodec.TYPE_OFFER, offerSdp);
+  }
+
+  @Benchmark
+  public int decodeOffer() throws DataFormatException {
+    return binaryCodec.decode(binaryOffer).sdp.length();
+  }
+
+  @Benchmark
+  public byte[] encodeCandidates() {
+    return binaryCodec.encodeCandidates(candidates);
+  }
+
+  @Benchmark
+  public int decodeCandidates() throws DataFormatException {
+    return binaryCodec.decode(binaryCandidates).candidates.size();
+  }
+}
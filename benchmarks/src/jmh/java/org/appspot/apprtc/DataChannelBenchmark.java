@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * DataChannel receive path for a text message held in a direct buffer, as
+ * delivered by the native layer: the old copy into a byte[] and String versus
+ * a TextMessageHandler behind a HandlerList.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DataChannelBenchmark {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Param({"64", "1024", "16384"})
+  public int messageSize;
+
+  private ByteBuffer message;
+  private DataChannelTransport.HandlerList handlers;
+
+  @Setup
+  public void setUp(final Blackhole blackhole) {
+    StringBuilder sb = new StringBuilder("{\"type\":\"telemetry\",\"values\":[");
+    while (sb.length() < messageSize - 2) {
+      sb.append("1,");
+    }
+    sb.setLength(messageSize - 2);
+    sb.append("]}");
+    byte[] bytes = sb.toString().getBytes(UTF_8);
+    message = ByteBuffer.allocateDirect(bytes.length);
+    message.put(bytes);
+    message.flip();
+
+    handlers = new DataChannelTransport.HandlerList();
+    handlers.add(new DataChannelTransport.TextMessageHandler() {
+      @Override
+      public void onTextMessage(CharBuffer text) {
+        blackhole.consume(text.get(text.limit() - 1));
+      }
+    });
+  }
+
+  @Benchmark
+  public String copyToString() {
+    message.rewind();
+    byte[] bytes = new byte[message.capacity()];
+    message.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  @Benchmark
+  public void textHandler() {
+    message.rewind();
+    handlers.onMessage(message, false /* binary */);
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.appspot.apprtc.util.AsyncHttpEngine;
+import org.appspot.apprtc.util.AsyncHttpURLConnection;
+import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Posts an offer followed by a burst of candidates to a local stand-in for the room server, the
+ * way WebSocketRTCClient does for the call initiator.
+ *
+ * <p>postBurst goes through AsyncHttpURLConnection and its shared engine, with the offer posted
+ * alone and the candidates a few at a time. threadPerRequestBurst is the previous
+ * implementation, a new thread and a new connection per request, kept here as the baseline. A
+ * burst fails if any of its requests failed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HttpEngineBenchmark {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final long TIMEOUT_MS = 10000;
+  private static final byte[] RESPONSE = "{\"result\":\"SUCCESS\"}".getBytes(UTF_8);
+  private static final String CANDIDATE =
+      "{\"type\":\"candidate\",\"label\":0,\"id\":\"audio\",\"candidate\":\"candidate:842163049 "
+      + "1 udp 1677729535 203.0.113.7 61000 typ srflx raddr 192.168.0.10 rport 50000 "
+      + "generation 0 ufrag Hb3f network-cost 10\"}";
+
+  @Param({"16"})
+  public int candidates;
+
+  private HttpServer server;
+  private AsyncHttpEngine engine;
+  private String offer;
+  private String messageUrl;
+  private final AtomicInteger failures = new AtomicInteger();
+  private final Semaphore completed = new Semaphore(0);
+
+  private final AsyncHttpEvents events = new AsyncHttpEvents() {
+    @Override
+    public void onHttpError(String errorMessage) {
+      failures.incrementAndGet();
+      completed.release();
+    }
+
+    @Override
+    public void onHttpComplete(String response) {
+      completed.release();
+    }
+  };
+
+  @Setup
+  public void setUp() throws IOException {
+    offer = BenchmarkFixtures.readString("offer-simulcast.sdp");
+    // Otherwise every response stalls on Nagle's algorithm and a delayed ACK.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/message", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        byte[] buffer = new byte[4096];
+        while (in.read(buffer) >= 0) {
+        }
+        exchange.sendResponseHeaders(200, RESPONSE.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(RESPONSE);
+        out.close();
+      }
+    });
+    server.start();
+    messageUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/message/room/client";
+    engine = new AsyncHttpEngine(4);
+  }
+
+  @TearDown
+  public void tearDown() {
+    engine.shutdown();
+    server.stop(0);
+  }
+
+  @Benchmark
+  public void postBurst() throws InterruptedException {
+    AsyncHttpURLConnection offerConnection =
+        new AsyncHttpURLConnection("POST", messageUrl, offer, events, engine);
+    offerConnection.setExclusive(true);
+    offerConnection.send();
+    for (int i = 0; i < candidates; ++i) {
+      new AsyncHttpURLConnection("POST", messageUrl, CANDIDATE, events, engine).send();
+    }
+    awaitCompletions(candidates + 1);
+  }
+
+  @Benchmark
+  public void threadPerRequestBurst() throws InterruptedException {
+    postOnNewThread(offer);
+    for (int i = 0; i < candidates; ++i) {
+      postOnNewThread(CANDIDATE);
+    }
+    awaitCompletions(candidates + 1);
+  }
+
+  private void awaitCompletions(int count) throws InterruptedException {
+    if (!completed.tryAcquire(count, TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+      throw new IllegalStateException("Timed out waiting for responses.");
+    }
+    int failed = failures.getAndSet(0);
+    if (failed > 0) {
+      throw new IllegalStateException(failed + " of " + count + " requests failed.");
+    }
+  }
+
+  // The request path AsyncHttpURLConnection used before it moved onto AsyncHttpEngine.
+  private void postOnNewThread(final String message) {
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          byte[] postData = message.getBytes(UTF_8);
+          HttpURLConnection connection = (HttpURLConnection) new URL(messageUrl).openConnection();
+          connection.setRequestMethod("POST");
+          connection.setUseCaches(false);
+          connection.setDoInput(true);
+          connection.setDoOutput(true);
+          connection.setFixedLengthStreamingMode(postData.length);
+          connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+          // The JDK pools connections even after disconnect(), Android closes them.
+          connection.setRequestProperty("Connection", "close");
+          OutputStream out = connection.getOutputStream();
+          out.write(postData);
+          out.close();
+          InputStream in = connection.getInputStream();
+          byte[] buffer = new byte[4096];
+          while (in.read(buffer) >= 0) {
+          }
+          in.close();
+          connection.disconnect();
+          events.onHttpComplete(null);
+        } catch (IOException e) {
+          events.onHttpError(e.getMessage());
+        }
+      }
+    }).start();
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Replays a synthetic 40-minute call through a PerformanceGovernor for a
+ * 720p30 capture, one sample per second.
+ *
+ * <p>The device throttles from minute 15 to minute 25 while the CPU stays
+ * busy, then the battery runs down from minute 32, and the charger is plugged
+ * in at minute 38. setUp() checks the tiers the governor picks along the way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PerformanceGovernorBenchmark {
+  private static final long MINUTE_MS = 60000;
+
+  private List<PerformanceGovernor.Sample> trace;
+
+  @Setup
+  public void setUp() {
+    trace = new ArrayList<PerformanceGovernor.Sample>();
+    for (long timeMs = 0; timeMs < 40 * MINUTE_MS; timeMs += 1000) {
+      boolean throttled = timeMs >= 15 * MINUTE_MS && timeMs < 25 * MINUTE_MS;
+      int batteryLevel = (timeMs < 32 * MINUTE_MS)
+          ? 60
+          : (int) Math.max(2, 60 - (timeMs - 32 * MINUTE_MS) / 6000);
+      PerformanceGovernor.Sample sample = new PerformanceGovernor.Sample();
+      sample.set(timeMs, throttled ? 75 : 45 /* cpuPercent */,
+          throttled ? 40 : 85 /* frequencyScalePercent */, batteryLevel,
+          timeMs >= 38 * MINUTE_MS /* charging */);
+      trace.add(sample);
+    }
+
+    PerformanceGovernor governor = new PerformanceGovernor(1280, 720, 30, 0 /* maxBitrateKbps */);
+    int tierBeforeThrottling = -1;
+    int tierWhileThrottled = -1;
+    int tierAfterCooling = -1;
+    int lowestTierOnBattery = PerformanceGovernor.TIER_FULL;
+    for (PerformanceGovernor.Sample sample : trace) {
+      governor.update(sample);
+      if (sample.timeMs == 15 * MINUTE_MS) {
+        tierBeforeThrottling = governor.getTier();
+      } else if (sample.timeMs == 17 * MINUTE_MS) {
+        tierWhileThrottled = governor.getTier();
+      } else if (sample.timeMs == 32 * MINUTE_MS) {
+        tierAfterCooling = governor.getTier();
+      } else if (sample.timeMs > 32 * MINUTE_MS && !sample.charging) {
+        lowestTierOnBattery = Math.max(lowestTierOnBattery, governor.getTier());
+      }
+    }
+    if (tierBeforeThrottling != PerformanceGovernor.TIER_FULL
+        || tierWhileThrottled < PerformanceGovernor.TIER_REDUCED_RESOLUTION
+        || tierAfterCooling != PerformanceGovernor.TIER_FULL
+        || lowestTierOnBattery != PerformanceGovernor.TIER_AUDIO_ONLY
+        || governor.getTier() != PerformanceGovernor.TIER_FULL) {
+      throw new IllegalStateException("Unexpected performance tiers: " + tierBeforeThrottling
+          + ", " + tierWhileThrottled + ", " + tierAfterCooling + ", " + lowestTierOnBattery
+          + ", " + governor.getTier());
+    }
+  }
+
+  @Benchmark
+  public int replayTrace() {
+    PerformanceGovernor governor = new PerformanceGovernor(1280, 720, 30, 0 /* maxBitrateKbps */);
+    for (PerformanceGovernor.Sample sample : trace) {
+      governor.update(sample);
+    }
+    return governor.getTier();
+  }
+}
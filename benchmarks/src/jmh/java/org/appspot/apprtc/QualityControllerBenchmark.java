@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Replays the recorded quality-trace.csv through a QualityController for a
+ * 720p30 capture, three minutes of stats periods per invocation. The
+ * decisions taken on the trace are checked by QualityControllerTest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QualityControllerBenchmark {
+  private List<QualityController.Sample> trace;
+
+  @Setup
+  public void setUp() throws IOException {
+    trace = BenchmarkFixtures.readQualityTrace("quality-trace.csv");
+  }
+
+  @Benchmark
+  public int replayTrace() {
+    QualityController controller = new QualityController(1280, 720, 30, 0 /* maxBitrateKbps */);
+    for (QualityController.Sample sample : trace) {
+      controller.update(sample);
+    }
+    return controller.getLevel();
+  }
+}
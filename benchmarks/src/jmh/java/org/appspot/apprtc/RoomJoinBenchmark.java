@@ -0,0 +1,183 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.appspot.apprtc.RoomParametersFetcher.RoomParametersFetcherEvents;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * End-to-end room join against a local stand-in for the room server and its TURN endpoint,
+ * each answering after a simulated network delay.
+ *
+ * <p>joinToSignaling measures the time until onRoomJoined(), when WebSocketRTCClient starts
+ * the WebSocket connect. joinToIceServers measures the time until
+ * onSignalingParametersReady(), when the peer connection can be created. Without the TURN
+ * cache the difference between the two is the TURN fetch, which now overlaps the WebSocket
+ * connect instead of preceding it. A join error fails the trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RoomJoinBenchmark {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final long TIMEOUT_MS = 10000;
+  private static final String TURN_RESPONSE = "{\"lifetimeDuration\":\"86400s\",\"iceServers\":"
+      + "[{\"urls\":[\"turn:203.0.113.1:3478?transport=udp\","
+      + "\"turn:203.0.113.1:3478?transport=tcp\"],"
+      + "\"username\":\"1492000000:apprtc\",\"credential\":\"c2VjcmV0\"}]}";
+
+  @Param({"50"})
+  public int networkDelayMs;
+
+  @Param({"0", "60000"})
+  public long turnCacheTtlMs;
+
+  private HttpServer server;
+  private String joinUrl;
+  private boolean fetchPending;
+  private volatile String error;
+
+  private final Semaphore joined = new Semaphore(0);
+  private final Semaphore ready = new Semaphore(0);
+  private final RoomParametersFetcherEvents events = new RoomParametersFetcherEvents() {
+    @Override
+    public void onRoomJoined(SignalingParameters params) {
+      joined.release();
+    }
+
+    @Override
+    public void onSignalingParametersReady(SignalingParameters params) {
+      ready.release();
+    }
+
+    @Override
+    public void onSignalingParametersError(String description) {
+      error = description;
+      // Wakes up the benchmark waiting for either callback.
+      joined.release();
+      ready.release();
+    }
+  };
+
+  private class DelayedResponse implements HttpHandler {
+    private final String response;
+
+    DelayedResponse(String response) {
+      this.response = response;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      InputStream in = exchange.getRequestBody();
+      byte[] buffer = new byte[4096];
+      while (in.read(buffer) >= 0) {
+      }
+      try {
+        Thread.sleep(networkDelayMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      byte[] body = response.getBytes(UTF_8);
+      exchange.sendResponseHeaders(200, body.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.close();
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException, JSONException {
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    joinUrl = baseUrl + "/join/benchmark";
+
+    JSONObject params = new JSONObject();
+    params.put("room_id", "benchmark");
+    params.put("client_id", "12345678");
+    params.put("wss_url", "wss://127.0.0.1:8089/ws");
+    params.put("wss_post_url", "https://127.0.0.1:8089");
+    params.put("is_initiator", true);
+    params.put("pc_config", "{\"iceServers\":[{\"urls\":\"stun:203.0.113.1:19302\"}]}");
+    params.put("ice_server_url", baseUrl + "/turn");
+    JSONObject room = new JSONObject();
+    room.put("result", "SUCCESS");
+    room.put("params", params.toString());
+
+    server.createContext("/join", new DelayedResponse(room.toString()));
+    server.createContext("/turn", new DelayedResponse(TURN_RESPONSE));
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    TurnServerCache.clear();
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop(0);
+    TurnServerCache.clear();
+  }
+
+  // Lets the fetch finish so that it does not overlap the next one.
+  @TearDown(Level.Invocation)
+  public void awaitFetch() throws InterruptedException {
+    if (fetchPending) {
+      await(ready);
+      fetchPending = false;
+    }
+    joined.drainPermits();
+  }
+
+  @Benchmark
+  public void joinToSignaling() throws InterruptedException {
+    new RoomParametersFetcher(joinUrl, null, turnCacheTtlMs, events).makeRequest();
+    fetchPending = true;
+    await(joined);
+  }
+
+  @Benchmark
+  public void joinToIceServers() throws InterruptedException {
+    new RoomParametersFetcher(joinUrl, null, turnCacheTtlMs, events).makeRequest();
+    await(ready);
+  }
+
+  private void await(Semaphore semaphore) throws InterruptedException {
+    if (!semaphore.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+      throw new IllegalStateException("Timed out joining the room.");
+    }
+    if (error != null) {
+      throw new IllegalStateException("Join error: " + error);
+    }
+  }
+}
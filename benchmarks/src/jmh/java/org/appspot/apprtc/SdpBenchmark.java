@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.webrtc.SessionDescription;
+
+/**
+ * SDP munging as done by PeerConnectionClient for the local and remote
+ * descriptions, on a three-section offer with simulcast and a full codec list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SdpBenchmark {
+  private SessionDescription offer;
+  // Same edits PeerConnectionClient sets up for H264 with an ISAC preference
+  // and an opus start bitrate.
+  private SdpRewriter localRewriter;
+  private SdpRewriter remoteRewriter;
+
+  @Setup
+  public void setUp() throws IOException {
+    offer = new SessionDescription(
+        SessionDescription.Type.OFFER, BenchmarkFixtures.readString("offer-simulcast.sdp"));
+    localRewriter = new SdpRewriter().preferCodec("ISAC", true).preferCodec("H264", false);
+    remoteRewriter = new SdpRewriter()
+                         .preferCodec("ISAC", true)
+                         .preferCodec("H264", false)
+                         .setStartBitrate("opus", false, 32);
+  }
+
+  @Benchmark
+  public SessionDescriptionModel parseModel() {
+    return SessionDescriptionModel.parse(offer);
+  }
+
+  @Benchmark
+  public SessionDescription applyLocalToModel() {
+    SessionDescriptionModel model = SessionDescriptionModel.parse(offer);
+    localRewriter.apply(model);
+    return model.toSessionDescription();
+  }
+
+  @Benchmark
+  public SessionDescription applyRemoteToModel() {
+    SessionDescriptionModel model = SessionDescriptionModel.parse(offer);
+    remoteRewriter.apply(model);
+    return model.toSessionDescription();
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Diffing the recorded offer against the offer of an ICE restart, which changes the ICE
+ * credentials and the session version, and decoding the resulting message with SdpDeltaCodec.
+ *
+ * <p>setUp() runs the offer, answer and restart offer between two codecs and checks that the
+ * restart offer survives the round trip in less than a tenth of its size. It also checks that a
+ * first offer to a peer that has not announced support goes out in full, and that once the peer
+ * announced support, an offer without a base is deflated to under half its size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SdpDeltaBenchmark {
+  private final SignalingCodec codec = new SignalingCodec();
+  private final SdpDeltaCodec sdpCodec = new SdpDeltaCodec(true /* deflate */);
+  private String offerSdp;
+  private String restartSdp;
+  private String restartPatch;
+  private String restartMessage;
+  private SdpDeltaCodec receiver;
+
+  @Setup
+  public void setUp() throws Exception {
+    List<String> messages = BenchmarkFixtures.readLines("tcp-messages.txt");
+    offerSdp = new JSONObject(messages.get(0)).getString("sdp");
+    restartSdp = offerSdp.replace("a=ice-ufrag:Hb3f", "a=ice-ufrag:q7Zx")
+                     .replace("0Fd9uXbmWK2d8XWQ4oq5qF7J", "Jm2kP0sVb8Lr5TnQw1YcXe4A")
+                     .replace(" 2 IN IP4 127.0.0.1", " 3 IN IP4 127.0.0.1");
+    if (restartSdp.equals(offerSdp)) {
+      throw new IllegalStateException("Restart offer not derived");
+    }
+    restartPatch = diffRestartOffer();
+    if (!applyRestartPatch().equals(restartSdp)) {
+      throw new IllegalStateException("Restart patch not applied: " + restartPatch);
+    }
+
+    SdpDeltaCodec sender = new SdpDeltaCodec(true /* deflate */);
+    receiver = new SdpDeltaCodec(true /* deflate */);
+    String offer = send(sender, SignalingCodec.TYPE_OFFER, offerSdp);
+    if (!new JSONObject(offer).getString("sdp").equals(offerSdp)) {
+      throw new IllegalStateException("First offer not sent in full: " + offer);
+    }
+    receive(receiver, offer, offerSdp);
+    receive(sender, send(receiver, SignalingCodec.TYPE_ANSWER, offerSdp), offerSdp);
+    restartMessage = send(sender, SignalingCodec.TYPE_OFFER, restartSdp);
+    receive(receiver, restartMessage, restartSdp);
+    if (new JSONObject(restartMessage).getInt("base") != 1
+        || restartMessage.length() * 10 > restartSdp.length()) {
+      throw new IllegalStateException("Restart offer not patched: " + restartMessage);
+    }
+
+    SdpDeltaCodec fresh = new SdpDeltaCodec(true /* deflate */);
+    String answer = send(new SdpDeltaCodec(false /* deflate */), SignalingCodec.TYPE_ANSWER,
+        offerSdp);
+    receive(fresh, answer, offerSdp);
+    String deflated = send(fresh, SignalingCodec.TYPE_OFFER, restartSdp);
+    receive(new SdpDeltaCodec(false /* deflate */), deflated, restartSdp);
+    if (deflated.length() * 2 > restartSdp.length()) {
+      throw new IllegalStateException("Offer not deflated: " + deflated.length() + " bytes");
+    }
+  }
+
+  private String send(SdpDeltaCodec endpoint, String type, String sdp) {
+    SignalingCodec.Message message = new SignalingCodec.Message();
+    endpoint.encode(type, sdp, message);
+    return codec.encodeSdp(message);
+  }
+
+  private void receive(SdpDeltaCodec endpoint, String text, String expectedSdp)
+      throws DataFormatException, JSONException {
+    if (!endpoint.decode(codec.decode(text)).equals(expectedSdp)) {
+      throw new IllegalStateException("SDP not decoded: " + text);
+    }
+  }
+
+  @Benchmark
+  public String diffRestartOffer() {
+    return sdpCodec.diff(offerSdp, restartSdp);
+  }
+
+  @Benchmark
+  public String applyRestartPatch() throws DataFormatException {
+    return sdpCodec.apply(offerSdp, restartPatch);
+  }
+
+  /** Decodes the deflated restart offer patch, as received over the WebSocket. */
+  @Benchmark
+  public String decodeRestartOffer() throws DataFormatException, JSONException {
+    return receiver.decode(codec.decode(restartMessage));
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Recording one SDP munge in a SetupTracer, and exporting a full ring as
+ * Chrome trace JSON.
+ *
+ * <p>setUp() records a call setup from two threads, more events than the
+ * ring holds, and checks that the export keeps the newest ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SetupTracerBenchmark {
+  private static final int CAPACITY = 256;
+
+  private SetupTracer tracer;
+
+  @Setup
+  public void setUp() throws Exception {
+    tracer = new SetupTracer(CAPACITY);
+    Thread signaling = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < CAPACITY; ++i) {
+          tracer.begin(SetupTracer.SDP_MUNGE);
+          tracer.end(SetupTracer.SDP_MUNGE);
+        }
+      }
+    }, "signaling");
+    signaling.start();
+    for (int i = 0; i < CAPACITY; ++i) {
+      tracer.once(SetupTracer.FIRST_CANDIDATE);
+    }
+    signaling.join();
+    tracer.begin(SetupTracer.ROOM_POST);
+    tracer.end(SetupTracer.ROOM_POST);
+    tracer.instant(SetupTracer.ICE_CONNECTED);
+
+    String trace = exportTrace();
+    if (tracer.getEventCount() != CAPACITY || !trace.startsWith("{\"traceEvents\":[{")
+        || !trace.contains("\"name\":\"ice_connected\",\"cat\":\"apprtc\",\"ph\":\"i\"")
+        || !trace.contains("\"args\":{\"name\":\"signaling\"}")
+        || !trace.endsWith("],\"displayTimeUnit\":\"ms\"}")) {
+      throw new IllegalStateException("Unexpected setup trace: " + trace);
+    }
+    tracer.reset();
+    if (tracer.getEventCount() != 0 || !exportTrace().equals(
+            "{\"traceEvents\":[],\"displayTimeUnit\":\"ms\"}")) {
+      throw new IllegalStateException("Setup trace not reset");
+    }
+    for (int i = 0; i < CAPACITY; ++i) {
+      tracer.instant(SetupTracer.SDP_MUNGE);
+    }
+  }
+
+  @Benchmark
+  public SetupTracer recordMunge() {
+    tracer.begin(SetupTracer.SDP_MUNGE);
+    tracer.end(SetupTracer.SDP_MUNGE);
+    return tracer;
+  }
+
+  @Benchmark
+  public String exportTrace() throws IOException {
+    StringWriter writer = new StringWriter();
+    tracer.writeChromeTrace(writer, 1 /* pid */);
+    return writer.toString();
+  }
+}
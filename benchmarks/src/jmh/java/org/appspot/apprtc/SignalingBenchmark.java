@@ -0,0 +1,177 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.appspot.apprtc.AppRTCClient.SignalingEvents;
+import org.appspot.apprtc.AppRTCClient.SignalingParameters;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+/**
+ * JSON handling of incoming signaling messages for both the room server
+ * (WebSocket) and the direct TCP connection. Each benchmark handles either the
+ * recorded offer or the whole recorded candidate burst, except
+ * webSocketEncodeOffer, which encodes the recorded offer for sending.
+ *
+ * <p>setUp() checks that SignalingCodec decodes the recorded messages like
+ * JSONObject does, and that the offer survives a round trip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SignalingBenchmark {
+  /** Counts callbacks so that none of the parsing can be optimized away. */
+  private static class CountingEvents implements SignalingEvents {
+    int count;
+
+    @Override
+    public void onConnectedToRoom(final SignalingParameters params) {
+      count += params.offerSdp.description.length();
+    }
+
+    @Override
+    public void onRemoteDescription(final SessionDescription sdp) {
+      count += sdp.description.length();
+    }
+
+    @Override
+    public void onRemoteIceCandidate(final IceCandidate candidate) {
+      count += candidate.sdpMLineIndex;
+    }
+
+    @Override
+    public void onRemoteIceCandidatesRemoved(final IceCandidate[] candidates) {
+      count += candidates.length;
+    }
+
+    @Override
+    public void onChannelClose() {}
+
+    @Override
+    public void onChannelError(final String description) {
+      throw new IllegalStateException(description);
+    }
+  }
+
+  private final CountingEvents events = new CountingEvents();
+  private final SignalingCodec codec = new SignalingCodec();
+  private final SdpDeltaCodec sdpCodec = new SdpDeltaCodec(true /* deflate */);
+  private String wsOffer;
+  private List<String> wsCandidates;
+  private String tcpOffer;
+  private List<String> tcpCandidates;
+  private String tcpCandidateBatch;
+  private DirectRTCClient directClient;
+  private String offerSdp;
+
+  @Setup
+  public void setUp() throws IOException, JSONException {
+    List<String> wsMessages = BenchmarkFixtures.readLines("ws-messages.txt");
+    wsOffer = wsMessages.get(0);
+    wsCandidates = wsMessages.subList(1, wsMessages.size());
+    List<String> tcpMessages = BenchmarkFixtures.readLines("tcp-messages.txt");
+    tcpOffer = tcpMessages.get(0);
+    tcpCandidates = tcpMessages.subList(1, tcpMessages.size());
+    tcpCandidateBatch = toCandidateBatch(tcpMessages.subList(1, tcpMessages.size() - 1));
+    directClient = new DirectRTCClient(events);
+
+    offerSdp = new JSONObject(new JSONObject(wsOffer).getString("msg")).getString("sdp");
+    if (!codec.decodeWebSocketMessage(wsOffer).sdp.equals(offerSdp)
+        || !codec.decodeWebSocketMessage(webSocketEncodeOffer()).sdp.equals(offerSdp)
+        || !codec.decode(tcpOffer).sdp.equals(offerSdp)) {
+      throw new IllegalStateException("Offer SDP not decoded");
+    }
+    List<String> candidateMessages = tcpCandidates.subList(0, tcpCandidates.size() - 1);
+    for (String msg : candidateMessages) {
+      JSONObject json = new JSONObject(msg);
+      IceCandidate candidate = codec.decode(msg).candidates.get(0);
+      if (!candidate.sdpMid.equals(json.getString("id"))
+          || candidate.sdpMLineIndex != json.getInt("label")
+          || !candidate.sdp.equals(json.getString("candidate"))) {
+        throw new IllegalStateException("Candidate not decoded: " + msg);
+      }
+    }
+    if (codec.decode(tcpCandidateBatch).candidates.size() != candidateMessages.size()) {
+      throw new IllegalStateException("Candidate batch not decoded: " + tcpCandidateBatch);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    directClient.disconnectFromRoom();
+  }
+
+  @Benchmark
+  public int webSocketOffer() throws JSONException {
+    WebSocketRTCClient.dispatchWebSocketMessage(
+        codec, sdpCodec, wsOffer, false /* initiator */, events);
+    return events.count;
+  }
+
+  @Benchmark
+  public int webSocketCandidateBurst() throws JSONException {
+    for (String msg : wsCandidates) {
+      WebSocketRTCClient.dispatchWebSocketMessage(
+          codec, sdpCodec, msg, false /* initiator */, events);
+    }
+    return events.count;
+  }
+
+  @Benchmark
+  public String webSocketEncodeOffer() {
+    return codec.encodeSend(codec.encodeSdp(SignalingCodec.TYPE_OFFER, offerSdp));
+  }
+
+  @Benchmark
+  public int tcpOffer() {
+    directClient.onTCPMessage(tcpOffer);
+    return events.count;
+  }
+
+  @Benchmark
+  public int tcpCandidateBurst() {
+    for (String msg : tcpCandidates) {
+      directClient.onTCPMessage(msg);
+    }
+    return events.count;
+  }
+
+  /** Same candidates as tcpCandidateBurst, coalesced into one message by IceCandidateBatcher. */
+  @Benchmark
+  public int tcpCandidateBatch() {
+    directClient.onTCPMessage(tcpCandidateBatch);
+    return events.count;
+  }
+
+  private String toCandidateBatch(List<String> candidateMessages) throws JSONException {
+    List<IceCandidate> candidates = new ArrayList<IceCandidate>();
+    for (String msg : candidateMessages) {
+      JSONObject json = new JSONObject(msg);
+      candidates.add(new IceCandidate(
+          json.getString("id"), json.getInt("label"), json.getString("candidate")));
+    }
+    return codec.encodeCandidates(candidates);
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.webrtc.IceCandidate;
+
+/**
+ * Queueing the recorded candidate burst, the offer and the candidate removal in a
+ * SignalingOutbox and draining it, as WebSocketChannelClient does while registering.
+ *
+ * <p>setUp() checks that the offer is taken out before the candidates queued ahead of it, that
+ * the removal drops the removed candidates that were still queued and is not sent itself, that a
+ * full outbox drops the oldest candidates but still takes the offer, and that a bye drops
+ * everything still queued.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SignalingOutboxBenchmark {
+  private final SignalingCodec codec = new SignalingCodec();
+  private String offer;
+  private List<String> candidates;
+  private String removal;
+  private int removedCount;
+
+  @Setup
+  public void setUp() throws Exception {
+    List<String> messages = BenchmarkFixtures.readLines("tcp-messages.txt");
+    // Re-encoded as the app sends them.
+    offer = codec.encodeSdp(
+        SignalingCodec.TYPE_OFFER, new JSONObject(messages.get(0)).getString("sdp"));
+    candidates = new ArrayList<String>();
+    for (String msg : messages.subList(1, messages.size() - 1)) {
+      List<IceCandidate> candidate = new ArrayList<IceCandidate>(codec.decode(msg).candidates);
+      candidates.add(codec.encodeCandidates(candidate));
+    }
+    IceCandidate[] removed = codec.decode(messages.get(messages.size() - 1)).getCandidates();
+    removedCount = removed.length;
+    removal = codec.encodeRemoveCandidates(removed);
+
+    SignalingOutbox outbox = new SignalingOutbox(SignalingOutbox.DEFAULT_CAPACITY);
+    queueBurst(outbox);
+    List<String> sent = new ArrayList<String>();
+    String msg;
+    while ((msg = outbox.poll(1)) != null) {
+      sent.add(msg);
+    }
+    if (!sent.get(0).equals(offer)) {
+      throw new IllegalStateException("Offer not sent first: " + sent.get(0));
+    }
+    if (sent.size() != 1 + candidates.size() - removedCount
+        || outbox.getCoalescedCount(SignalingOutbox.CLASS_CANDIDATE) != removedCount + 1) {
+      throw new IllegalStateException("Removal not coalesced: " + outbox);
+    }
+    for (String sentMsg : sent) {
+      if (codec.decode(sentMsg).type.equals(SignalingCodec.TYPE_REMOVE_CANDIDATES)) {
+        throw new IllegalStateException("Removal sent: " + sentMsg);
+      }
+    }
+
+    int capacity = 16;
+    SignalingOutbox bounded = new SignalingOutbox(capacity);
+    for (String candidate : candidates) {
+      bounded.offer(candidate, 0);
+    }
+    if (!bounded.offer(offer, 0) || bounded.size() != capacity + 1
+        || bounded.getDroppedCount(SignalingOutbox.CLASS_CANDIDATE)
+            != candidates.size() - capacity
+        || !bounded.poll(0).equals(offer)
+        || !bounded.poll(0).equals(candidates.get(candidates.size() - capacity))) {
+      throw new IllegalStateException("Full outbox not bounded: " + bounded);
+    }
+    bounded.offer(codec.encodeBye(), 0);
+    if (bounded.size() != 1 || !bounded.poll(0).equals(codec.encodeBye())) {
+      throw new IllegalStateException("Bye not alone: " + bounded);
+    }
+  }
+
+  private void queueBurst(SignalingOutbox outbox) {
+    for (String msg : candidates) {
+      outbox.offer(msg, 0);
+    }
+    outbox.offer(offer, 0);
+    outbox.offer(removal, 0);
+  }
+
+  /** Queues the burst in a fresh outbox and takes every message out in priority order. */
+  @Benchmark
+  public int queueAndDrainBurst() {
+    SignalingOutbox outbox = new SignalingOutbox(SignalingOutbox.DEFAULT_CAPACITY);
+    queueBurst(outbox);
+    int count = 0;
+    while (outbox.poll(1) != null) {
+      ++count;
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int classifyBurst() {
+    int sum = SignalingOutbox.classify(offer) + SignalingOutbox.classify(removal);
+    for (String msg : candidates) {
+      sum += SignalingOutbox.classify(msg);
+    }
+    return sum;
+  }
+}
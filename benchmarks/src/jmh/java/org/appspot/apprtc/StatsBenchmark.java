@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.webrtc.StatsReport;
+
+/**
+ * Per-period stats work: ingesting a 100-report getStats() result into the
+ * HUD's StatsSnapshot and formatting it, recording a sample with
+ * StatsRecorder, parsing the aggregate cpu line of /proc/stat, and a full
+ * CpuSampler sample of the proc-tree.txt fixture.
+ *
+ * <p>The steady case feeds the same reports every period. The changing case
+ * alternates with a copy whose numeric values all differ, so every section is
+ * formatted again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StatsBenchmark {
+  private StatsReport[] reports;
+  private StatsReport[] changedReports;
+  private StatsSnapshot snapshot;
+  private HudStatsFormatter formatter;
+  private long period;
+  private File recordingFile;
+  private StatsRecorder recorder;
+  private byte[] procStat;
+  private File procTree;
+  private CpuSampler cpuSampler;
+  private ThreadCpuProfiler threadCpuProfiler;
+  private final int[] threadGroupPercents = new int[ThreadCpuProfiler.GROUP_COUNT];
+
+  @Setup
+  public void setUp() throws IOException {
+    reports = BenchmarkFixtures.readStatsReports("stats-100.txt");
+    changedReports = new StatsReport[reports.length];
+    for (int i = 0; i < reports.length; ++i) {
+      StatsReport report = reports[i];
+      StatsReport.Value[] values = new StatsReport.Value[report.values.length];
+      for (int j = 0; j < values.length; ++j) {
+        String value = report.values[j].value;
+        if (value.matches("[0-9]+")) {
+          value = String.valueOf(Long.parseLong(value) + 1);
+        }
+        values[j] = new StatsReport.Value(report.values[j].name, value);
+      }
+      changedReports[i] = new StatsReport(report.id, report.type, report.timestamp, values);
+    }
+    snapshot = new StatsSnapshot();
+    formatter = new HudStatsFormatter();
+    recordingFile = File.createTempFile("benchmark", ".stats");
+    recorder = new StatsRecorder(recordingFile, StatsRecorder.DEFAULT_MAX_BYTES);
+    procStat = BenchmarkFixtures.readString("proc-stat.txt").getBytes("UTF-8");
+    procTree = BenchmarkFixtures.writeTree("proc-tree.txt");
+    cpuSampler = new CpuSampler(procTree);
+    threadCpuProfiler = new ThreadCpuProfiler(5 /* movingAverageSamples */);
+    if (ThreadCpuProfiler.groupOf("EncoderThread") != ThreadCpuProfiler.GROUP_ENCODER
+        || ThreadCpuProfiler.groupOf(PeerConnectionClient.EXECUTOR_THREAD_NAME)
+            != ThreadCpuProfiler.GROUP_SIGNALING
+        || ThreadCpuProfiler.groupOf("Thread-42") != ThreadCpuProfiler.GROUP_OTHER) {
+      throw new IllegalStateException("Unexpected thread groups");
+    }
+  }
+
+  @Benchmark
+  public HudStatsFormatter.HudStats formatHudStatsSteady() {
+    snapshot.update(reports);
+    return formatter.format(snapshot);
+  }
+
+  @Benchmark
+  public HudStatsFormatter.HudStats formatHudStatsChanging() {
+    snapshot.update((++period % 2 == 0) ? reports : changedReports);
+    return formatter.format(snapshot);
+  }
+
+  @TearDown
+  public void tearDown() {
+    recorder.close();
+    recordingFile.delete();
+    cpuSampler.close();
+    BenchmarkFixtures.deleteTree(procTree);
+  }
+
+  @Benchmark
+  public void recordStatsSample() {
+    snapshot.update((++period % 2 == 0) ? reports : changedReports);
+    recorder.record(period * 1000, snapshot, 42 /* cpuPercent */, 17 /* processCpuPercent */,
+        threadGroupPercents);
+  }
+
+  @Benchmark
+  public boolean parseProcStat() {
+    return cpuSampler.parseProcStat(procStat, procStat.length);
+  }
+
+  @Benchmark
+  public boolean sampleCpu() {
+    return cpuSampler.sample();
+  }
+
+  @Benchmark
+  public double profileThreads() {
+    cpuSampler.sample();
+    threadCpuProfiler.update(cpuSampler, 1000 /* allTime */);
+    return threadCpuProfiler.getCurrent(ThreadCpuProfiler.GROUP_ENCODER);
+  }
+}
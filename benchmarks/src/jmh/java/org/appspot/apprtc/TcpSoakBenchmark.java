@@ -0,0 +1,160 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Many concurrent localhost TCPChannelClient pairs on a single TCPEventLoop, the way a headless
+ * relay would run its direct sessions. Each round every client sends a candidate-sized message
+ * and the round ends once all servers have received theirs. A TCP error on any client fails the
+ * trial.
+ *
+ * <p>Needs about three file descriptors per pair; raise the limit (ulimit -n) accordingly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TcpSoakBenchmark {
+  private static final String LOOPBACK_ADDRESS = "127.0.0.1";
+  private static final String ANY_ADDRESS = "0.0.0.0";
+  private static final int BASE_PORT = 20000;
+  private static final long TIMEOUT_MS = 30000;
+  private static final long AWAIT_SLICE_MS = 100;
+  private static final String MESSAGE =
+      "{\"type\":\"candidate\",\"label\":0,\"id\":\"audio\",\"candidate\":\"candidate:842163049 "
+      + "1 udp 1677729535 203.0.113.7 61000 typ srflx raddr 192.168.0.10 rport 50000 "
+      + "generation 0 ufrag Hb3f network-cost 10\"}";
+
+  /** Runs on the loop thread, like every callback of a client whose executor is the loop. */
+  private static class Events implements TCPChannelClient.TCPChannelEvents {
+    final Semaphore connected;
+    final Semaphore received;
+    volatile String error;
+
+    Events(Semaphore connected, Semaphore received) {
+      this.connected = connected;
+      this.received = received;
+    }
+
+    @Override
+    public void onTCPConnected(boolean server) {
+      connected.release();
+    }
+
+    @Override
+    public void onTCPMessage(String message) {
+      received.release();
+    }
+
+    @Override
+    public void onTCPBinaryMessage(byte[] message) {
+      received.release();
+    }
+
+    @Override
+    public void onTCPError(String description) {
+      if (error == null) {
+        error = description;
+      }
+    }
+
+    @Override
+    public void onTCPClose() {}
+  }
+
+  @Param({"1000"})
+  public int pairs;
+
+  @Param({"false", "true"})
+  public boolean framed;
+
+  private TCPEventLoop eventLoop;
+  private TCPChannelClient[] servers;
+  private TCPChannelClient[] clients;
+  private final Semaphore connected = new Semaphore(0);
+  private final Semaphore received = new Semaphore(0);
+  private final Events events = new Events(connected, received);
+  private final Runnable sendRound = new Runnable() {
+    @Override
+    public void run() {
+      for (TCPChannelClient client : clients) {
+        client.send(MESSAGE);
+      }
+    }
+  };
+
+  @Setup
+  public void setUp() throws Exception {
+    eventLoop = new TCPEventLoop();
+    servers = new TCPChannelClient[pairs];
+    clients = new TCPChannelClient[pairs];
+    for (int i = 0; i < pairs; ++i) {
+      servers[i] =
+          new TCPChannelClient(eventLoop, events, ANY_ADDRESS, BASE_PORT + i, framed, eventLoop);
+    }
+    // Let the loop bind all listening sockets before connecting.
+    eventLoop.submit(new Runnable() {
+      @Override
+      public void run() {}
+    }).get();
+    for (int i = 0; i < pairs; ++i) {
+      clients[i] = new TCPChannelClient(
+          eventLoop, events, LOOPBACK_ADDRESS, BASE_PORT + i, framed, eventLoop);
+    }
+    await(connected, 2 * pairs);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    eventLoop.submit(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < pairs; ++i) {
+          clients[i].disconnect();
+          servers[i].disconnect();
+        }
+      }
+    }).get();
+    eventLoop.shutdown();
+    eventLoop.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+  }
+
+  @Benchmark
+  public void round() throws Exception {
+    eventLoop.execute(sendRound);
+    await(received, pairs);
+  }
+
+  // Waits in short slices so that a TCP error fails the trial without waiting for the timeout.
+  private void await(Semaphore semaphore, int permits) throws IOException, InterruptedException {
+    long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    while (!semaphore.tryAcquire(permits, AWAIT_SLICE_MS, TimeUnit.MILLISECONDS)) {
+      if (events.error != null) {
+        throw new IOException("TCP error: " + events.error);
+      }
+      if (System.currentTimeMillis() >= deadlineMs) {
+        throw new IOException("Timed out waiting for " + permits + " events.");
+      }
+    }
+  }
+}
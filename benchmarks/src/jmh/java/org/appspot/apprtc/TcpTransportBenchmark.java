@@ -0,0 +1,157 @@
+/*
+ *  Copyright 2017 The WebRTC Project Authors. All rights reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.appspot.apprtc;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Localhost delivery of signaling messages through a pair of TCPChannelClients, comparing the
+ * line protocol with length-prefixed framing. Each benchmark measures the time from send() on one
+ * side to onTCPMessage() on the other.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TcpTransportBenchmark {
+  private static final String LOOPBACK_ADDRESS = "127.0.0.1";
+  private static final String ANY_ADDRESS = "0.0.0.0";
+  private static final int PORT = 18888;
+  private static final long TIMEOUT_MS = 5000;
+
+  /** Signals a semaphore for every event so that the benchmark thread can wait for delivery. */
+  private static class Events implements TCPChannelClient.TCPChannelEvents {
+    final Semaphore connected = new Semaphore(0);
+    final Semaphore received = new Semaphore(0);
+
+    @Override
+    public void onTCPConnected(boolean server) {
+      connected.release();
+    }
+
+    @Override
+    public void onTCPMessage(String message) {
+      received.release();
+    }
+
+    @Override
+    public void onTCPBinaryMessage(byte[] message) {
+      received.release();
+    }
+
+    @Override
+    public void onTCPError(String description) {
+      throw new IllegalStateException(description);
+    }
+
+    @Override
+    public void onTCPClose() {}
+  }
+
+  @Param({"false", "true"})
+  public boolean framed;
+
+  private final ExecutorService serverExecutor = Executors.newSingleThreadExecutor();
+  private final ExecutorService clientExecutor = Executors.newSingleThreadExecutor();
+  private final Events serverEvents = new Events();
+  private final Events clientEvents = new Events();
+  private TCPChannelClient server;
+  private TCPChannelClient client;
+  private String offer;
+  private List<String> candidates;
+
+  @Setup
+  public void setUp() throws Exception {
+    // The offer, the candidate burst and a final remove-candidates message.
+    List<String> messages = BenchmarkFixtures.readLines("tcp-messages.txt");
+    offer = messages.get(0);
+    candidates = messages.subList(1, messages.size() - 1);
+
+    serverExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        server = new TCPChannelClient(serverExecutor, serverEvents, ANY_ADDRESS, PORT, framed);
+      }
+    }).get();
+    // Give the server thread time to bind before connecting.
+    Thread.sleep(100);
+    clientExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        client = new TCPChannelClient(clientExecutor, clientEvents, LOOPBACK_ADDRESS, PORT, framed);
+      }
+    }).get();
+    await(serverEvents.connected, 1);
+    await(clientEvents.connected, 1);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    clientExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        client.disconnect();
+      }
+    }).get();
+    serverExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        server.disconnect();
+      }
+    }).get();
+    clientExecutor.shutdown();
+    serverExecutor.shutdown();
+  }
+
+  @Benchmark
+  public void offer() throws Exception {
+    send(offer);
+    await(clientEvents.received, 1);
+  }
+
+  @Benchmark
+  public void candidateBurst() throws Exception {
+    // One task per message, the way DirectRTCClient posts them.
+    for (final String candidate : candidates) {
+      send(candidate);
+    }
+    await(clientEvents.received, candidates.size());
+  }
+
+  private void send(final String message) {
+    serverExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        server.send(message);
+      }
+    });
+  }
+
+  private static void await(Semaphore semaphore, int permits)
+      throws IOException, InterruptedException {
+    if (!semaphore.tryAcquire(permits, TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+      throw new IOException("Timed out waiting for " + permits + " events.");
+    }
+  }
+}